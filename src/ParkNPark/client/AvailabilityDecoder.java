@@ -0,0 +1,114 @@
+package ParkNPark.client;
+
+import org.omg.CORBA.MARSHAL;
+
+import ParkNPark.interfaces.ClientManager;
+
+/**
+ * Decodes the compact replies of the client manager's compact operations, such as
+ * getLotsCompact() and getOtherLotAvailabilityCompact(), back into lists of lot or
+ * level IDs. A reply is either the differences between consecutive IDs as zigzag
+ * varints, which keeps the list's order, or a bitmap of an ascending list; the first
+ * byte tells which, as ClientManager.COMPACT_DELTAS and COMPACT_BITMAP describe
+ */
+public class AvailabilityDecoder
+{
+	/** The reply being decoded */
+	protected byte[] encoding;
+
+	/** The position of the next byte to read */
+	protected int position;
+
+	/**
+	 * Creates a decoder of one reply
+	 * @param encoding The reply
+	 */
+	protected AvailabilityDecoder(byte[] encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Decodes a compact reply
+	 * @param encoding The reply
+	 * @return The IDs, in the order that the server listed them
+	 * @throws MARSHAL Thrown if the reply is not a valid encoding
+	 */
+	public static int[] decode(byte[] encoding) {
+		return new AvailabilityDecoder(encoding).decode();
+	}
+
+	/**
+	 * Decodes the reply
+	 * @return The IDs
+	 * @throws MARSHAL Thrown if the reply is not a valid encoding
+	 */
+	protected int[] decode()
+	{
+		if (encoding.length == 0)
+			throw new MARSHAL("Empty compact reply");
+		int kind = encoding[position++];
+		int count = readVarint();
+		if (count < 0 || count > (encoding.length - position) * 8)
+			throw new MARSHAL("Compact reply claims " + count + " IDs in " + encoding.length + " bytes");
+		int[] ids = new int[count];
+
+		switch (kind)
+		{	case ClientManager.COMPACT_DELTAS:
+			{	int previous = 0;
+				for (int i = 0; i < count; i++) {
+					previous += unzigzag(readVarint());
+					ids[i] = previous;
+				}
+				break;
+			}
+			case ClientManager.COMPACT_BITMAP:
+			{	int lowest = unzigzag(readVarint());
+				int found = 0;
+				for (int i = position; i < encoding.length && found < count; i++) {
+					int bits = encoding[i] & 0xff;
+					while (bits != 0) {
+						int bit = Integer.numberOfTrailingZeros(bits);
+						if (found == count)
+							throw new MARSHAL("Compact bitmap holds more than " + count + " IDs");
+						ids[found++] = lowest + ((i - position) << 3) + bit;
+						bits &= bits - 1;
+					}
+				}
+				if (found != count)
+					throw new MARSHAL("Compact bitmap holds " + found + " IDs instead of " + count);
+				break;
+			}
+			default:
+				throw new MARSHAL("Unknown compact encoding " + kind);
+		}
+		return ids;
+	}
+
+	/**
+	 * Reads an unsigned varint
+	 * @return The number
+	 * @throws MARSHAL Thrown if the reply ends inside the varint
+	 */
+	protected int readVarint()
+	{
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (position >= encoding.length)
+				throw new MARSHAL("Compact reply ends inside a number");
+			int b = encoding[position++];
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new MARSHAL("Compact reply holds a number over 32 bits");
+	}
+
+	/**
+	 * Undoes the zigzag mapping of a signed number
+	 * @param value The unsigned number
+	 * @return The signed number
+	 */
+	protected static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -26,11 +26,13 @@ import ParkNPark.interfaces.AtTopLevelException;
 import ParkNPark.interfaces.ClientManager;
 import ParkNPark.interfaces.ClientManagerFactory;
 import ParkNPark.interfaces.ClientManagerOperations;
+import ParkNPark.interfaces.ClientOperation;
 import ParkNPark.interfaces.InvalidClientException;
 import ParkNPark.interfaces.LotFullException;
 import ParkNPark.interfaces.LotNotFoundException;
 import ParkNPark.interfaces.NotInLotException;
 import ParkNPark.interfaces.NotOnExitLevelException;
+import ParkNPark.interfaces.OperationResult;
 import ParkNPark.interfaces.PaddedInteger;
 import ParkNPark.interfaces.PaddedIntegerSeq;
 import ParkNPark.interfaces.PaddedVoid;
@@ -320,6 +322,9 @@ public class FaultTolerantClientManager implements ClientManagerOperations
 	protected static final Method getMaxLevel;
 	protected static final Method getMinLevel;
 	protected static final Method closeClientManager;
+	protected static final Method executeOperations;
+	protected static final Method getOtherLotAvailabilityCompact;
+	protected static final Method getLotsCompact;
 
 	/** Initialize our cached Method instances */
 	static {
@@ -338,6 +343,9 @@ public class FaultTolerantClientManager implements ClientManagerOperations
 		   getMaxLevel = _ClientManagerStub.class.getMethod("getMaxLevel", noParameters);
 		   getMinLevel = _ClientManagerStub.class.getMethod("getMinLevel", noParameters);
 		   closeClientManager = _ClientManagerStub.class.getMethod("closeClientManager", noParameters);
+		   executeOperations = _ClientManagerStub.class.getMethod("executeOperations", new Class<?>[] { ClientOperation[].class });
+		   getOtherLotAvailabilityCompact = _ClientManagerStub.class.getMethod("getOtherLotAvailabilityCompact", oneIntParameter);
+		   getLotsCompact = _ClientManagerStub.class.getMethod("getLotsCompact", noParameters);
 		} catch (NoSuchMethodException e) {
 			throw new RuntimeException(e);
 		}
@@ -594,6 +602,78 @@ public class FaultTolerantClientManager implements ClientManagerOperations
 		    return (PaddedInteger) retVal.retVal;
 	}
 
+	/**
+     * Applies a batch of operations in order in one request and returns the result of each.
+     * If the server fails part way through the batch, the whole batch is replayed on the new
+     * primary: the operations that change the car's position carry their own sequence numbers,
+     * so the ones that the failed server already applied are recognized as duplicates rather
+     * than being applied again. A replayed move reports EX_ALREADY_COMPLETED unless it was the
+     * car's last move, since the car's level is no longer the one that it reached
+     * @param operations The operations
+     * @throws ServiceUnavailableException Thrown if no server could complete the batch
+     * @return The result of each operation, in the order of the operations
+     */
+	public OperationResult[] executeOperations(ClientOperation[] operations) throws ServiceUnavailableException {
+		for (ClientOperation operation : operations)
+			if (operation.code == ClientManager.OP_ENTER_LOT || operation.code == ClientManager.OP_EXIT_LOT
+					|| operation.code == ClientManager.OP_MOVE_UP_LEVEL || operation.code == ClientManager.OP_MOVE_DOWN_LEVEL)
+				this.seq = operation.seq;
+		ReturnValueOrException retVal = callServer(executeOperations, true, (Object) operations);
+		if (retVal.exceptionThrown) {
+			if (retVal.retVal instanceof ServiceUnavailableException)
+				throw (ServiceUnavailableException) retVal.retVal;
+			else if (retVal.retVal instanceof RuntimeException)
+				throw (RuntimeException) retVal.retVal;
+			else
+			    throw new RuntimeException(unexpectedException, (Throwable) retVal.retVal);
+		} else
+		    return (OperationResult[]) retVal.retVal;
+	}
+
+	/**
+     * Returns the other lots that have availability, nearest first, in the compact encoding;
+     * AvailabilityDecoder.decode() turns the reply into the lot numbers
+     * @param lot The lot to get lot distances from
+     * @throws LotNotFoundException Thrown if the given lot number is not known to the system
+     * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if
+     * some other reason prevents the system from discovering the availability of other lots
+     * @return The other lots that have availability, encoded
+     */
+	public byte[] getOtherLotAvailabilityCompact(int lot) throws LotNotFoundException, ServiceUnavailableException {
+		ReturnValueOrException retVal = callServer(getOtherLotAvailabilityCompact, true, lot);
+		if (retVal.exceptionThrown) {
+			if (retVal.retVal instanceof LotNotFoundException)
+				throw (LotNotFoundException) retVal.retVal;
+			else if (retVal.retVal instanceof ServiceUnavailableException)
+				throw (ServiceUnavailableException) retVal.retVal;
+			else if (retVal.retVal instanceof RuntimeException)
+				throw (RuntimeException) retVal.retVal;
+			else
+			    throw new RuntimeException(unexpectedException, (Throwable) retVal.retVal);
+		} else
+		    return (byte[]) retVal.retVal;
+	}
+
+	/**
+     * Returns the valid lot numbers in ascending order in the compact encoding;
+     * AvailabilityDecoder.decode() turns the reply into the lot numbers
+     * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some
+     * other reason prevents the system from discovering the its defined lots
+     * @return The valid lot numbers, encoded
+     */
+	public byte[] getLotsCompact() throws ServiceUnavailableException {
+		ReturnValueOrException retVal = callServer(getLotsCompact, true);
+		if (retVal.exceptionThrown) {
+			if (retVal.retVal instanceof ServiceUnavailableException)
+				throw (ServiceUnavailableException) retVal.retVal;
+			else if (retVal.retVal instanceof RuntimeException)
+				throw (RuntimeException) retVal.retVal;
+			else
+			    throw new RuntimeException(unexpectedException, (Throwable) retVal.retVal);
+		} else
+		    return (byte[]) retVal.retVal;
+	}
+
 	/**
      * Closes the client manager and frees server resources associated with it, including the client
      * manager's activation in the server's CORBA portable object adapter. AFter calling
@@ -62,6 +62,45 @@ public class CommandLineParser
 	/** The JDBC password */
 	private	String jdbcPassword = "root";
 	
+	/** When true, the server keeps the car counts in its in-memory occupancy engine */
+	protected boolean occupancyEngine;
+	
+	/** The folder of the server's operation journal, or null if the server has no journal */
+	protected String journalDirectory;
+	
+	/** When true, the server commits the requests of many clients in shared transactions */
+	protected boolean groupCommit;
+	
+	/** The time in milliseconds between reloads of the server's cached lot topology */
+	protected long topologyRefresh = 60000;
+	
+	/** The server's parking store: jdbc, memory or file */
+	protected String store = "jdbc";
+	
+	/** The lot layout of an embedded parking store: a layout file or a generated layout */
+	protected String storeLayout = "10x4x50";
+	
+	/** The folder of the file-backed parking store */
+	protected String storeDirectory = "parknpark-store";
+	
+	/** How the server's database updates of lots and levels are protected: pessimistic or optimistic */
+	protected String locking = "pessimistic";
+	
+	/** Number of spaces that the server leases from a lot at a time, or 0 to not lease spaces */
+	protected int capacityLease = 0;
+	
+	/** Number of database workers that run the server's store calls, or 0 to run them on the ORB's threads */
+	protected int dbWorkers = 0;
+	
+	/** Number of store calls that can wait for a database worker */
+	protected int dbQueue = 256;
+	
+	/** How client managers are served: per-client for a servant each or located for a shared servant locator */
+	protected String servants = "per-client";
+	
+	/** Seconds without a request after which a client manager servant is evicted, or 0 to keep it */
+	protected int idleTimeout = 0;
+	
 	private int serverPort;
 	
 	/** Enumeration of the accepted commands that the caller wants */
@@ -71,7 +110,11 @@ public class CommandLineParser
 		                                    faultInjectionMinDelay, faultInjectionMaxDelay,
 		                                    projectRoot, appendLogs, neverGiveUp, getLotsMode,
 		                                    killOnly, recoveryTimeout, detectionTimeout,
-		                                    jdbcURL, jdbcUsername, jdbcPassword };
+		                                    jdbcURL, jdbcUsername, jdbcPassword, occupancyEngine,
+		                                    journalDirectory, groupCommit, topologyRefresh, store,
+		                                    storeLayout, storeDirectory, locking, capacityLease,
+		                                    dbWorkers, dbQueue, servants,
+		                                    idleTimeout };
 
 	/**
 	 * Parses the given command line for the given program name and
@@ -152,6 +195,45 @@ public class CommandLineParser
 			    case jdbcPassword :
 			    	optionSet.add(new LongOpt("jdbc-password", LongOpt.REQUIRED_ARGUMENT, null, 'b'));
 			    	break;
+			    case occupancyEngine :
+			    	optionSet.add(new LongOpt("occupancy-engine", LongOpt.NO_ARGUMENT, null, 'e'));
+			    	break;
+			    case journalDirectory :
+			    	optionSet.add(new LongOpt("journal-dir", LongOpt.REQUIRED_ARGUMENT, null, 'u'));
+			    	break;
+			    case groupCommit :
+			    	optionSet.add(new LongOpt("group-commit", LongOpt.NO_ARGUMENT, null, 'c'));
+			    	break;
+			    case topologyRefresh :
+			    	optionSet.add(new LongOpt("topology-refresh", LongOpt.REQUIRED_ARGUMENT, null, 'T'));
+			    	break;
+			    case store :
+			    	optionSet.add(new LongOpt("store", LongOpt.REQUIRED_ARGUMENT, null, 'S'));
+			    	break;
+			    case storeLayout :
+			    	optionSet.add(new LongOpt("store-layout", LongOpt.REQUIRED_ARGUMENT, null, 'L'));
+			    	break;
+			    case storeDirectory :
+			    	optionSet.add(new LongOpt("store-dir", LongOpt.REQUIRED_ARGUMENT, null, 'D'));
+			    	break;
+			    case locking :
+			    	optionSet.add(new LongOpt("locking", LongOpt.REQUIRED_ARGUMENT, null, 'O'));
+			    	break;
+			    case capacityLease :
+			    	optionSet.add(new LongOpt("capacity-lease", LongOpt.REQUIRED_ARGUMENT, null, 'H'));
+			    	break;
+			    case dbWorkers :
+			    	optionSet.add(new LongOpt("db-workers", LongOpt.REQUIRED_ARGUMENT, null, 'W'));
+			    	break;
+			    case dbQueue :
+			    	optionSet.add(new LongOpt("db-queue", LongOpt.REQUIRED_ARGUMENT, null, 'Q'));
+			    	break;
+			    case servants :
+			    	optionSet.add(new LongOpt("servants", LongOpt.REQUIRED_ARGUMENT, null, 'A'));
+			    	break;
+			    case idleTimeout :
+			    	optionSet.add(new LongOpt("idle-timeout", LongOpt.REQUIRED_ARGUMENT, null, 'I'));
+			    	break;
 			}
 		}
 		
@@ -427,6 +509,175 @@ public class CommandLineParser
                 	break;
                 }
                 
+                case 'e' :
+                {
+                	// Keep the car counts in the in-memory occupancy engine
+                	occupancyEngine = true;
+                	break;
+                }
+                
+                case 'u' :
+                {
+                	// Operation journal folder
+                	journalDirectory = opt.getOptarg();
+                	break;
+                }
+                
+                case 'c' :
+                {
+                	// Commit the requests of many clients in shared transactions
+                	groupCommit = true;
+                	break;
+                }
+                
+                case 'T' :
+                {
+                	// Time between reloads of the cached lot topology
+                	String arg = opt.getOptarg();
+                	try {
+                	    topologyRefresh = Long.parseLong(arg, 10);
+                	} catch (NumberFormatException e) {
+                		System.err.println("Parameter topology-refresh is not a number");
+                		System.err.flush();
+                    	System.out.println();
+                    	help(name, acceptedParameters);
+                		return false;
+                	}
+                	break;
+                }
+                
+                case 'S' :
+                {
+                	// Parking store backend
+                	store = opt.getOptarg();
+                	if (!store.equals("jdbc") && !store.equals("memory") && !store.equals("file")) {
+                		System.err.println("Parameter store must be jdbc, memory or file");
+                		System.err.flush();
+                    	System.out.println();
+                    	help(name, acceptedParameters);
+                		return false;
+                	}
+                	break;
+                }
+                
+                case 'L' :
+                {
+                	// Lot layout of an embedded parking store
+                	storeLayout = opt.getOptarg();
+                	break;
+                }
+                
+                case 'D' :
+                {
+                	// File-backed parking store folder
+                	storeDirectory = opt.getOptarg();
+                	break;
+                }
+                
+                case 'O' :
+                {
+                	// Locking strategy for lot and level updates
+                	locking = opt.getOptarg();
+                	if (!locking.equals("pessimistic") && !locking.equals("optimistic")) {
+                		System.err.println("Parameter locking must be pessimistic or optimistic");
+                		System.err.flush();
+                    	System.out.println();
+                    	help(name, acceptedParameters);
+                		return false;
+                	}
+                	break;
+                }
+                
+                case 'H' :
+                {
+                	// Number of spaces leased from a lot at a time
+                	String arg = opt.getOptarg();
+                	try {
+                	    capacityLease = Integer.parseInt(arg, 10);
+                	} catch (NumberFormatException e) {
+                		capacityLease = -1;
+                	}
+                	if (capacityLease < 0) {
+                		System.err.println("Parameter capacity-lease must be a number of spaces");
+                		System.err.flush();
+                    	System.out.println();
+                    	help(name, acceptedParameters);
+                		return false;
+                	}
+                	break;
+                }
+                
+                case 'W' :
+                {
+                	// Number of database workers
+                	String arg = opt.getOptarg();
+                	try {
+                	    dbWorkers = Integer.parseInt(arg, 10);
+                	} catch (NumberFormatException e) {
+                		dbWorkers = -1;
+                	}
+                	if (dbWorkers < 0) {
+                		System.err.println("Parameter db-workers must be a number of workers");
+                		System.err.flush();
+                    	System.out.println();
+                    	help(name, acceptedParameters);
+                		return false;
+                	}
+                	break;
+                }
+                
+                case 'Q' :
+                {
+                	// Number of store calls that can wait for a database worker
+                	String arg = opt.getOptarg();
+                	try {
+                	    dbQueue = Integer.parseInt(arg, 10);
+                	} catch (NumberFormatException e) {
+                		dbQueue = -1;
+                	}
+                	if (dbQueue < 1) {
+                		System.err.println("Parameter db-queue must be a positive number of calls");
+                		System.err.flush();
+                    	System.out.println();
+                    	help(name, acceptedParameters);
+                		return false;
+                	}
+                	break;
+                }
+                
+                case 'A' :
+                {
+                	// How client managers are served
+                	servants = opt.getOptarg();
+                	if (!servants.equals("per-client") && !servants.equals("located")) {
+                		System.err.println("Parameter servants must be per-client or located");
+                		System.err.flush();
+                    	System.out.println();
+                    	help(name, acceptedParameters);
+                		return false;
+                	}
+                	break;
+                }
+                
+                case 'I' :
+                {
+                	// Seconds after which an idle client manager servant is evicted
+                	String arg = opt.getOptarg();
+                	try {
+                	    idleTimeout = Integer.parseInt(arg, 10);
+                	} catch (NumberFormatException e) {
+                		idleTimeout = -1;
+                	}
+                	if (idleTimeout < 0) {
+                		System.err.println("Parameter idle-timeout must be a number of seconds or 0");
+                		System.err.flush();
+                    	System.out.println();
+                    	help(name, acceptedParameters);
+                		return false;
+                	}
+                	break;
+                }
+                
                 case 'y' :
                 {
                 	// ORBServerPort
@@ -547,6 +798,9 @@ public class CommandLineParser
     	}
     	if (acceptedParameters.contains(AcceptedParameters.jdbcURL)) {
     		System.out.println("--jdbc-url           The JDBC URL to use for the database connection");
+    		System.out.println("                     or a shard map of several, separated by |, each");
+    		System.out.println("                     optionally prefixed with the lots it owns, as in");
+    		System.out.println("                     1-50=jdbc:mysql://db1/parknpark");
     		System.out.println("                     (default is " + jdbcURL + ")");
     	}
     	if (acceptedParameters.contains(AcceptedParameters.jdbcUsername)) {
@@ -556,6 +810,79 @@ public class CommandLineParser
     	if (acceptedParameters.contains(AcceptedParameters.jdbcPassword)) {
     		System.out.println("--jdbc-password      The password to use in the database connection");
     		System.out.println("                     (default is " + jdbcPassword + ")");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.occupancyEngine)) {
+    		System.out.println("--occupancy-engine   Keep lot and level car counts in memory and write");
+    		System.out.println("                     them to the database in the background");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.journalDirectory)) {
+    		System.out.println("--journal-dir        Folder of the operation journals that requests are");
+    		System.out.println("                     recorded in before they reach the database; implies");
+    		System.out.println("                     --occupancy-engine. Each server journals in a folder");
+    		System.out.println("                     of its own in it, so every server that can take over");
+    		System.out.println("                     must share it");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.groupCommit)) {
+    		System.out.println("--group-commit       Commit the requests of many clients together in");
+    		System.out.println("                     shared database transactions");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.topologyRefresh)) {
+    		System.out.println("--topology-refresh   The number of milliseconds between reloads of the");
+    		System.out.println("                     cached lot topology, or 0 to only reload it from");
+    		System.out.println("                     the server console");
+    		System.out.println("                     (default is " + topologyRefresh + "ms)");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.store)) {
+    		System.out.println("--store              Where the server keeps its clients and car counts:");
+    		System.out.println("                     jdbc for the database, memory for an in-memory");
+    		System.out.println("                     store or file for an embedded file-backed store");
+    		System.out.println("                     (default is " + store + ")");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.storeLayout)) {
+    		System.out.println("--store-layout       The lot layout of a memory or new file store: a");
+    		System.out.println("                     layout file or <lots>x<levels>x<spaces per level>");
+    		System.out.println("                     (default is " + storeLayout + ")");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.storeDirectory)) {
+    		System.out.println("--store-dir          The folder of the file store");
+    		System.out.println("                     (default is " + storeDirectory + ")");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.locking)) {
+    		System.out.println("--locking            How database updates of lots and levels are");
+    		System.out.println("                     protected: pessimistic for conditional updates or");
+    		System.out.println("                     optimistic for lock-free reads and version checks");
+    		System.out.println("                     (default is " + locking + ")");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.capacityLease)) {
+    		System.out.println("--capacity-lease     The number of spaces that the server leases from a");
+    		System.out.println("                     lot at a time and admits cars against without");
+    		System.out.println("                     touching the lot's row, or 0 to not lease spaces");
+    		System.out.println("                     (default is " + capacityLease + ")");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.dbWorkers)) {
+    		System.out.println("--db-workers         The number of database workers that run store calls,");
+    		System.out.println("                     which caps the transactions in flight, or 0 to run");
+    		System.out.println("                     them on the ORB's threads");
+    		System.out.println("                     (default is " + dbWorkers + ")");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.dbQueue)) {
+    		System.out.println("--db-queue           The number of store calls that can wait for a");
+    		System.out.println("                     database worker before calls are turned away");
+    		System.out.println("                     (default is " + dbQueue + ")");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.servants)) {
+    		System.out.println("--servants           How client managers are served: per-client to");
+    		System.out.println("                     activate a servant for each client or located for");
+    		System.out.println("                     one servant locator whose references name the");
+    		System.out.println("                     client and, with -ORBServerPort, outlive the server");
+    		System.out.println("                     (default is " + servants + ")");
+    	}
+    	if (acceptedParameters.contains(AcceptedParameters.idleTimeout)) {
+    		System.out.println("--idle-timeout       The seconds without a request after which a client");
+    		System.out.println("                     manager servant is evicted, to be reactivated from");
+    		System.out.println("                     the store by its next request, or 0 to keep it");
+    		System.out.println("                     until its client closes it");
+    		System.out.println("                     (default is " + idleTimeout + ")");
     	}
 	    System.out.println("--test               Tests the command line parameters for correctness and");
 	    System.out.println("                     exits with 0 if successful or 1 if unsuccessful");
@@ -711,6 +1038,117 @@ public class CommandLineParser
 	public String getJDBCPassword() {
 		return jdbcPassword;
 	}
+	
+	/**
+	 * Returns true when the server should keep the car counts in its
+	 * in-memory occupancy engine
+	 * @return True when the in-memory occupancy engine is enabled
+	 */
+	public boolean isOccupancyEngineEnabled() {
+		return occupancyEngine;
+	}
+	
+	/**
+	 * Returns the folder of the server's operation journal or null if the
+	 * server should not keep a journal
+	 * @return The folder of the server's operation journal or null
+	 */
+	public String getJournalDirectory() {
+		return journalDirectory;
+	}
+	
+	/**
+	 * Returns true when the server should commit the requests of many
+	 * clients in shared transactions
+	 * @return True when group commit is enabled
+	 */
+	public boolean isGroupCommitEnabled() {
+		return groupCommit;
+	}
+	
+	/**
+	 * Returns the time in milliseconds between reloads of the server's cached
+	 * lot topology, or 0 if it is only reloaded on request
+	 * @return The time between reloads of the cached lot topology
+	 */
+	public long getTopologyRefreshInterval() {
+		return topologyRefresh;
+	}
+	
+	/**
+	 * Returns the server's parking store backend
+	 * @return jdbc, memory or file
+	 */
+	public String getStore() {
+		return store;
+	}
+	
+	/**
+	 * Returns the lot layout of an embedded parking store, which is either the
+	 * path of a layout file or a generated layout
+	 * @return The lot layout of an embedded parking store
+	 */
+	public String getStoreLayout() {
+		return storeLayout;
+	}
+	
+	/**
+	 * Returns the folder of the file-backed parking store
+	 * @return The folder of the file-backed parking store
+	 */
+	public String getStoreDirectory() {
+		return storeDirectory;
+	}
+	
+	/**
+	 * Returns true when the server should update lots and levels with version
+	 * checks instead of conditional updates
+	 * @return True when optimistic locking is enabled
+	 */
+	public boolean isOptimisticLockingEnabled() {
+		return locking.equals("optimistic");
+	}
+	
+	/**
+	 * Returns the number of spaces that the server leases from a lot at a time
+	 * @return The lease block size, or 0 if the server does not lease spaces
+	 */
+	public int getCapacityLease() {
+		return capacityLease;
+	}
+	
+	/**
+	 * Returns the number of database workers that run the server's store calls
+	 * @return The number of workers, or 0 to run the calls on the ORB's threads
+	 */
+	public int getDBWorkers() {
+		return dbWorkers;
+	}
+	
+	/**
+	 * Returns the number of store calls that can wait for a database worker
+	 * @return The queue size of the database stage
+	 */
+	public int getDBQueue() {
+		return dbQueue;
+	}
+	
+	/**
+	 * Returns true when client managers should be served by a servant locator
+	 * instead of a servant per client
+	 * @return True when located servants were asked for
+	 */
+	public boolean isLocatedServantsEnabled() {
+		return servants.equals("located");
+	}
+	
+	/**
+	 * Returns the time after which an idle client manager servant is evicted
+	 * @return The idle timeout in seconds, or 0 to never evict
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
 
 	public int getServerPort() {
 		return serverPort;
@@ -11,6 +11,9 @@ public class LogEntry
 	/** Time that method call completed */
 	protected long probeOut;
 	
+	/** Time that the database access was queued for a database worker */
+	protected long probeDbQueued;
+	
 	/** Time that database access began */
 	protected long probeDbIn;
 	
@@ -94,6 +97,14 @@ public class LogEntry
 		this.probeSource = probeSource;
 	}
 	
+	/** 
+	 * Sets the time that the database access was queued for a database worker
+	 * to the current time
+	 */
+	public void setProbeDbQueued()
+	{	this.probeDbQueued = System.nanoTime() / 1000;
+	}
+	
 	/** 
 	 * Sets the time that the database access began
 	 */
@@ -156,6 +167,16 @@ public class LogEntry
 		return probeSource;
 	}
 	
+	/**
+	 * Gets the time that the database access was queued for a database worker.
+	 * The time until getProbeDbIn() was spent waiting in the queue
+	 * @return the time that the database access was queued
+	 */
+	public long getProbeDbQueued()
+	{
+		return probeDbQueued;
+	}
+	
 	/**
 	 * Gets the time that the database access began
 	 * @return the time that the database access began
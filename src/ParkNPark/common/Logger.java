@@ -45,6 +45,9 @@ public class Logger
 	/** Fault recovery sink */
 	protected BufferedWriter probeFaultRecovery;
 	
+	/** Sink for the times that database access is queued for a database worker */
+	protected BufferedWriter probeDbQueued;
+	
 	/** Sink for the times that database access begins */
 	protected BufferedWriter probeDbIn;
 	
@@ -107,11 +110,13 @@ public class Logger
 			probeMethod = new BufferedWriter(new FileWriter(getLogFile(numClients, numServers, interRequestTime, replySize, "msg", tier, hostname), appendLogs));
 			if (logServerInfo)
 			{	probeSource = new BufferedWriter(new FileWriter(getLogFile(numClients, numServers, interRequestTime, replySize, "source", tier, hostname), appendLogs));
+				probeDbQueued = new BufferedWriter(new FileWriter(getLogFile(numClients, numServers, interRequestTime, replySize, "dbQueued", tier, hostname), appendLogs));
 				probeDbIn = new BufferedWriter(new FileWriter(getLogFile(numClients, numServers, interRequestTime, replySize, "dbIn", tier, hostname), appendLogs));
 				probeDbOut = new BufferedWriter(new FileWriter(getLogFile(numClients, numServers, interRequestTime, replySize, "dbOut", tier, hostname), appendLogs));
 			}
 			else
 			{	probeSource = null;
+				probeDbQueued = null;
 				probeDbIn = null;
 				probeDbOut = null;
 			}
@@ -286,7 +291,9 @@ public class Logger
 				
 				// If we are tracking database access, then write those
 				if ((probeDbIn != null) && (probeDbOut != null))
-				{	probeDbIn.write(Long.toString(entry.getProbeDbIn(), 10));
+				{	probeDbQueued.write(Long.toString(entry.getProbeDbQueued(), 10));
+					probeDbQueued.newLine();
+					probeDbIn.write(Long.toString(entry.getProbeDbIn(), 10));
 					probeDbIn.newLine();
 					probeDbOut.write(Long.toString(entry.getProbeDbOut(), 10));
 					probeDbOut.newLine();
@@ -333,7 +340,8 @@ public class Logger
 		if (probeSource != null)
 			probeSource.flush();
 		if ((probeDbIn != null) && (probeDbOut != null))
-		{	probeDbIn.flush();
+		{	probeDbQueued.flush();
+			probeDbIn.flush();
 			probeDbOut.flush();
 		}
 		if (probeFaultDetection != null) {
@@ -370,7 +378,8 @@ public class Logger
 		if (probeSource != null)
 			probeSource.close();
 		if ((probeDbIn != null) && (probeDbOut != null))
-		{	probeDbIn.close();
+		{	probeDbQueued.close();
+			probeDbIn.close();
 			probeDbOut.close();
 		}
 		if (probeFaultDetection != null) {
@@ -15,4 +15,113 @@ package ParkNPark.interfaces;
          */
 public interface ClientManager extends ClientManagerOperations, org.omg.CORBA.Object, org.omg.CORBA.portable.IDLEntity 
 {
+  /**
+               * Operation code of getClientID(), whose value is the client's ID
+               */
+  public static final int OP_GET_CLIENT_ID = (int)(0L);
+
+  /**
+               * Operation code of enterLot(seq, arg), whose value is the levels with available spaces
+               */
+  public static final int OP_ENTER_LOT = (int)(1L);
+
+  /**
+               * Operation code of exitLot(seq), which has no value
+               */
+  public static final int OP_EXIT_LOT = (int)(2L);
+
+  /**
+               * Operation code of getOtherLotAvailability(arg), whose value is the other lots with availability
+               */
+  public static final int OP_GET_OTHER_LOT_AVAILABILITY = (int)(3L);
+
+  /**
+               * Operation code of getLots(), whose value is the lots
+               */
+  public static final int OP_GET_LOTS = (int)(4L);
+
+  /**
+               * Operation code of moveUpLevel(seq), whose value is the car's new level
+               */
+  public static final int OP_MOVE_UP_LEVEL = (int)(5L);
+
+  /**
+               * Operation code of moveDownLevel(seq), whose value is the car's new level
+               */
+  public static final int OP_MOVE_DOWN_LEVEL = (int)(6L);
+
+  /**
+               * Operation code of getCurrentLevel(), whose value is the car's level
+               */
+  public static final int OP_GET_CURRENT_LEVEL = (int)(7L);
+
+  /**
+               * Operation code of getMaxLevel(), whose value is the top level of the car's lot
+               */
+  public static final int OP_GET_MAX_LEVEL = (int)(8L);
+
+  /**
+               * Operation code of getMinLevel(), whose value is the bottom level of the car's lot
+               */
+  public static final int OP_GET_MIN_LEVEL = (int)(9L);
+
+  /**
+               * The operation succeeded
+               */
+  public static final int EX_NONE = (int)(0L);
+
+  /**
+               * The operation raised AlreadyInLotException; the value is its lot
+               */
+  public static final int EX_ALREADY_IN_LOT = (int)(1L);
+
+  /**
+               * The operation raised AtBottomLevelException; the value is its lot and level
+               */
+  public static final int EX_AT_BOTTOM_LEVEL = (int)(2L);
+
+  /**
+               * The operation raised AtTopLevelException; the value is its lot and level
+               */
+  public static final int EX_AT_TOP_LEVEL = (int)(3L);
+
+  /**
+               * The operation raised LotFullException; the value is its lot capacity and lot
+               */
+  public static final int EX_LOT_FULL = (int)(4L);
+
+  /**
+               * The operation raised LotNotFoundException; the value is its lot
+               */
+  public static final int EX_LOT_NOT_FOUND = (int)(5L);
+
+  /**
+               * The operation raised NotInLotException; there is no value
+               */
+  public static final int EX_NOT_IN_LOT = (int)(6L);
+
+  /**
+               * The operation raised NotOnExitLevelException; the value is its lot and level
+               */
+  public static final int EX_NOT_ON_EXIT_LEVEL = (int)(7L);
+
+  /**
+               * The move was already applied by an earlier delivery of the batch and later operations
+               * may have moved the car since, so the level that it reached is not known; there is no value
+               */
+  public static final int EX_ALREADY_COMPLETED = (int)(8L);
+
+  /**
+               * Compact encoding of a list of IDs in any order: this code in the first byte, the number
+               * of IDs as a varint, then the difference between each ID and the one before it, starting
+               * from zero, as zigzag varints
+               */
+  public static final int COMPACT_DELTAS = (int)(0L);
+
+  /**
+               * Compact encoding of a list of IDs in ascending order: this code in the first byte, the
+               * number of IDs as a varint and the lowest ID as a zigzag varint, then a bitmap whose bit i,
+               * least significant bit of each byte first, is set if the lowest ID plus i is in the list
+               */
+  public static final int COMPACT_BITMAP = (int)(1L);
 } // interface ClientManager
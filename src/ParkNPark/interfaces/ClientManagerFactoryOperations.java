@@ -74,4 +74,27 @@ public interface ClientManagerFactoryOperations
                * [FOR EXPERIMENTS]
                */
   void flushLogs ();
+
+  /**
+               * Registers a callback object that the server pushes the availability of
+               * a set of lots to, instead of the client polling for it. The listener is
+               * first given every subscribed lot, then only the lots whose number of free
+               * spaces changed, coalesced so that it hears from the server at most once per
+               * interval; a lot that fills up or stops being full is pushed without waiting
+               * for the interval. Subscriptions belong to the server that they were made on
+               * @param listener The callback object
+               * @param lots The IDs of the lots to subscribe to, or none for every lot
+               * @param minInterval The shortest time in milliseconds between two pushes to
+               * the listener
+               * @throws ServiceUnavailableException Thrown if the lots cannot be read
+               * @return The ID of the subscription, for unsubscribe()
+               */
+  int subscribe (ParkNPark.interfaces.AvailabilityListener listener, int[] lots, int minInterval) throws ParkNPark.interfaces.ServiceUnavailableException;
+
+  /**
+               * Stops pushing availability to a subscription's callback object. Unknown
+               * subscription IDs are ignored
+               * @param subscriptionID The ID that subscribe() returned
+               */
+  void unsubscribe (int subscriptionID);
 } // interface ClientManagerFactoryOperations
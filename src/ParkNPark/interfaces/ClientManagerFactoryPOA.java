@@ -28,6 +28,8 @@ public abstract class ClientManagerFactoryPOA extends org.omg.PortableServer.Ser
     _methods.put ("killServer", new java.lang.Integer (4));
     _methods.put ("exitServer", new java.lang.Integer (5));
     _methods.put ("flushLogs", new java.lang.Integer (6));
+    _methods.put ("subscribe", new java.lang.Integer (7));
+    _methods.put ("unsubscribe", new java.lang.Integer (8));
   }
 
   public org.omg.CORBA.portable.OutputStream _invoke (String $method,
@@ -168,6 +170,52 @@ public abstract class ClientManagerFactoryPOA extends org.omg.PortableServer.Ser
          break;
        }
 
+
+  /**
+               * Registers a callback object that the server pushes the availability of
+               * a set of lots to, instead of the client polling for it. The listener is
+               * first given every subscribed lot, then only the lots whose number of free
+               * spaces changed, coalesced so that it hears from the server at most once per
+               * interval; a lot that fills up or stops being full is pushed without waiting
+               * for the interval. Subscriptions belong to the server that they were made on
+               * @param listener The callback object
+               * @param lots The IDs of the lots to subscribe to, or none for every lot
+               * @param minInterval The shortest time in milliseconds between two pushes to
+               * the listener
+               * @throws ServiceUnavailableException Thrown if the lots cannot be read
+               * @return The ID of the subscription, for unsubscribe()
+               */
+       case 7:  // ParkNPark/interfaces/ClientManagerFactory/subscribe
+       {
+         try {
+           ParkNPark.interfaces.AvailabilityListener listener = ParkNPark.interfaces.AvailabilityListenerHelper.read (in);
+           int lots[] = ParkNPark.interfaces.LongSeqHelper.read (in);
+           int minInterval = in.read_long ();
+           int $result = (int)0;
+           $result = this.subscribe (listener, lots, minInterval);
+           out = $rh.createReply();
+           out.write_long ($result);
+         } catch (ParkNPark.interfaces.ServiceUnavailableException $ex) {
+           out = $rh.createExceptionReply ();
+           ParkNPark.interfaces.ServiceUnavailableExceptionHelper.write (out, $ex);
+         }
+         break;
+       }
+
+
+  /**
+               * Stops pushing availability to a subscription's callback object. Unknown
+               * subscription IDs are ignored
+               * @param subscriptionID The ID that subscribe() returned
+               */
+       case 8:  // ParkNPark/interfaces/ClientManagerFactory/unsubscribe
+       {
+         int subscriptionID = in.read_long ();
+         this.unsubscribe (subscriptionID);
+         out = $rh.createReply();
+         break;
+       }
+
        default:
          throw new org.omg.CORBA.BAD_OPERATION (0, org.omg.CORBA.CompletionStatus.COMPLETED_MAYBE);
     }
@@ -134,4 +134,39 @@ public interface ClientManagerOperations
                * open if this exception gets thrown
                */
   void closeClientManager () throws ParkNPark.interfaces.ServiceUnavailableException;
+
+  /**
+               * Applies a batch of operations in order in one request and returns the result of
+               * each, so that a client can make several calls for the price of one round trip. An
+               * operation that raises one of the client manager's exceptions reports it in its
+               * result and the batch goes on. Operations that change the car's position carry
+               * their own sequence numbers and are deduplicated one by one as if made alone
+               * @param operations The operations
+               * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some
+               * other reason prevents an operation from completing. The operations before it might
+               * have been applied, so the client can replay the whole batch on another server
+               * @return The result of each operation, in the order of the operations
+               */
+  ParkNPark.interfaces.OperationResult[] executeOperations (ParkNPark.interfaces.ClientOperation[] operations) throws ParkNPark.interfaces.ServiceUnavailableException;
+
+  /**
+               * Returns the other lots that have availability, nearest first, as getOtherLotAvailability()
+               * does, but in the compact encoding that COMPACT_DELTAS and COMPACT_BITMAP describe and
+               * without reply padding
+               * @param lot The lot to get lot distances from
+               * @throws LotNotFoundException Thrown if the given lot number is not known to the system
+               * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if
+               * some other reason prevents the system from discovering the availability of other lots
+               * @return The other lots that have availability, encoded
+               */
+  byte[] getOtherLotAvailabilityCompact (int lot) throws ParkNPark.interfaces.LotNotFoundException, ParkNPark.interfaces.ServiceUnavailableException;
+
+  /**
+               * Returns the valid lot numbers in ascending order, as getLots() does, but in the compact
+               * encoding that COMPACT_DELTAS and COMPACT_BITMAP describe and without reply padding
+               * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some
+               * other reason prevents the system from discovering the its defined lots
+               * @return The valid lot numbers, encoded
+               */
+  byte[] getLotsCompact () throws ParkNPark.interfaces.ServiceUnavailableException;
 } // interface ClientManagerOperations
@@ -33,6 +33,9 @@ public abstract class ClientManagerPOA extends org.omg.PortableServer.Servant
     _methods.put ("getMaxLevel", new java.lang.Integer (8));
     _methods.put ("getMinLevel", new java.lang.Integer (9));
     _methods.put ("closeClientManager", new java.lang.Integer (10));
+    _methods.put ("executeOperations", new java.lang.Integer (11));
+    _methods.put ("getOtherLotAvailabilityCompact", new java.lang.Integer (12));
+    _methods.put ("getLotsCompact", new java.lang.Integer (13));
   }
 
   public org.omg.CORBA.portable.OutputStream _invoke (String $method,
@@ -351,6 +354,85 @@ public abstract class ClientManagerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
+
+  /**
+               * Applies a batch of operations in order in one request and returns the result of
+               * each, so that a client can make several calls for the price of one round trip. An
+               * operation that raises one of the client manager's exceptions reports it in its
+               * result and the batch goes on. Operations that change the car's position carry
+               * their own sequence numbers and are deduplicated one by one as if made alone
+               * @param operations The operations
+               * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some
+               * other reason prevents an operation from completing. The operations before it might
+               * have been applied, so the client can replay the whole batch on another server
+               * @return The result of each operation, in the order of the operations
+               */
+       case 11:  // ParkNPark/interfaces/ClientManager/executeOperations
+       {
+         try {
+           ParkNPark.interfaces.ClientOperation operations[] = ParkNPark.interfaces.ClientOperationSeqHelper.read (in);
+           ParkNPark.interfaces.OperationResult $result[] = null;
+           $result = this.executeOperations (operations);
+           out = $rh.createReply();
+           ParkNPark.interfaces.OperationResultSeqHelper.write (out, $result);
+         } catch (ParkNPark.interfaces.ServiceUnavailableException $ex) {
+           out = $rh.createExceptionReply ();
+           ParkNPark.interfaces.ServiceUnavailableExceptionHelper.write (out, $ex);
+         }
+         break;
+       }
+
+
+  /**
+               * Returns the other lots that have availability, nearest first, as getOtherLotAvailability()
+               * does, but in the compact encoding that COMPACT_DELTAS and COMPACT_BITMAP describe and
+               * without reply padding
+               * @param lot The lot to get lot distances from
+               * @throws LotNotFoundException Thrown if the given lot number is not known to the system
+               * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if
+               * some other reason prevents the system from discovering the availability of other lots
+               * @return The other lots that have availability, encoded
+               */
+       case 12:  // ParkNPark/interfaces/ClientManager/getOtherLotAvailabilityCompact
+       {
+         try {
+           int lot = in.read_long ();
+           byte $result[] = null;
+           $result = this.getOtherLotAvailabilityCompact (lot);
+           out = $rh.createReply();
+           ParkNPark.interfaces.ByteSeqHelper.write (out, $result);
+         } catch (ParkNPark.interfaces.LotNotFoundException $ex) {
+           out = $rh.createExceptionReply ();
+           ParkNPark.interfaces.LotNotFoundExceptionHelper.write (out, $ex);
+         } catch (ParkNPark.interfaces.ServiceUnavailableException $ex) {
+           out = $rh.createExceptionReply ();
+           ParkNPark.interfaces.ServiceUnavailableExceptionHelper.write (out, $ex);
+         }
+         break;
+       }
+
+
+  /**
+               * Returns the valid lot numbers in ascending order, as getLots() does, but in the compact
+               * encoding that COMPACT_DELTAS and COMPACT_BITMAP describe and without reply padding
+               * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some
+               * other reason prevents the system from discovering the its defined lots
+               * @return The valid lot numbers, encoded
+               */
+       case 13:  // ParkNPark/interfaces/ClientManager/getLotsCompact
+       {
+         try {
+           byte $result[] = null;
+           $result = this.getLotsCompact ();
+           out = $rh.createReply();
+           ParkNPark.interfaces.ByteSeqHelper.write (out, $result);
+         } catch (ParkNPark.interfaces.ServiceUnavailableException $ex) {
+           out = $rh.createExceptionReply ();
+           ParkNPark.interfaces.ServiceUnavailableExceptionHelper.write (out, $ex);
+         }
+         break;
+       }
+
        default:
          throw new org.omg.CORBA.BAD_OPERATION (0, org.omg.CORBA.CompletionStatus.COMPLETED_MAYBE);
     }
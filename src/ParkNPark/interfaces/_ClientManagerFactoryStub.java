@@ -210,6 +210,70 @@ public class _ClientManagerFactoryStub extends org.omg.CORBA.portable.ObjectImpl
             }
   } // flushLogs
 
+  /**
+               * Registers a callback object that the server pushes the availability of
+               * a set of lots to, instead of the client polling for it. The listener is
+               * first given every subscribed lot, then only the lots whose number of free
+               * spaces changed, coalesced so that it hears from the server at most once per
+               * interval; a lot that fills up or stops being full is pushed without waiting
+               * for the interval. Subscriptions belong to the server that they were made on
+               * @param listener The callback object
+               * @param lots The IDs of the lots to subscribe to, or none for every lot
+               * @param minInterval The shortest time in milliseconds between two pushes to
+               * the listener
+               * @throws ServiceUnavailableException Thrown if the lots cannot be read
+               * @return The ID of the subscription, for unsubscribe()
+               */
+  public int subscribe (ParkNPark.interfaces.AvailabilityListener listener, int[] lots, int minInterval) throws ParkNPark.interfaces.ServiceUnavailableException
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("subscribe", true);
+                ParkNPark.interfaces.AvailabilityListenerHelper.write ($out, listener);
+                ParkNPark.interfaces.LongSeqHelper.write ($out, lots);
+                $out.write_long (minInterval);
+                $in = _invoke ($out);
+                int $result = $in.read_long ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                if (_id.equals ("IDL:ParkNPark/interfaces/ServiceUnavailableException:1.0"))
+                    throw ParkNPark.interfaces.ServiceUnavailableExceptionHelper.read ($in);
+                else
+                    throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return subscribe (listener, lots, minInterval        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // subscribe
+
+
+  /**
+               * Stops pushing availability to a subscription's callback object. Unknown
+               * subscription IDs are ignored
+               * @param subscriptionID The ID that subscribe() returned
+               */
+  public void unsubscribe (int subscriptionID)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("unsubscribe", true);
+                $out.write_long (subscriptionID);
+                $in = _invoke ($out);
+                return;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                unsubscribe (subscriptionID        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // unsubscribe
+
   // Type-specific CORBA::Object operations
   private static String[] __ids = {
     "IDL:ParkNPark/interfaces/ClientManagerFactory:1.0"};
@@ -397,6 +397,107 @@ public class _ClientManagerStub extends org.omg.CORBA.portable.ObjectImpl implem
             }
   } // closeClientManager
 
+
+  /**
+               * Applies a batch of operations in order in one request and returns the result of
+               * each, so that a client can make several calls for the price of one round trip. An
+               * operation that raises one of the client manager's exceptions reports it in its
+               * result and the batch goes on. Operations that change the car's position carry
+               * their own sequence numbers and are deduplicated one by one as if made alone
+               * @param operations The operations
+               * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some
+               * other reason prevents an operation from completing. The operations before it might
+               * have been applied, so the client can replay the whole batch on another server
+               * @return The result of each operation, in the order of the operations
+               */
+  public ParkNPark.interfaces.OperationResult[] executeOperations (ParkNPark.interfaces.ClientOperation[] operations) throws ParkNPark.interfaces.ServiceUnavailableException
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("executeOperations", true);
+                ParkNPark.interfaces.ClientOperationSeqHelper.write ($out, operations);
+                $in = _invoke ($out);
+                ParkNPark.interfaces.OperationResult $result[] = ParkNPark.interfaces.OperationResultSeqHelper.read ($in);
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                if (_id.equals ("IDL:ParkNPark/interfaces/ServiceUnavailableException:1.0"))
+                    throw ParkNPark.interfaces.ServiceUnavailableExceptionHelper.read ($in);
+                else
+                    throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return executeOperations (operations        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // executeOperations
+
+  /**
+               * Returns the other lots that have availability, nearest first, as getOtherLotAvailability()
+               * does, but in the compact encoding that COMPACT_DELTAS and COMPACT_BITMAP describe and
+               * without reply padding
+               * @param lot The lot to get lot distances from
+               * @throws LotNotFoundException Thrown if the given lot number is not known to the system
+               * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if
+               * some other reason prevents the system from discovering the availability of other lots
+               * @return The other lots that have availability, encoded
+               */
+  public byte[] getOtherLotAvailabilityCompact (int lot) throws ParkNPark.interfaces.LotNotFoundException, ParkNPark.interfaces.ServiceUnavailableException
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("getOtherLotAvailabilityCompact", true);
+                $out.write_long (lot);
+                $in = _invoke ($out);
+                byte $result[] = ParkNPark.interfaces.ByteSeqHelper.read ($in);
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                if (_id.equals ("IDL:ParkNPark/interfaces/LotNotFoundException:1.0"))
+                    throw ParkNPark.interfaces.LotNotFoundExceptionHelper.read ($in);
+                else if (_id.equals ("IDL:ParkNPark/interfaces/ServiceUnavailableException:1.0"))
+                    throw ParkNPark.interfaces.ServiceUnavailableExceptionHelper.read ($in);
+                else
+                    throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return getOtherLotAvailabilityCompact (lot        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // getOtherLotAvailabilityCompact
+
+
+  /**
+               * Returns the valid lot numbers in ascending order, as getLots() does, but in the compact
+               * encoding that COMPACT_DELTAS and COMPACT_BITMAP describe and without reply padding
+               * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some
+               * other reason prevents the system from discovering the its defined lots
+               * @return The valid lot numbers, encoded
+               */
+  public byte[] getLotsCompact () throws ParkNPark.interfaces.ServiceUnavailableException
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("getLotsCompact", true);
+                $in = _invoke ($out);
+                byte $result[] = ParkNPark.interfaces.ByteSeqHelper.read ($in);
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                if (_id.equals ("IDL:ParkNPark/interfaces/ServiceUnavailableException:1.0"))
+                    throw ParkNPark.interfaces.ServiceUnavailableExceptionHelper.read ($in);
+                else
+                    throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return getLotsCompact (        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // getLotsCompact
+
   // Type-specific CORBA::Object operations
   private static String[] __ids = {
     "IDL:ParkNPark/interfaces/ClientManager:1.0"};
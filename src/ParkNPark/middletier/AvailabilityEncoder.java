@@ -0,0 +1,144 @@
+package ParkNPark.middletier;
+
+import ParkNPark.interfaces.ClientManager;
+
+/**
+ * Encodes lists of lot or level IDs into the compact replies of the client manager's
+ * compact operations. A list is written as the differences between consecutive IDs,
+ * each a zigzag varint, which keeps the list's order and takes a byte per ID when the
+ * IDs are close together; a list in ascending order whose IDs are dense is written as
+ * a bitmap instead, an eighth of a byte per ID in its range. Whichever is smaller is
+ * used, so the reply is never larger than the differences would be.
+ * ParkNPark.client.AvailabilityDecoder reads both back.
+ * <p>
+ * Lists that never change, such as the store's lots, can be encoded through one
+ * shared encoder, which keeps the encoding of the last list that it was given and
+ * returns it again for as long as it is given the same array
+ */
+public class AvailabilityEncoder
+{
+	/**
+	 * A list and its encoding
+	 */
+	protected static final class Encoded
+	{
+		/** The list */
+		protected final int[] ids;
+
+		/** Its encoding */
+		protected final byte[] encoding;
+
+		protected Encoded(int[] ids, byte[] encoding)
+		{
+			this.ids = ids;
+			this.encoding = encoding;
+		}
+	}
+
+	/** The last list given to encodeUnchanging() and its encoding */
+	protected volatile Encoded last;
+
+	/**
+	 * Encodes a list that is never modified, returning the previous encoding if the
+	 * list is the same array as last time. The encoding must not be written to
+	 * @param ids The IDs, which must not be modified afterwards
+	 * @return The encoding
+	 */
+	public byte[] encodeUnchanging(int[] ids)
+	{
+		Encoded cached = last;
+		if (cached != null && cached.ids == ids)
+			return cached.encoding;
+		byte[] encoding = encode(ids);
+		last = new Encoded(ids, encoding);
+		return encoding;
+	}
+
+	/**
+	 * Encodes a list as differences or as a bitmap, whichever is smaller
+	 * @param ids The IDs, in any order
+	 * @return The encoding
+	 */
+	public static byte[] encode(int[] ids)
+	{
+		// Measure both encodings; only an ascending list can be a bitmap
+		int deltasSize = 1 + varintSize(ids.length);
+		boolean ascending = true;
+		int previous = 0;
+		for (int i = 0; i < ids.length; i++) {
+			deltasSize += varintSize(zigzag(ids[i] - previous));
+			if (i > 0 && ids[i] <= previous)
+				ascending = false;
+			previous = ids[i];
+		}
+		long bitmapSize = Long.MAX_VALUE;
+		if (ascending && ids.length > 0)
+			bitmapSize = 1 + varintSize(ids.length) + varintSize(zigzag(ids[0]))
+					+ (((long) ids[ids.length - 1] - ids[0]) >> 3) + 1;
+
+		if (bitmapSize < deltasSize) {
+			byte[] encoding = new byte[(int) bitmapSize];
+			encoding[0] = (byte) ClientManager.COMPACT_BITMAP;
+			int position = writeVarint(encoding, 1, ids.length);
+			position = writeVarint(encoding, position, zigzag(ids[0]));
+			for (int id : ids) {
+				int bit = id - ids[0];
+				encoding[position + (bit >>> 3)] |= 1 << (bit & 7);
+			}
+			return encoding;
+		}
+
+		byte[] encoding = new byte[deltasSize];
+		encoding[0] = (byte) ClientManager.COMPACT_DELTAS;
+		int position = writeVarint(encoding, 1, ids.length);
+		previous = 0;
+		for (int id : ids) {
+			position = writeVarint(encoding, position, zigzag(id - previous));
+			previous = id;
+		}
+		return encoding;
+	}
+
+	/**
+	 * Maps a signed number onto an unsigned one so that numbers near zero, either
+	 * side, stay small: 0, -1, 1, -2... become 0, 1, 2, 3...
+	 * @param value The signed number
+	 * @return The unsigned number
+	 */
+	protected static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	/**
+	 * Returns the number of bytes of an unsigned varint
+	 * @param value The number, taken as unsigned
+	 * @return The bytes that it takes, one per seven bits
+	 */
+	protected static int varintSize(int value)
+	{
+		int size = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes an unsigned varint: seven bits per byte, least significant first, with
+	 * the top bit set on every byte but the last
+	 * @param buffer The buffer to write to
+	 * @param position The position to write at
+	 * @param value The number, taken as unsigned
+	 * @return The position after the varint
+	 */
+	protected static int writeVarint(byte[] buffer, int position, int value)
+	{
+		while ((value & ~0x7f) != 0) {
+			buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+}
@@ -0,0 +1,487 @@
+package ParkNPark.middletier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ParkNPark.interfaces.AvailabilityListenerOperations;
+import ParkNPark.interfaces.LotStatus;
+import ParkNPark.interfaces.ServiceUnavailableException;
+
+/**
+ * Pushes the availability of lots to the clients that subscribed to it, so that they
+ * need not poll for it. Client managers mark a lot as changed when a car enters or
+ * leaves it, which costs them a set insertion and nothing more. A publisher thread
+ * wakes up every tick, reads the free spaces of the lots that changed since the last
+ * tick with one store call, however many clients subscribed to them, and hands the
+ * lots whose counts moved to each of their subscribers. Every so often it reads every
+ * subscribed lot, so that changes made through other servers are pushed too.
+ * <p>
+ * Each subscriber has its own pending changes, keyed by lot, so the changes that pile
+ * up between two pushes to it coalesce into the latest count of each lot. A subscriber
+ * is pushed to at most once per its minimum interval, except that a lot filling up or
+ * no longer being full is pushed at the next tick. Pushes run on a pool of their own,
+ * with at most one push in flight per subscriber; a slow subscriber only falls behind,
+ * and one whose push fails is dropped. Nothing here ever blocks a client manager
+ */
+public class AvailabilityPublisher
+{
+	/** Default time in milliseconds between two ticks of the publisher thread */
+	public static final long DEFAULT_TICK_INTERVAL = 20;
+
+	/** Default time in milliseconds between two reads of every subscribed lot */
+	public static final long DEFAULT_REFRESH_INTERVAL = 1000;
+
+	/** Default number of threads that push to subscribers */
+	public static final int DEFAULT_PUSH_THREADS = 4;
+
+	/** The parking store that the counts are read from */
+	protected ParkingStore store;
+
+	/** The time in milliseconds between two ticks of the publisher thread */
+	protected long tickInterval = DEFAULT_TICK_INTERVAL;
+
+	/** The time in nanoseconds between two reads of every subscribed lot */
+	protected long refreshInterval = DEFAULT_REFRESH_INTERVAL * 1000000L;
+
+	/** The number of threads that push to subscribers */
+	protected int pushThreads = DEFAULT_PUSH_THREADS;
+
+	/** The subscriptions by ID */
+	protected Map<Integer, Subscription> subscriptions = new ConcurrentHashMap<Integer, Subscription>();
+
+	/** The subscriptions of each lot that anyone ever subscribed to */
+	protected Map<Integer, Set<Subscription>> lotSubscriptions = new ConcurrentHashMap<Integer, Set<Subscription>>();
+
+	/** The subscribed lots that this server's client managers changed since the last tick */
+	protected Set<Integer> changedLots = ConcurrentHashMap.<Integer>newKeySet();
+
+	/** The subscriptions that have not been given their first push yet */
+	protected ConcurrentLinkedQueue<Subscription> newSubscriptions = new ConcurrentLinkedQueue<Subscription>();
+
+	/** The ID of the next subscription */
+	protected AtomicInteger nextSubscriptionID = new AtomicInteger(1);
+
+	/** The free spaces of each lot as last read; only the publisher thread uses it */
+	protected Map<Integer, Integer> lastFreeSpaces = new HashMap<Integer, Integer>();
+
+	/** The subscriptions with pending changes; only the publisher thread uses it */
+	protected Set<Subscription> waiting = new HashSet<Subscription>();
+
+	/** Our publisher thread, or null until the first subscription */
+	protected PublishThread publishThread;
+
+	/** The pool that pushes to subscribers */
+	protected ExecutorService pushPool;
+
+	/** The time in nanoseconds of the last read of every subscribed lot */
+	protected long lastRefresh;
+
+	/** Number of store reads of the lots' free spaces */
+	protected AtomicLong reads = new AtomicLong();
+
+	/** Number of pushes to subscribers */
+	protected AtomicLong pushes = new AtomicLong();
+
+	/** Number of lot changes pushed */
+	protected AtomicLong changesPushed = new AtomicLong();
+
+	/** Number of lot changes replaced by a newer change before they were pushed */
+	protected AtomicLong changesCoalesced = new AtomicLong();
+
+	/** Number of subscribers dropped because a push to them failed */
+	protected AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * A subscriber and the changes waiting to be pushed to it
+	 */
+	protected class Subscription
+	{
+		/** The ID of the subscription */
+		protected final int id;
+
+		/** The subscriber's callback object */
+		protected final AvailabilityListenerOperations listener;
+
+		/** The IDs of the subscribed lots */
+		protected final int[] lots;
+
+		/** The shortest time in nanoseconds between two pushes */
+		protected final long minInterval;
+
+		/** The latest unpushed change of each lot; only the publisher thread uses it */
+		protected Map<Integer, LotStatus> pending = new HashMap<Integer, LotStatus>();
+
+		/** True if a pending change should be pushed without waiting for the interval;
+		 *  only the publisher thread uses it */
+		protected boolean urgent;
+
+		/** True while a push to the subscriber is in flight */
+		protected volatile boolean pushing;
+
+		/** The time in nanoseconds at which the last push began */
+		protected volatile long lastPushed;
+
+		/** True once the subscription has been cancelled */
+		protected volatile boolean cancelled;
+
+		/**
+		 * Creates a subscription
+		 * @param id The ID of the subscription
+		 * @param listener The subscriber's callback object
+		 * @param lots The IDs of the subscribed lots
+		 * @param minInterval The shortest time in milliseconds between two pushes
+		 */
+		protected Subscription(int id, AvailabilityListenerOperations listener, int[] lots, long minInterval)
+		{
+			this.id = id;
+			this.listener = listener;
+			this.lots = lots;
+			this.minInterval = Math.max(0, minInterval) * 1000000L;
+			this.lastPushed = System.nanoTime() - this.minInterval;
+		}
+
+		/**
+		 * Adds a change to the pending changes, replacing any older change of its lot
+		 * @param status The lot's new availability
+		 * @param urgent True if the change should not wait for the interval
+		 */
+		protected void offer(LotStatus status, boolean urgent)
+		{
+			if (pending.put(status.lot, status) != null)
+				changesCoalesced.incrementAndGet();
+			this.urgent |= urgent;
+		}
+
+		/**
+		 * Takes the pending changes if it is time to push them
+		 * @param now The current time in nanoseconds
+		 * @return The changes to push or null if they have to wait
+		 */
+		protected LotStatus[] takeIfDue(long now)
+		{
+			if (pushing || pending.isEmpty() || (!urgent && now - lastPushed < minInterval))
+				return null;
+			LotStatus[] changes = pending.values().toArray(new LotStatus[pending.size()]);
+			pending.clear();
+			urgent = false;
+			pushing = true;
+			lastPushed = now;
+			return changes;
+		}
+	}
+
+	/**
+	 * Background thread that reads the changed lots and hands them to the subscribers
+	 */
+	protected class PublishThread extends Thread
+	{
+		/**
+		 * Creates the publisher thread as a daemon
+		 */
+		public PublishThread()
+		{
+			super("AvailabilityPublisher");
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			while (true) {
+				try {
+					Thread.sleep(tickInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					publish();
+				} catch (RuntimeException e) {
+					System.err.println("Exception while publishing lot availability: " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a publisher; its threads start with the first subscription
+	 * @param store The parking store that the counts are read from
+	 */
+	public AvailabilityPublisher(ParkingStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Sets the time between two ticks of the publisher thread, which bounds how long a
+	 * change waits before it is read and handed to the subscribers
+	 * @param tickInterval The time in milliseconds
+	 */
+	public void setTickInterval(long tickInterval) {
+		this.tickInterval = Math.max(1, tickInterval);
+	}
+
+	/**
+	 * Sets the time between two reads of every subscribed lot, which bounds how long
+	 * a change made through another server waits before it is pushed
+	 * @param refreshInterval The time in milliseconds
+	 */
+	public void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = Math.max(1, refreshInterval) * 1000000L;
+	}
+
+	/**
+	 * Sets the number of threads that push to subscribers. Only takes effect if set
+	 * before the first subscription
+	 * @param pushThreads The number of threads
+	 */
+	public void setPushThreads(int pushThreads) {
+		this.pushThreads = Math.max(1, pushThreads);
+	}
+
+	/**
+	 * Subscribes a callback object to the availability of some lots. It is first
+	 * pushed every subscribed lot, then the lots that change
+	 * @param listener The callback object
+	 * @param lots The IDs of the lots, or none for every lot
+	 * @param minInterval The shortest time in milliseconds between two pushes
+	 * @return The ID of the subscription
+	 * @throws ServiceUnavailableException Thrown if every lot was asked for and the
+	 * lots cannot be read
+	 */
+	public int subscribe(AvailabilityListenerOperations listener, int[] lots, long minInterval)
+		throws ServiceUnavailableException
+	{
+		if (lots.length == 0)
+			lots = store.getLots().clone();
+		Subscription subscription = new Subscription(nextSubscriptionID.getAndIncrement(), listener, lots, minInterval);
+		subscriptions.put(subscription.id, subscription);
+		for (int lot : lots) {
+			Set<Subscription> subscribers = lotSubscriptions.get(lot);
+			if (subscribers == null) {
+				Set<Subscription> added = ConcurrentHashMap.<Subscription>newKeySet();
+				subscribers = lotSubscriptions.putIfAbsent(lot, added);
+				if (subscribers == null)
+					subscribers = added;
+			}
+			subscribers.add(subscription);
+		}
+		newSubscriptions.add(subscription);
+		start();
+		return subscription.id;
+	}
+
+	/**
+	 * Cancels a subscription. Unknown subscription IDs are ignored
+	 * @param subscriptionID The ID of the subscription
+	 */
+	public void unsubscribe(int subscriptionID)
+	{
+		Subscription subscription = subscriptions.remove(subscriptionID);
+		if (subscription == null)
+			return;
+		subscription.cancelled = true;
+		for (int lot : subscription.lots) {
+			Set<Subscription> subscribers = lotSubscriptions.get(lot);
+			if (subscribers != null)
+				subscribers.remove(subscription);
+		}
+	}
+
+	/**
+	 * Notes that the car count of a lot changed, for client managers to call once the
+	 * store has applied a car's entry or exit. Lots that nobody subscribed to are
+	 * ignored
+	 * @param lot The ID of the lot
+	 */
+	public void changed(int lot)
+	{
+		if (lotSubscriptions.containsKey(lot))
+			changedLots.add(lot);
+	}
+
+	/**
+	 * Returns the number of subscriptions
+	 * @return The number of subscriptions that have not been cancelled
+	 */
+	public int getSubscriptionCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Returns the number of store reads of the lots' free spaces so far
+	 * @return The number of reads
+	 */
+	public long getReads() {
+		return reads.get();
+	}
+
+	/**
+	 * Returns true once the publisher has had a subscription
+	 * @return True if the publisher's threads are running
+	 */
+	public synchronized boolean isStarted() {
+		return publishThread != null;
+	}
+
+	/**
+	 * Reads the lots that changed since the last tick, or every subscribed lot if it
+	 * is time to, and pushes the changes that are due. Called by the publisher thread
+	 */
+	protected void publish()
+	{
+		long now = System.nanoTime();
+
+		// Gather the lots to read: the changed ones, every lot of the new subscriptions,
+		// and every subscribed lot when it is time to catch up with other servers
+		List<Subscription> added = new ArrayList<Subscription>();
+		for (Subscription subscription; (subscription = newSubscriptions.poll()) != null; )
+			added.add(subscription);
+		IntList lots = new IntList(16);
+		boolean refresh = now - lastRefresh >= refreshInterval;
+		if (refresh) {
+			for (Map.Entry<Integer, Set<Subscription>> entry : lotSubscriptions.entrySet()) {
+				if (!entry.getValue().isEmpty())
+					lots.add(entry.getKey());
+			}
+			changedLots.clear();
+		}
+		else {
+			for (Iterator<Integer> it = changedLots.iterator(); it.hasNext(); ) {
+				lots.add(it.next());
+				it.remove();
+			}
+			for (Subscription subscription : added) {
+				for (int lot : subscription.lots)
+					lots.add(lot);
+			}
+		}
+
+		// Read them all with one store call
+		if (lots.size() > 0) {
+			int[] lotIDs = lots.toArray();
+			int[] freeSpaces;
+			try {
+				freeSpaces = store.getFreeSpaces(lotIDs);
+			} catch (ServiceUnavailableException e) {
+				// Try again at the next tick
+				System.err.println("Could not read the free spaces of " + lotIDs.length + " lots: " + e.message);
+				for (int lot : lotIDs)
+					changedLots.add(lot);
+				newSubscriptions.addAll(added);
+				return;
+			}
+			reads.incrementAndGet();
+			if (refresh)
+				lastRefresh = now;
+
+			// Hand the lots whose counts moved to their subscribers
+			for (int i = 0; i < lotIDs.length; i++) {
+				if (freeSpaces[i] < 0)
+					continue;
+				Integer previous = lastFreeSpaces.put(lotIDs[i], freeSpaces[i]);
+				if (previous != null && previous == freeSpaces[i])
+					continue;
+				boolean full = freeSpaces[i] == 0;
+				LotStatus status = new LotStatus(lotIDs[i], freeSpaces[i], full);
+				boolean crossed = previous == null || (previous == 0) != full;
+				Set<Subscription> subscribers = lotSubscriptions.get(lotIDs[i]);
+				if (subscribers == null)
+					continue;
+				for (Subscription subscription : subscribers) {
+					subscription.offer(status, crossed);
+					waiting.add(subscription);
+				}
+			}
+		}
+
+		// New subscriptions are given every lot that they subscribed to right away
+		for (Subscription subscription : added) {
+			for (int lot : subscription.lots) {
+				Integer free = lastFreeSpaces.get(lot);
+				if (free != null && !subscription.pending.containsKey(lot))
+					subscription.offer(new LotStatus(lot, free, free == 0), true);
+			}
+			subscription.urgent = true;
+			waiting.add(subscription);
+		}
+
+		// Push to every subscriber whose changes are due
+		for (Iterator<Subscription> it = waiting.iterator(); it.hasNext(); ) {
+			Subscription subscription = it.next();
+			if (subscription.cancelled) {
+				it.remove();
+				continue;
+			}
+			LotStatus[] changes = subscription.takeIfDue(now);
+			if (changes != null)
+				push(subscription, changes);
+			if (subscription.pending.isEmpty())
+				it.remove();
+		}
+	}
+
+	/**
+	 * Pushes changes to a subscriber on the push pool, dropping the subscriber if the
+	 * push fails
+	 * @param subscription The subscription
+	 * @param changes The changes
+	 */
+	protected void push(final Subscription subscription, final LotStatus[] changes)
+	{
+		pushPool.execute(new Runnable() {
+			public void run() {
+				try {
+					subscription.listener.availabilityChanged(changes);
+					pushes.incrementAndGet();
+					changesPushed.addAndGet(changes.length);
+				} catch (RuntimeException e) {
+					System.err.println("Dropping availability subscription " + subscription.id + " after a failed push: "
+							+ e.getClass().getName());
+					dropped.incrementAndGet();
+					unsubscribe(subscription.id);
+				} finally {
+					subscription.pushing = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts the publisher thread and the push pool if they are not running yet
+	 */
+	protected synchronized void start()
+	{
+		if (publishThread != null)
+			return;
+		pushPool = Executors.newFixedThreadPool(pushThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "AvailabilityPublisher push");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		lastRefresh = System.nanoTime();
+		publishThread = new PublishThread();
+		publishThread.start();
+	}
+
+	/**
+	 * Prints the publisher's statistics to standard output
+	 */
+	public void printStatistics()
+	{
+		System.out.println("Availability publisher: " + getSubscriptionCount() + " subscriptions; " + reads.get()
+				+ " store reads, " + pushes.get() + " pushes of " + changesPushed.get() + " lot changes, "
+				+ changesCoalesced.get() + " changes coalesced, " + dropped.get() + " subscribers dropped");
+	}
+}
@@ -0,0 +1,548 @@
+package ParkNPark.middletier;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leases blocks of free spaces of lots from the database to this server, so that
+ * cars are admitted against the lease instead of against the lot's row, which every
+ * server and client would otherwise compete for. Granting a lease adds the leased
+ * spaces to the lot's car count, so that they look taken to everyone else and the
+ * capacity of the lot still holds across all servers. The levels only count the cars
+ * that are on them: a car that enters against the lease takes one of its free spaces
+ * and is added to the entry level, and a car that exits a leased lot gives its space
+ * back to the lease and is taken off the level, so neither touches the lot's row.
+ * <p>
+ * Every lease has a row in the Lease table, which records how many of its spaces are
+ * still free and when it expires:
+ * <pre>
+ * CREATE TABLE Lease (LotID INT NOT NULL, Server VARCHAR(255) NOT NULL, Free INT NOT NULL,
+ *     Expires DATETIME NOT NULL, PRIMARY KEY (LotID, Server));
+ * </pre>
+ * Admissions only match while the lease's row exists, so deleting the row revokes the
+ * lease at once even if its server is still running. A background thread tops a lease
+ * up once it runs low, before it is exhausted, returns spaces once exits have piled up
+ * too many of them, extends the leases and revokes the leases of servers that stopped
+ * extending theirs. The replication manager revokes a failed server's leases with
+ * revoke() when it fails the server over
+ */
+public class CapacityLeaseManager
+{
+	/** The default time in seconds that a lease lasts without being extended */
+	public static final int DEFAULT_LEASE_DURATION = 30;
+
+	/** Number of times that a lease is extended during its duration, so that one
+	 *  failed extension does not let it expire */
+	protected static final int EXTENSIONS_PER_DURATION = 3;
+
+	/** Reads a lot's car count and capacity and locks its row while a lease is granted */
+	protected static final String LOCK_LOT_SQL = "SELECT CarCount, Capacity FROM Lot WHERE ID = ? FOR UPDATE";
+
+	/** Adds spaces to the car count of a lot that has an entry level */
+	protected static final String RESERVE_SPACES_SQL = "UPDATE Lot L, Level V SET L.CarCount = L.CarCount + ? "
+		+ "WHERE L.ID = ? AND V.LotID = L.ID AND V.Level = 1";
+
+	/** Takes spaces off the car count of a lot; it matches no rows if the lot counts
+	 *  fewer cars than that */
+	protected static final String RETURN_SPACES_SQL = "UPDATE Lot SET CarCount = CarCount - ? WHERE ID = ? AND CarCount >= ?";
+
+	/** Creates a lease or adds spaces to it and extends it */
+	protected static final String GRANT_LEASE_SQL = "INSERT INTO Lease (LotID, Server, Free, Expires) "
+		+ "VALUES (?, ?, ?, NOW() + INTERVAL ? SECOND) "
+		+ "ON DUPLICATE KEY UPDATE Free = Free + VALUES(Free), Expires = VALUES(Expires)";
+
+	/** Reads a lease's free spaces after it was granted */
+	protected static final String READ_LEASE_SQL = "SELECT Free FROM Lease WHERE LotID = ? AND Server = ?";
+
+	/** Takes free spaces out of a lease; it matches no rows if the lease was revoked */
+	protected static final String SHRINK_LEASE_SQL = "UPDATE Lease SET Free = Free - ? "
+		+ "WHERE LotID = ? AND Server = ? AND Free >= ?";
+
+	/** Extends every lease of a server */
+	protected static final String EXTEND_LEASES_SQL = "UPDATE Lease SET Expires = NOW() + INTERVAL ? SECOND WHERE Server = ?";
+
+	/** Lists the lots that a server holds leases on */
+	protected static final String LIST_LEASES_SQL = "SELECT LotID FROM Lease WHERE Server = ?";
+
+	/** Locks every lease of a server for revocation */
+	protected static final String SERVER_LEASES_SQL = "SELECT LotID, Server, Free FROM Lease WHERE Server = ? FOR UPDATE";
+
+	/** Locks every expired lease for revocation */
+	protected static final String EXPIRED_LEASES_SQL = "SELECT LotID, Server, Free FROM Lease WHERE Expires < NOW() FOR UPDATE";
+
+	/** Deletes a revoked lease */
+	protected static final String DELETE_LEASE_SQL = "DELETE FROM Lease WHERE LotID = ? AND Server = ?";
+
+	/** Our database manager instance */
+	protected DatabaseManager databaseManager;
+
+	/** The name that this server's leases are held under */
+	protected String serverName;
+
+	/** Number of spaces leased at a time */
+	protected int blockSize;
+
+	/** A lease is topped up once it has this many free spaces or fewer left */
+	protected int lowWater;
+
+	/** Spaces are returned once a lease has more than this many free spaces */
+	protected int highWater;
+
+	/** The time in seconds that a lease lasts without being extended */
+	protected int leaseDuration;
+
+	/** Our leases by lot ID */
+	protected ConcurrentHashMap<Integer, Lease> leases = new ConcurrentHashMap<Integer, Lease>();
+
+	/** Lots whose lease the background thread should top up or shrink */
+	protected LinkedBlockingQueue<Integer> pending = new LinkedBlockingQueue<Integer>();
+
+	/** The lots in the pending queue, so that each is only queued once */
+	protected Set<Integer> queued = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/** Statistics: spaces granted and returned, cars admitted against a lease, and
+	 *  leases that were found revoked */
+	protected AtomicLong spacesGranted = new AtomicLong(), spacesReturned = new AtomicLong(),
+		leasedAdmissions = new AtomicLong(), revokedLeases = new AtomicLong();
+
+	/**
+	 * A lease as this server sees it
+	 */
+	protected static class Lease
+	{
+		/** The free spaces of the lease that have not been taken by a request in
+		 *  progress. It never exceeds the Free column, since spaces are only added
+		 *  here once the database has them */
+		protected AtomicInteger free;
+
+		/**
+		 * Creates a lease
+		 * @param free The lease's free spaces
+		 */
+		protected Lease(int free) {
+			this.free = new AtomicInteger(free);
+		}
+	}
+
+	/**
+	 * Background thread that tops up and shrinks leases and extends them
+	 */
+	protected class LeaseThread extends Thread
+	{
+		/** Creates the lease thread as a daemon */
+		public LeaseThread() {
+			super("CapacityLeaseManager");
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			long interval = leaseDuration * 1000L / EXTENSIONS_PER_DURATION;
+			long nextExtension = System.currentTimeMillis() + interval;
+			while (true) {
+				try {
+					Integer lot = pending.poll(Math.max(1, nextExtension - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					if (lot != null) {
+						queued.remove(lot);
+						adjust(lot);
+					}
+					if (System.currentTimeMillis() >= nextExtension) {
+						extend();
+						nextExtension = System.currentTimeMillis() + interval;
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (SQLException e) {
+					System.err.println("CapacityLeaseManager: lease maintenance failed; will retry: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the lease manager, revokes whatever leases a previous run of this
+	 * server left behind and starts the background thread
+	 * @param databaseManager The database manager to lease spaces with
+	 * @param serverName The name that this server's leases are held under, which
+	 * must be the name that the replication manager knows the server by
+	 * @param blockSize The number of spaces to lease at a time
+	 * @param leaseDuration The time in seconds that a lease lasts without being extended
+	 * @throws SQLException Thrown when the leftover leases cannot be revoked
+	 */
+	public CapacityLeaseManager(DatabaseManager databaseManager, String serverName, int blockSize, int leaseDuration)
+		throws SQLException
+	{
+		this.databaseManager = databaseManager;
+		this.serverName = serverName;
+		this.blockSize = blockSize;
+		this.lowWater = blockSize / 4;
+		this.highWater = 2 * blockSize;
+		this.leaseDuration = leaseDuration;
+
+		int revoked = revoke(databaseManager, serverName);
+		if (revoked > 0)
+			System.out.println("Revoked " + revoked + " capacity leases that a previous run of this server left behind");
+		new LeaseThread().start();
+	}
+
+	/**
+	 * Takes a free space of this server's lease on a lot for a car that is entering
+	 * it. Asks for a lease, or for more spaces, when there is none or it runs low
+	 * @param lot The lot ID
+	 * @return True if a space was taken, in which case the caller must either commit
+	 * the admission against the lease or give the space back with untake()
+	 */
+	public boolean take(int lot)
+	{
+		Lease lease = leases.get(lot);
+		if (lease == null) {
+			request(lot);
+			return false;
+		}
+		int free;
+		do {
+			free = lease.free.get();
+			if (free <= 0) {
+				request(lot);
+				return false;
+			}
+		} while (!lease.free.compareAndSet(free, free - 1));
+
+		// Top the lease up ahead of exhaustion
+		if (free - 1 <= lowWater)
+			request(lot);
+		leasedAdmissions.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Gives back a space that take() took for an admission that did not commit
+	 * @param lot The lot ID
+	 */
+	public void untake(int lot)
+	{
+		leasedAdmissions.decrementAndGet();
+		Lease lease = leases.get(lot);
+		if (lease != null)
+			lease.free.incrementAndGet();
+	}
+
+	/**
+	 * Returns true if this server holds a lease on a lot, so that exits from the lot
+	 * give their spaces to the lease
+	 * @param lot The lot ID
+	 * @return True if this server holds a lease on the lot
+	 */
+	public boolean hasLease(int lot) {
+		return leases.containsKey(lot);
+	}
+
+	/**
+	 * Adds the space of a car whose exit was committed against the lease to the
+	 * lease, and asks for spaces to be returned once the lease holds too many
+	 * @param lot The lot ID
+	 */
+	public void returned(int lot)
+	{
+		Lease lease = leases.get(lot);
+		if (lease != null && lease.free.incrementAndGet() > highWater)
+			request(lot);
+	}
+
+	/**
+	 * Forgets a lease that an admission or exit found missing from the database
+	 * @param lot The lot ID
+	 */
+	public void revoked(int lot)
+	{
+		if (leases.remove(lot) != null) {
+			revokedLeases.incrementAndGet();
+			System.err.println("CapacityLeaseManager: the lease on lot " + lot + " was revoked");
+		}
+	}
+
+	/**
+	 * Gives every lease of this server back to the database, for when the server
+	 * stops serving clients. Spaces are leased again as clients arrive
+	 */
+	public void release()
+	{
+		leases.clear();
+		try {
+			revoke(databaseManager, serverName);
+		} catch (SQLException e) {
+			System.err.println("CapacityLeaseManager: could not release our leases; they are revoked once they expire: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Prints the lease statistics to standard output
+	 */
+	public void printStatistics()
+	{
+		int free = 0;
+		for (Lease lease : leases.values())
+			free += lease.free.get();
+		System.out.println("Capacity leases: " + leases.size() + " held with " + free + " free spaces; "
+				+ spacesGranted.get() + " spaces granted, " + spacesReturned.get() + " returned; "
+				+ leasedAdmissions.get() + " cars admitted against a lease; " + revokedLeases.get() + " leases found revoked");
+	}
+
+	/**
+	 * Revokes every lease of a server, giving the lease's free spaces back to its lot.
+	 * Admissions against a revoked lease no longer match, so this is safe even if the
+	 * server is still running
+	 * @param databaseManager The database manager to use
+	 * @param serverName The name of the server
+	 * @return The number of leases revoked
+	 * @throws SQLException Thrown when the leases cannot be revoked
+	 */
+	public static int revoke(DatabaseManager databaseManager, String serverName) throws SQLException
+	{
+		Connection conn = databaseManager.getConnection();
+		try {
+			PreparedStatement select = databaseManager.prepareStatement(conn, SERVER_LEASES_SQL);
+			select.setString(1, serverName);
+			int revoked = revokeSelected(databaseManager, conn, select);
+			conn.commit();
+			return revoked;
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Revokes the leases that a locking query selected
+	 * @param databaseManager The database manager to use
+	 * @param conn The connection of the transaction
+	 * @param select The query, which returns LotID, Server and Free
+	 * @return The number of leases revoked
+	 * @throws SQLException Thrown when the leases cannot be revoked
+	 */
+	protected static int revokeSelected(DatabaseManager databaseManager, Connection conn, PreparedStatement select)
+		throws SQLException
+	{
+		List<Object[]> selected = new ArrayList<Object[]>();
+		ResultSet rs = select.executeQuery();
+		while (rs.next())
+			selected.add(new Object[] { rs.getInt("LotID"), rs.getString("Server"), rs.getInt("Free") });
+		rs.close();
+
+		for (Object[] lease : selected) {
+			returnSpaces(databaseManager, conn, (Integer) lease[0], (Integer) lease[2]);
+			PreparedStatement delete = databaseManager.prepareStatement(conn, DELETE_LEASE_SQL);
+			delete.setInt(1, (Integer) lease[0]);
+			delete.setString(2, (String) lease[1]);
+			delete.executeUpdate();
+		}
+		return selected.size();
+	}
+
+	/**
+	 * Takes spaces off the car count of a lot
+	 * @param databaseManager The database manager to use
+	 * @param conn The connection of the transaction
+	 * @param lot The lot ID
+	 * @param spaces The number of spaces
+	 * @throws SQLException Thrown when the count cannot be updated or when the lot
+	 * counts fewer cars than the spaces, which means that its count is wrong
+	 */
+	protected static void returnSpaces(DatabaseManager databaseManager, Connection conn, int lot, int spaces)
+		throws SQLException
+	{
+		if (spaces <= 0)
+			return;
+		PreparedStatement returnSpaces = databaseManager.prepareStatement(conn, RETURN_SPACES_SQL);
+		returnSpaces.setInt(1, spaces);
+		returnSpaces.setInt(2, lot);
+		returnSpaces.setInt(3, spaces);
+		if (returnSpaces.executeUpdate() == 0)
+			throw new SQLException("Lot " + lot + " counts fewer cars than the " + spaces
+					+ " leased spaces being returned to it; its car count is wrong");
+	}
+
+	/**
+	 * Asks the background thread to top up or shrink the lease on a lot
+	 * @param lot The lot ID
+	 */
+	protected void request(int lot)
+	{
+		if (queued.add(lot))
+			pending.add(lot);
+	}
+
+	/**
+	 * Tops up the lease on a lot if it is running low, or returns spaces if it
+	 * holds too many
+	 * @param lot The lot ID
+	 * @throws SQLException Thrown when the lease cannot be changed
+	 */
+	protected void adjust(int lot) throws SQLException
+	{
+		Lease lease = leases.get(lot);
+		int free = lease != null ? lease.free.get() : 0;
+		if (free <= lowWater)
+			grant(lot);
+		else if (free > highWater)
+			shrink(lot, lease, free - blockSize);
+	}
+
+	/**
+	 * Leases up to a block of the free spaces of a lot
+	 * @param lot The lot ID
+	 * @throws SQLException Thrown when the spaces cannot be leased
+	 */
+	protected void grant(int lot) throws SQLException
+	{
+		Connection conn = databaseManager.getConnection();
+		try {
+			PreparedStatement lockLot = databaseManager.prepareStatement(conn, LOCK_LOT_SQL);
+			lockLot.setInt(1, lot);
+			ResultSet rs = lockLot.executeQuery();
+			int spaces = rs.next() ? Math.min(blockSize, rs.getInt("Capacity") - rs.getInt("CarCount")) : 0;
+			rs.close();
+			if (spaces <= 0) {
+				conn.rollback();
+				return;
+			}
+
+			// Lots without an entry level cannot be entered, so they are not leased
+			PreparedStatement reserve = databaseManager.prepareStatement(conn, RESERVE_SPACES_SQL);
+			reserve.setInt(1, spaces);
+			reserve.setInt(2, lot);
+			if (reserve.executeUpdate() == 0) {
+				conn.rollback();
+				return;
+			}
+			PreparedStatement grant = databaseManager.prepareStatement(conn, GRANT_LEASE_SQL);
+			grant.setInt(1, lot);
+			grant.setString(2, serverName);
+			grant.setInt(3, spaces);
+			grant.setInt(4, leaseDuration);
+			grant.executeUpdate();
+			PreparedStatement read = databaseManager.prepareStatement(conn, READ_LEASE_SQL);
+			read.setInt(1, lot);
+			read.setString(2, serverName);
+			rs = read.executeQuery();
+			int free = rs.next() ? rs.getInt("Free") : spaces;
+			rs.close();
+			conn.commit();
+
+			// A new lease starts out with what the database has; an existing one only
+			// gains the granted spaces, since some of its spaces may be taken by
+			// admissions in progress
+			spacesGranted.addAndGet(spaces);
+			Lease lease = leases.get(lot);
+			if (lease == null)
+				leases.put(lot, new Lease(free));
+			else
+				lease.free.addAndGet(spaces);
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Returns free spaces of a lease to its lot
+	 * @param lot The lot ID
+	 * @param lease The lease
+	 * @param spaces The number of spaces to return
+	 * @throws SQLException Thrown when the spaces cannot be returned
+	 */
+	protected void shrink(int lot, Lease lease, int spaces) throws SQLException
+	{
+		// Take the spaces out of the lease first, so that no admission can use them
+		int free;
+		do {
+			free = lease.free.get();
+			if (free < spaces)
+				return;
+		} while (!lease.free.compareAndSet(free, free - spaces));
+
+		Connection conn = null;
+		boolean returned = false;
+		try {
+			conn = databaseManager.getConnection();
+			PreparedStatement shrink = databaseManager.prepareStatement(conn, SHRINK_LEASE_SQL);
+			shrink.setInt(1, spaces);
+			shrink.setInt(2, lot);
+			shrink.setString(3, serverName);
+			shrink.setInt(4, spaces);
+			if (shrink.executeUpdate() == 0) {
+				conn.rollback();
+				revoked(lot);
+				return;
+			}
+			returnSpaces(databaseManager, conn, lot, spaces);
+			conn.commit();
+			returned = true;
+			spacesReturned.addAndGet(spaces);
+		} catch (SQLException e) {
+			if (conn != null)
+				conn.rollback();
+			throw e;
+		} finally {
+			if (!returned)
+				lease.free.addAndGet(spaces);
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Extends this server's leases, forgets the ones that were revoked and revokes
+	 * every lease that expired, whichever server holds it
+	 * @throws SQLException Thrown when the leases cannot be extended
+	 */
+	protected void extend() throws SQLException
+	{
+		Connection conn = databaseManager.getConnection();
+		try {
+			PreparedStatement extend = databaseManager.prepareStatement(conn, EXTEND_LEASES_SQL);
+			extend.setInt(1, leaseDuration);
+			extend.setString(2, serverName);
+			extend.executeUpdate();
+			PreparedStatement list = databaseManager.prepareStatement(conn, LIST_LEASES_SQL);
+			list.setString(1, serverName);
+			Set<Integer> held = new HashSet<Integer>();
+			ResultSet rs = list.executeQuery();
+			while (rs.next())
+				held.add(rs.getInt("LotID"));
+			rs.close();
+			conn.commit();
+
+			for (Integer lot : leases.keySet()) {
+				if (!held.contains(lot))
+					revoked(lot);
+			}
+
+			int expired = revokeSelected(databaseManager, conn, databaseManager.prepareStatement(conn, EXPIRED_LEASES_SQL));
+			conn.commit();
+			if (expired > 0)
+				System.out.println("CapacityLeaseManager: revoked " + expired + " expired capacity leases");
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package ParkNPark.middletier;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.omg.CORBA.LocalObject;
+import org.omg.CORBA.OBJECT_NOT_EXIST;
+import org.omg.CORBA.Policy;
+import org.omg.CORBA.TRANSIENT;
+import org.omg.PortableServer.ForwardRequest;
+import org.omg.PortableServer.IdAssignmentPolicyValue;
+import org.omg.PortableServer.ImplicitActivationPolicyValue;
+import org.omg.PortableServer.LifespanPolicyValue;
+import org.omg.PortableServer.POA;
+import org.omg.PortableServer.RequestProcessingPolicyValue;
+import org.omg.PortableServer.Servant;
+import org.omg.PortableServer.ServantActivator;
+import org.omg.PortableServer.ServantRetentionPolicyValue;
+import org.omg.PortableServer.POAPackage.ObjectAlreadyActive;
+
+import ParkNPark.interfaces.ClientManager;
+import ParkNPark.interfaces.ClientManagerHelper;
+import ParkNPark.interfaces.InvalidClientException;
+import ParkNPark.interfaces.ServiceUnavailableException;
+
+/**
+ * Activates a servant per client, as the factory does by default, but evicts the
+ * servants of clients that have gone quiet and brings them back when they are used
+ * again. Client managers live in a POA of their own whose object IDs hold the
+ * client's ID and hostname, as the servant locator's do, so a reference stays valid
+ * after its servant has been evicted: a sweeper thread deactivates every servant
+ * that has not made a store call for the idle timeout, and the next request on its
+ * reference has the POA call incarnate(), which reloads the client's session from
+ * the parking store into a new servant. Clients that crash without closing their
+ * client managers thus hold nothing on the server once their timeout has passed.
+ * <p>
+ * The activator counts the active and the evicted servants and times every
+ * reactivation, and prints them with the factory's statistics
+ */
+public class ClientManagerActivator extends LocalObject implements ServantActivator
+{
+	/** Serialization version */
+	private static final long serialVersionUID = 1L;
+
+	/** Name of the POA of the client managers */
+	public static final String POA_NAME = "ActivatedClientManagers";
+
+	/** Number of sweeps per idle timeout, which bounds how long past its timeout an
+	 *  idle servant can stay active */
+	protected static final int SWEEPS_PER_TIMEOUT = 4;
+
+	/** The factory whose store, logger and reply padding the servants use */
+	protected ClientManagerFactoryImpl factory;
+
+	/** The POA of the client managers */
+	protected POA poa;
+
+	/** The time in nanoseconds after which an unused servant is evicted */
+	protected long idleTimeout;
+
+	/** The active servants and their object IDs */
+	protected Map<ClientManagerImpl, byte[]> active = new ConcurrentHashMap<ClientManagerImpl, byte[]>();
+
+	/** The IDs of the clients whose servants are evicted and not yet reactivated */
+	protected Set<Integer> evicted = ConcurrentHashMap.<Integer>newKeySet();
+
+	/** Our sweeper thread */
+	protected SweepThread sweepThread;
+
+	/** Number of servants activated for new references */
+	protected AtomicLong activations = new AtomicLong();
+
+	/** Number of servants evicted */
+	protected AtomicLong evictions = new AtomicLong();
+
+	/** Number of servants reactivated */
+	protected AtomicLong reactivations = new AtomicLong();
+
+	/** Total and longest reactivation time in nanoseconds */
+	protected AtomicLong reactivationTime = new AtomicLong(), maxReactivationTime = new AtomicLong();
+
+	/**
+	 * Background thread that evicts idle servants
+	 */
+	protected class SweepThread extends Thread
+	{
+		/** The time in milliseconds between sweeps */
+		protected long interval;
+
+		/**
+		 * Creates the sweeper thread as a daemon
+		 * @param interval The time in milliseconds between sweeps
+		 */
+		public SweepThread(long interval)
+		{
+			super("ClientManagerActivator");
+			setDaemon(true);
+			this.interval = interval;
+		}
+
+		public void run()
+		{
+			while (true) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				sweep();
+			}
+		}
+	}
+
+	/**
+	 * Creates an activator, the POA of the client managers and the sweeper thread
+	 * @param factory The factory whose store, logger and reply padding the servants use
+	 * @param parent The POA to create the client managers' POA under
+	 * @param idleTimeout The time in milliseconds after which an unused servant is evicted
+	 * @throws Exception Thrown when the POA cannot be created
+	 */
+	public ClientManagerActivator(ClientManagerFactoryImpl factory, POA parent, long idleTimeout) throws Exception
+	{
+		this.factory = factory;
+		this.idleTimeout = idleTimeout * 1000000L;
+		Policy[] policies = {
+			parent.create_lifespan_policy(LifespanPolicyValue.TRANSIENT),
+			parent.create_id_assignment_policy(IdAssignmentPolicyValue.USER_ID),
+			parent.create_servant_retention_policy(ServantRetentionPolicyValue.RETAIN),
+			parent.create_request_processing_policy(RequestProcessingPolicyValue.USE_SERVANT_MANAGER),
+			parent.create_implicit_activation_policy(ImplicitActivationPolicyValue.NO_IMPLICIT_ACTIVATION)
+		};
+		this.poa = parent.create_POA(POA_NAME, parent.the_POAManager(), policies);
+		for (Policy policy : policies)
+			policy.destroy();
+		poa.set_servant_manager(this);
+
+		sweepThread = new SweepThread(Math.max(1, idleTimeout / SWEEPS_PER_TIMEOUT));
+		sweepThread.start();
+		System.out.println("Client manager servants are evicted after " + idleTimeout + "ms without a request");
+	}
+
+	/**
+	 * Activates a new servant and makes its reference. If the client already has an
+	 * active servant under the same object ID, that servant takes the new servant's
+	 * freshly loaded session instead
+	 * @param servant The servant, holding the client's session
+	 * @param clientHostname The hostname of the client
+	 * @return The client manager reference
+	 * @throws ServiceUnavailableException Thrown when the servant cannot be activated
+	 */
+	public ClientManager activate(ClientManagerImpl servant, String clientHostname) throws ServiceUnavailableException
+	{
+		int clientID = servant.session.getClientID();
+		byte[] oid = ClientManagerLocator.encode(clientID, clientHostname);
+		try {
+			try {
+				poa.activate_object_with_id(oid, servant);
+				active.put(servant, oid);
+			} catch (ObjectAlreadyActive e) {
+				ClientManagerImpl existing = (ClientManagerImpl) poa.id_to_servant(oid);
+				existing.session = servant.session;
+				existing.lastUsed = System.nanoTime();
+			}
+		} catch (Exception e) {
+			System.err.println("Exception while activating the client manager of client " + clientID + ": " + e.getClass().getName());
+			throw new ServiceUnavailableException("Could not activate the client manager");
+		}
+		evicted.remove(clientID);
+		activations.incrementAndGet();
+		return ClientManagerHelper.narrow(poa.create_reference_with_id(oid, ClientManagerHelper.id()));
+	}
+
+	/**
+	 * Deactivates every servant that has not made a store call for the idle timeout.
+	 * The POA lets requests in progress finish before it etherealizes the servant
+	 */
+	public void sweep()
+	{
+		long now = System.nanoTime();
+		for (Map.Entry<ClientManagerImpl, byte[]> entry : active.entrySet()) {
+			if (now - entry.getKey().lastUsed < idleTimeout)
+				continue;
+			try {
+				poa.deactivate_object(entry.getValue());
+			} catch (Exception e) {
+				// Closed or evicted since we looked
+			}
+		}
+	}
+
+	/**
+	 * Reactivates the servant of an evicted or closed client manager, reloading the
+	 * client's session from the parking store
+	 */
+	public Servant incarnate(byte[] oid, POA adapter) throws ForwardRequest
+	{
+		long start = System.nanoTime();
+		int clientID = ClientManagerLocator.decodeClientID(oid);
+		ClientManagerImpl servant;
+		try {
+			servant = new ClientManagerImpl(factory, clientID, ClientManagerLocator.decodeHostname(oid));
+		} catch (ServiceUnavailableException e) {
+			System.err.println("Could not reactivate the client manager of client " + clientID + ": " + e.message);
+			throw new TRANSIENT("Could not load the client's session");
+		} catch (InvalidClientException e) {
+			throw new OBJECT_NOT_EXIST("Client " + clientID + " is not known");
+		}
+		active.put(servant, oid);
+		evicted.remove(clientID);
+
+		long elapsed = System.nanoTime() - start, max;
+		reactivations.incrementAndGet();
+		reactivationTime.addAndGet(elapsed);
+		while (elapsed > (max = maxReactivationTime.get()) && !maxReactivationTime.compareAndSet(max, elapsed))
+			;
+		return servant;
+	}
+
+	/**
+	 * Forgets a deactivated servant, counting it as evicted unless its client closed it
+	 */
+	public void etherealize(byte[] oid, POA adapter, Servant serv, boolean cleanup_in_progress, boolean remaining_activations)
+	{
+		ClientManagerImpl servant = (ClientManagerImpl) serv;
+		active.remove(servant);
+		if (!servant.closed && !cleanup_in_progress) {
+			evicted.add(servant.session.getClientID());
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of active servants
+	 * @return The number of servants that are serving their clients
+	 */
+	public int getActiveCount() {
+		return active.size();
+	}
+
+	/**
+	 * Returns the number of evicted servants
+	 * @return The number of clients whose servants are evicted and not yet reactivated
+	 */
+	public int getEvictedCount() {
+		return evicted.size();
+	}
+
+	/**
+	 * Prints the activator's statistics to standard output
+	 */
+	public void printStatistics()
+	{
+		long count = reactivations.get();
+		System.out.println("Servant activator: " + getActiveCount() + " active, " + getEvictedCount() + " evicted; "
+				+ activations.get() + " activations, " + evictions.get() + " evictions, " + count
+				+ " reactivations; average reactivation " + (count > 0 ? reactivationTime.get() / count / 1000 : 0)
+				+ "us, longest " + maxReactivationTime.get() / 1000 + "us");
+	}
+}
@@ -1,12 +1,12 @@
 package ParkNPark.middletier;
 
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import org.omg.PortableServer.POA;
+
 import ParkNPark.common.Logger;
+import ParkNPark.interfaces.AvailabilityListener;
 import ParkNPark.interfaces.ClientManager;
 import ParkNPark.interfaces.ClientManagerFactoryPOA;
 import ParkNPark.interfaces.ClientManagerHelper;
@@ -18,11 +18,26 @@ import ParkNPark.interfaces.ServiceUnavailableException;
  */
 public class ClientManagerFactoryImpl extends ClientManagerFactoryPOA
 {
-	/** Maximum number of attempts when trying to execute commends on database */
-	protected static final int MAX_ATTEMPTS = 3;
+	/** Our parking store, which every client manager applies its requests to */
+	protected ParkingStore store;
+	
+	/** The database stage that client managers run their store calls on, or null
+	 *  to run them on the ORB's threads */
+	protected DatabaseStage stage;
+	
+	/** The servant locator that serves every client manager, or null to activate
+	 *  a servant per client */
+	protected ClientManagerLocator locator;
+	
+	/** The servant activator that evicts idle client managers, or null to keep them
+	 *  until their clients close them */
+	protected ClientManagerActivator activator;
+	
+	/** Encodes the lots for the compact replies, shared by every client manager */
+	protected AvailabilityEncoder lotsEncoder = new AvailabilityEncoder();
 	
-	/** Our database manager instance */
-	protected DatabaseManager databaseManager;
+	/** Pushes lot availability to the clients that subscribed to it */
+	protected AvailabilityPublisher publisher;
 	
 	/**
 	 * Variables for real-time analysis
@@ -31,16 +46,30 @@ public class ClientManagerFactoryImpl extends ClientManagerFactoryPOA
 	/** Size of reply */
 	protected int replySize;
 	
+	/** The padding of the replies, shared by every client manager */
+	protected ReplyPadding replyPadding;
+	
 	/** Logger instance */
 	protected Logger logger;
-	
-	/** Our database poke prepared statement that is used during database pokes */
-	protected PreparedStatement pokeStatement;
 
 	/**
 	 * Creates a new ClientManagerFactoryImpl instance
 	 * @param logger The Logger to write performance data to
 	 * @param replySize The size of the message replies to use
+	 * @param store The parking store that client requests are applied to
+	 */
+	public ClientManagerFactoryImpl(Logger logger, int replySize, ParkingStore store) {
+		this.logger = logger;
+		this.replySize = replySize;
+		this.replyPadding = new ReplyPadding(replySize);
+		this.store = store;
+		this.publisher = new AvailabilityPublisher(store);
+	}
+
+	/**
+	 * Creates a new ClientManagerFactoryImpl instance that keeps everything in the database
+	 * @param logger The Logger to write performance data to
+	 * @param replySize The size of the message replies to use
 	 * @param jdbcURL The JDBC URL to use in the database connection
 	 * @param jdbcUsername The username to use in the database connection
 	 * @param jdbcPassword The password to use in the database connection
@@ -49,14 +78,80 @@ public class ClientManagerFactoryImpl extends ClientManagerFactoryPOA
 	 */
 	public ClientManagerFactoryImpl(Logger logger, int replySize, String jdbcURL,
 			String jdbcUsername, String jdbcPassword) throws SQLException {
-		this.logger = logger;
-		this.replySize = replySize;
-		this.databaseManager = new DatabaseManager(jdbcURL, jdbcUsername, jdbcPassword);
-		
-		// Create a database connection for the poke and create
-		// the prepared statement that will be used during pokes
-		Connection pokeConnection = databaseManager.getConnection();
-		pokeStatement = pokeConnection.prepareStatement("SELECT 1", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		this(logger, replySize, new JdbcParkingStore(jdbcURL, jdbcUsername, jdbcPassword));
+	}
+
+	/**
+	 * Creates a new ClientManagerFactoryImpl instance that keeps everything in the database
+	 * @param logger The Logger to write performance data to
+	 * @param replySize The size of the message replies to use
+	 * @param jdbcURL The JDBC URL to use in the database connection
+	 * @param jdbcUsername The username to use in the database connection
+	 * @param jdbcPassword The password to use in the database connection
+	 * @param useOccupancyEngine True to keep the car counts in an in-memory
+	 * occupancy engine that writes them to the database in the background
+	 * @param journalDirectory The folder of the operation journal that mutating
+	 * operations are recorded in before they reach the database, or null to commit
+	 * them to the database directly. The journal implies the occupancy engine
+	 * @param useGroupCommit True to commit the requests of many clients together
+	 * in shared transactions
+	 * @param topologyRefreshInterval The time in milliseconds between reloads of the
+	 * cached lot topology, or 0 to only reload it when asked to
+	 * @throws SQLException Thrown when a problem prevents a connection
+	 * to the database
+	 * @throws IOException Thrown when the operation journal cannot be opened
+	 */
+	public ClientManagerFactoryImpl(Logger logger, int replySize, String jdbcURL, String jdbcUsername,
+			String jdbcPassword, boolean useOccupancyEngine, String journalDirectory, boolean useGroupCommit,
+			long topologyRefreshInterval) throws SQLException, IOException {
+		this(logger, replySize, new JdbcParkingStore(jdbcURL, jdbcUsername, jdbcPassword, useOccupancyEngine,
+				journalDirectory, useGroupCommit, topologyRefreshInterval));
+	}
+
+	/**
+	 * Sets the database stage that client managers run their parking store calls on.
+	 * Only client managers created afterwards use it
+	 * @param stage The database stage, or null to run the calls on the ORB's threads
+	 */
+	public void setDatabaseStage(DatabaseStage stage) {
+		this.stage = stage;
+	}
+
+	/**
+	 * Serves client managers through a servant locator instead of activating a
+	 * servant per client. Only client managers created afterwards are located
+	 * @param parent The POA to create the client managers' POA under
+	 * @param persistent True for client manager references that outlive the server,
+	 * which needs the ORB to serve on a fixed port
+	 * @throws Exception Thrown when the client managers' POA cannot be created
+	 */
+	public void locateServants(POA parent, boolean persistent) throws Exception {
+		this.locator = new ClientManagerLocator(this, parent, persistent);
+	}
+
+	/**
+	 * Activates client managers through a servant activator that evicts the ones that
+	 * have gone idle and reactivates them when they are used again. Only client
+	 * managers created afterwards are evicted
+	 * @param parent The POA to create the client managers' POA under
+	 * @param idleTimeout The time in milliseconds after which an unused client manager
+	 * is evicted
+	 * @throws Exception Thrown when the client managers' POA cannot be created
+	 */
+	public void evictIdleServants(POA parent, long idleTimeout) throws Exception {
+		this.activator = new ClientManagerActivator(this, parent, idleTimeout);
+	}
+
+	/**
+	 * Makes a parking store call on the database stage, or on this thread if there
+	 * is no stage
+	 * @param task The call
+	 * @return The call's result
+	 * @throws ServiceUnavailableException Thrown when the store fails or the database
+	 * stage turns the call away
+	 */
+	protected <T> T runStoreCall(DatabaseStage.Task<T> task) throws ServiceUnavailableException {
+		return stage != null ? stage.execute(null, task) : task.run();
 	}
 
 	/**
@@ -68,7 +163,17 @@ public class ClientManagerFactoryImpl extends ClientManagerFactoryPOA
      */
 	public ClientManager getClientManager(String clientHostname) throws ServiceUnavailableException
 	{
-		ClientManagerImpl impl = new ClientManagerImpl(databaseManager, clientHostname, logger, replySize);
+		if (locator != null) {
+			ClientSession session = runStoreCall(new DatabaseStage.Task<ClientSession>() {
+				public ClientSession run() throws ServiceUnavailableException {
+					return store.createSession();
+				}
+			});
+			return locator.getReference(session, clientHostname);
+		}
+		ClientManagerImpl impl = new ClientManagerImpl(this, clientHostname);
+		if (activator != null)
+			return activator.activate(impl, clientHostname);
 		try {
   		    return ClientManagerHelper.narrow(_poa().servant_to_reference(impl));
 		} catch (Exception e) {
@@ -87,10 +192,24 @@ public class ClientManagerFactoryImpl extends ClientManagerFactoryPOA
      * some other reason prevents the client manager from being retrieved successfully
      * @return The existing client manager instance for an existing client
      */
-	public ClientManager getExistingClientManager(int clientID, String clientHostname)
+	public ClientManager getExistingClientManager(final int clientID, String clientHostname)
 	    throws ServiceUnavailableException, InvalidClientException
 	{
-		ClientManagerImpl impl = new ClientManagerImpl(databaseManager, clientID, clientHostname, logger, replySize);
+		// Reload the session even if it is cached, since the client might have been
+		// served by another server since
+		if (locator != null) {
+			ClientSession session = runStoreCall(new DatabaseStage.Task<ClientSession>() {
+				public ClientSession run() throws ServiceUnavailableException {
+					return store.loadSession(clientID);
+				}
+			});
+			if (session == null)
+				throw new InvalidClientException();
+			return locator.getReference(session, clientHostname);
+		}
+		ClientManagerImpl impl = new ClientManagerImpl(this, clientID, clientHostname);
+		if (activator != null)
+			return activator.activate(impl, clientHostname);
 		try {
   		    return ClientManagerHelper.narrow(_poa().servant_to_reference(impl));
 		} catch (Exception e) {
@@ -99,6 +218,39 @@ public class ClientManagerFactoryImpl extends ClientManagerFactoryPOA
 		}
 	}
 	
+	/**
+	 * Subscribes a client's callback object to the availability of some lots, which
+	 * the server then pushes to it instead of the client polling for it
+	 * @param listener The callback object
+	 * @param lots The IDs of the lots, or none for every lot
+	 * @param minInterval The shortest time in milliseconds between two pushes
+	 * @return The ID of the subscription
+	 * @throws ServiceUnavailableException Thrown if the lots cannot be read
+	 */
+	public int subscribe(AvailabilityListener listener, int[] lots, int minInterval) throws ServiceUnavailableException
+	{
+		int subscriptionID = publisher.subscribe(listener, lots, minInterval);
+		System.out.println("Availability subscription " + subscriptionID + " made for "
+				+ (lots.length == 0 ? "every lot" : lots.length + " lots"));
+		return subscriptionID;
+	}
+	
+	/**
+	 * Cancels an availability subscription
+	 * @param subscriptionID The ID of the subscription
+	 */
+	public void unsubscribe(int subscriptionID) {
+		publisher.unsubscribe(subscriptionID);
+	}
+	
+	/**
+	 * Returns the publisher that pushes lot availability to subscribers
+	 * @return The availability publisher
+	 */
+	public AvailabilityPublisher getPublisher() {
+		return publisher;
+	}
+	
 	/**
      * Pokes the server to see if it is still alive and that it can still
      * communicate with the database
@@ -106,27 +258,15 @@ public class ClientManagerFactoryImpl extends ClientManagerFactoryPOA
      * connection is not working
      */
 	public void poke() throws ServiceUnavailableException {
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{
-			try
-			{
-				// Attempt to run the poke query
-				pokeStatement.execute();
-				
-				// Get the result set and immediately close it
-				pokeStatement.getResultSet().close();
-				return;
-			}
-			catch (SQLException e)
-			{	numTries++;
-			}
-		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("ClientManagerFactoryImpl-poke(): Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		throw new ServiceUnavailableException("Could not create connection.");
+		store.poke();
+	}
+
+	/**
+	 * Reloads the parking store's lot topology so that lots and levels added
+	 * since the last reload are served
+	 */
+	public void refreshTopology() {
+		store.refreshTopology();
 	}
 
 	/**
@@ -135,8 +275,7 @@ public class ClientManagerFactoryImpl extends ClientManagerFactoryPOA
      * primarily for fault injection
      */
 	public void hoseDatabaseConnection() {
-		databaseManager.hoseConnection();
-		System.out.println("Database connection hosed");
+		store.hose();
 	}
 	
 	/**
@@ -152,6 +291,19 @@ public class ClientManagerFactoryImpl extends ClientManagerFactoryPOA
 			System.err.println("Recent log data might be permanently lost");
 		}
 		System.out.println("Logs flushed to disk.");
+		
+		// Make the applied requests durable too
+		store.fence();
+		store.printStatistics();
+		if (stage != null)
+			stage.printStatistics();
+		if (locator != null)
+			System.out.println("Servant locator: " + locator.getSessions().size() + " client sessions in "
+					+ locator.getSessions().getOffHeapBytes() / 1024 + "KB off the heap");
+		if (activator != null)
+			activator.printStatistics();
+		if (publisher.isStarted())
+			publisher.printStatistics();
 	}
 	
 	/**
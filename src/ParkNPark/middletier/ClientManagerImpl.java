@@ -1,23 +1,24 @@
 package ParkNPark.middletier;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.sql.Types;
+import org.omg.CORBA.BAD_PARAM;
+import org.omg.CORBA.portable.InputStream;
+import org.omg.CORBA.portable.OutputStream;
+import org.omg.CORBA.portable.ResponseHandler;
 
 import ParkNPark.common.LogEntry;
 import ParkNPark.common.Logger;
 import ParkNPark.interfaces.AlreadyInLotException;
 import ParkNPark.interfaces.AtBottomLevelException;
 import ParkNPark.interfaces.AtTopLevelException;
+import ParkNPark.interfaces.ClientManager;
 import ParkNPark.interfaces.ClientManagerPOA;
+import ParkNPark.interfaces.ClientOperation;
 import ParkNPark.interfaces.InvalidClientException;
 import ParkNPark.interfaces.LotFullException;
 import ParkNPark.interfaces.LotNotFoundException;
 import ParkNPark.interfaces.NotInLotException;
 import ParkNPark.interfaces.NotOnExitLevelException;
+import ParkNPark.interfaces.OperationResult;
 import ParkNPark.interfaces.PaddedInteger;
 import ParkNPark.interfaces.PaddedIntegerSeq;
 import ParkNPark.interfaces.PaddedVoid;
@@ -25,47 +26,38 @@ import ParkNPark.interfaces.ServiceUnavailableException;
 
 /**
  * Server object that will manage communication between the client
- * and the database.
+ * and the server's parking store. The client's state is cached in a
+ * session that the store keeps up to date; the store's outcome codes
+ * are turned into the client's exceptions here
  */
 public class ClientManagerImpl extends ClientManagerPOA
 {
-	/** Maximum number of attempts when trying to execute commends on database */
-	protected static final int MAX_ATTEMPTS = 3;
+	/** The parking store that the client's requests are applied to */
+	protected ParkingStore store;
 	
-	/** Size of an intger variable */
-	protected static int INTEGER_SIZE = 4;
+	/** The database stage that parking store calls run on, or null to run them on
+	 *  the ORB's thread */
+	protected DatabaseStage stage;
 	
-	/** Byte array used to pad integer variables */
-	protected byte[] integerPadding;
+	/** Told of the lots whose car counts this client manager changes */
+	protected AvailabilityPublisher publisher;
 	
-	/** PaddedVoid instance for padded void returns */
-	protected PaddedVoid paddedVoid;
+	/** Encodes the lots for getLotsCompact(), shared by every client manager of the server */
+	protected AvailabilityEncoder lotsEncoder;
 	
-	/** Flags used to print out the status of lots and levels */
-	protected static final boolean PRINT_LOTS_STATUS = false;
-	protected static final boolean PRINT_LEVELS_STATUS = false;
+	/** The client's ID, sequence number and position, cached */
+	protected ClientSession session;
 	
-	/** Our database manager instance */
-	protected DatabaseManager databaseManager;
+	/** Whether or not this client manager has been closed */
+	protected volatile boolean closed;
 	
-	/** Client's ID used for fault-tolerance */
-	protected int clientID;
+	/** The System.nanoTime() of this servant's latest request, by which the servant
+	 *  activator tells idle servants */
+	protected volatile long lastUsed = System.nanoTime();
 	
-	/** Client's current operation sequence number used for fault-tolerance */
-	protected int seq;
-	
-	/** Lot that client is in */
-	protected int lot;
-	
-	/** Level that client is in */
-	protected int level;
-	
-	/** Connection to the database */
-	protected Connection conn;
-	
-	/** Statements used for duplicate message detection */
-	protected PreparedStatement checkDuplicate;
-	protected PreparedStatement updateSequence;
+	/** The servant locator that binds this servant to each request's client, or null
+	 *  if this servant serves one client of its own */
+	protected ClientManagerLocator locator;
 	
 	/**
 	 * Variables for real-time analysis
@@ -74,8 +66,8 @@ public class ClientManagerImpl extends ClientManagerPOA
 	/** Client's hostname */
 	protected String clientHostname;
 	
-	/** Size of replies */
-	protected int replySize;
+	/** Builds the padded replies, shared by every client manager of the server */
+	protected ReplyPadding replyPadding;
 	
 	/** Our Logger instance */
 	protected Logger logger;
@@ -83,197 +75,105 @@ public class ClientManagerImpl extends ClientManagerPOA
 	/**
 	 * Create a client manager for an existing client that will hold
 	 * information specific to the client.
-	 * @param databaseManager The database manager to use in this client manager
+	 * @param factory The client manager factory whose parking store, logger and reply size to use
 	 * @param clientID The ID of the client to restore this ClientManager instance from
 	 * @param clientHostname The hostname of the client
-	 * @param logger The Logger object to log performance data to
-	 * @param replySize The size of the method return values to use for the current test
-	 * @throws ServiceUnavailableException Thrown when a database exception prevented the client
+	 * @throws ServiceUnavailableException Thrown when a store failure prevented the client
 	 * manager from being created successfully
 	 * @throws InvalidClientException Thrown when the given client ID does not exist in
-	 * the database
+	 * the parking store
 	 */
-	public ClientManagerImpl(DatabaseManager databaseManager, int clientID, String clientHostname,
-			                 Logger logger, int replySize) 
+	public ClientManagerImpl(ClientManagerFactoryImpl factory, final int clientID, String clientHostname) 
 			                throws ServiceUnavailableException, InvalidClientException
 	{
-		//LogEntry logEntry = logger.beginLogEntry("ClientManagerImpl", clientHostname);
-		
-		// Setup database connection
-		this.databaseManager = databaseManager;
-		setupDatabaseConn();
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{	try
-			{	// Check if valid client id
-				PreparedStatement ps = conn.prepareStatement("SELECT Seq, LotID, Level FROM Client WHERE ClientID = ?");
-				ps.setInt(1, clientID);
-				//logEntry.setProbeDbIn();
-				ResultSet rs = null;
-				try
-				{	rs = ps.executeQuery();
-					//logEntry.setProbeDbOut();
-				}
-				catch (SQLException e)
-				{	//logEntry.setProbeDbOut();
-					e.printStackTrace();
-				}
-				
-				if (rs.next())
-				{	// Store client's id and sequence number
-					this.clientID = clientID;
-					this.seq = rs.getInt("Seq");
-					this.lot = rs.getInt("LotID");
-					if (rs.wasNull())
-						this.lot = -1;
-					this.level = rs.getInt("Level");
-					if (rs.wasNull())
-						this.level = -1;
-					rs.close();
-					
-					// Set up the real-time probes
-					setupProbes(clientHostname, logger, replySize);
-					//logger.endLogEntry(logEntry);
-					return;
-				}
-				else
-				{	//logger.endLogEntry(logEntry);
-					throw new InvalidClientException();
-				}
+		this.store = factory.store;
+		this.stage = factory.stage;
+		this.publisher = factory.publisher;
+		this.lotsEncoder = factory.lotsEncoder;
+		this.session = callStore(null, new DatabaseStage.Task<ClientSession>() {
+			public ClientSession run() throws ServiceUnavailableException {
+				return store.loadSession(clientID);
 			}
-			catch (SQLException e)
-			{	try
-				{	conn.rollback();
-					numTries++;
-				}
-				catch (SQLException se)
-				{	//logger.endLogEntry(logEntry);
-					throw new ServiceUnavailableException("Could not rollback when creating existing client.");
-				}
-			}
-		}
-	
-		// If max attempts exceeded, throw exception
-		System.err.println("ClientManagerImpl-158: Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		//logger.endLogEntry(logEntry);
-		throw new ServiceUnavailableException("Could not create existing client.");
+		});
+		if (session == null)
+			throw new InvalidClientException();
+		
+		// Set up the real-time probes
+		setupProbes(clientHostname, factory.logger, factory.replyPadding);
 	}
 	
 	/**
 	 * Create a client manager for a new client that will hold 
 	 * information specific to the client.
-	 * @param databaseManager The database manager to use in this client manager
+	 * @param factory The client manager factory whose parking store, logger and reply size to use
 	 * @param clientHostname The hostname of the client
-	 * @param logger The Logger object to log performance data to
-	 * @param replySize The size of the method return values to use for the current test
-	 * @throws ServiceUnavailableException Thrown when a database exception prevented the client
+	 * @throws ServiceUnavailableException Thrown when a store failure prevented the client
 	 * manager from being created successfully
 	 */
-	public ClientManagerImpl(DatabaseManager databaseManager, String clientHostname, Logger logger, int replySize) 
+	public ClientManagerImpl(ClientManagerFactoryImpl factory, String clientHostname) 
 			                throws ServiceUnavailableException
 	{
-		// Setup database connection
-		this.databaseManager = databaseManager;
-		setupDatabaseConn();
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{	try
-			{	// Create a new client id
-				Statement stmt = conn.createStatement();
-				stmt.executeUpdate("INSERT INTO Client (Seq, LotID, Level) VALUES(0, null, null)");
-				ResultSet rs = stmt.executeQuery("SELECT last_insert_id() ClientID");
-				if (rs.next())
-				{	this.clientID = rs.getInt("ClientID");
-					this.seq = 0;
-					this.lot = -1;
-					this.level = -1;
-					conn.commit();
-					
-					// Set up the real-time probes
-					setupProbes(clientHostname, logger, replySize);
-					return;
-				}
-				else
-				{	numTries++;
-				}
+		this.store = factory.store;
+		this.stage = factory.stage;
+		this.publisher = factory.publisher;
+		this.lotsEncoder = factory.lotsEncoder;
+		this.session = callStore(null, new DatabaseStage.Task<ClientSession>() {
+			public ClientSession run() throws ServiceUnavailableException {
+				return store.createSession();
 			}
-			catch (SQLException e)
-			{	try
-				{	conn.rollback();
-					numTries++;
-				}
-				catch (SQLException se)
-				{	throw new ServiceUnavailableException("Could not rollback when creating "
-						+ "new client id");
-				}
-			}
-		}
+		});
 		
-		// If max attempts exceeded, throw exception
-		System.err.println("ClientManagerImpl-215: Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		throw new ServiceUnavailableException("Could not create new client id.");
+		// Set up the real-time probes
+		setupProbes(clientHostname, factory.logger, factory.replyPadding);
 	}
 	
 	/**
-	 * Set up the database connection
-	 * @throws ServiceUnavailableException Thrown if a problem came up while connecting to the database server
-	 * or setting it up after connecting
+	 * Create a client manager servant that a servant locator binds to the client of
+	 * each request it serves
+	 * @param factory The client manager factory whose parking store, logger and reply padding to use
+	 * @param locator The servant locator that binds the servant
 	 */
-	protected void setupDatabaseConn() throws ServiceUnavailableException
+	public ClientManagerImpl(ClientManagerFactoryImpl factory, ClientManagerLocator locator)
 	{
-		// Retry on failed attempts
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{	try
-			{
-				// Connect to the database
-				conn = databaseManager.getConnection();
-				
-				// Turn off auto-commit, enabling transaction control
-				conn.setAutoCommit(false);
-				
-				// Set up prepared statements
-				this.checkDuplicate = conn.prepareStatement("SELECT Seq FROM Client WHERE ClientID = ? AND Seq >= ?");
-				this.updateSequence = conn.prepareStatement(
-						"UPDATE Client SET Seq = ?, LotID = ?, Level = ? WHERE ClientID = ?");
-				
-				return;
-			} 
-			catch (SQLException e) 
-			{	numTries++;
-			}
-		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("ClientManagerImpl-250: Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		throw new ServiceUnavailableException("Could not create connection.");
+		this.store = factory.store;
+		this.stage = factory.stage;
+		this.publisher = factory.publisher;
+		this.lotsEncoder = factory.lotsEncoder;
+		this.locator = locator;
+		this.session = new ClientSession(0, 0, -1, -1);
+		setupProbes(null, factory.logger, factory.replyPadding);
+	}
+	
+	/**
+	 * Binds a located servant to the client of the request that it is about to serve,
+	 * whose session the locator has read into this servant's session
+	 * @param clientHostname The hostname of the client, or null after the request
+	 */
+	protected void bind(String clientHostname) {
+		this.clientHostname = clientHostname;
+	}
+	
+	/**
+	 * Dispatches a request to this servant, noting when it arrived
+	 */
+	public OutputStream _invoke(String method, InputStream in, ResponseHandler rh)
+	{
+		lastUsed = System.nanoTime();
+		return super._invoke(method, in, rh);
 	}
 	
 	/**
 	 * Setup probes for real-time analysis
-	 * @param clientHostname
-	 * @param numClients
-	 * @param interRequestTime
-	 * @param replySize
-	 * @param serverHostname
+	 * @param clientHostname The hostname of the client
+	 * @param logger The Logger to write performance data to
+	 * @param replyPadding The padding of the replies
 	 */
-	protected void setupProbes(String clientHostname, Logger logger, int replySize)
+	protected void setupProbes(String clientHostname, Logger logger, ReplyPadding replyPadding)
 	{
 		// Keep track of real-time analysis variables
 		this.clientHostname = clientHostname;
-		this.replySize = replySize;
+		this.replyPadding = replyPadding;
 		this.logger = logger;
-		
-		// Create byte array for integer padding
-		if (this.replySize > INTEGER_SIZE)
-		    this.integerPadding = new byte[this.replySize - INTEGER_SIZE];
-		else
-			this.integerPadding = new byte[0];
-		
-		// Create the PaddedVoid instance for void padding
-		this.paddedVoid = new PaddedVoid(new byte[this.replySize]);
 	}
 
 	/**
@@ -285,33 +185,26 @@ public class ClientManagerImpl extends ClientManagerPOA
      */
 	public void closeClientManager() throws ServiceUnavailableException 
 	{
-		// No need to close connection if it's already closed
-		if (conn == null)
+		// A located client manager has no servant of its own to deactivate; the
+		// client's cached session is all there is to release
+		if (locator != null) {
+			locator.forget(session.clientID);
 			return;
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{	try
-			{	conn.close();
-				conn = null;
-				
-				// Stop serving this object now that it is closed
-				try 
-				{	_poa().deactivate_object(_poa().servant_to_id(this));
-				} 
-				catch (Exception e) 
-				{	System.err.println("CORBA exception while closing the client manager: " + e.getClass().getName());
-				}
-				return;
-			}
-			catch(SQLException e)
-			{	numTries++;
-			}
 		}
 		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		throw new ServiceUnavailableException("Could not close database connection.");
+		// No need to close if it's already closed; the parking store holds
+		// nothing for a client manager, so there is nothing else to release
+		if (closed)
+			return;
+		closed = true;
+		
+		// Stop serving this object now that it is closed
+		try
+		{	_poa().deactivate_object(_poa().servant_to_id(this));
+		}
+		catch (Exception e)
+		{	System.err.println("CORBA exception while closing the client manager: " + e.getClass().getName());
+		}
 	}
 
     /**
@@ -326,120 +219,22 @@ public class ClientManagerImpl extends ClientManagerPOA
      * other reason prevents the car from entering the lot
      * @return An array of level numbers that have available spaces
      */
-	public PaddedIntegerSeq enterLot(int seq, int lot) throws AlreadyInLotException, LotNotFoundException, LotFullException, 
+	public PaddedIntegerSeq enterLot(final int seq, final int lot) throws AlreadyInLotException, LotNotFoundException, LotFullException, 
 		ServiceUnavailableException 
 	{
 		LogEntry logEntry = logger.beginLogEntry("enterLot", clientHostname);
-		printLotsStatus("Before entering lot", seq);
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{
-			try
-			{	// Check if lot is valid
-				PreparedStatement lotInfo = conn.prepareStatement("SELECT CarCount, Capacity FROM Lot WHERE ID = ?");
-				lotInfo.setInt(1, lot);
-				ResultSet rs = lotInfo.executeQuery();
-				
-				if (rs.next())
-				{	// Check if request already completed
-					if (alreadyCompleted(seq))
-					{	System.out.println("Request already completed (in enter lot)");
-					}
-					else
-					{	// If the client is already in a lot, then throw an AlreadyInLotException now
-						if (this.lot != -1) {
-							logger.endLogEntry(logEntry);
-							throw new AlreadyInLotException(this.lot);
-						}
-					
-						// Check if lot is full
-						int carCount = rs.getInt("CarCount");
-						int capacity = rs.getInt("Capacity");
-						rs.close();
-					
-						if (carCount < capacity)
-						{
-							// Increment the lot's car count
-							PreparedStatement enterLot = conn.prepareStatement(
-								"UPDATE Lot SET CarCount = CarCount + 1 WHERE ID = ?");
-							enterLot.setInt(1, lot);
-							if (enterLot.executeUpdate() != 1) {
-								conn.rollback();
-								logger.endLogEntry(logEntry);
-								throw new ServiceUnavailableException("Update on Lot table failed unexpectedly");
-							}
-	
-							// Increment the entry level's car count
-							PreparedStatement enterLevel = conn.prepareStatement(
-								"UPDATE Level SET CarCount = CarCount + 1 WHERE LotID = ? AND Level = ?");
-							enterLevel.setInt(1, lot);
-							enterLevel.setInt(2, 1);
-							if (enterLevel.executeUpdate() != 1) {
-								conn.rollback();
-								logger.endLogEntry(logEntry);
-								throw new ServiceUnavailableException("Could not add car to entry level; perhaps the entry level does not exist?");
-							}
-						}
-						else
-						{
-							logger.endLogEntry(logEntry);
-							throw new LotFullException();
-						}
-					}
-						
-					// Get list of available levels
-					PreparedStatement availableLevels = conn.prepareStatement(
-						"SELECT Level FROM Level WHERE LotID = ? AND CarCount < Capacity ORDER BY Level");
-					availableLevels.setInt(1, lot);
-					rs = availableLevels.executeQuery();
-					
-					rs.last();
-					int[] availLevels = new int[rs.getRow()];
-					int i = 0;
-					rs.beforeFirst();
-					while (rs.next())
-						availLevels[i++] = rs.getInt("Level");
-					rs.close();
-					
-					// Update client data and commit the changes
-					updateClientData(seq, lot, 1);
-					conn.commit();
-					
-					// With the changes committed, update our cached values
-					this.seq = seq;
-					this.lot = lot;
-					this.level = 1;
-					
-					printLotsStatus("After entering lot", seq);
-					printLevelsStatus("After entering lot", seq);
-					
-					logger.endLogEntry(logEntry);
-					return padIntegerArray(availLevels);
-				}
-				else
-				{
-					logger.endLogEntry(logEntry);
-					throw new LotNotFoundException();
-				}
-			}
-			catch (SQLException e)
-			{	try
-				{	conn.rollback();
-					numTries++;
-				}
-				catch (SQLException se)
-				{
-					logger.endLogEntry(logEntry);
-					throw new ServiceUnavailableException("Could not rollback when entering lot.");
-				}
-			}
+		try
+		{	int outcome = callStore(logEntry, new DatabaseStage.Task<Integer>() {
+				public Integer run() throws ServiceUnavailableException {
+					return enter(seq, lot);
+				}
+			});
+			checkEnterLot(outcome);
+			return padIntegerArray(session.availableLevels);
+		}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		logger.endLogEntry(logEntry);
-		throw new ServiceUnavailableException("Could not enter lot.");
 	}
 
     /**
@@ -451,103 +246,21 @@ public class ClientManagerImpl extends ClientManagerPOA
      * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some
      * other reason prevents the car from exiting the lot
      */
-	public PaddedVoid exitLot(int seq) throws NotInLotException, NotOnExitLevelException, ServiceUnavailableException
+	public PaddedVoid exitLot(final int seq) throws NotInLotException, NotOnExitLevelException, ServiceUnavailableException
 	{
 		LogEntry logEntry = logger.beginLogEntry("exitLot", clientHostname);
-		printLotsStatus("Before exiting lot", seq);
-		printLevelsStatus("Before exiting lot", seq);
-		
-		// Check if request already completed
-		if (alreadyCompleted(seq))
-		{	System.out.println("Request already completed (in exit lot)");
-			printLotsStatus("After exiting lot", seq);
-			printLevelsStatus("After exiting lot", seq);
-			logger.endLogEntry(logEntry);
+		try
+		{	int outcome = callStore(logEntry, new DatabaseStage.Task<Integer>() {
+				public Integer run() throws ServiceUnavailableException {
+					return exit(seq);
+				}
+			});
+			checkExitLot(outcome);
 			return padVoid();
 		}
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{
-			try
-			{   // If we are not in a lot, then throw an exception
-				if (lot == -1) {
-					logger.endLogEntry(logEntry);
-					throw new NotInLotException();
-				}
-				
-				// If we are not on an exit level, then throw an exception
-				if (level != 1) {
-					logger.endLogEntry(logEntry);
-					throw new NotOnExitLevelException(lot, level);
-				}
-				
-				// Get car count of lot
-				PreparedStatement lotCarCount = conn.prepareStatement("SELECT CarCount FROM Lot WHERE ID = ?");
-				lotCarCount.setInt(1, this.lot);
-				ResultSet rs = lotCarCount.executeQuery();
-				rs.next();
-				int count = rs.getInt("CarCount");
-				rs.close();
-				
-				// If lot car count is not zero, decrement count
-				if (count > 0)
-				{	PreparedStatement exitLot = conn.prepareStatement(
-						"UPDATE Lot SET CarCount = CarCount - 1 WHERE ID = ?");
-					exitLot.setInt(1, lot);
-					exitLot.execute();
-				}
-				
-				// Get car count of level
-				PreparedStatement levelCarCount = conn.prepareStatement("SELECT CarCount FROM Level WHERE LotID = ? AND Level = ?");
-				levelCarCount.setInt(1, lot);
-				levelCarCount.setInt(2, 1);
-				rs = levelCarCount.executeQuery();
-				rs.next();
-				count = rs.getInt("CarCount");
-				rs.close();
-				
-				// If level car count is not zero, decrement count
-				if (count > 0)
-				{	PreparedStatement exitLevel = conn.prepareStatement(
-						"UPDATE Level SET CarCount = CarCount - 1 WHERE LotID = ? AND Level = ?");
-					exitLevel.setInt(1, lot);
-					exitLevel.setInt(2, 1);
-					exitLevel.execute();
-				}
-				
-				printLotsStatus("After exiting lot", seq);
-				printLevelsStatus("After exiting lot", seq);
-				
-				// Update client data and commit the changes
-				updateClientData(seq, -1, -1);
-				conn.commit();
-				
-				// With the changes committed, update our cached values
-				this.seq = seq;
-				this.lot = -1;
-				this.level = -1;
-				
-				logger.endLogEntry(logEntry);
-				return padVoid();
-			}
-			catch (SQLException e)
-			{	try
-				{	conn.rollback();
-					numTries++;
-				}
-				catch (SQLException se)
-				{
-					logger.endLogEntry(logEntry);
-					throw new ServiceUnavailableException("Could not rollback when exiting lock.");
-				}
-			}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		logger.endLogEntry(logEntry);
-		throw new ServiceUnavailableException("Could not exit lot.");	
 	}
 
 	/**
@@ -562,7 +275,7 @@ public class ClientManagerImpl extends ClientManagerPOA
 		// Return the client ID
 	    LogEntry logEntry = logger.beginLogEntry("getClientID", clientHostname);
 	    logger.endLogEntry(logEntry);
-	    return padInteger(this.clientID);
+	    return padInteger(session.clientID);
 	}
 
 	/**
@@ -577,14 +290,14 @@ public class ClientManagerImpl extends ClientManagerPOA
 		LogEntry logEntry = logger.beginLogEntry("getCurrentLevel", clientHostname);
 		
 		// If we are not in a lot, then throw an exception
-		if (lot == -1) {
+		if (session.lot == -1) {
 			logger.endLogEntry(logEntry);
 			throw new NotInLotException();
 		}
 		
 		// Return the current level
 		logger.endLogEntry(logEntry);
-		return padInteger(this.level);
+		return padInteger(session.level);
 	}
 
 	/**
@@ -596,51 +309,17 @@ public class ClientManagerImpl extends ClientManagerPOA
 	public PaddedIntegerSeq getLots() throws ServiceUnavailableException
 	{
 		LogEntry logEntry = logger.beginLogEntry("getLots", clientHostname);
-		printLotsStatus("When getting lots", seq);
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{
-			try
-			{	// Get list of available lots
-				PreparedStatement availableLots = conn.prepareStatement(
-					"SELECT ID FROM Lot ORDER BY ID");
-				logEntry.setProbeDbIn();
-				ResultSet rs = availableLots.executeQuery();
-				
-				rs.last();				
-				int[] lots = new int[rs.getRow()];
-				rs.beforeFirst();
-				
-				int i = 0;
-				while (rs.next())
-					lots[i++] = rs.getInt("ID");
-				rs.close();
-				
-				conn.commit();
-				
-				logEntry.setProbeDbOut();
-				
-				logger.endLogEntry(logEntry);
-				return padIntegerArray(lots);
-			}
-			catch (SQLException e)
-			{	try
-				{	conn.rollback();
-					numTries++;
-				}
-				catch (SQLException se)
-				{
-					logger.endLogEntry(logEntry);
-					throw new ServiceUnavailableException("Could not rollback when getting lots.");
+		try
+		{	int[] lots = callStore(logEntry, new DatabaseStage.Task<int[]>() {
+				public int[] run() throws ServiceUnavailableException {
+					return store.getLots();
 				}
-			}
+			});
+			return padIntegerArray(lots);
+		}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		logger.endLogEntry(logEntry);
-		throw new ServiceUnavailableException("Could not get lots.");	
 	}
 
 	/**
@@ -653,36 +332,13 @@ public class ClientManagerImpl extends ClientManagerPOA
 	public PaddedInteger getMaxLevel() throws NotInLotException, ServiceUnavailableException 
 	{
 		LogEntry logEntry = logger.beginLogEntry("getMaxLevel", clientHostname);
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{
-			try
-			{	// If we are not in a lot, then throw an exception
-				if (lot == -1) {
-					logger.endLogEntry(logEntry);
-					throw new NotInLotException();
-				}
-
-				PreparedStatement maxLevelStmt = conn.prepareStatement("SELECT MAX(Level) FROM Level WHERE LotID = ?");
-				maxLevelStmt.setInt(1, this.lot);
-				ResultSet rs = maxLevelStmt.executeQuery();
-				rs.next();
-				int maxLevel = rs.getInt(1);
-				rs.close();
-				
-				logger.endLogEntry(logEntry);
-				return padInteger(maxLevel);
-			}
-			catch (SQLException e)
-			{	numTries++;
-			}
+		try
+		{	int[] levels = getLevels(logEntry);
+			return padInteger(levels.length > 0 ? levels[levels.length - 1] : 0);
+		}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		logger.endLogEntry(logEntry);
-		throw new ServiceUnavailableException("Could not get max level.");
 	}
 
 	/**
@@ -695,35 +351,13 @@ public class ClientManagerImpl extends ClientManagerPOA
 	public PaddedInteger getMinLevel() throws NotInLotException, ServiceUnavailableException 
 	{
 		LogEntry logEntry = logger.beginLogEntry("getMinLevel", clientHostname);
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{
-			try
-			{	// If we are not in a lot, then throw an exception
-				if (lot == -1) {
-					logger.endLogEntry(logEntry);
-					throw new NotInLotException();
-				}
-				
-				PreparedStatement minLevelStmt = conn.prepareStatement("SELECT MIN(Level) FROM Level WHERE LotID = ?");
-				minLevelStmt.setInt(1, this.lot);
-				ResultSet rs = minLevelStmt.executeQuery();
-				rs.next();
-				int minLevel = rs.getInt(1);
-				rs.close();				
-				logger.endLogEntry(logEntry);
-				return padInteger(minLevel);
-			}
-			catch (SQLException e)
-			{	numTries++;
-			}
+		try
+		{	int[] levels = getLevels(logEntry);
+			return padInteger(levels.length > 0 ? levels[0] : 0);
+		}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		logger.endLogEntry(logEntry);
-		throw new ServiceUnavailableException("Could not get min level.");
 	}
 
 	/**
@@ -735,54 +369,22 @@ public class ClientManagerImpl extends ClientManagerPOA
      * some other reason prevents the system from discovering the availability of other lots
      * @return An array of other lots that have availability
      */
-	public PaddedIntegerSeq getOtherLotAvailability(int lot) throws LotNotFoundException, ServiceUnavailableException 
+	public PaddedIntegerSeq getOtherLotAvailability(final int lot) throws LotNotFoundException, ServiceUnavailableException 
 	{
 		LogEntry logEntry = logger.beginLogEntry("getOtherLotAvailability", clientHostname);
-		printLotsStatus("When getting other lot availability", seq);
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{
-			try
-			{	PreparedStatement validLot = conn.prepareStatement("SELECT 'X' FROM Lot WHERE ID = ?");
-				validLot.setInt(1, lot);
-				ResultSet rs = validLot.executeQuery();
-				
-				if (!rs.next()) {
-					rs.close();
-					conn.rollback();
-					logger.endLogEntry(logEntry);
-					throw new LotNotFoundException(lot);
-				}
-				rs.close();
-				
-				PreparedStatement otherLots = conn.prepareStatement("SELECT ToLotID FROM LotDistance D "
-						+ "INNER JOIN Lot L ON L.ID=D.ToLotID WHERE FromLotID = ? AND CarCount < Capacity "
-						+ "ORDER BY Distance");
-				otherLots.setInt(1, lot);
-				rs = otherLots.executeQuery();
-				
-				rs.last();
-				int[] otherAvailableLots = new int[rs.getRow()];
-				rs.beforeFirst();
-				
-				int i = 0;
-				while (rs.next())
-					otherAvailableLots[i++] = rs.getInt("ToLotID");
-				rs.close();
-				
-				logger.endLogEntry(logEntry);
-				return padIntegerArray(otherAvailableLots);
-			}
-			catch (SQLException e)
-			{	numTries++;
-			}
+		try
+		{	int[] otherAvailableLots = callStore(logEntry, new DatabaseStage.Task<int[]>() {
+				public int[] run() throws ServiceUnavailableException {
+					return store.getOtherLotAvailability(lot);
+				}
+			});
+			if (otherAvailableLots == null)
+				throw new LotNotFoundException(lot);
+			return padIntegerArray(otherAvailableLots);
+		}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		logger.endLogEntry(logEntry);
-		throw new ServiceUnavailableException("Could not get other lot availability.");
 	}
 
 	/**
@@ -793,101 +395,21 @@ public class ClientManagerImpl extends ClientManagerPOA
      * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some other reason prevents the car from moving to the lower level
      * @return The level number that the client's car is now on
      */
-	public PaddedInteger moveDownLevel(int seq) throws NotInLotException, AtBottomLevelException, ServiceUnavailableException
+	public PaddedInteger moveDownLevel(final int seq) throws NotInLotException, AtBottomLevelException, ServiceUnavailableException
 	{
 		LogEntry logEntry = logger.beginLogEntry("moveDownLevel", clientHostname);
-		printLevelsStatus("Before moving down one level", seq);
-		
-		// Check if request already completed
-		if (alreadyCompleted(seq))
-		{	System.out.println("Request already completed (in move down level)");
-			printLevelsStatus("After moving down one level", seq);
-			logger.endLogEntry(logEntry);
-			return padInteger(level);
+		try
+		{	int outcome = callStore(logEntry, new DatabaseStage.Task<Integer>() {
+				public Integer run() throws ServiceUnavailableException {
+					return store.moveLevel(session, seq, -1);
+				}
+			});
+			checkMoveDownLevel(outcome);
+			return padInteger(session.level);
 		}
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{
-			try
-			{	// If we are not in a lot, then throw an exception
-				if (lot == -1) {
-					logger.endLogEntry(logEntry);
-					throw new NotInLotException();
-				}
-
-				// If we are on the bottom level, then throw an exception
-				if (level == 1) {
-					logger.endLogEntry(logEntry);
-					throw new AtBottomLevelException(this.lot, this.level);
-				}
-				
-				// Get car count of level
-				PreparedStatement levelCarCount = conn.prepareStatement("SELECT CarCount FROM Level WHERE LotID=? AND Level=?");
-				levelCarCount.setInt(1, lot);
-				levelCarCount.setInt(2, level);
-				ResultSet rs = levelCarCount.executeQuery();
-				rs.next();
-				int count = rs.getInt("CarCount");
-				rs.close();
-				
-				// If lot car count is not zero, decrement count
-				if (count > 0)
-				{	PreparedStatement exitLevel = conn.prepareStatement(
-						"UPDATE Level SET CarCount = CarCount - 1 WHERE LotID=? AND Level=?");
-				    exitLevel.setInt(1, lot);
-				    exitLevel.setInt(2, level);
-				    exitLevel.execute();
-				}
-				
-				// Decrement the level, but don't update the cached value yet
-				int currLevel = level;
-				currLevel--;
-				
-				// Get car count of level
-				levelCarCount.setInt(2, currLevel);
-				rs = levelCarCount.executeQuery();
-				rs.next();
-				count = rs.getInt("CarCount");
-				rs.close();
-				
-				// Increment the level count
-				PreparedStatement enterLevel = conn.prepareStatement(
-						"UPDATE Level SET CarCount = CarCount + 1 WHERE LotID=? AND Level=?");
-				enterLevel.setInt(1, lot);
-				enterLevel.setInt(2, currLevel);
-				enterLevel.execute();
-				
-				printLevelsStatus("After moving down one level", seq);
-				
-				// Update client data and commit the transaction
-				updateClientData(seq, this.lot, currLevel);
-				conn.commit();
-				
-				// With changes committed, update our cached values
-				this.seq = seq;
-				level = currLevel;
-				
-				logger.endLogEntry(logEntry);
-				return padInteger(level);
-			}
-			catch (SQLException e)
-			{	try
-				{	conn.rollback();
-					numTries++;
-				}
-				catch (SQLException se)
-				{
-					logger.endLogEntry(logEntry);
-					throw new ServiceUnavailableException("Could not rollback when moving down level.");
-				}
-			}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		logger.endLogEntry(logEntry);
-		throw new ServiceUnavailableException("Could not move down level.");	
 	}
 
 	/**
@@ -899,250 +421,408 @@ public class ClientManagerImpl extends ClientManagerPOA
      * other reason prevents the car from moving to the next highest level
      * @return The level number that the client's car is now on
      */
-	public PaddedInteger moveUpLevel(int seq) throws NotInLotException, AtTopLevelException, ServiceUnavailableException
+	public PaddedInteger moveUpLevel(final int seq) throws NotInLotException, AtTopLevelException, ServiceUnavailableException
 	{
 		LogEntry logEntry = logger.beginLogEntry("moveUpLevel", clientHostname);
-		printLevelsStatus("Before moving up one level", seq);
-		
-		// Check if request already completed
-		if (alreadyCompleted(seq))
-		{	System.out.println("Request already completed (in move up level)");
-			printLevelsStatus("After moving up one level", seq);			
-			logger.endLogEntry(logEntry);
-			return padInteger(level);
+		try
+		{	int outcome = callStore(logEntry, new DatabaseStage.Task<Integer>() {
+				public Integer run() throws ServiceUnavailableException {
+					return store.moveLevel(session, seq, 1);
+				}
+			});
+			checkMoveUpLevel(outcome);
+			return padInteger(session.level);
 		}
-		
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{
-			try
-			{   
-				// If we are not in a lot, then throw an exception
-				if (lot == -1) {
-					logger.endLogEntry(logEntry);
-					throw new NotInLotException();
-				}
-
-				// If we are on the top level, then throw an exception
-				PreparedStatement levelQuery = conn.prepareStatement("SELECT MAX(Level) HighestLevel FROM Level WHERE LotID=?");
-				levelQuery.setInt(1, lot);
-				ResultSet rs = levelQuery.executeQuery();
-				rs.next();
-				int maxLevel = rs.getInt("HighestLevel");
-				if (level == maxLevel) {
-					rs.close();
-					conn.rollback();
-					logger.endLogEntry(logEntry);
-					throw new AtTopLevelException(this.lot, this.level);
-				}
-				rs.close();
-				
-				// Increment the level, but don't update the cached value yet
-				int currLevel = level;
-				currLevel++;
-				
-				// Increment the level count of the upper level
-				PreparedStatement enterLevel = conn.prepareStatement(
-						"UPDATE Level SET CarCount = CarCount + 1 WHERE LotID=? AND Level=?");
-				enterLevel.setInt(1, lot);
-				enterLevel.setInt(2, currLevel);
-				enterLevel.execute();
-
-				// Get car count of the lower level
-				PreparedStatement levelCarCount = conn.prepareStatement("SELECT CarCount FROM Level WHERE LotID=? AND Level=?");
-				levelCarCount.setInt(1, lot);
-				levelCarCount.setInt(2, level);
-				rs = levelCarCount.executeQuery();
-				rs.next();
-				int countLowerLevel = rs.getInt("CarCount");
-				rs.close();
-				
-				// If lot car count of the lower level is not zero, decrement count
-				if (countLowerLevel > 0)
-				{	PreparedStatement exitLevel = conn.prepareStatement(
-						"UPDATE Level SET CarCount = CarCount - 1 WHERE LotID=? AND Level=?");
-				    exitLevel.setInt(1, lot);
-				    exitLevel.setInt(2, level);
-				    exitLevel.execute();
-				}
-				printLevelsStatus("After moving up one level", seq);
-				
-				// Update client data and commit the transaction
-				updateClientData(seq, this.lot, currLevel);
-				conn.commit();
-				
-				// With changes committed, update our cached values
-				this.seq = seq;
-				level = currLevel;
-				
-				logger.endLogEntry(logEntry);
-				return padInteger(level);
-			}
-			catch (SQLException e)
-			{	try
-				{	conn.rollback();
-					numTries++;
-				}
-				catch (SQLException se)
-				{
-					logger.endLogEntry(logEntry);
-					throw new ServiceUnavailableException("Could not rollback when moving up level.");
+		finally
+		{	logger.endLogEntry(logEntry);
+		}
+	}
+	
+	/**
+	 * Applies a batch of operations in order in one request and returns the result of
+	 * each. The whole batch is one store call, so it takes one trip through the
+	 * database stage, and the store commits its changes together where it can. Each
+	 * operation that changes the car's position is still deduplicated by its own
+	 * sequence number, so a batch that is delivered again only applies what the first
+	 * delivery did not
+	 * @param operations The operations
+	 * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if
+	 * some other reason prevents an operation from completing; the operations before it
+	 * might have been applied
+	 * @return The result of each operation, in the order of the operations
+	 */
+	public OperationResult[] executeOperations(final ClientOperation[] operations) throws ServiceUnavailableException
+	{
+		// Turn away a batch with an unknown operation before any of it is applied
+		for (ClientOperation operation : operations)
+			if (operation.code < ClientManager.OP_GET_CLIENT_ID || operation.code > ClientManager.OP_GET_MIN_LEVEL)
+				throw new BAD_PARAM("Unknown operation code " + operation.code);
+		
+		LogEntry logEntry = logger.beginLogEntry("executeOperations", clientHostname);
+		try
+		{	return callStore(logEntry, new DatabaseStage.Task<OperationResult[]>() {
+				public OperationResult[] run() throws ServiceUnavailableException {
+					return store.runBatch(session, new DatabaseStage.Task<OperationResult[]>() {
+						public OperationResult[] run() throws ServiceUnavailableException {
+							OperationResult[] results = new OperationResult[operations.length];
+							for (int i = 0; i < operations.length; i++)
+								results[i] = applyOperation(operations[i]);
+							return results;
+						}
+					});
 				}
-			}
+			});
+		}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		logger.endLogEntry(logEntry);
-		throw new ServiceUnavailableException("Could not move up level.");	
 	}
 	
 	/**
-	 * Checks if the current client request has already been completed.
-	 * @param seq
-	 * @return
-	 * @throws ServiceUnavailableException
+	 * Returns the other lots that have availability, nearest first, in the compact
+	 * encoding and without reply padding
+	 * @param lot The lot to get lot distances from
+	 * @throws LotNotFoundException Thrown if the given lot number is not known to the system
+	 * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if
+	 * some other reason prevents the system from discovering the availability of other lots
+	 * @return The other lots that have availability, encoded
 	 */
-	protected boolean alreadyCompleted(int seq) throws ServiceUnavailableException
+	public byte[] getOtherLotAvailabilityCompact(final int lot) throws LotNotFoundException, ServiceUnavailableException
 	{
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{	try
-			{	this.checkDuplicate.setInt(1, this.clientID);
-				this.checkDuplicate.setInt(2, seq);
-				ResultSet rs = this.checkDuplicate.executeQuery();
-				this.checkDuplicate.clearParameters();
-				
-				// Check if new request
-				boolean completed = rs.next();
-				rs.close();
-				return completed;
-			}
-			catch (SQLException e)
-			{	numTries++;
-			}
+		LogEntry logEntry = logger.beginLogEntry("getOtherLotAvailabilityCompact", clientHostname);
+		try
+		{	int[] otherAvailableLots = callStore(logEntry, new DatabaseStage.Task<int[]>() {
+				public int[] run() throws ServiceUnavailableException {
+					return store.getOtherLotAvailability(lot);
+				}
+			});
+			if (otherAvailableLots == null)
+				throw new LotNotFoundException(lot);
+			return AvailabilityEncoder.encode(otherAvailableLots);
+		}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		throw new ServiceUnavailableException("Could not check if request was already completed.");
 	}
 	
 	/**
-	 * Updates the client table, which is used for duplicate detection.
-	 * @param seq
-	 * @param lot
-	 * @param level
-	 * @return
-	 * @throws ServiceUnavailableException
+	 * Returns the valid lot numbers in ascending order, in the compact encoding and
+	 * without reply padding. The store's lot array only changes when the topology
+	 * does, so its encoding is shared until then
+	 * @throws ServiceUnavailableException Thrown if the database cannot be contacted or if some
+	 * other reason prevents the system from discovering the its defined lots
+	 * @return The valid lot numbers, encoded
 	 */
-	protected void updateClientData(int seq, int lot, int level) throws ServiceUnavailableException
+	public byte[] getLotsCompact() throws ServiceUnavailableException
 	{
-		int numTries = 0;
-		while (numTries < MAX_ATTEMPTS)
-		{	try
-			{	this.updateSequence.setInt(1, seq);
-				
-				if (lot == -1)
-					this.updateSequence.setNull(2, Types.INTEGER);
-				else
-					this.updateSequence.setInt(2, lot);
-				
-				if (level == -1)
-					this.updateSequence.setNull(3, Types.INTEGER);
-				else
-					this.updateSequence.setInt(3, level);
-				
-				this.updateSequence.setInt(4, this.clientID);
-				
-				if (this.updateSequence.executeUpdate() != 1) 
-				{	conn.rollback();
-					throw new ServiceUnavailableException("Update on Client table failed unexpectedly");
-				}
-				
-				this.updateSequence.clearParameters();
-				return;
-			}
-			catch (SQLException e)
-			{	numTries++;
-			}
+		LogEntry logEntry = logger.beginLogEntry("getLotsCompact", clientHostname);
+		try
+		{	int[] lots = callStore(logEntry, new DatabaseStage.Task<int[]>() {
+				public int[] run() throws ServiceUnavailableException {
+					return store.getLots();
+				}
+			});
+			return lotsEncoder.encodeUnchanging(lots);
+		}
+		finally
+		{	logger.endLogEntry(logEntry);
 		}
-		
-		// If max attempts exceeded, throw exception
-		System.err.println("Failed to execute commands on database, even after " + MAX_ATTEMPTS + " attempts.");
-		throw new ServiceUnavailableException("Could not check if request was already completed.");
 	}
 	
 	/**
-	 * Print the status of all the lots
-	 * @param message The message to display with the status
-	 * @param seq The client request sequence number
+	 * Applies one operation of a batch to the store on the calling thread
+	 * @param operation The operation
+	 * @return The operation's result, holding its value or the exception that it raised
+	 * @throws ServiceUnavailableException Thrown when the store fails
 	 */
-	protected void printLotsStatus(String message, int seq)
+	protected OperationResult applyOperation(ClientOperation operation) throws ServiceUnavailableException
 	{
-		if (PRINT_LOTS_STATUS)
-		{	try
-			{	PreparedStatement lotsStatus = conn.prepareStatement("SELECT ID, CarCount FROM Lot");
-				ResultSet rs = lotsStatus.executeQuery();
-				
-				System.out.println("=== Lots Status === (" + message + ") for Client " + this.clientID + " Seq " + seq);
-				while (rs.next())
-					System.out.println("Lot: " + rs.getInt("ID") + "\tCarCount: " + rs.getInt("CarCount"));
-				rs.close();
-				System.out.println();
-			}
-			catch (SQLException e)
-			{	System.err.println("Could not print lot status.");
+		try
+		{	switch (operation.code)
+			{	case ClientManager.OP_GET_CLIENT_ID:
+					return result(session.clientID);
+				case ClientManager.OP_ENTER_LOT:
+					checkEnterLot(enter(operation.seq, operation.arg));
+					return new OperationResult(ClientManager.EX_NONE, session.availableLevels);
+				case ClientManager.OP_EXIT_LOT:
+					checkExitLot(exit(operation.seq));
+					return new OperationResult(ClientManager.EX_NONE, ClientSession.NO_LEVELS);
+				case ClientManager.OP_GET_OTHER_LOT_AVAILABILITY:
+					int[] otherAvailableLots = store.getOtherLotAvailability(operation.arg);
+					if (otherAvailableLots == null)
+						throw new LotNotFoundException(operation.arg);
+					return new OperationResult(ClientManager.EX_NONE, otherAvailableLots);
+				case ClientManager.OP_GET_LOTS:
+					return new OperationResult(ClientManager.EX_NONE, store.getLots());
+				case ClientManager.OP_MOVE_UP_LEVEL:
+					int outcome = store.moveLevel(session, operation.seq, 1);
+					checkMoveUpLevel(outcome);
+					return moveResult(operation.seq, outcome);
+				case ClientManager.OP_MOVE_DOWN_LEVEL:
+					outcome = store.moveLevel(session, operation.seq, -1);
+					checkMoveDownLevel(outcome);
+					return moveResult(operation.seq, outcome);
+				case ClientManager.OP_GET_CURRENT_LEVEL:
+					if (session.lot == -1)
+						throw new NotInLotException();
+					return result(session.level);
+				default:
+					if (session.lot == -1)
+						throw new NotInLotException();
+					int[] levels = store.getLevels(session.lot);
+					if (levels == null || levels.length == 0)
+						return result(0);
+					return result(operation.code == ClientManager.OP_GET_MAX_LEVEL ? levels[levels.length - 1] : levels[0]);
 			}
 		}
+		catch (AlreadyInLotException e)
+		{	return new OperationResult(ClientManager.EX_ALREADY_IN_LOT, new int[] { e.lot });
+		}
+		catch (AtBottomLevelException e)
+		{	return new OperationResult(ClientManager.EX_AT_BOTTOM_LEVEL, new int[] { e.lot, e.level });
+		}
+		catch (AtTopLevelException e)
+		{	return new OperationResult(ClientManager.EX_AT_TOP_LEVEL, new int[] { e.lot, e.level });
+		}
+		catch (LotFullException e)
+		{	return new OperationResult(ClientManager.EX_LOT_FULL, new int[] { e.lotCapacity, e.lot });
+		}
+		catch (LotNotFoundException e)
+		{	return new OperationResult(ClientManager.EX_LOT_NOT_FOUND, new int[] { e.lot });
+		}
+		catch (NotInLotException e)
+		{	return new OperationResult(ClientManager.EX_NOT_IN_LOT, ClientSession.NO_LEVELS);
+		}
+		catch (NotOnExitLevelException e)
+		{	return new OperationResult(ClientManager.EX_NOT_ON_EXIT_LEVEL, new int[] { e.lot, e.level });
+		}
 	}
 	
 	/**
-	 * Print the status of all the levels in the current lot
-	 * @param message The message to display with the status
-	 * @param seq The client request sequence number
+	 * Enters the client's car into a lot in the store, telling the availability
+	 * publisher if it did
+	 * @param seq The client's sequence number of the request
+	 * @param lot The ID of the lot
+	 * @return The store's outcome
+	 * @throws ServiceUnavailableException Thrown when the store fails
 	 */
-	protected void printLevelsStatus(String message, int seq)
+	protected int enter(int seq, int lot) throws ServiceUnavailableException
 	{
-		if (PRINT_LEVELS_STATUS)
-		{	try
-			{	PreparedStatement levelsStatus = conn.prepareStatement("SELECT Level, CarCount FROM Level WHERE LotID = ?");
-				levelsStatus.setInt(1, this.lot);
-				ResultSet rs = levelsStatus.executeQuery();
-				
-				System.out.println("=== Levels Status === (" + message + ") for Client " + this.clientID + " Seq " + seq);
-				while (rs.next())
-					System.out.println("Level: " + rs.getInt("Level") + "\tCarCount: " + rs.getInt("CarCount"));
-				rs.close();
-				System.out.println();
-			}
-			catch (SQLException e)
-			{	System.err.println("Could not print levels status.");
+		int outcome = store.enterLot(session, seq, lot);
+		if (outcome == ParkingStore.APPLIED)
+			publisher.changed(lot);
+		return outcome;
+	}
+	
+	/**
+	 * Removes the client's car from its lot in the store, telling the availability
+	 * publisher if it did
+	 * @param seq The client's sequence number of the request
+	 * @return The store's outcome
+	 * @throws ServiceUnavailableException Thrown when the store fails
+	 */
+	protected int exit(int seq) throws ServiceUnavailableException
+	{
+		int lot = session.lot;
+		int outcome = store.exitLot(session, seq);
+		if (outcome == ParkingStore.APPLIED)
+			publisher.changed(lot);
+		return outcome;
+	}
+	
+	/**
+	 * Returns the result of a batch operation that succeeded with one number
+	 * @param value The number
+	 * @return The result
+	 */
+	protected static OperationResult result(int value) {
+		return new OperationResult(ClientManager.EX_NONE, new int[] { value });
+	}
+	
+	/**
+	 * Returns the result of a move in a batch. A move that was applied before, by an
+	 * earlier delivery of the batch, only knows its level if nothing has moved the car
+	 * since; otherwise the car's current level would be a later operation's result
+	 * @param seq The sequence number of the move
+	 * @param outcome The store's outcome of the move
+	 * @return The level that the move reached, or EX_ALREADY_COMPLETED
+	 */
+	protected OperationResult moveResult(int seq, int outcome)
+	{
+		if (outcome == ParkingStore.ALREADY_COMPLETED || (outcome == ParkingStore.DUPLICATE && seq != session.seq))
+			return new OperationResult(ClientManager.EX_ALREADY_COMPLETED, ClientSession.NO_LEVELS);
+		return result(session.level);
+	}
+	
+	/**
+	 * Turns the store's outcome of enterLot() into the client's exception, if any
+	 * @param outcome The outcome
+	 * @throws AlreadyInLotException Thrown when the client's car is already in a lot
+	 * @throws LotNotFoundException Thrown if the lot is not known to the system
+	 * @throws LotFullException Thrown if the lot is full
+	 * @throws ServiceUnavailableException Thrown if the store could not apply the request
+	 */
+	protected void checkEnterLot(int outcome) throws AlreadyInLotException, LotNotFoundException, LotFullException,
+		ServiceUnavailableException
+	{
+		switch (outcome)
+		{	case ParkingStore.ALREADY_IN_LOT:
+				throw new AlreadyInLotException(session.lot);
+			case ParkingStore.LOT_NOT_FOUND:
+				throw new LotNotFoundException();
+			case ParkingStore.LOT_FULL:
+				throw new LotFullException();
+			case ParkingStore.NO_SUCH_LEVEL:
+				throw new ServiceUnavailableException("Could not add car to entry level; perhaps the entry level does not exist?");
+			case ParkingStore.NOT_RECORDED:
+				throw new ServiceUnavailableException("Could not record the entry in the client's row");
+		}
+	}
+	
+	/**
+	 * Turns the store's outcome of exitLot() into the client's exception, if any
+	 * @param outcome The outcome
+	 * @throws NotInLotException Thrown if the car is not in a lot
+	 * @throws NotOnExitLevelException Thrown if the car is not on its lot's exit level
+	 * @throws ServiceUnavailableException Thrown if the store could not apply the request
+	 */
+	protected void checkExitLot(int outcome) throws NotInLotException, NotOnExitLevelException, ServiceUnavailableException
+	{
+		switch (outcome)
+		{	case ParkingStore.NOT_IN_LOT:
+				throw new NotInLotException();
+			case ParkingStore.NOT_ON_EXIT_LEVEL:
+				throw new NotOnExitLevelException(session.lot, session.level);
+			case ParkingStore.NO_SUCH_LEVEL:
+				throw new ServiceUnavailableException("Could not remove car from exit level; perhaps the exit level does not exist?");
+			case ParkingStore.NOT_RECORDED:
+				throw new ServiceUnavailableException("Could not record the exit in the client's row");
+		}
+	}
+	
+	/**
+	 * Turns the store's outcome of moving down a level into the client's exception, if any
+	 * @param outcome The outcome
+	 * @throws NotInLotException Thrown if the car is not in a lot
+	 * @throws AtBottomLevelException Thrown if the car is already on the lowest level
+	 * @throws ServiceUnavailableException Thrown if the store could not apply the request
+	 */
+	protected void checkMoveDownLevel(int outcome) throws NotInLotException, AtBottomLevelException, ServiceUnavailableException
+	{
+		switch (outcome)
+		{	case ParkingStore.NOT_IN_LOT:
+				throw new NotInLotException();
+			case ParkingStore.AT_LAST_LEVEL:
+				throw new AtBottomLevelException(session.lot, session.level);
+			case ParkingStore.NO_SUCH_LEVEL:
+				throw new ServiceUnavailableException("Could not move car to the lower level; perhaps the level does not exist?");
+		}
+	}
+	
+	/**
+	 * Turns the store's outcome of moving up a level into the client's exception, if any
+	 * @param outcome The outcome
+	 * @throws NotInLotException Thrown if the car is not in a lot
+	 * @throws AtTopLevelException Thrown if the car is already on the highest level
+	 */
+	protected void checkMoveUpLevel(int outcome) throws NotInLotException, AtTopLevelException
+	{
+		switch (outcome)
+		{	case ParkingStore.NOT_IN_LOT:
+				throw new NotInLotException();
+			case ParkingStore.NO_SUCH_LEVEL:
+				// The level above us does not exist, so we are on the top level
+				throw new AtTopLevelException(session.lot, session.level);
+		}
+	}
+	
+	/**
+	 * Returns the level numbers of the current lot
+	 * @param logEntry The log entry of the calling request
+	 * @return The level numbers of the current lot in ascending order
+	 * @throws NotInLotException Thrown if the car is not in a lot
+	 * @throws ServiceUnavailableException Thrown when the store cannot read the levels
+	 */
+	protected int[] getLevels(LogEntry logEntry) throws NotInLotException, ServiceUnavailableException
+	{
+		// If we are not in a lot, then throw an exception
+		if (session.lot == -1)
+			throw new NotInLotException();
+		
+		final int lot = session.lot;
+		int[] levels = callStore(logEntry, new DatabaseStage.Task<int[]>() {
+			public int[] run() throws ServiceUnavailableException {
+				return store.getLevels(lot);
 			}
+		});
+		return levels != null ? levels : new int[0];
+	}
+	
+	/**
+	 * Makes a parking store call on the database stage, or on this thread if there is
+	 * no stage, and sets the log entry's database probes around it. A located servant
+	 * then writes the session back into the locator's session table, whether or not
+	 * the call succeeded, since the store might have updated it either way
+	 * @param logEntry The log entry of the calling request, or null if it is not logged
+	 * @param task The call
+	 * @return The call's result
+	 * @throws ServiceUnavailableException Thrown when the store fails or the database
+	 * stage turns the call away
+	 */
+	protected <T> T callStore(LogEntry logEntry, DatabaseStage.Task<T> task) throws ServiceUnavailableException
+	{
+		if (locator == null)
+			return runStore(logEntry, task);
+		try {
+			return runStore(logEntry, task);
+		} finally {
+			locator.save(session);
 		}
 	}
 	
 	/**
-	 * Pad the integer array in order to make it comply with the reply size of the analysis
+	 * Makes a parking store call on the database stage, or on this thread if there is
+	 * no stage, and sets the log entry's database probes around it
+	 * @param logEntry The log entry of the calling request, or null if it is not logged
+	 * @param task The call
+	 * @return The call's result
+	 * @throws ServiceUnavailableException Thrown when the store fails or the database
+	 * stage turns the call away
+	 */
+	protected <T> T runStore(LogEntry logEntry, DatabaseStage.Task<T> task) throws ServiceUnavailableException
+	{
+		if (stage != null)
+			return stage.execute(logEntry, task);
+		
+		// Nothing to wait for on this thread, so the call is queued as it begins
+		if (logEntry != null) {
+			logEntry.setProbeDbQueued();
+			logEntry.setProbeDbIn();
+		}
+		T result = task.run();
+		if (logEntry != null)
+			logEntry.setProbeDbOut();
+		return result;
+	}
+	
+	/**
+	 * Pad the integer array in order to make it comply with the reply size of the analysis.
+	 * The reply is reused by this thread's next reply, so it must be returned at once
 	 * @param value
 	 * @return padded value
 	 */
-	protected PaddedIntegerSeq padIntegerArray(int[] value)
-	{
-		if (this.replySize > value.length * INTEGER_SIZE)
-		    return new PaddedIntegerSeq(value, new byte[this.replySize - (value.length * INTEGER_SIZE)]);
-		else
-			return new PaddedIntegerSeq(value, new byte[0]);
+	protected PaddedIntegerSeq padIntegerArray(int[] value) {
+		return replyPadding.padIntegerArray(value);
 	}
 	
 	/**
-	 * Pad the integer in order to make it comply with the reply size of the analysis
+	 * Pad the integer in order to make it comply with the reply size of the analysis.
+	 * The reply is reused by this thread's next reply, so it must be returned at once
 	 * @param value
 	 * @return padded value
 	 */
-	protected PaddedInteger padInteger(int value)
-	{
-		return new PaddedInteger(value, this.integerPadding);
+	protected PaddedInteger padInteger(int value) {
+		return replyPadding.padInteger(value);
 	}
 	
 	/**
@@ -1150,6 +830,6 @@ public class ClientManagerImpl extends ClientManagerPOA
 	 * @return padded void
 	 */
 	protected PaddedVoid padVoid() {
-		return this.paddedVoid;
+		return replyPadding.padVoid();
 	}
 }
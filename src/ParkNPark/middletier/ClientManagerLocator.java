@@ -0,0 +1,223 @@
+package ParkNPark.middletier;
+
+import java.nio.charset.Charset;
+
+import org.omg.CORBA.LocalObject;
+import org.omg.CORBA.OBJECT_NOT_EXIST;
+import org.omg.CORBA.Policy;
+import org.omg.CORBA.TRANSIENT;
+import org.omg.PortableServer.ForwardRequest;
+import org.omg.PortableServer.IdAssignmentPolicyValue;
+import org.omg.PortableServer.ImplicitActivationPolicyValue;
+import org.omg.PortableServer.LifespanPolicyValue;
+import org.omg.PortableServer.POA;
+import org.omg.PortableServer.RequestProcessingPolicyValue;
+import org.omg.PortableServer.Servant;
+import org.omg.PortableServer.ServantLocator;
+import org.omg.PortableServer.ServantRetentionPolicyValue;
+import org.omg.PortableServer.ServantLocatorPackage.CookieHolder;
+
+import ParkNPark.interfaces.ClientManager;
+import ParkNPark.interfaces.ClientManagerHelper;
+import ParkNPark.interfaces.ServiceUnavailableException;
+
+/**
+ * Serves every client manager of a server without a servant per client. Client
+ * manager references are made in a POA of their own whose object IDs hold the
+ * client's ID and hostname, so making one activates nothing. When a request arrives,
+ * the locator reads the client's session from a shared session table into the
+ * dispatching thread's client manager servant, loading it from the parking store if
+ * the table does not have it, and the servant writes it back once the store has
+ * applied the request. Servant memory thus grows with the number of dispatch threads
+ * rather than with the number of clients, and the table keeps a client's state in
+ * twelve bytes or so off the heap.
+ * <p>
+ * When the POA is persistent, references outlive the server: a restarted server on
+ * the same port serves the references that its predecessor handed out as soon as it
+ * is up, loading each client's session on its first request
+ */
+public class ClientManagerLocator extends LocalObject implements ServantLocator
+{
+	/** Serialization version */
+	private static final long serialVersionUID = 1L;
+
+	/** Name of the POA of the client managers */
+	public static final String POA_NAME = "ClientManagers";
+
+	/** Encoding of the client hostname in an object ID */
+	protected static final Charset HOSTNAME_CHARSET = Charset.forName("UTF-8");
+
+	/** The factory whose store, logger and reply padding the servants use */
+	protected ClientManagerFactoryImpl factory;
+
+	/** The sessions of the clients */
+	protected SessionTable sessions;
+
+	/** The POA of the client managers */
+	protected POA poa;
+
+	/** Each dispatch thread's client manager servant */
+	protected ThreadLocal<ClientManagerImpl> servants = new ThreadLocal<ClientManagerImpl>() {
+		protected ClientManagerImpl initialValue() {
+			return new ClientManagerImpl(factory, ClientManagerLocator.this);
+		}
+	};
+
+	/**
+	 * Creates a locator and the POA of the client managers
+	 * @param factory The factory whose store, logger and reply padding the servants use
+	 * @param parent The POA to create the client managers' POA under
+	 * @param persistent True for references that outlive the server, which needs the
+	 * ORB to serve on a fixed port
+	 * @throws Exception Thrown when the POA cannot be created
+	 */
+	public ClientManagerLocator(ClientManagerFactoryImpl factory, POA parent, boolean persistent) throws Exception
+	{
+		this.factory = factory;
+		this.sessions = new SessionTable();
+		Policy[] policies = {
+			parent.create_lifespan_policy(persistent ? LifespanPolicyValue.PERSISTENT : LifespanPolicyValue.TRANSIENT),
+			parent.create_id_assignment_policy(IdAssignmentPolicyValue.USER_ID),
+			parent.create_servant_retention_policy(ServantRetentionPolicyValue.NON_RETAIN),
+			parent.create_request_processing_policy(RequestProcessingPolicyValue.USE_SERVANT_MANAGER),
+			parent.create_implicit_activation_policy(ImplicitActivationPolicyValue.NO_IMPLICIT_ACTIVATION)
+		};
+		this.poa = parent.create_POA(POA_NAME, parent.the_POAManager(), policies);
+		for (Policy policy : policies)
+			policy.destroy();
+		poa.set_servant_manager(this);
+		System.out.println("Client managers are served by a servant locator with "
+				+ (persistent ? "persistent" : "transient") + " references");
+	}
+
+	/**
+	 * Makes a client manager reference for a client, whose session is added to the
+	 * session table
+	 * @param session The client's session
+	 * @param clientHostname The hostname of the client
+	 * @return The client manager reference
+	 */
+	public ClientManager getReference(ClientSession session, String clientHostname)
+	{
+		sessions.put(session);
+		return ClientManagerHelper.narrow(poa.create_reference_with_id(encode(session.getClientID(), clientHostname),
+				ClientManagerHelper.id()));
+	}
+
+	/**
+	 * Drops a client's session from the session table, for when the client closes its
+	 * client manager. Its reference stays valid, and a later request reloads the session
+	 * @param clientID The client's ID
+	 */
+	public void forget(int clientID) {
+		sessions.remove(clientID);
+	}
+
+	/**
+	 * Returns the session table
+	 * @return The sessions of the clients
+	 */
+	public SessionTable getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * Writes a client's session back into the session table after the store has
+	 * applied a request to it
+	 * @param session The session
+	 */
+	public void save(ClientSession session) {
+		sessions.put(session);
+	}
+
+	/**
+	 * Finds the servant for a request: the thread's servant, holding the session of
+	 * the client whose ID the object ID holds
+	 */
+	public Servant preinvoke(byte[] oid, POA adapter, String operation, CookieHolder cookie) throws ForwardRequest
+	{
+		int clientID = decodeClientID(oid);
+		ClientManagerImpl servant = servants.get();
+		if (!sessions.load(clientID, servant.session)) {
+			ClientSession loaded = loadSession(clientID);
+			sessions.put(loaded);
+			servant.session.reset(clientID, loaded.seq, loaded.seqVerified, loaded.lot, loaded.level);
+		}
+		servant.bind(decodeHostname(oid));
+		return servant;
+	}
+
+	/**
+	 * Unbinds the thread's servant from the client after a request
+	 */
+	public void postinvoke(byte[] oid, POA adapter, String operation, Object cookie, Servant servant) {
+		((ClientManagerImpl) servant).bind(null);
+	}
+
+	/**
+	 * Loads a session that is not in the table from the parking store
+	 * @param clientID The client's ID
+	 * @return The session
+	 * @throws OBJECT_NOT_EXIST Thrown if the store does not know the client
+	 * @throws TRANSIENT Thrown if the store cannot be reached, so that the client
+	 * tries again or fails over
+	 */
+	protected ClientSession loadSession(final int clientID)
+	{
+		ClientSession session;
+		try {
+			session = factory.runStoreCall(new DatabaseStage.Task<ClientSession>() {
+				public ClientSession run() throws ServiceUnavailableException {
+					return factory.store.loadSession(clientID);
+				}
+			});
+		} catch (ServiceUnavailableException e) {
+			System.err.println("Could not load the session of client " + clientID + ": " + e.message);
+			throw new TRANSIENT("Could not load the client's session");
+		}
+		if (session == null)
+			throw new OBJECT_NOT_EXIST("Client " + clientID + " is not known");
+		return session;
+	}
+
+	/**
+	 * Makes the object ID of a client manager: the client's ID in four bytes, most
+	 * significant first, followed by the client's hostname
+	 * @param clientID The client's ID
+	 * @param clientHostname The client's hostname, or null
+	 * @return The object ID
+	 */
+	protected static byte[] encode(int clientID, String clientHostname)
+	{
+		byte[] hostname = clientHostname != null ? clientHostname.getBytes(HOSTNAME_CHARSET) : new byte[0];
+		byte[] oid = new byte[4 + hostname.length];
+		oid[0] = (byte) (clientID >>> 24);
+		oid[1] = (byte) (clientID >>> 16);
+		oid[2] = (byte) (clientID >>> 8);
+		oid[3] = (byte) clientID;
+		System.arraycopy(hostname, 0, oid, 4, hostname.length);
+		return oid;
+	}
+
+	/**
+	 * Returns the client ID of an object ID
+	 * @param oid The object ID
+	 * @return The client's ID
+	 * @throws OBJECT_NOT_EXIST Thrown if the object ID was not made by encode()
+	 */
+	protected static int decodeClientID(byte[] oid)
+	{
+		if (oid.length < 4)
+			throw new OBJECT_NOT_EXIST("Not a client manager");
+		return ((oid[0] & 0xff) << 24) | ((oid[1] & 0xff) << 16) | ((oid[2] & 0xff) << 8) | (oid[3] & 0xff);
+	}
+
+	/**
+	 * Returns the client hostname of an object ID
+	 * @param oid The object ID
+	 * @return The client's hostname, or null if it has none
+	 */
+	protected static String decodeHostname(byte[] oid) {
+		return oid.length > 4 ? new String(oid, 4, oid.length - 4, HOSTNAME_CHARSET) : null;
+	}
+}
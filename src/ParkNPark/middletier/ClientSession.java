@@ -0,0 +1,126 @@
+package ParkNPark.middletier;
+
+/**
+ * A client's state as its client manager caches it: the client's ID, the sequence
+ * number of its latest applied request and where its car is. The parking store
+ * brings the session up to date as it applies the client's requests. A client has
+ * one request outstanding at a time, so a session is never used by two requests at once
+ */
+public class ClientSession
+{
+	/** Client's ID used for fault-tolerance */
+	protected int clientID;
+
+	/** Client's current operation sequence number used for fault-tolerance */
+	protected int seq;
+
+	/** True once the cached sequence number is known to be the client's latest, which
+	 *  lets new requests be told apart from duplicates without asking the store. A
+	 *  session restored after a failover only knows this once it has applied a request
+	 *  itself, because the previous primary might have applied one after the client
+	 *  was loaded */
+	protected boolean seqVerified;
+
+	/** Lot that client is in, or -1 if the car is not in a lot */
+	protected int lot;
+
+	/** Level that client is in, or -1 if the car is not in a lot */
+	protected int level;
+
+	/** No levels, for a session that has not entered a lot yet */
+	protected static final int[] NO_LEVELS = new int[0];
+
+	/** The levels with available spaces of the lot that the last enterLot() was about */
+	protected int[] availableLevels = NO_LEVELS;
+
+	/** Buffer that a store can read list-returning queries into; a client has one
+	 *  request outstanding at a time, so every request of the client can reuse it */
+	protected IntList intBuffer;
+
+	/**
+	 * Creates a session
+	 * @param clientID The client's ID
+	 * @param seq The sequence number of the client's latest applied request
+	 * @param lot The lot that the car is in, or -1 if it is not in a lot
+	 * @param level The level that the car is on, or -1 if it is not in a lot
+	 */
+	public ClientSession(int clientID, int seq, int lot, int level)
+	{
+		this.clientID = clientID;
+		this.seq = seq;
+		this.lot = lot;
+		this.level = level;
+	}
+
+	/**
+	 * Makes this session another client's, for a session object that is reused for
+	 * many clients; the list buffer is kept
+	 * @param clientID The client's ID
+	 * @param seq The sequence number of the client's latest applied request
+	 * @param seqVerified True if the sequence number is known to be the client's latest
+	 * @param lot The lot that the car is in, or -1 if it is not in a lot
+	 * @param level The level that the car is on, or -1 if it is not in a lot
+	 */
+	protected void reset(int clientID, int seq, boolean seqVerified, int lot, int level)
+	{
+		this.clientID = clientID;
+		this.seq = seq;
+		this.seqVerified = seqVerified;
+		this.lot = lot;
+		this.level = level;
+		this.availableLevels = NO_LEVELS;
+	}
+
+	/**
+	 * Records that a request has taken effect
+	 * @param seq The sequence number of the request
+	 * @param lot The lot that the car is now in, or -1 if it is not in a lot
+	 * @param level The level that the car is now on, or -1 if it is not in a lot
+	 */
+	protected void update(int seq, int lot, int level)
+	{
+		this.seq = seq;
+		this.lot = lot;
+		this.level = level;
+	}
+
+	/**
+	 * Returns the client's ID
+	 * @return The client's ID
+	 */
+	public int getClientID() {
+		return clientID;
+	}
+
+	/**
+	 * Returns the sequence number of the client's latest applied request
+	 * @return The sequence number of the client's latest applied request
+	 */
+	public int getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Returns the lot that the car is in
+	 * @return The lot that the car is in, or -1 if it is not in a lot
+	 */
+	public int getLot() {
+		return lot;
+	}
+
+	/**
+	 * Returns the level that the car is on
+	 * @return The level that the car is on, or -1 if it is not in a lot
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Returns the levels with available spaces of the lot that the last enterLot() was about
+	 * @return The level numbers in ascending order, which must not be modified
+	 */
+	public int[] getAvailableLevels() {
+		return availableLevels;
+	}
+}
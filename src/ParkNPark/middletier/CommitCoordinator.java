@@ -0,0 +1,355 @@
+package ParkNPark.middletier;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the database work of many client managers' requests in shared transactions
+ * so that MySQL syncs its log once per batch instead of once per request. Callers
+ * block in execute() until the transaction that holds their work has committed.
+ * <p>
+ * Requests that arrive while a batch is committing form the next batch, so batches
+ * grow with load on their own. On top of that, the coordinator lingers for half of
+ * the last commit's latency before taking a batch, but only while batches hold more
+ * than one request; a lone client never waits. When a shared transaction fails, its
+ * requests are retried one transaction each so that one bad request cannot fail the
+ * others
+ */
+public class CommitCoordinator
+{
+	/** The default greatest number of requests in one transaction */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+	/** The default longest time in microseconds to linger for more requests */
+	public static final long DEFAULT_MAX_WINDOW = 2000;
+
+	/**
+	 * The database work of one request
+	 */
+	public interface Mutation
+	{
+		/**
+		 * Performs the request's database work on the given connection without committing.
+		 * The work may share its transaction with other requests, so it must not write
+		 * anything unless it succeeds
+		 * @param conn The connection to work on
+		 * @throws SQLException Thrown when the work fails, which rolls back its transaction
+		 */
+		public void apply(Connection conn) throws SQLException;
+
+		/**
+		 * Called when the transaction that held this request's work was rolled back,
+		 * possibly after apply() failed part way through or was never called. The request
+		 * must undo any effects it had outside of the database
+		 */
+		public void rolledBack();
+	}
+
+	/**
+	 * A request waiting for its transaction to commit
+	 */
+	protected static class Pending
+	{
+		/** The request's database work */
+		protected Mutation mutation;
+
+		/** True once the request's transaction has committed or failed */
+		protected boolean done;
+
+		/** Why the request failed, or null if it committed */
+		protected SQLException failure;
+
+		/**
+		 * Creates a new pending request
+		 * @param mutation The request's database work
+		 */
+		protected Pending(Mutation mutation) {
+			this.mutation = mutation;
+		}
+
+		/**
+		 * Releases the waiting caller
+		 * @param failure Why the request failed, or null if it committed
+		 */
+		protected synchronized void complete(SQLException failure)
+		{
+			this.failure = failure;
+			this.done = true;
+			notifyAll();
+		}
+	}
+
+	/** Our database manager instance */
+	protected DatabaseManager databaseManager;
+
+	/** The greatest number of requests in one transaction */
+	protected int maxBatchSize;
+
+	/** The longest time in nanoseconds to linger for more requests */
+	protected long maxWindow;
+
+	/** The time in nanoseconds to linger for more requests before taking the next batch */
+	protected volatile long window;
+
+	/** Requests waiting for a batch; guarded by this */
+	protected LinkedList<Pending> queue = new LinkedList<Pending>();
+
+	/** Number of shared transactions committed */
+	protected AtomicLong batches = new AtomicLong();
+
+	/** Number of requests committed in shared transactions */
+	protected AtomicLong batchedRequests = new AtomicLong();
+
+	/** Largest number of requests committed in one shared transaction */
+	protected volatile int largestBatch;
+
+	/** Total time in nanoseconds spent applying and committing shared transactions */
+	protected AtomicLong commitTime = new AtomicLong();
+
+	/** Number of shared transactions that failed and were retried one request at a time */
+	protected AtomicLong failedBatches = new AtomicLong();
+
+	/** Our background commit thread */
+	protected CommitThread commitThread;
+
+	/**
+	 * Background thread that takes batches of requests and commits them
+	 */
+	protected class CommitThread extends Thread
+	{
+		/** Creates the commit thread as a daemon */
+		public CommitThread() {
+			super("CommitCoordinator");
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			while (true) {
+				List<Pending> batch;
+				try {
+					batch = takeBatch();
+				} catch (InterruptedException e) {
+					return;
+				}
+				commit(batch);
+			}
+		}
+	}
+
+	/**
+	 * Creates the commit coordinator and starts its commit thread
+	 * @param databaseManager The database manager to borrow connections from
+	 * @param maxBatchSize The greatest number of requests in one transaction
+	 * @param maxWindow The longest time in microseconds to linger for more requests
+	 */
+	public CommitCoordinator(DatabaseManager databaseManager, int maxBatchSize, long maxWindow)
+	{
+		this.databaseManager = databaseManager;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWindow = maxWindow * 1000;
+
+		commitThread = new CommitThread();
+		commitThread.start();
+	}
+
+	/**
+	 * Runs the given request's database work and returns once it has committed
+	 * @param mutation The request's database work
+	 * @throws SQLException Thrown when the request's work or its commit failed; its
+	 * transaction has been rolled back and rolledBack() has been called
+	 */
+	public void execute(Mutation mutation) throws SQLException
+	{
+		Pending pending = new Pending(mutation);
+		synchronized (this) {
+			queue.add(pending);
+			if (queue.size() == 1)
+				notifyAll();
+			if (queue.size() >= maxBatchSize)
+				LockSupport.unpark(commitThread);
+		}
+
+		// The request is already queued, so it has to be seen through even if we
+		// are interrupted
+		boolean interrupted = false;
+		synchronized (pending) {
+			while (!pending.done) {
+				try {
+					pending.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (pending.failure != null)
+			throw pending.failure;
+	}
+
+	/**
+	 * Waits for requests and takes the next batch
+	 * @return The next batch of requests
+	 * @throws InterruptedException Thrown when the commit thread is interrupted
+	 */
+	protected List<Pending> takeBatch() throws InterruptedException
+	{
+		synchronized (this) {
+			while (queue.isEmpty())
+				wait();
+		}
+
+		// Linger for more requests while there is concurrency to exploit
+		long linger = window;
+		if (linger > 0 && getQueueLength() < maxBatchSize)
+			LockSupport.parkNanos(linger);
+
+		synchronized (this) {
+			List<Pending> batch = new ArrayList<Pending>(Math.min(queue.size(), maxBatchSize));
+			while (batch.size() < maxBatchSize && !queue.isEmpty())
+				batch.add(queue.removeFirst());
+			return batch;
+		}
+	}
+
+	/**
+	 * Commits a batch of requests in one transaction, falling back to one transaction
+	 * per request if the shared transaction fails
+	 * @param batch The requests to commit
+	 */
+	protected void commit(List<Pending> batch)
+	{
+		long start = System.nanoTime();
+		SQLException failure = commitTogether(batch);
+		if (failure == null) {
+			long latency = System.nanoTime() - start;
+			recordBatch(batch.size(), latency);
+			for (Pending pending : batch)
+				pending.complete(null);
+			return;
+		}
+
+		// A lone request has nobody else to spare
+		if (batch.size() == 1) {
+			batch.get(0).complete(failure);
+			return;
+		}
+
+		// Retry each request on its own so that only the bad ones fail
+		failedBatches.incrementAndGet();
+		for (Pending pending : batch)
+			pending.complete(commitTogether(Collections.singletonList(pending)));
+	}
+
+	/**
+	 * Applies and commits the given requests in a single transaction
+	 * @param batch The requests to commit
+	 * @return null if the transaction committed, or why it failed
+	 */
+	protected SQLException commitTogether(List<Pending> batch)
+	{
+		Connection conn = null;
+		try {
+			conn = databaseManager.getConnection();
+			for (Pending pending : batch)
+				pending.mutation.apply(conn);
+			conn.commit();
+			return null;
+		} catch (SQLException e) {
+			if (conn != null) {
+				try {
+					conn.rollback();
+				} catch (SQLException se) {
+					databaseManager.discardConnection(conn);
+					conn = null;
+				}
+			}
+			for (Pending pending : batch)
+				pending.mutation.rolledBack();
+			return e;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Records the metrics of a committed shared transaction and adapts the window
+	 * @param size The number of requests in the transaction
+	 * @param latency The time in nanoseconds it took to apply and commit
+	 */
+	protected void recordBatch(int size, long latency)
+	{
+		batches.incrementAndGet();
+		batchedRequests.addAndGet(size);
+		commitTime.addAndGet(latency);
+		if (size > largestBatch)
+			largestBatch = size;
+
+		// Lingering only pays off when other clients are arriving
+		if (size > 1)
+			window = Math.min(maxWindow, latency / 2);
+		else
+			window = window / 2;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a batch
+	 * @return The number of requests waiting for a batch
+	 */
+	public synchronized int getQueueLength() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of shared transactions committed
+	 * @return The number of shared transactions committed
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * Returns the average number of requests per committed shared transaction
+	 * @return The average number of requests per committed shared transaction
+	 */
+	public double getAverageBatchSize()
+	{
+		long numBatches = batches.get();
+		return numBatches == 0 ? 0 : (double)batchedRequests.get() / numBatches;
+	}
+
+	/**
+	 * Returns the largest number of requests committed in one shared transaction
+	 * @return The largest number of requests committed in one shared transaction
+	 */
+	public int getLargestBatchSize() {
+		return largestBatch;
+	}
+
+	/**
+	 * Returns the average time in microseconds spent applying and committing a
+	 * shared transaction
+	 * @return The average commit latency in microseconds
+	 */
+	public long getAverageCommitLatency()
+	{
+		long numBatches = batches.get();
+		return numBatches == 0 ? 0 : commitTime.get() / numBatches / 1000;
+	}
+
+	/**
+	 * Returns the number of shared transactions that failed and were retried one
+	 * request at a time
+	 * @return The number of failed shared transactions
+	 */
+	public long getFailedBatchCount() {
+		return failedBatches.get();
+	}
+}
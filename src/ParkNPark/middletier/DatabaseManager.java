@@ -2,15 +2,59 @@ package ParkNPark.middletier;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Manages the server's database parameters
+ * Manages the server's database parameters and a bounded pool of database
+ * connections. Callers borrow a connection with getConnection() for the
+ * duration of a single operation and must hand it back with
+ * releaseConnection() when they are done with it
  */
 public class DatabaseManager
 {
+	/** The default maximum number of connections in the pool */
+	public static final int DEFAULT_MAX_POOL_SIZE = 32;
+	
+	/** The default time in milliseconds that a borrower waits for a free connection */
+	public static final long DEFAULT_BORROW_TIMEOUT = 5000;
+	
+	/** The default time in milliseconds after which an idle connection is closed */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+	
+	/** The default time in milliseconds after which a borrowed connection is reported as leaked */
+	public static final long DEFAULT_LEAK_THRESHOLD = 30000;
+	
+	/** The default maximum number of prepared statements cached per connection */
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+	
+	/** The default fetch size of queries prepared with prepareQuery(). Connector/J streams
+	 *  the rows of a forward-only, read-only result set one at a time with this fetch
+	 *  size instead of reading the whole result into memory first */
+	public static final int DEFAULT_QUERY_FETCH_SIZE = Integer.MIN_VALUE;
+	
+	/** Idle connections that have been idle for less than this many milliseconds are
+	 *  not validated when borrowed */
+	protected static final long VALIDATION_INTERVAL = 1000;
+	
+	/** How often in milliseconds the maintenance task evicts idle connections and
+	 *  looks for leaked ones */
+	protected static final long MAINTENANCE_INTERVAL = 5000;
+	
 	/** The JDBC driver class */
 	private String jdbcDriver = "com.mysql.jdbc.Driver";
 	
@@ -27,16 +71,117 @@ public class DatabaseManager
 	 *  them upon request */
 	protected WeakHashMap<Connection,Object> connections = new WeakHashMap<Connection,Object>();
 
+	/** The maximum number of connections that can exist at once */
+	protected int maxPoolSize;
+	
+	/** The time in milliseconds that a borrower waits for a free connection */
+	protected long borrowTimeout;
+	
+	/** The time in milliseconds after which an idle connection is closed */
+	protected long idleTimeout;
+	
+	/** The time in milliseconds after which a borrowed connection is reported as leaked */
+	protected long leakThreshold;
+	
+	/** Fair semaphore holding one permit per connection that may still be borrowed */
+	protected Semaphore permits;
+	
+	/** Idle connections, most recently returned first */
+	protected LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+	
+	/** Connections that are currently borrowed */
+	protected IdentityHashMap<Connection,PooledConnection> borrowed = new IdentityHashMap<Connection,PooledConnection>();
+	
+	/** Timer that runs the idle eviction and leak detection task */
+	protected Timer maintenanceTimer;
+	
+	/** The maximum number of prepared statements cached per connection */
+	protected int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+	
+	/** The fetch size of queries prepared with prepareQuery() */
+	protected volatile int queryFetchSize = DEFAULT_QUERY_FETCH_SIZE;
+	
+	/** Whether or not the stack trace of every borrower is kept for leak reports */
+	protected volatile boolean traceLeaks;
+	
+	/** The number of prepareStatement() calls answered from a statement cache */
+	protected AtomicLong statementCacheHits = new AtomicLong();
+	
+	/** The number of prepareStatement() calls that had to prepare a new statement */
+	protected AtomicLong statementCacheMisses = new AtomicLong();
+	
 	/**
-	 * Create the database manager and initialize the JDBC driver
+	 * Pool bookkeeping for a single physical database connection
+	 */
+	protected static class PooledConnection
+	{
+		/** The physical database connection */
+		protected Connection connection;
+		
+		/** Time that the connection was last returned to the pool */
+		protected long lastReturned;
+		
+		/** Time that the connection was last borrowed */
+		protected long borrowedAt;
+		
+		/** Name of the thread that last borrowed the connection */
+		protected String borrower;
+		
+		/** Stack trace of the last borrower when leak tracing is on, which is reported
+		 *  if the connection leaks */
+		protected Throwable borrowTrace;
+		
+		/** Whether or not the connection has already been reported as leaked */
+		protected boolean leakReported;
+		
+		/** The connection's prepared statements, keyed by SQL text */
+		protected StatementCache statementCache;
+		
+		/**
+		 * Creates a new pool entry for the given connection
+		 * @param connection The physical database connection
+		 * @param statementCacheSize The maximum number of prepared statements to cache
+		 */
+		protected PooledConnection(Connection connection, int statementCacheSize) {
+			this.connection = connection;
+			this.lastReturned = System.currentTimeMillis();
+			this.statementCache = new StatementCache(connection, statementCacheSize);
+		}
+	}
+	
+	/**
+	 * Create the database manager and initialize the JDBC driver using the default
+	 * pool settings
 	 * @param jdbcURL The JDBC URL to use in the database connection
 	 * @param jdbcUsername The username to use in the database connection
 	 * @param jdbcPassword The password to use in the database connection
 	 */
 	public DatabaseManager(String jdbcURL, String jdbcUsername, String jdbcPassword) {
+		this(jdbcURL, jdbcUsername, jdbcPassword, DEFAULT_MAX_POOL_SIZE, DEFAULT_BORROW_TIMEOUT,
+		     DEFAULT_IDLE_TIMEOUT, DEFAULT_LEAK_THRESHOLD);
+	}
+	
+	/**
+	 * Create the database manager and initialize the JDBC driver
+	 * @param jdbcURL The JDBC URL to use in the database connection
+	 * @param jdbcUsername The username to use in the database connection
+	 * @param jdbcPassword The password to use in the database connection
+	 * @param maxPoolSize The maximum number of connections that can exist at once
+	 * @param borrowTimeout The time in milliseconds that a borrower waits for a free connection
+	 * @param idleTimeout The time in milliseconds after which an idle connection is closed
+	 * @param leakThreshold The time in milliseconds after which a borrowed connection is
+	 * reported as leaked
+	 */
+	public DatabaseManager(String jdbcURL, String jdbcUsername, String jdbcPassword, int maxPoolSize,
+			               long borrowTimeout, long idleTimeout, long leakThreshold) {
 		this.jdbcURL = jdbcURL;
 		this.jdbcUsername = jdbcUsername;
 		this.jdbcPassword = jdbcPassword;
+		this.maxPoolSize = maxPoolSize;
+		this.borrowTimeout = borrowTimeout;
+		this.idleTimeout = idleTimeout;
+		this.leakThreshold = leakThreshold;
+		this.permits = new Semaphore(maxPoolSize, true);
 		
 		// Load the JDBC driver
 		try {
@@ -47,26 +192,233 @@ public class DatabaseManager
 			System.err.println("Could not load JDBC driver; ensure that it is within the classpath");
 			throw new RuntimeException(e);
 		}
+		
+		// Start the background idle eviction and leak detection task
+		maintenanceTimer = new Timer("DatabaseManager maintenance", true);
+		maintenanceTimer.schedule(new TimerTask() {
+			public void run() {
+				evictIdleConnections();
+				detectLeaks();
+			}
+		}, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL);
 	}
 
 	/**
-	 * Returns a new database connection using the database manager's
-	 * current configuration
-	 * @return A new database connection using the database manager's
-	 * current configuration
-	 * @throws SQLException Thrown when a problem arises while creating
-	 * a new connection to the database
+	 * Borrows a database connection from the pool, creating a new one if no idle
+	 * connection is available and the pool is not yet at its maximum size. The
+	 * returned connection has auto-commit turned off and must be handed back with
+	 * releaseConnection() after the caller's transaction has been committed or
+	 * rolled back
+	 * @return A database connection using the database manager's current configuration
+	 * @throws SQLException Thrown when no connection becomes available in time or
+	 * when a problem arises while creating a new connection to the database
 	 */
 	public Connection getConnection() throws SQLException
 	{
-		// Create the connection
-		Connection connection = DriverManager.getConnection(jdbcURL, jdbcUsername, jdbcPassword);
+		// Wait our turn for a connection
+		try {
+			if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS))
+				throw new SQLException("Timed out after " + borrowTimeout + "ms waiting for a pooled database connection");
+		} catch (InterruptedException e) {
+			throw new SQLException("Interrupted while waiting for a pooled database connection");
+		}
 		
-		// Store this connection's reference weakly
-		connections.put(connection, null);
+		try {
+			// Reuse an idle connection if a healthy one exists
+			PooledConnection pooled;
+			while ((pooled = takeIdle()) != null) {
+				if (validate(pooled))
+					return markBorrowed(pooled);
+				closeQuietly(pooled.connection);
+			}
 		
-		// Return the connection
-		return connection;
+			// Otherwise, create a new connection that lets a statement carry several
+			// queries, which the parking store uses to save entries a round trip
+			Properties properties = new Properties();
+			if (jdbcUsername != null)
+				properties.setProperty("user", jdbcUsername);
+			if (jdbcPassword != null)
+				properties.setProperty("password", jdbcPassword);
+			properties.setProperty("allowMultiQueries", "true");
+			Connection connection = DriverManager.getConnection(jdbcURL, properties);
+			
+			// Turn off auto-commit, enabling transaction control
+			connection.setAutoCommit(false);
+			
+			// Store this connection's reference weakly
+			synchronized (this) {
+				connections.put(connection, null);
+			}
+			
+			// Return the connection
+			return markBorrowed(new PooledConnection(connection, statementCacheSize));
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns a borrowed connection to the pool. Passing null is allowed and does
+	 * nothing so that callers can release from a finally block unconditionally
+	 * @param connection The connection that was borrowed with getConnection()
+	 */
+	public void releaseConnection(Connection connection)
+	{
+		if (connection == null)
+			return;
+		
+		PooledConnection pooled;
+		synchronized (this) {
+			pooled = borrowed.remove(connection);
+			if (pooled == null)
+				return;
+			
+			// Closed connections are simply dropped from the pool
+			boolean closed;
+			try {
+				closed = connection.isClosed();
+			} catch (SQLException e) {
+				closed = true;
+			}
+			if (!closed) {
+				pooled.lastReturned = System.currentTimeMillis();
+				pooled.borrowTrace = null;
+				idle.addFirst(pooled);
+			}
+		}
+		permits.release();
+	}
+	
+	/**
+	 * Closes a borrowed connection and removes it from the pool. Use this instead
+	 * of releaseConnection() when the connection is known to be broken
+	 * @param connection The connection that was borrowed with getConnection()
+	 */
+	public void discardConnection(Connection connection)
+	{
+		if (connection == null)
+			return;
+		
+		closeQuietly(connection);
+		releaseConnection(connection);
+	}
+	
+	/**
+	 * Returns a prepared statement for the given SQL on a borrowed connection, reusing
+	 * the statement that was prepared the last time the connection ran the same SQL.
+	 * Callers must not close the returned statement; it stays open for the next
+	 * borrower of the connection
+	 * @param connection The connection that was borrowed with getConnection()
+	 * @param sql The SQL text of the statement
+	 * @return A prepared statement for the given SQL with its parameters cleared
+	 * @throws SQLException Thrown when the statement cannot be prepared
+	 */
+	public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException
+	{
+		// Connections that did not come from this pool are not cached
+		PooledConnection pooled;
+		synchronized (this) {
+			pooled = borrowed.get(connection);
+		}
+		if (pooled == null) {
+			statementCacheMisses.incrementAndGet();
+			return connection.prepareStatement(sql);
+		}
+		
+		// Return the cached statement if the connection has one
+		PreparedStatement statement = pooled.statementCache.get(sql);
+		if (statement != null) {
+			statementCacheHits.incrementAndGet();
+			statement.clearParameters();
+			return statement;
+		}
+		
+		// Otherwise, prepare and cache it
+		statementCacheMisses.incrementAndGet();
+		return pooled.statementCache.prepare(sql);
+	}
+	
+	/**
+	 * Returns a prepared query whose results are read in a single forward pass, which
+	 * lets the driver fetch the rows as they are read rather than holding the whole
+	 * result. The statement comes from the statement cache like prepareStatement()'s.
+	 * While a streamed result set is open, the connection cannot run anything else, so
+	 * callers must read it to the end or close it before using the connection again
+	 * @param connection The connection that was borrowed with getConnection()
+	 * @param sql The SQL text of the query
+	 * @return A forward-only, read-only prepared query with its parameters cleared
+	 * @throws SQLException Thrown when the query cannot be prepared
+	 */
+	public PreparedStatement prepareQuery(Connection connection, String sql) throws SQLException
+	{
+		// Statements are prepared forward-only and read-only, so only the fetch size is left
+		PreparedStatement query = prepareStatement(connection, sql);
+		query.setFetchSize(queryFetchSize);
+		return query;
+	}
+	
+	/**
+	 * Sets the fetch size of queries prepared with prepareQuery(). The default streams
+	 * rows one at a time; a positive size fetches that many rows per round trip with
+	 * drivers that support it, such as Connector/J with useCursorFetch=true
+	 * @param queryFetchSize The fetch size of queries prepared with prepareQuery()
+	 */
+	public void setQueryFetchSize(int queryFetchSize) {
+		this.queryFetchSize = queryFetchSize;
+	}
+	
+	/**
+	 * Sets whether or not the stack trace of every borrower is kept so that leak
+	 * reports can show where a leaked connection was borrowed. It is off by default,
+	 * in which case leak reports only name the borrowing thread
+	 * @param traceLeaks True to keep the stack trace of every borrower
+	 */
+	public void setTraceLeaks(boolean traceLeaks) {
+		this.traceLeaks = traceLeaks;
+	}
+	
+	/**
+	 * Returns the number of prepareStatement() calls answered from a statement cache
+	 * @return The number of prepareStatement() calls answered from a statement cache
+	 */
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+	
+	/**
+	 * Returns the number of prepareStatement() calls that had to prepare a new statement
+	 * @return The number of prepareStatement() calls that had to prepare a new statement
+	 */
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+	
+	/**
+	 * Returns the number of connections that are currently borrowed
+	 * @return The number of connections that are currently borrowed
+	 */
+	public synchronized int getBorrowedCount() {
+		return borrowed.size();
+	}
+	
+	/**
+	 * Returns the number of connections that are currently idle in the pool
+	 * @return The number of connections that are currently idle in the pool
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+	
+	/**
+	 * Returns the maximum number of connections that can exist at once
+	 * @return The maximum number of connections that can exist at once
+	 */
+	public int getMaxPoolSize() {
+		return maxPoolSize;
 	}
 	
 	/**
@@ -77,19 +429,121 @@ public class DatabaseManager
 		// Hose future connections
 		jdbcURL = "jdbc:meow://fluffy_kittens_invade_mars!";
 		
-		// Hose existing connections
-		Iterator<Connection> iterator = connections.keySet().iterator();
+		// Hose existing connections, idle and borrowed alike
+		List<Connection> hosed;
+		synchronized (this) {
+			hosed = new ArrayList<Connection>(connections.keySet());
+			idle.clear();
+		}
+		Iterator<Connection> iterator = hosed.iterator();
 		Connection connection;
 		while (iterator.hasNext()) {
 			connection = iterator.next();
 			
 			// Close this database connection
+			closeQuietly(connection);
+		}
+	}
+	
+	/**
+	 * Removes and returns the most recently used idle connection
+	 * @return The most recently used idle connection or null if none are idle
+	 */
+	protected synchronized PooledConnection takeIdle() {
+		return idle.isEmpty() ? null : idle.removeFirst();
+	}
+	
+	/**
+	 * Records the given connection as borrowed by the current thread
+	 * @param pooled The connection being borrowed
+	 * @return The physical connection
+	 */
+	protected synchronized Connection markBorrowed(PooledConnection pooled)
+	{
+		pooled.borrowedAt = System.currentTimeMillis();
+		pooled.borrower = Thread.currentThread().getName();
+		
+		// Walking the stack on every borrow is costly, so it is only done when asked for
+		pooled.borrowTrace = traceLeaks ? new Throwable("Connection borrowed by " + pooled.borrower) : null;
+		pooled.leakReported = false;
+		borrowed.put(pooled.connection, pooled);
+		return pooled.connection;
+	}
+	
+	/**
+	 * Checks that an idle connection is still usable. Connections that were
+	 * returned very recently are trusted without a round trip to the database
+	 * @param pooled The idle connection to check
+	 * @return True if the connection can be handed out or false if it is broken
+	 */
+	protected boolean validate(PooledConnection pooled)
+	{
+		try {
+			if (pooled.connection.isClosed())
+				return false;
+			if (System.currentTimeMillis() - pooled.lastReturned < VALIDATION_INTERVAL)
+				return true;
+			
+			Statement statement = pooled.connection.createStatement();
 			try {
-				connection.close();
-			} catch (SQLException e) {
-				// If this gave a SQLException, then it's probably already closed
-				// or hosed. Thus, we don't care
+				ResultSet rs = statement.executeQuery("SELECT 1");
+				rs.close();
+				pooled.connection.rollback();
+			} finally {
+				statement.close();
+			}
+			return true;
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Closes connections that have sat idle for longer than the idle timeout
+	 */
+	protected void evictIdleConnections()
+	{
+		long now = System.currentTimeMillis();
+		List<Connection> evicted = new ArrayList<Connection>();
+		synchronized (this) {
+			// The oldest idle connections are at the end of the list
+			while (!idle.isEmpty() && now - idle.getLast().lastReturned > idleTimeout)
+				evicted.add(idle.removeLast().connection);
+		}
+		for (Connection connection : evicted)
+			closeQuietly(connection);
+	}
+	
+	/**
+	 * Reports connections that have been borrowed for longer than the leak threshold,
+	 * along with the thread that borrowed them and, when leak tracing is on, the stack
+	 * trace of the code that borrowed them
+	 */
+	protected synchronized void detectLeaks()
+	{
+		long now = System.currentTimeMillis();
+		for (PooledConnection pooled : borrowed.values()) {
+			if (!pooled.leakReported && now - pooled.borrowedAt > leakThreshold) {
+				pooled.leakReported = true;
+				System.err.println("DatabaseManager: connection borrowed by " + pooled.borrower + " "
+						+ (now - pooled.borrowedAt) + "ms ago has not been released; possible connection leak");
+				if (pooled.borrowTrace != null)
+					pooled.borrowTrace.printStackTrace();
 			}
 		}
 	}
+	
+	/**
+	 * Closes the given connection, ignoring any problems while doing so
+	 * @param connection The connection to close
+	 */
+	protected static void closeQuietly(Connection connection)
+	{
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// If this gave a SQLException, then it's probably already closed
+			// or hosed. Thus, we don't care
+		}
+	}
 }
@@ -0,0 +1,174 @@
+package ParkNPark.middletier;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ParkNPark.common.LogEntry;
+import ParkNPark.interfaces.ServiceUnavailableException;
+
+/**
+ * Runs the parking store calls of client managers on a fixed number of database
+ * workers, so that the number of transactions in flight is set here rather than by
+ * however many requests the ORB happens to be dispatching. Calls that find every
+ * worker busy wait in a bounded queue; a call that finds the queue full is turned
+ * away at once with a ServiceUnavailableException, which the client treats like any
+ * other server failure, instead of piling up behind the database.
+ * <p>
+ * The calling thread waits for its call to finish, since a servant's reply has to be
+ * returned from the thread that dispatched it. The time that the call was queued is
+ * written into the request's LogEntry next to the times that the database access
+ * began and ended, so that queue wait and database time can be told apart
+ */
+public class DatabaseStage
+{
+	/** Default number of database workers */
+	public static final int DEFAULT_WORKERS = 16;
+
+	/** Default number of calls that can wait for a worker */
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+
+	/**
+	 * A parking store call that runs on a database worker
+	 */
+	public interface Task<T>
+	{
+		/**
+		 * Makes the call
+		 * @return The call's result
+		 * @throws ServiceUnavailableException Thrown when the store fails
+		 */
+		public T run() throws ServiceUnavailableException;
+	}
+
+	/** The database workers and their queue */
+	protected ThreadPoolExecutor workers;
+
+	/** The number of calls that can wait for a worker */
+	protected int queueSize;
+
+	/** Statistics: calls accepted and calls turned away */
+	protected AtomicLong submitted = new AtomicLong(), rejected = new AtomicLong();
+
+	/** Statistics: nanoseconds that calls spent queued and running */
+	protected AtomicLong waitTime = new AtomicLong(), executionTime = new AtomicLong();
+
+	/** Statistics: the most calls seen waiting at once */
+	protected AtomicInteger maxQueueDepth = new AtomicInteger();
+
+	/**
+	 * Creates a database stage with the default number of workers and queue size
+	 */
+	public DatabaseStage() {
+		this(DEFAULT_WORKERS, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Creates a database stage
+	 * @param workerCount The number of database workers, which is the greatest number of
+	 * parking store calls in flight. More workers than database connections only make
+	 * the workers wait for connections instead of in the queue
+	 * @param queueSize The number of calls that can wait for a worker
+	 */
+	public DatabaseStage(int workerCount, int queueSize)
+	{
+		this.queueSize = queueSize;
+		this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+			protected int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DatabaseStage worker " + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		workers.prestartAllCoreThreads();
+		System.out.println("Database stage running " + workerCount + " workers with room for " + queueSize + " waiting calls");
+	}
+
+	/**
+	 * Runs a parking store call on a database worker and waits for its result
+	 * @param logEntry The log entry of the calling request, whose database probes are
+	 * set, or null for a call that is not logged
+	 * @param task The call
+	 * @return The call's result
+	 * @throws ServiceUnavailableException Thrown when the call fails, when the queue is
+	 * full or when the calling thread is interrupted while waiting
+	 */
+	public <T> T execute(final LogEntry logEntry, final Task<T> task) throws ServiceUnavailableException
+	{
+		final long queued = System.nanoTime();
+		if (logEntry != null)
+			logEntry.setProbeDbQueued();
+		Future<T> result;
+		try {
+			result = workers.submit(new Callable<T>() {
+				public T call() throws ServiceUnavailableException
+				{
+					long started = System.nanoTime();
+					waitTime.addAndGet(started - queued);
+					if (logEntry != null)
+						logEntry.setProbeDbIn();
+					try {
+						return task.run();
+					} finally {
+						if (logEntry != null)
+							logEntry.setProbeDbOut();
+						executionTime.addAndGet(System.nanoTime() - started);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw new ServiceUnavailableException("The server's database queue is full");
+		}
+		submitted.incrementAndGet();
+		int depth = workers.getQueue().size(), max;
+		while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth))
+			;
+
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ServiceUnavailableException)
+				throw (ServiceUnavailableException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new ServiceUnavailableException("A database worker failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			// A call that has not started yet is dropped; one that has keeps going, and
+			// the client's sequence number makes its retry harmless
+			result.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Interrupted while waiting for a database worker");
+		}
+	}
+
+	/**
+	 * Returns the number of calls waiting for a worker
+	 * @return The current queue depth
+	 */
+	public int getQueueDepth() {
+		return workers.getQueue().size();
+	}
+
+	/**
+	 * Prints the stage's statistics to standard output
+	 */
+	public void printStatistics()
+	{
+		long calls = submitted.get();
+		System.out.println("Database stage: " + workers.getCorePoolSize() + " workers, " + workers.getActiveCount()
+				+ " busy; queue depth " + getQueueDepth() + " now, " + maxQueueDepth.get() + " at most, room for "
+				+ queueSize + "; " + calls + " calls, " + rejected.get() + " turned away; average wait "
+				+ (calls > 0 ? waitTime.get() / calls / 1000 : 0) + "us, average database time "
+				+ (calls > 0 ? executionTime.get() / calls / 1000 : 0) + "us");
+	}
+}
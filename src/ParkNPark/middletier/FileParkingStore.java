@@ -0,0 +1,277 @@
+package ParkNPark.middletier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Embedded parking store for single-node deployments that keeps everything in a
+ * folder instead of a database. It serves requests from memory exactly like the
+ * memory store and makes each one durable in an operation journal, with group
+ * commit, before the client hears about it.
+ * <p>
+ * The folder holds the lot layout, a snapshot of the car counts and client rows,
+ * and the journal. Opening the store loads the snapshot, replays the journal over
+ * it, writes a new snapshot and deletes the replayed journal segments, so the
+ * journal only grows between restarts. Replay skips operations that a client's
+ * row already reflects, so a crash at any point of this is harmless
+ */
+public class FileParkingStore extends MemoryParkingStore
+{
+	/** Name of the lot layout file in the store's folder */
+	public static final String LAYOUT_FILE = "layout.txt";
+
+	/** Name of the snapshot file in the store's folder */
+	public static final String SNAPSHOT_FILE = "snapshot.dat";
+
+	/** Name of the journal folder in the store's folder */
+	public static final String JOURNAL_DIRECTORY = "journal";
+
+	/** First word of a snapshot file */
+	protected static final int SNAPSHOT_MAGIC = 0x504e5053;
+
+	/** The store's folder */
+	protected File directory;
+
+	/** The journal that every operation is made durable in */
+	protected OperationJournal journal;
+
+	/** Takes the synced records off the journal, which only needs them at recovery */
+	protected Thread discardThread;
+
+	/**
+	 * The car counts and client rows of a snapshot file
+	 */
+	protected static class Snapshot
+	{
+		/** The car count of each lot by lot index */
+		protected int[] lotCarCount;
+
+		/** The car count of each level by level index */
+		protected int[] levelCarCount;
+
+		/** The ID of the newest client */
+		protected int lastClientID;
+
+		/** The client rows, four ints each: client ID, sequence number, lot and level */
+		protected int[] clients = new int[0];
+	}
+
+	/**
+	 * Opens the store in the given folder, creating it if it does not exist yet
+	 * @param directory The store's folder
+	 * @param newLayout The lot layout to create the store with, which is ignored if
+	 * the folder already holds one; it may be null if it does
+	 * @return The store
+	 * @throws IOException Thrown when the store cannot be opened or recovered
+	 */
+	public static FileParkingStore open(File directory, LotLayout newLayout) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create the parking store folder " + directory);
+
+		// The layout is fixed once the store exists
+		File layoutFile = new File(directory, LAYOUT_FILE);
+		LotLayout layout;
+		if (layoutFile.exists())
+			layout = LotLayout.read(layoutFile);
+		else if (newLayout != null) {
+			newLayout.write(layoutFile);
+			layout = newLayout;
+		}
+		else
+			throw new IOException("The parking store folder " + directory + " has no " + LAYOUT_FILE);
+
+		return new FileParkingStore(directory, layout, readSnapshot(new File(directory, SNAPSHOT_FILE), layout));
+	}
+
+	/**
+	 * Creates the store from its snapshot, replays the journal and compacts it
+	 * @param directory The store's folder
+	 * @param layout The store's lot layout
+	 * @param snapshot The store's snapshot
+	 * @throws IOException Thrown when the journal cannot be opened or the new
+	 * snapshot cannot be written
+	 */
+	protected FileParkingStore(File directory, LotLayout layout, Snapshot snapshot) throws IOException
+	{
+		super(layout, snapshot.lotCarCount, snapshot.levelCarCount);
+		this.directory = directory;
+		lastClientID.set(snapshot.lastClientID);
+		for (int i = 0; i < snapshot.clients.length; i += 4)
+			clients.put(snapshot.clients[i], new AtomicReference<ClientRecord>(
+					new ClientRecord(snapshot.clients[i + 1], snapshot.clients[i + 2], snapshot.clients[i + 3])));
+
+		// Replay what the journal holds beyond the snapshot
+		this.journal = new OperationJournal(new File(directory, JOURNAL_DIRECTORY), OperationJournal.DEFAULT_SEGMENT_RECORDS,
+				OperationJournal.DEFAULT_GROUP_COMMIT_INTERVAL, OperationJournal.DEFAULT_GROUP_COMMIT_SIZE);
+		long recovered = journal.getAvailableCount();
+		int replayed = 0;
+		try {
+			while (replayed < recovered) {
+				List<OperationJournal.Record> records = journal.takeSynced(OperationJournal.DEFAULT_SEGMENT_RECORDS, 0);
+				for (OperationJournal.Record record : records)
+					replay(record);
+				replayed += records.size();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while replaying the parking store journal");
+		}
+
+		// Fold the replayed records into a new snapshot so that they are not replayed again
+		writeSnapshot();
+		journal.checkpoint(journal.getSegmentNumber());
+		System.out.println("Parking store opened in " + directory + " with " + clients.size() + " clients; "
+				+ replayed + " journal records replayed");
+
+		discardThread = new Thread("FileParkingStore journal discard") {
+			public void run() {
+				try {
+					while (true)
+						journal.takeSynced(OperationJournal.DEFAULT_SEGMENT_RECORDS, 0);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		discardThread.setDaemon(true);
+		discardThread.start();
+	}
+
+	protected boolean log(int clientID, int seq, int op, int lot, int fromLevel, int toLevel)
+	{
+		try {
+			journal.append(clientID, seq, op, lot, fromLevel, toLevel);
+			return true;
+		} catch (IOException e) {
+			System.err.println("Could not append to the parking store journal: " + e.getMessage());
+			return false;
+		}
+	}
+
+	public void printStatistics()
+	{
+		super.printStatistics();
+		System.out.println("Parking store journal: " + journal.getAvailableCount() + " records since "
+				+ directory + " was opened, now in segment " + journal.getSegmentNumber());
+	}
+
+	/**
+	 * Applies a journaled operation to the client rows and car counts unless the
+	 * client's row already reflects it
+	 * @param record The journaled operation
+	 */
+	protected void replay(OperationJournal.Record record)
+	{
+		if (record.op == OperationJournal.CREATE_CLIENT) {
+			clients.putIfAbsent(record.clientID, new AtomicReference<ClientRecord>(NEW_CLIENT));
+			if (record.clientID > lastClientID.get())
+				lastClientID.set(record.clientID);
+			return;
+		}
+		AtomicReference<ClientRecord> row = clients.get(record.clientID);
+		if (row == null || row.get().seq >= record.seq)
+			return;
+		switch (record.op) {
+			case OperationJournal.ENTER_LOT:
+				occupancyEngine.undoExit(record.lot);
+				row.set(new ClientRecord(record.seq, record.lot, 1));
+				break;
+			case OperationJournal.EXIT_LOT:
+				occupancyEngine.exit(record.lot);
+				row.set(new ClientRecord(record.seq, -1, -1));
+				break;
+			case OperationJournal.MOVE_LEVEL:
+				occupancyEngine.move(record.lot, record.fromLevel, record.toLevel);
+				row.set(new ClientRecord(record.seq, record.lot, record.toLevel));
+				break;
+			default:
+				System.err.println("FileParkingStore: skipping journal record with unknown operation " + record.op);
+		}
+	}
+
+	/**
+	 * Reads a snapshot file
+	 * @param file The snapshot file
+	 * @param layout The store's lot layout
+	 * @return The snapshot, which is empty if the file does not exist
+	 * @throws IOException Thrown when the file cannot be read or does not match the layout
+	 */
+	protected static Snapshot readSnapshot(File file, LotLayout layout) throws IOException
+	{
+		Snapshot snapshot = new Snapshot();
+		snapshot.lotCarCount = new int[layout.getLotCount()];
+		snapshot.levelCarCount = new int[layout.getLevelCount()];
+		if (!file.exists())
+			return snapshot;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException(file + " is not a parking store snapshot");
+			if (in.readInt() != snapshot.lotCarCount.length)
+				throw new IOException(file + " does not match the lots of " + LAYOUT_FILE);
+			for (int i = 0; i < snapshot.lotCarCount.length; i++)
+				snapshot.lotCarCount[i] = in.readInt();
+			if (in.readInt() != snapshot.levelCarCount.length)
+				throw new IOException(file + " does not match the levels of " + LAYOUT_FILE);
+			for (int i = 0; i < snapshot.levelCarCount.length; i++)
+				snapshot.levelCarCount[i] = in.readInt();
+			snapshot.lastClientID = in.readInt();
+			snapshot.clients = new int[in.readInt() * 4];
+			for (int i = 0; i < snapshot.clients.length; i++)
+				snapshot.clients[i] = in.readInt();
+		} finally {
+			in.close();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Writes the car counts and client rows to a new snapshot file and then moves it
+	 * over the old one, so that a crash leaves one or the other behind. Nothing may
+	 * change the store while this runs
+	 * @throws IOException Thrown when the snapshot cannot be written
+	 */
+	protected void writeSnapshot() throws IOException
+	{
+		File temporary = new File(directory, SNAPSHOT_FILE + ".tmp");
+		FileOutputStream file = new FileOutputStream(temporary);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(occupancyEngine.getLotCount());
+			for (int i = 0; i < occupancyEngine.getLotCount(); i++)
+				out.writeInt(occupancyEngine.getLotCarCount(i));
+			out.writeInt(occupancyEngine.getLevelCount());
+			for (int i = 0; i < occupancyEngine.getLevelCount(); i++)
+				out.writeInt(occupancyEngine.getLevelCarCount(i));
+			out.writeInt(lastClientID.get());
+			out.writeInt(clients.size());
+			for (Map.Entry<Integer, AtomicReference<ClientRecord>> client : clients.entrySet()) {
+				ClientRecord record = client.getValue().get();
+				out.writeInt(client.getKey());
+				out.writeInt(record.seq);
+				out.writeInt(record.lot);
+				out.writeInt(record.level);
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temporary.toPath(), new File(directory, SNAPSHOT_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
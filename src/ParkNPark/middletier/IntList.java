@@ -0,0 +1,82 @@
+package ParkNPark.middletier;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints for reading query results of unknown length in
+ * a single forward pass. The backing array is kept when the list is cleared, so a
+ * list that is reused for every query stops allocating once it has grown to fit
+ */
+public class IntList
+{
+	/** The backing array */
+	protected int[] values;
+
+	/** The number of values in the list */
+	protected int size;
+
+	/**
+	 * Creates an empty list
+	 * @param initialCapacity The number of values that fit before the list grows
+	 */
+	public IntList(int initialCapacity) {
+		values = new int[Math.max(initialCapacity, 1)];
+	}
+
+	/**
+	 * Empties the list without giving up its backing array
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Appends a value to the list
+	 * @param value The value to append
+	 */
+	public void add(int value)
+	{
+		if (size == values.length)
+			values = Arrays.copyOf(values, size * 2);
+		values[size++] = value;
+	}
+
+	/**
+	 * Appends the given integer column of every remaining row of a result set
+	 * @param rs The result set to read to its end
+	 * @param column The index of the column to read, starting at 1
+	 * @throws SQLException Thrown when the result set cannot be read
+	 */
+	public void addColumn(ResultSet rs, int column) throws SQLException
+	{
+		while (rs.next())
+			add(rs.getInt(column));
+	}
+
+	/**
+	 * Returns the value at the given position
+	 * @param index The position of the value
+	 * @return The value
+	 */
+	public int get(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Returns the number of values in the list
+	 * @return The number of values in the list
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a new array that holds the values in the list
+	 * @return The values in the list
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+}
@@ -0,0 +1,1916 @@
+package ParkNPark.middletier;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ParkNPark.interfaces.ServiceUnavailableException;
+
+/**
+ * Parking store that keeps everything in the MySQL database. A database connection
+ * is borrowed from the DatabaseManager's pool for each operation. The car counts can
+ * be kept in an in-memory occupancy engine that writes them behind, requests can be
+ * journaled before they reach the database or committed in transactions shared
+ * between clients, and lot and level lookups are served from a cached topology.
+ * Otherwise the car counts in the database are updated with conditional updates or,
+ * with optimistic locking, with version checks
+ */
+public class JdbcParkingStore implements ParkingStore
+{
+	/** Statements used for duplicate message detection */
+	protected static final String CHECK_DUPLICATE_SQL = "SELECT Seq FROM Client WHERE ClientID = ? AND Seq >= ?";
+
+	/** Conditional update that adds a car to a lot that has room, adds it to the lot's entry
+	 *  level and records the request in the client's row, all in one round trip. It matches
+	 *  no rows if the lot is full or unknown or if the request was already applied */
+	protected static final String ENTER_LOT_SQL = "UPDATE Lot L, Level V, Client C "
+		+ "SET L.CarCount = L.CarCount + 1, V.CarCount = V.CarCount + 1, C.Seq = ?, C.LotID = ?, C.Level = 1 "
+		+ "WHERE L.ID = ? AND L.CarCount < L.Capacity AND V.LotID = L.ID AND V.Level = 1 "
+		+ "AND C.ClientID = ? AND C.Seq < ?";
+
+	/** The levels of a lot that have available spaces */
+	protected static final String AVAILABLE_LEVELS_SQL = "SELECT Level FROM Level WHERE LotID = ? AND CarCount < Capacity ORDER BY Level";
+
+	/** Conditional update that removes a car from a lot and its exit level and records the
+	 *  request in the client's row. It matches no rows if the request was already applied */
+	protected static final String EXIT_LOT_SQL = "UPDATE Lot L, Level V, Client C "
+		+ "SET L.CarCount = IF(L.CarCount > 0, L.CarCount - 1, 0), V.CarCount = IF(V.CarCount > 0, V.CarCount - 1, 0), "
+		+ "C.Seq = ?, C.LotID = NULL, C.Level = NULL "
+		+ "WHERE L.ID = ? AND V.LotID = L.ID AND V.Level = 1 AND C.ClientID = ? AND C.Seq < ?";
+
+	/** Conditional update that moves a car from one level of a lot to another and records
+	 *  the request in the client's row. It matches no rows if the destination level does
+	 *  not exist or if the request was already applied */
+	protected static final String MOVE_LEVEL_SQL = "UPDATE Level F, Level T, Client C "
+		+ "SET F.CarCount = IF(F.CarCount > 0, F.CarCount - 1, 0), T.CarCount = T.CarCount + 1, C.Seq = ?, C.Level = ? "
+		+ "WHERE F.LotID = ? AND F.Level = ? AND T.LotID = F.LotID AND T.Level = ? AND C.ClientID = ? AND C.Seq < ?";
+
+	/** Conditional update that records a request in the client's row when the occupancy
+	 *  engine keeps the car counts. It matches no rows if the request was already applied */
+	protected static final String UPDATE_CLIENT_SQL = "UPDATE Client SET Seq = ?, LotID = ?, Level = ? "
+		+ "WHERE ClientID = ? AND Seq < ?";
+
+	/** Conditional update that admits a car against this server's capacity lease on the
+	 *  lot, adds it to the lot's entry level and records the request in the client's row,
+	 *  without touching the lot's row, whose count already holds the leased spaces. It
+	 *  matches no rows if the lease was revoked or the request was already applied */
+	protected static final String LEASED_ENTER_LOT_SQL = "UPDATE Client C, Lease S, Level V "
+		+ "SET S.Free = S.Free - 1, V.CarCount = V.CarCount + 1, C.Seq = ?, C.LotID = ?, C.Level = 1 "
+		+ "WHERE S.LotID = ? AND S.Server = ? AND S.Free > 0 AND V.LotID = S.LotID AND V.Level = 1 "
+		+ "AND C.ClientID = ? AND C.Seq < ?";
+
+	/** Conditional update that gives the space of an exiting car to this server's
+	 *  capacity lease on the lot, takes the car off the lot's exit level and records the
+	 *  request in the client's row. It matches no rows if the lease was revoked or the
+	 *  request was already applied */
+	protected static final String LEASED_EXIT_LOT_SQL = "UPDATE Client C, Lease S, Level V "
+		+ "SET S.Free = S.Free + 1, V.CarCount = IF(V.CarCount > 0, V.CarCount - 1, 0), "
+		+ "C.Seq = ?, C.LotID = NULL, C.Level = NULL "
+		+ "WHERE S.LotID = ? AND S.Server = ? AND V.LotID = S.LotID AND V.Level = 1 AND C.ClientID = ? AND C.Seq < ?";
+
+	/** Lock-free read of a lot and its entry level for optimistic locking. The level's
+	 *  version is NULL if the lot has no entry level */
+	protected static final String READ_LOT_SQL = "SELECT L.CarCount, L.Capacity, L.Version, V.Version "
+		+ "FROM Lot L LEFT JOIN Level V ON V.LotID = L.ID AND V.Level = 1 WHERE L.ID = ?";
+
+	/** Lock-free read of two levels of a lot for optimistic locking */
+	protected static final String READ_LEVELS_SQL = "SELECT Level, Version FROM Level WHERE LotID = ? AND Level IN (?, ?)";
+
+	/** ENTER_LOT_SQL for optimistic locking, which also only matches while the lot and
+	 *  its entry level are still at the versions that were read */
+	protected static final String VERSIONED_ENTER_LOT_SQL = "UPDATE Lot L, Level V, Client C "
+		+ "SET L.CarCount = L.CarCount + 1, L.Version = L.Version + 1, V.CarCount = V.CarCount + 1, V.Version = V.Version + 1, "
+		+ "C.Seq = ?, C.LotID = ?, C.Level = 1 "
+		+ "WHERE L.ID = ? AND L.Version = ? AND L.CarCount < L.Capacity AND V.LotID = L.ID AND V.Level = 1 AND V.Version = ? "
+		+ "AND C.ClientID = ? AND C.Seq < ?";
+
+	/** EXIT_LOT_SQL for optimistic locking */
+	protected static final String VERSIONED_EXIT_LOT_SQL = "UPDATE Lot L, Level V, Client C "
+		+ "SET L.CarCount = IF(L.CarCount > 0, L.CarCount - 1, 0), L.Version = L.Version + 1, "
+		+ "V.CarCount = IF(V.CarCount > 0, V.CarCount - 1, 0), V.Version = V.Version + 1, "
+		+ "C.Seq = ?, C.LotID = NULL, C.Level = NULL "
+		+ "WHERE L.ID = ? AND L.Version = ? AND V.LotID = L.ID AND V.Level = 1 AND V.Version = ? "
+		+ "AND C.ClientID = ? AND C.Seq < ?";
+
+	/** MOVE_LEVEL_SQL for optimistic locking */
+	protected static final String VERSIONED_MOVE_LEVEL_SQL = "UPDATE Level F, Level T, Client C "
+		+ "SET F.CarCount = IF(F.CarCount > 0, F.CarCount - 1, 0), F.Version = F.Version + 1, "
+		+ "T.CarCount = T.CarCount + 1, T.Version = T.Version + 1, C.Seq = ?, C.Level = ? "
+		+ "WHERE F.LotID = ? AND F.Level = ? AND F.Version = ? AND T.LotID = F.LotID AND T.Level = ? AND T.Version = ? "
+		+ "AND C.ClientID = ? AND C.Seq < ?";
+
+	/** The query that is run during database pokes */
+	protected static final String POKE_SQL = "SELECT 1";
+
+	/** Longest time in milliseconds to wait for the journal to reach the database when fencing */
+	protected static final long JOURNAL_DRAIN_TIMEOUT = 5000;
+
+	/** Flags used to print out the status of lots and levels */
+	protected static final boolean PRINT_LOTS_STATUS = false;
+	protected static final boolean PRINT_LEVELS_STATUS = false;
+
+	/** Our database manager instance */
+	protected DatabaseManager databaseManager;
+
+	/** Our in-memory occupancy engine, or null if the car counts are kept in the database */
+	protected OccupancyEngine occupancyEngine;
+
+	/** Our operation journal, or null if operations are committed to the database directly.
+	 *  The occupancy engine is always present when the journal is */
+	protected OperationJournal journal;
+
+	/** Applies our operation journal to the database, or null if there is no journal */
+	protected JournalApplier journalApplier;
+
+	/** The folder of our operation journal, or null if there is no journal */
+	protected File journalDirectory;
+
+	/** The number of records replayed from each segment of the other servers' journals,
+	 *  by the journals' folders */
+	protected Map<File, Map<Long, Integer>> otherJournals = new HashMap<File, Map<Long, Integer>>();
+
+	/** Our commit coordinator, or null if every request commits its own transaction */
+	protected CommitCoordinator commitCoordinator;
+
+	/** The batch whose transaction each thread's requests join while it is in runBatch() */
+	protected ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+
+	/** Our cache of the lot topology */
+	protected TopologyCache topologyCache;
+
+	/** Statement that makes new client IDs fall into this store's series, or null if
+	 *  the database may hand out any client ID */
+	protected String clientIDSeriesSQL;
+
+	/** True to read lots and levels without locks and update them only if their Version
+	 *  columns have not changed, or false to use conditional updates */
+	protected boolean optimisticLocking;
+
+	/** Update attempts and conflicts of each lot, when the database keeps the car counts */
+	protected LotContention contention = new LotContention();
+
+	/** Decides which failed database operations are retried and how long to wait first */
+	protected RetryPolicy retryPolicy = new RetryPolicy();
+
+	/** Our capacity leases, or null if cars are admitted against the lots' rows */
+	protected CapacityLeaseManager leases;
+
+	/**
+	 * Creates a store that commits every request to the database directly
+	 * @param jdbcURL The JDBC URL to use in the database connection
+	 * @param jdbcUsername The username to use in the database connection
+	 * @param jdbcPassword The password to use in the database connection
+	 * @throws SQLException Thrown when a problem prevents a connection
+	 * to the database
+	 */
+	public JdbcParkingStore(String jdbcURL, String jdbcUsername, String jdbcPassword) throws SQLException
+	{
+		connect(jdbcURL, jdbcUsername, jdbcPassword);
+		this.topologyCache = new TopologyCache(databaseManager, TopologyCache.DEFAULT_REFRESH_INTERVAL);
+	}
+
+	/**
+	 * Creates a store
+	 * @param jdbcURL The JDBC URL to use in the database connection
+	 * @param jdbcUsername The username to use in the database connection
+	 * @param jdbcPassword The password to use in the database connection
+	 * @param useOccupancyEngine True to keep the car counts in an in-memory
+	 * occupancy engine that writes them to the database in the background
+	 * @param journalDirectory The folder of the operation journal that mutating
+	 * operations are recorded in before they reach the database, or null to commit
+	 * them to the database directly. The journal implies the occupancy engine. The
+	 * journals of the other servers sit in the folders next to it, and what they have
+	 * not applied yet is replayed before this server restores clients or loads the
+	 * car counts
+	 * @param useGroupCommit True to commit the requests of many clients together
+	 * in shared transactions
+	 * @param topologyRefreshInterval The time in milliseconds between reloads of the
+	 * cached lot topology, or 0 to only reload it when asked to
+	 * @throws SQLException Thrown when a problem prevents a connection
+	 * to the database
+	 * @throws IOException Thrown when the operation journal cannot be opened
+	 */
+	public JdbcParkingStore(String jdbcURL, String jdbcUsername, String jdbcPassword, boolean useOccupancyEngine,
+			String journalDirectory, boolean useGroupCommit, long topologyRefreshInterval) throws SQLException, IOException
+	{
+		connect(jdbcURL, jdbcUsername, jdbcPassword);
+
+		// Open the journal and apply whatever a previous run left in it before
+		// the car counts are loaded
+		if (journalDirectory != null) {
+			this.journalDirectory = new File(journalDirectory).getAbsoluteFile();
+			this.journal = new OperationJournal(this.journalDirectory, OperationJournal.DEFAULT_SEGMENT_RECORDS,
+					OperationJournal.DEFAULT_GROUP_COMMIT_INTERVAL, OperationJournal.DEFAULT_GROUP_COMMIT_SIZE);
+			this.journalApplier = new JournalApplier(journal, databaseManager, JournalApplier.DEFAULT_BATCH_SIZE);
+			journalApplier.start();
+			while (!journalApplier.drain(JOURNAL_DRAIN_TIMEOUT))
+				System.out.println("Waiting for the recovered journal records to reach the database");
+		}
+
+		// Load the car counts into memory if we are keeping them there; the journal
+		// applier writes them to the database when there is a journal
+		if (useOccupancyEngine || journal != null)
+			this.occupancyEngine = new OccupancyEngine(databaseManager,
+					journal != null ? 0 : OccupancyEngine.DEFAULT_FLUSH_INTERVAL);
+
+		// Share transactions between clients if asked to
+		if (useGroupCommit)
+			this.commitCoordinator = new CommitCoordinator(databaseManager, CommitCoordinator.DEFAULT_MAX_BATCH_SIZE,
+					CommitCoordinator.DEFAULT_MAX_WINDOW);
+
+		// Serve lot and level lookups from memory
+		this.topologyCache = new TopologyCache(databaseManager, topologyRefreshInterval);
+	}
+
+	/**
+	 * Creates the database manager and checks that it can connect
+	 * @param jdbcURL The JDBC URL to use in the database connection
+	 * @param jdbcUsername The username to use in the database connection
+	 * @param jdbcPassword The password to use in the database connection
+	 * @throws SQLException Thrown when a problem prevents a connection
+	 * to the database
+	 */
+	protected void connect(String jdbcURL, String jdbcUsername, String jdbcPassword) throws SQLException
+	{
+		this.databaseManager = new DatabaseManager(jdbcURL, jdbcUsername, jdbcPassword);
+
+		// Borrow and return a connection once so that configuration problems
+		// are reported at startup rather than on the first client request
+		databaseManager.releaseConnection(databaseManager.getConnection());
+	}
+
+	/**
+	 * Makes the database hand out client IDs of the form offset + n * stride only, so
+	 * that stores sharing a client ID space never hand out the same ID
+	 * @param stride The distance between client IDs
+	 * @param offset The first client ID, which must be between 1 and stride
+	 */
+	public void setClientIDSeries(int stride, int offset) {
+		clientIDSeriesSQL = "SET SESSION auto_increment_increment = " + stride + ", auto_increment_offset = " + offset;
+	}
+
+	/**
+	 * Chooses how the car counts in the database are protected from concurrent
+	 * requests. Optimistic locking needs a Version column in the Lot and Level tables:
+	 * <pre>
+	 * ALTER TABLE Lot ADD Version BIGINT NOT NULL DEFAULT 0;
+	 * ALTER TABLE Level ADD Version BIGINT NOT NULL DEFAULT 0;
+	 * </pre>
+	 * It only applies when the occupancy engine does not keep the car counts
+	 * @param optimisticLocking True to read lots and levels without locks and update
+	 * them only if their versions have not changed, retrying with backoff when they
+	 * have, or false to lock them with conditional updates
+	 */
+	public void setOptimisticLocking(boolean optimisticLocking) {
+		this.optimisticLocking = optimisticLocking;
+	}
+
+	/**
+	 * Makes this server lease blocks of free spaces from the lots and admit cars
+	 * against its leases, as described in CapacityLeaseManager. It only applies when
+	 * the car counts in the database are updated with conditional updates, since the
+	 * occupancy engine admits cars in memory already and version checks would need
+	 * every lease change to bump the versions
+	 * @param serverName The name that the replication manager knows this server by
+	 * @param blockSize The number of spaces to lease at a time
+	 * @throws SQLException Thrown when the leases that a previous run of this server
+	 * left behind cannot be revoked
+	 */
+	public void setCapacityLeases(String serverName, int blockSize) throws SQLException
+	{
+		if (occupancyEngine != null || optimisticLocking) {
+			System.err.println("Capacity leases only work with conditional updates of the car counts; ignoring them");
+			return;
+		}
+		this.leases = new CapacityLeaseManager(databaseManager, serverName, blockSize,
+				CapacityLeaseManager.DEFAULT_LEASE_DURATION);
+	}
+
+	public ClientSession createSession() throws ServiceUnavailableException
+	{
+		syncOccupancyEngine();
+
+		RetryPolicy.Retry retry = retryPolicy.start();
+		do
+		{	Connection conn = null;
+			try
+			{	// Borrow a database connection
+				conn = databaseManager.getConnection();
+
+				// Create a new client id
+				if (clientIDSeriesSQL != null)
+					databaseManager.prepareStatement(conn, clientIDSeriesSQL).execute();
+				databaseManager.prepareStatement(conn, "INSERT INTO Client (Seq, LotID, Level) VALUES(0, null, null)").executeUpdate();
+				ResultSet rs = databaseManager.prepareStatement(conn, "SELECT last_insert_id() ClientID").executeQuery();
+				if (rs.next())
+				{	ClientSession session = new ClientSession(rs.getInt("ClientID"), 0, -1, -1);
+					session.seqVerified = true;
+					rs.close();
+					conn.commit();
+					return session;
+				}
+				else
+				{	rs.close();
+					conn.rollback();
+					retry.failed(RetryPolicy.CONFLICT);
+				}
+			}
+			catch (SQLException e)
+			{	conn = abandon(conn, retry.failed(e), "creating new client id");
+			}
+			finally
+			{	databaseManager.releaseConnection(conn);
+			}
+		} while (retry.backOff());
+
+		// If the retries are used up, throw exception
+		System.err.println("JdbcParkingStore-createSession(): Failed to execute commands on database after " + retry + ".");
+		throw new ServiceUnavailableException("Could not create new client id.");
+	}
+
+	public ClientSession loadSession(int clientID) throws ServiceUnavailableException
+	{
+		syncOccupancyEngine();
+
+		// The client's row must reflect every operation that we journaled for it
+		if (journalApplier != null && !journalApplier.drain(JOURNAL_DRAIN_TIMEOUT))
+			throw new ServiceUnavailableException("The operation journal has not reached the database yet.");
+
+		RetryPolicy.Retry retry = retryPolicy.start();
+		do
+		{	Connection conn = null;
+			try
+			{	// Borrow a database connection
+				conn = databaseManager.getConnection();
+
+				// Check if valid client id
+				PreparedStatement ps = databaseManager.prepareStatement(conn, "SELECT Seq, LotID, Level FROM Client WHERE ClientID = ?");
+				ps.setInt(1, clientID);
+				ResultSet rs = ps.executeQuery();
+
+				if (rs.next())
+				{	// Store client's id and sequence number
+					int lot = rs.getInt("LotID");
+					if (rs.wasNull())
+						lot = -1;
+					int level = rs.getInt("Level");
+					if (rs.wasNull())
+						level = -1;
+					ClientSession session = new ClientSession(clientID, rs.getInt("Seq"), lot, level);
+					rs.close();
+					conn.commit();
+					return session;
+				}
+				else
+				{	rs.close();
+					conn.rollback();
+					return null;
+				}
+			}
+			catch (SQLException e)
+			{	conn = abandon(conn, retry.failed(e), "creating existing client");
+			}
+			finally
+			{	databaseManager.releaseConnection(conn);
+			}
+		} while (retry.backOff());
+
+		// If the retries are used up, throw exception
+		System.err.println("JdbcParkingStore-loadSession(): Failed to execute commands on database after " + retry + ".");
+		throw new ServiceUnavailableException("Could not create existing client.");
+	}
+
+	public int enterLot(ClientSession session, int seq, int lot) throws ServiceUnavailableException
+	{
+		if (journal != null)
+			return journaledEnterLot(session, seq, lot);
+
+		EnterLotRequest request = new EnterLotRequest(session, seq, lot);
+		perform(request, "entering lot", "enter lot");
+
+		// With the changes committed, update the cached values
+		if (request.outcome == APPLIED || request.outcome == ALREADY_COMPLETED) {
+			if (request.outcome == APPLIED)
+				session.seqVerified = true;
+			session.update(seq, lot, 1);
+		}
+		if (request.availLevels != null)
+			session.availableLevels = request.availLevels;
+		return request.outcome;
+	}
+
+	public int exitLot(ClientSession session, int seq) throws ServiceUnavailableException
+	{
+		if (journal != null)
+			return journaledExitLot(session, seq);
+
+		ExitLotRequest request = new ExitLotRequest(session, seq);
+		perform(request, "exiting lock", "exit lot");
+
+		// The lease only gets the car's space once the exit is committed
+		if (request.leaseReturned) {
+			Batch batch = batches.get();
+			if (batch != null)
+				batch.returnedLeases.add(session.lot);
+			else
+				leases.returned(session.lot);
+		}
+
+		// With the changes committed, update the cached values
+		if (request.outcome == APPLIED || request.outcome == ALREADY_COMPLETED) {
+			if (request.outcome == APPLIED)
+				session.seqVerified = true;
+			session.update(seq, -1, -1);
+		}
+		return request.outcome;
+	}
+
+	public int moveLevel(ClientSession session, int seq, int direction) throws ServiceUnavailableException
+	{
+		if (journal != null)
+			return journaledMoveLevel(session, seq, direction);
+
+		MoveLevelRequest request = new MoveLevelRequest(session, seq, direction);
+		String name = direction > 0 ? "up" : "down";
+		perform(request, "moving " + name + " level", "move " + name + " level");
+
+		// With changes committed, update the cached values
+		if (request.outcome == APPLIED) {
+			session.seqVerified = true;
+			session.update(seq, session.lot, request.toLevel);
+		}
+		else if (request.outcome == ALREADY_COMPLETED)
+			session.update(seq, request.completedLot, request.completedLevel);
+		return request.outcome;
+	}
+
+	public <T> T runBatch(ClientSession session, DatabaseStage.Task<T> batch) throws ServiceUnavailableException
+	{
+		// Journaled requests already share their syncs, and a nested batch joins its outer one
+		if (journal != null || batches.get() != null)
+			return batch.run();
+
+		Batch transaction = new Batch(session);
+		try {
+			transaction.conn = databaseManager.getConnection();
+		} catch (SQLException e) {
+			System.err.println("Could not start a batch's transaction; applying its requests one at a time: " + e.getMessage());
+			return batch.run();
+		}
+
+		// Apply the requests in the transaction and commit them together
+		SQLException failure = null;
+		boolean committed = false;
+		batches.set(transaction);
+		try {
+			T result = batch.run();
+			transaction.conn.commit();
+			committed = true;
+			for (int lot : transaction.returnedLeases)
+				leases.returned(lot);
+			return result;
+		} catch (SQLException e) {
+			failure = e;
+		} catch (ServiceUnavailableException e) {
+			// A request that failed on its own is made again alone, where it fails for good
+			failure = transaction.failure != null ? transaction.failure : new SQLException(e.message);
+		} finally {
+			batches.remove();
+			if (!committed)
+				transaction.rollBack(failure == null ? RetryPolicy.FATAL : RetryPolicy.classify(failure));
+			databaseManager.releaseConnection(transaction.conn);
+		}
+
+		// Nothing of the batch was kept, so apply its requests one at a time
+		System.err.println("A batch's transaction failed; applying its requests one at a time: " + failure.getMessage());
+		return batch.run();
+	}
+
+	public int[] getLots() {
+		// The lots come from the cached topology, so no database access is needed
+		return topologyCache.getTopology().getLots();
+	}
+
+	public int[] getLevels(int lot) throws ServiceUnavailableException
+	{
+		// The levels come from the cached topology, which only goes to the database
+		// if the lot is newer than the cached topology
+		try {
+			return topologyCache.getLevels(lot);
+		} catch (SQLException e) {
+			System.err.println("Could not reload the lot topology: " + e.getMessage());
+			throw new ServiceUnavailableException("Could not get the lot's levels.");
+		}
+	}
+
+	public int[] getOtherLotAvailability(int lot) throws ServiceUnavailableException
+	{
+		// The neighbours come from the cached topology, nearest first
+		NearestLotIndex nearestLots;
+		try
+		{	nearestLots = topologyCache.getNearestLots(lot);
+		}
+		catch (SQLException e)
+		{	System.err.println("Could not reload the lot topology: " + e.getMessage());
+			throw new ServiceUnavailableException("Could not get other lot availability.");
+		}
+		if (nearestLots == null)
+			return null;
+
+		// The occupancy engine knows which lots have room without asking the database
+		if (occupancyEngine != null)
+			return nearestLots.getAvailableNeighbours(lot, occupancyEngine.getAvailability());
+
+		int[] lots = topologyCache.getTopology().getLots();
+		LotAvailability availability = new LotAvailability(lots.length > 0 ? lots[lots.length - 1] : 0);
+		findAvailableLots(availability);
+		return nearestLots.getAvailableNeighbours(lot, availability);
+	}
+
+	/**
+	 * Marks the lots of this database that have room in the given bitset
+	 * @param availability The bitset to mark the lots in, which may be shared with
+	 * other stores that are marking theirs at the same time
+	 * @throws ServiceUnavailableException Thrown when the lots cannot be queried
+	 */
+	public void findAvailableLots(LotAvailability availability) throws ServiceUnavailableException
+	{
+		RetryPolicy.Retry retry = retryPolicy.start();
+		do
+		{
+			Connection conn = null;
+			try
+			{	conn = databaseManager.getConnection();
+
+				// Find out which lots have room
+				PreparedStatement availableLots = databaseManager.prepareQuery(conn, "SELECT ID FROM Lot WHERE CarCount < Capacity");
+				ResultSet rs = availableLots.executeQuery();
+				while (rs.next())
+					availability.setAvailable(rs.getInt(1), true);
+				rs.close();
+				conn.commit();
+				return;
+			}
+			catch (SQLException e)
+			{	retry.failed(e);
+				databaseManager.discardConnection(conn);
+				conn = null;
+			}
+			finally
+			{	databaseManager.releaseConnection(conn);
+			}
+		} while (retry.backOff());
+
+		// If the retries are used up, throw exception
+		System.err.println("Failed to execute commands on database after " + retry + ".");
+		throw new ServiceUnavailableException("Could not get other lot availability.");
+	}
+
+	public int[] getFreeSpaces(int[] lots) throws ServiceUnavailableException
+	{
+		int[] freeSpaces = new int[lots.length];
+		Arrays.fill(freeSpaces, -1);
+		readFreeSpaces(lots, freeSpaces);
+		return freeSpaces;
+	}
+
+	/**
+	 * Reads the number of free spaces of the given lots that this database has,
+	 * leaving the entries of the other lots alone
+	 * @param lots The IDs of the lots
+	 * @param freeSpaces The number of free spaces of each lot, in the order of the IDs,
+	 * which may be shared with other stores that are reading theirs at the same time
+	 * @throws ServiceUnavailableException Thrown when the lots cannot be queried
+	 */
+	public void readFreeSpaces(int[] lots, int[] freeSpaces) throws ServiceUnavailableException
+	{
+		// The occupancy engine has the counts without asking the database
+		if (occupancyEngine != null) {
+			for (int i = 0; i < lots.length; i++) {
+				int free = occupancyEngine.getFreeSpaces(lots[i]);
+				if (free >= 0)
+					freeSpaces[i] = free;
+			}
+			return;
+		}
+
+		Map<Integer, Integer> positions = new HashMap<Integer, Integer>(lots.length * 2);
+		for (int i = 0; i < lots.length; i++)
+			positions.put(lots[i], i);
+		RetryPolicy.Retry retry = retryPolicy.start();
+		do
+		{
+			Connection conn = null;
+			try
+			{	conn = databaseManager.getConnection();
+
+				// Read every lot's count in one query; there are far fewer lots than clients
+				PreparedStatement lotCounts = databaseManager.prepareQuery(conn, "SELECT ID, Capacity - CarCount FROM Lot");
+				ResultSet rs = lotCounts.executeQuery();
+				while (rs.next()) {
+					Integer position = positions.get(rs.getInt(1));
+					if (position != null)
+						freeSpaces[position] = Math.max(0, rs.getInt(2));
+				}
+				rs.close();
+				conn.commit();
+				return;
+			}
+			catch (SQLException e)
+			{	retry.failed(e);
+				databaseManager.discardConnection(conn);
+				conn = null;
+			}
+			finally
+			{	databaseManager.releaseConnection(conn);
+			}
+		} while (retry.backOff());
+
+		// If the retries are used up, throw exception
+		System.err.println("Failed to execute commands on database after " + retry + ".");
+		throw new ServiceUnavailableException("Could not get the free spaces of the lots.");
+	}
+
+	public void poke() throws ServiceUnavailableException
+	{
+		RetryPolicy.Retry retry = retryPolicy.start();
+		do
+		{
+			Connection conn = null;
+			try
+			{
+				// Attempt to run the poke query on a pooled connection
+				conn = databaseManager.getConnection();
+				PreparedStatement pokeStatement = databaseManager.prepareStatement(conn, POKE_SQL);
+				pokeStatement.execute();
+
+				// Get the result set and immediately close it
+				pokeStatement.getResultSet().close();
+				return;
+			}
+			catch (SQLException e)
+			{	retry.failed(e);
+				databaseManager.discardConnection(conn);
+				conn = null;
+			}
+			finally
+			{	databaseManager.releaseConnection(conn);
+			}
+		} while (retry.backOff());
+
+		// If the retries are used up, throw exception
+		System.err.println("JdbcParkingStore-poke(): Failed to execute commands on database after " + retry + ".");
+		throw new ServiceUnavailableException("Could not create connection.");
+	}
+
+	public void refreshTopology()
+	{
+		try {
+			topologyCache.refresh();
+			System.out.println("Lot topology reloaded; now at version " + topologyCache.getVersion());
+		} catch (SQLException e) {
+			System.err.println("SQLException while reloading the lot topology: " + e.getMessage());
+			System.err.println("Still serving version " + topologyCache.getVersion());
+		}
+	}
+
+	/**
+	 * Writes the occupancy engine's pending car counts, or the journal's pending
+	 * operations, to the database
+	 */
+	public void fence()
+	{
+		// Hand our leased spaces back so that the next primary can use them
+		if (leases != null)
+			leases.release();
+		if (journalApplier != null) {
+			if (!journalApplier.drain(JOURNAL_DRAIN_TIMEOUT))
+				System.err.println("The operation journal did not reach the database in time; it will be replayed on restart");
+			return;
+		}
+		if (occupancyEngine == null)
+			return;
+		try {
+			occupancyEngine.fence();
+		} catch (SQLException e) {
+			System.err.println("SQLException while writing the car counts to the database: " + e.getMessage());
+			System.err.println("Recent car count changes might be permanently lost");
+		}
+	}
+
+	public void hose()
+	{
+		// Write out the car counts while we still can so that the next primary sees them
+		fence();
+		databaseManager.hoseConnection();
+		System.out.println("Database connection hosed");
+	}
+
+	public void printStatistics()
+	{
+		System.out.println("Database connections: " + databaseManager.getBorrowedCount() + " borrowed, "
+				+ databaseManager.getIdleCount() + " idle; statement cache: "
+				+ databaseManager.getStatementCacheHits() + " hits, "
+				+ databaseManager.getStatementCacheMisses() + " misses");
+		System.out.println("Lot topology: version " + topologyCache.getVersion() + ", loaded "
+				+ topologyCache.getAge() + "ms ago");
+		if (occupancyEngine == null)
+			contention.print(optimisticLocking ? "optimistic" : "pessimistic", 10);
+		else
+			System.out.println("Occupancy engine: hot lots " + Arrays.toString(occupancyEngine.getStripedLots()));
+		if (leases != null)
+			leases.printStatistics();
+		retryPolicy.printStatistics();
+		if (commitCoordinator != null)
+			System.out.println("Group commit: " + commitCoordinator.getBatchCount() + " batches, "
+					+ String.format("%.1f", commitCoordinator.getAverageBatchSize()) + " requests per batch on average, "
+					+ commitCoordinator.getLargestBatchSize() + " at most; "
+					+ commitCoordinator.getAverageCommitLatency() + "us average commit latency; "
+					+ commitCoordinator.getFailedBatchCount() + " batches retried one request at a time");
+	}
+
+	/**
+	 * Reloads the occupancy engine's car counts if this server has not served any
+	 * requests yet, which picks up the cars of the previous primary from the
+	 * clients' rows, including the ones whose counts it had not written yet. With a
+	 * journal, the requests that the other servers journaled are replayed first
+	 * @throws ServiceUnavailableException Thrown when the car counts cannot be loaded
+	 */
+	protected void syncOccupancyEngine() throws ServiceUnavailableException
+	{
+		if (occupancyEngine == null)
+			return;
+		replayOtherJournals();
+		try {
+			occupancyEngine.sync();
+		} catch (SQLException e) {
+			System.err.println("Could not load the car counts into the occupancy engine: " + e.getMessage());
+			throw new ServiceUnavailableException("Could not load the car counts.");
+		}
+	}
+
+	/**
+	 * Applies the records of the other servers' journals that have not been replayed
+	 * yet. A server acknowledges a request once it is in its journal, so a server that
+	 * took over could otherwise restore a client from a row that is missing requests,
+	 * which the old server's applier would then skip. Records that their server
+	 * applied already match no client's row and change nothing
+	 * @throws ServiceUnavailableException Thrown when a journal cannot be read or applied
+	 */
+	protected void replayOtherJournals() throws ServiceUnavailableException
+	{
+		if (journal == null)
+			return;
+		File[] folders = journalDirectory.getParentFile().listFiles();
+		if (folders == null)
+			return;
+
+		synchronized (otherJournals) {
+			for (File folder : folders) {
+				if (!folder.isDirectory() || folder.equals(journalDirectory))
+					continue;
+				Map<Long, Integer> read = otherJournals.get(folder);
+				if (read == null) {
+					read = new HashMap<Long, Integer>();
+					otherJournals.put(folder, read);
+				}
+
+				// Apply the new records in batches, counting each batch once it is in
+				try {
+					List<OperationJournal.Record> records = OperationJournal.readOther(folder, read);
+					for (int i = 0; i < records.size(); i += JournalApplier.DEFAULT_BATCH_SIZE) {
+						List<OperationJournal.Record> batch = records.subList(i,
+								Math.min(records.size(), i + JournalApplier.DEFAULT_BATCH_SIZE));
+						journalApplier.apply(batch);
+						for (OperationJournal.Record record : batch) {
+							Integer count = read.get(record.segment);
+							read.put(record.segment, count == null ? 1 : count + 1);
+						}
+					}
+					if (!records.isEmpty())
+						System.out.println("Replayed " + records.size() + " records of the operation journal in " + folder);
+				} catch (IOException e) {
+					System.err.println("Could not read the operation journal in " + folder + ": " + e.getMessage());
+					throw new ServiceUnavailableException("Could not read another server's operation journal.");
+				} catch (SQLException e) {
+					System.err.println("Could not replay the operation journal in " + folder + ": " + e.getMessage());
+					throw new ServiceUnavailableException("Could not replay another server's operation journal.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a mutating request's database work and commits it, either in a transaction
+	 * of its own or, with the commit coordinator, in a transaction shared with other
+	 * clients' requests. Failed attempts are retried as the retry policy allows
+	 * @param request The request's database work
+	 * @param doing What the request does, for the rollback failure message
+	 * @param action What the request does, for the failure message
+	 * @throws ServiceUnavailableException Thrown when the request could not be committed
+	 */
+	protected void perform(CommitCoordinator.Mutation request, String doing, String action) throws ServiceUnavailableException
+	{
+		// Count the updates of each lot when the database keeps its car count
+		int lot = request instanceof Request && occupancyEngine == null ? ((Request) request).getLot() : -1;
+		RetryPolicy.Retry retry = retryPolicy.start();
+		do
+		{
+			if (lot != -1)
+				contention.attempted(lot);
+
+			// The coordinator rolls back on its own connection
+			if (commitCoordinator != null)
+			{	try
+				{	commitCoordinator.execute(request);
+					return;
+				}
+				catch (SQLException e)
+				{	countConflict(retry.failed(e), lot);
+					continue;
+				}
+			}
+
+			// Inside a batch, the request joins the batch's transaction, which commits
+			// or fails as a whole
+			Batch batch = batches.get();
+			if (batch != null)
+			{	try
+				{	request.apply(batch.conn);
+					batch.applied.add(request);
+					return;
+				}
+				catch (SQLException e)
+				{	request.rolledBack();
+					batch.failure = e;
+					throw new ServiceUnavailableException("Could not " + action + " in the batch's transaction.");
+				}
+			}
+
+			Connection conn = null;
+			try
+			{	conn = databaseManager.getConnection();
+				request.apply(conn);
+				conn.commit();
+				return;
+			}
+			catch (SQLException e)
+			{	request.rolledBack();
+				int failure = retry.failed(e);
+				countConflict(failure, lot);
+				conn = abandon(conn, failure, doing);
+			}
+			finally
+			{	databaseManager.releaseConnection(conn);
+			}
+		} while (retry.backOff());
+
+		// If the retries are used up, throw exception
+		System.err.println("Failed to execute commands on database after " + retry + ".");
+		throw new ServiceUnavailableException("Could not " + action + ".");
+	}
+
+	/**
+	 * Gets a failed attempt's connection ready to go back to the pool: it is rolled
+	 * back or, if it was lost, discarded, since the database has rolled it back already
+	 * @param conn The connection, or null if none was borrowed
+	 * @param failure The class of the failure
+	 * @param doing What the attempt did, for the rollback failure message
+	 * @return The connection to release, or null if it was discarded
+	 * @throws ServiceUnavailableException Thrown when the connection could not be
+	 * rolled back
+	 */
+	protected Connection abandon(Connection conn, int failure, String doing) throws ServiceUnavailableException
+	{
+		if (conn == null)
+			return null;
+		if (failure == RetryPolicy.CONNECTION_LOSS) {
+			databaseManager.discardConnection(conn);
+			return null;
+		}
+		try {
+			conn.rollback();
+			return conn;
+		} catch (SQLException se) {
+			databaseManager.discardConnection(conn);
+			throw new ServiceUnavailableException("Could not rollback when " + doing + ".");
+		}
+	}
+
+	/**
+	 * Counts a conflict against a lot: a version conflict with optimistic locking, or
+	 * a deadlock or lock wait timeout with pessimistic locking
+	 * @param failure The class of the failure
+	 * @param lot The lot that the transaction updated, or -1 if it is not counted
+	 */
+	protected void countConflict(int failure, int lot)
+	{
+		if (lot != -1 && failure == RetryPolicy.CONFLICT)
+			contention.conflicted(lot);
+	}
+
+	/**
+	 * The shared transaction of a client's batch of requests, and what it takes to
+	 * undo the batch if the transaction fails
+	 */
+	protected class Batch
+	{
+		/** The client's session */
+		protected ClientSession session;
+
+		/** The session's sequence number, lot and level before the batch */
+		protected int seq, lot, level;
+
+		/** Whether the session's sequence number was verified before the batch */
+		protected boolean seqVerified;
+
+		/** The session's available levels before the batch */
+		protected int[] availableLevels;
+
+		/** The connection of the transaction */
+		protected Connection conn;
+
+		/** The requests applied in the transaction so far */
+		protected List<CommitCoordinator.Mutation> applied = new ArrayList<CommitCoordinator.Mutation>();
+
+		/** The lots whose leases get the spaces of the batch's exits once it commits */
+		protected List<Integer> returnedLeases = new ArrayList<Integer>();
+
+		/** Why a request could not be applied in the transaction, or null */
+		protected SQLException failure;
+
+		/**
+		 * Starts a batch
+		 * @param session The client's session
+		 */
+		protected Batch(ClientSession session)
+		{
+			this.session = session;
+			this.seq = session.seq;
+			this.seqVerified = session.seqVerified;
+			this.lot = session.lot;
+			this.level = session.level;
+			this.availableLevels = session.availableLevels;
+		}
+
+		/**
+		 * Rolls the transaction back and undoes what its requests did outside the
+		 * database, including to the session
+		 * @param failure The class of the failure that ended the transaction
+		 * @throws ServiceUnavailableException Thrown when the connection could not be
+		 * rolled back
+		 */
+		protected void rollBack(int failure) throws ServiceUnavailableException
+		{
+			for (CommitCoordinator.Mutation request : applied)
+				request.rolledBack();
+			session.reset(session.clientID, seq, seqVerified, lot, level);
+			session.availableLevels = availableLevels;
+			conn = abandon(conn, failure, "rolling back a batch");
+		}
+	}
+
+	/**
+	 * The database work of one mutating request. It may share its transaction with other
+	 * clients' requests, so it only writes when its outcome is APPLIED or ALREADY_COMPLETED
+	 * and is applied again from scratch if its transaction is retried. It reads the
+	 * client's session but leaves updating it to the caller once the work is committed
+	 */
+	protected abstract class Request implements CommitCoordinator.Mutation
+	{
+		/** The client's session */
+		protected ClientSession session;
+
+		/** The latest sequence number of the client */
+		protected int seq;
+
+		/** The outcome of the last apply() */
+		protected int outcome;
+
+		/** True while the occupancy engine holds a change made by the last apply() */
+		protected boolean engineApplied;
+
+		/**
+		 * Creates a new request
+		 * @param session The client's session
+		 * @param seq The latest sequence number of the client
+		 */
+		protected Request(ClientSession session, int seq) {
+			this.session = session;
+			this.seq = seq;
+		}
+
+		public void rolledBack()
+		{
+			if (engineApplied) {
+				undoEngine();
+				engineApplied = false;
+			}
+		}
+
+		/**
+		 * Undoes the change that the last apply() made to the occupancy engine
+		 */
+		protected abstract void undoEngine();
+
+		/**
+		 * Returns the lot that the request updates
+		 * @return The lot ID, or -1 if the car is not in a lot
+		 */
+		protected int getLot() {
+			return session.lot;
+		}
+	}
+
+	/**
+	 * The database work of enterLot()
+	 */
+	protected class EnterLotRequest extends Request
+	{
+		/** The lot number to enter */
+		protected int lot;
+
+		/** The levels of the lot that have available spaces */
+		protected int[] availLevels;
+
+		/** The levels of the lot that have available spaces once the car has entered,
+		 *  read in the same round trip as the update, or null if they were not read */
+		protected int[] enteredLevels;
+
+		/** True while the last apply() holds a space that it took from a capacity lease */
+		protected boolean leaseTaken;
+
+		/**
+		 * Creates a new enterLot() request
+		 * @param session The client's session
+		 * @param seq The latest sequence number of the client
+		 * @param lot The lot number to enter
+		 */
+		protected EnterLotRequest(ClientSession session, int seq, int lot) {
+			super(session, seq);
+			this.lot = lot;
+		}
+
+		public void apply(Connection conn) throws SQLException
+		{
+			outcome = APPLIED;
+			engineApplied = false;
+			enteredLevels = null;
+			printLotsStatus(conn, "Before entering lot", session, seq);
+
+			// A retry of a request that we already applied changes nothing
+			if (seq <= session.seq) {
+				System.out.println("Request already completed (in enter lot)");
+				outcome = DUPLICATE;
+				availLevels = session.lot != -1 ? getAvailableLevels(conn, session, session.lot) : new int[0];
+				return;
+			}
+
+			// If the client is already in a lot, then this is either a retry of the
+			// request that put it there or a genuine AlreadyInLotException
+			if (session.lot != -1) {
+				if (!isDuplicate(conn, session, seq)) {
+					outcome = ALREADY_IN_LOT;
+					return;
+				}
+				System.out.println("Request already completed (in enter lot)");
+				outcome = ALREADY_COMPLETED;
+			}
+			else if (occupancyEngine != null)
+			{	// Claim the space in memory, then record the request in the client's row
+				int result = occupancyEngine.enter(lot);
+				if (result != OccupancyEngine.OK) {
+					outcome = result == OccupancyEngine.LOT_NOT_FOUND ? LOT_NOT_FOUND
+						: result == OccupancyEngine.LOT_FULL ? LOT_FULL : NO_SUCH_LEVEL;
+					return;
+				}
+				engineApplied = true;
+				if (!updateClient(conn, session, seq, lot, 1)) {
+					rolledBack();
+					if (!isDuplicate(conn, session, seq)) {
+						outcome = NOT_RECORDED;
+						return;
+					}
+					System.out.println("Request already completed (in enter lot)");
+					outcome = ALREADY_COMPLETED;
+				}
+			}
+			else
+			{	// Each of these reads the levels in the same round trip as its update
+				if (optimisticLocking)
+					outcome = versionedEnterLot(conn);
+				else
+					outcome = leases != null && leases.take(lot) ? leasedEnterLot(conn) : conditionalEnterLot(conn);
+				if (outcome != APPLIED && outcome != ALREADY_COMPLETED)
+					return;
+			}
+
+			availLevels = outcome == APPLIED && enteredLevels != null ? enteredLevels : getAvailableLevels(conn, session, lot);
+
+			printLotsStatus(conn, "After entering lot", session, seq);
+			printLevelsStatus(conn, "After entering lot", session, lot, seq);
+		}
+
+		/**
+		 * Enters the lot with optimistic locking: the lot and its entry level are read
+		 * without locks and only updated if nobody has changed them since
+		 * @param conn The database connection
+		 * @return APPLIED, ALREADY_COMPLETED, LOT_NOT_FOUND, LOT_FULL or NO_SUCH_LEVEL
+		 * @throws VersionConflictException Thrown when the lot changed since it was read
+		 * @throws SQLException Thrown when the read or the update fails
+		 */
+		protected int versionedEnterLot(Connection conn) throws SQLException
+		{
+			PreparedStatement readLot = databaseManager.prepareStatement(conn, READ_LOT_SQL);
+			readLot.setInt(1, lot);
+			ResultSet rs = readLot.executeQuery();
+			if (!rs.next()) {
+				rs.close();
+				return LOT_NOT_FOUND;
+			}
+			boolean full = rs.getInt(1) >= rs.getInt(2);
+			long lotVersion = rs.getLong(3), levelVersion = rs.getLong(4);
+			boolean hasEntryLevel = !rs.wasNull();
+			rs.close();
+
+			// A full lot is only taken for a new request after the read, without a lock
+			if (!full && hasEntryLevel) {
+				enteredLevels = updateWithLevels(conn, session, inline(VERSIONED_ENTER_LOT_SQL,
+						seq, lot, lot, lotVersion, levelVersion, session.clientID, seq), lot);
+				if (enteredLevels != null)
+					return APPLIED;
+			}
+			if (isDuplicate(conn, session, seq)) {
+				System.out.println("Request already completed (in enter lot)");
+				return ALREADY_COMPLETED;
+			}
+			if (full || !hasEntryLevel)
+				return full ? LOT_FULL : NO_SUCH_LEVEL;
+			throw new VersionConflictException(lot);
+		}
+
+		/**
+		 * Admits the car against the space that was taken from this server's lease on
+		 * the lot, falling back to the lot's row if the lease was revoked
+		 * @param conn The database connection
+		 * @return The outcome
+		 * @throws SQLException Thrown when the database cannot be updated
+		 */
+		protected int leasedEnterLot(Connection conn) throws SQLException
+		{
+			leaseTaken = true;
+			enteredLevels = updateWithLevels(conn, session, inline(LEASED_ENTER_LOT_SQL,
+					seq, lot, lot, leases.serverName, session.clientID, seq), lot);
+			if (enteredLevels != null)
+				return APPLIED;
+
+			leases.untake(lot);
+			leaseTaken = false;
+			if (isDuplicate(conn, session, seq)) {
+				System.out.println("Request already completed (in enter lot)");
+				return ALREADY_COMPLETED;
+			}
+			leases.revoked(lot);
+			return conditionalEnterLot(conn);
+		}
+
+		/**
+		 * Adds the car to the lot, its entry level and the client's row in a single
+		 * conditional update that only matches when the lot has room and the request
+		 * has not been applied yet
+		 * @param conn The database connection
+		 * @return The outcome
+		 * @throws SQLException Thrown when the database cannot be updated
+		 */
+		protected int conditionalEnterLot(Connection conn) throws SQLException
+		{
+			enteredLevels = updateWithLevels(conn, session, inline(ENTER_LOT_SQL,
+					seq, lot, lot, session.clientID, seq), lot);
+			if (enteredLevels != null)
+				return APPLIED;
+
+			// Nothing matched, so find out why; this only happens off the common path
+			PreparedStatement lotInfo = databaseManager.prepareStatement(conn, "SELECT CarCount, Capacity FROM Lot WHERE ID = ?");
+			lotInfo.setInt(1, lot);
+			ResultSet rs = lotInfo.executeQuery();
+			if (!rs.next()) {
+				rs.close();
+				return LOT_NOT_FOUND;
+			}
+			int carCount = rs.getInt("CarCount");
+			int capacity = rs.getInt("Capacity");
+			rs.close();
+
+			if (isDuplicate(conn, session, seq)) {
+				System.out.println("Request already completed (in enter lot)");
+				return ALREADY_COMPLETED;
+			}
+			return carCount >= capacity ? LOT_FULL : NO_SUCH_LEVEL;
+		}
+
+		public void rolledBack()
+		{
+			super.rolledBack();
+			if (leaseTaken) {
+				leases.untake(lot);
+				leaseTaken = false;
+			}
+		}
+
+		protected void undoEngine() {
+			occupancyEngine.undoEnter(lot);
+		}
+
+		protected int getLot() {
+			return lot;
+		}
+	}
+
+	/**
+	 * The database work of exitLot()
+	 */
+	protected class ExitLotRequest extends Request
+	{
+		/** True if the last apply() gave the car's space to this server's lease */
+		protected boolean leaseReturned;
+
+		/**
+		 * Creates a new exitLot() request
+		 * @param session The client's session
+		 * @param seq The latest sequence number of the client
+		 */
+		protected ExitLotRequest(ClientSession session, int seq) {
+			super(session, seq);
+		}
+
+		public void apply(Connection conn) throws SQLException
+		{
+			outcome = APPLIED;
+			engineApplied = false;
+			leaseReturned = false;
+			int lot = session.lot, level = session.level;
+			printLotsStatus(conn, "Before exiting lot", session, seq);
+			printLevelsStatus(conn, "Before exiting lot", session, lot, seq);
+
+			// A retry of a request that we already applied changes nothing
+			if (seq <= session.seq) {
+				System.out.println("Request already completed (in exit lot)");
+				outcome = DUPLICATE;
+				return;
+			}
+
+			// If we cannot exit from where we are, then this is either a retry of the
+			// request that already took us out of the lot or a genuine error
+			if (lot == -1 || level != 1)
+			{	if (isDuplicate(conn, session, seq))
+				{	System.out.println("Request already completed (in exit lot)");
+					outcome = DUPLICATE;
+				}
+				else
+					outcome = lot == -1 ? NOT_IN_LOT : NOT_ON_EXIT_LEVEL;
+				return;
+			}
+
+			// Take the car out of the lot, its exit level and the client's row in
+			// a single conditional update that only matches new requests, or record
+			// the request in the client's row and take the car out in memory
+			boolean applied;
+			if (occupancyEngine != null)
+			{	if (!occupancyEngine.hasLevel(lot, 1)) {
+					outcome = NO_SUCH_LEVEL;
+					return;
+				}
+				applied = updateClient(conn, session, seq, -1, -1);
+				if (applied) {
+					occupancyEngine.exit(lot);
+					engineApplied = true;
+				}
+			}
+			else if (optimisticLocking)
+				applied = versionedExitLot(conn, session, seq, lot);
+			else if (leases != null && leases.hasLease(lot) && leasedExitLot(conn, lot))
+				applied = leaseReturned = true;
+			else
+			{	PreparedStatement exitLot = databaseManager.prepareStatement(conn, EXIT_LOT_SQL);
+				exitLot.setInt(1, seq);
+				exitLot.setInt(2, lot);
+				exitLot.setInt(3, session.clientID);
+				exitLot.setInt(4, seq);
+				applied = exitLot.executeUpdate() > 0;
+			}
+			if (!applied)
+			{	// Nothing matched, so the request must already have been applied
+				if (!isDuplicate(conn, session, seq)) {
+					outcome = occupancyEngine != null ? NOT_RECORDED : NO_SUCH_LEVEL;
+					return;
+				}
+				System.out.println("Request already completed (in exit lot)");
+				outcome = ALREADY_COMPLETED;
+			}
+
+			printLotsStatus(conn, "After exiting lot", session, seq);
+			printLevelsStatus(conn, "After exiting lot", session, lot, seq);
+		}
+
+		/**
+		 * Gives the car's space to this server's lease on the lot and records the
+		 * request in the client's row
+		 * @param conn The database connection
+		 * @param lot The lot that the car is leaving
+		 * @return True if the exit was recorded against the lease, or false if the
+		 * request was already applied or the lease was revoked
+		 * @throws SQLException Thrown when the database cannot be updated
+		 */
+		protected boolean leasedExitLot(Connection conn, int lot) throws SQLException
+		{
+			PreparedStatement exitLot = databaseManager.prepareStatement(conn, LEASED_EXIT_LOT_SQL);
+			exitLot.setInt(1, seq);
+			exitLot.setInt(2, lot);
+			exitLot.setString(3, leases.serverName);
+			exitLot.setInt(4, session.clientID);
+			exitLot.setInt(5, seq);
+			if (exitLot.executeUpdate() > 0)
+				return true;
+			if (!isDuplicate(conn, session, seq))
+				leases.revoked(lot);
+			return false;
+		}
+
+		public void rolledBack()
+		{
+			super.rolledBack();
+			leaseReturned = false;
+		}
+
+		protected void undoEngine() {
+			occupancyEngine.undoExit(session.lot);
+		}
+	}
+
+	/**
+	 * The database work of moveUpLevel() and moveDownLevel()
+	 */
+	protected class MoveLevelRequest extends Request
+	{
+		/** 1 to move up or -1 to move down */
+		protected int direction;
+
+		/** The level that the car is moving from */
+		protected int fromLevel;
+
+		/** The level that the car is moving to */
+		protected int toLevel;
+
+		/** The lot and level that the client's row holds when the request was already
+		 *  completed by another server */
+		protected int completedLot, completedLevel;
+
+		/**
+		 * Creates a new moveUpLevel() or moveDownLevel() request
+		 * @param session The client's session
+		 * @param seq The latest sequence number of the client
+		 * @param direction 1 to move up or -1 to move down
+		 */
+		protected MoveLevelRequest(ClientSession session, int seq, int direction) {
+			super(session, seq);
+			this.direction = direction;
+		}
+
+		public void apply(Connection conn) throws SQLException
+		{
+			outcome = APPLIED;
+			engineApplied = false;
+			int lot = session.lot, level = session.level;
+			String name = direction > 0 ? "up" : "down";
+			printLevelsStatus(conn, "Before moving " + name + " one level", session, lot, seq);
+
+			// A retry of a request that we already applied changes nothing
+			if (seq <= session.seq) {
+				System.out.println("Request already completed (in move " + name + " level)");
+				outcome = DUPLICATE;
+				return;
+			}
+
+			// If we cannot move from where we are, then this is either a retry of
+			// a request that already moved us or a genuine error
+			if (lot == -1 || (direction < 0 && level == 1))
+			{	if (isDuplicate(conn, session, seq))
+				{	System.out.println("Request already completed (in move " + name + " level)");
+					printLevelsStatus(conn, "After moving " + name + " one level", session, lot, seq);
+					outcome = readCompletedMove(conn);
+				}
+				else
+					outcome = lot == -1 ? NOT_IN_LOT : AT_LAST_LEVEL;
+				return;
+			}
+
+			// Move the car between levels and update the client's row, which
+			// only matches new requests
+			fromLevel = level;
+			toLevel = level + direction;
+			if (moveLevel(conn, session, seq, toLevel))
+				engineApplied = occupancyEngine != null;
+			else
+			{	// Nothing matched, so find out why; this only happens off the common path
+				if (isDuplicate(conn, session, seq))
+				{	System.out.println("Request already completed (in move " + name + " level)");
+					outcome = readCompletedMove(conn);
+				}
+				else
+					outcome = NO_SUCH_LEVEL;
+				return;
+			}
+
+			printLevelsStatus(conn, "After moving " + name + " one level", session, lot, seq);
+		}
+
+		/**
+		 * Reads where the car is after a request that another server applied, since the
+		 * session was restored before that server committed it and still has the car
+		 * where it was before the move
+		 * @param conn The database connection
+		 * @return ALREADY_COMPLETED
+		 * @throws SQLException Thrown when the client's row cannot be read
+		 */
+		protected int readCompletedMove(Connection conn) throws SQLException
+		{
+			PreparedStatement readClient = databaseManager.prepareStatement(conn, "SELECT LotID, Level FROM Client WHERE ClientID = ?");
+			readClient.setInt(1, session.clientID);
+			ResultSet rs = readClient.executeQuery();
+			completedLot = completedLevel = -1;
+			if (rs.next()) {
+				completedLot = rs.getInt(1);
+				if (rs.wasNull())
+					completedLot = -1;
+				completedLevel = rs.getInt(2);
+				if (rs.wasNull())
+					completedLevel = -1;
+			}
+			rs.close();
+			return ALREADY_COMPLETED;
+		}
+
+		protected void undoEngine() {
+			occupancyEngine.move(session.lot, toLevel, fromLevel);
+		}
+	}
+
+	/**
+	 * Enters a lot by claiming a space in the occupancy engine and journaling the
+	 * operation; the database catches up from the journal in the background. The
+	 * session's sequence number is authoritative for duplicate detection because
+	 * loadSession() drains the journal before it reads the client from the database
+	 * @param session The client's session
+	 * @param seq The latest sequence number of the client
+	 * @param lot The lot number to enter
+	 * @return The outcome of the request
+	 * @throws ServiceUnavailableException Thrown when the operation could not be journaled
+	 */
+	protected int journaledEnterLot(ClientSession session, int seq, int lot) throws ServiceUnavailableException
+	{
+		int outcome;
+		if (seq <= session.seq) {
+			System.out.println("Request already completed (in enter lot)");
+			outcome = DUPLICATE;
+		}
+		else if (session.lot != -1)
+			return ALREADY_IN_LOT;
+		else
+		{	int result = occupancyEngine.enter(lot);
+			if (result == OccupancyEngine.LOT_NOT_FOUND)
+				return LOT_NOT_FOUND;
+			if (result == OccupancyEngine.LOT_FULL)
+				return LOT_FULL;
+			if (result != OccupancyEngine.OK)
+				return NO_SUCH_LEVEL;
+
+			// Give back the space if the operation could not be made durable
+			if (!journal(session, seq, OperationJournal.ENTER_LOT, lot, 0, 1)) {
+				occupancyEngine.undoEnter(lot);
+				throw new ServiceUnavailableException("Could not journal entering the lot.");
+			}
+			session.update(seq, lot, 1);
+			outcome = APPLIED;
+		}
+
+		int[] availLevels = session.lot != -1 ? occupancyEngine.getAvailableLevels(session.lot) : null;
+		session.availableLevels = availLevels != null ? availLevels : new int[0];
+		return outcome;
+	}
+
+	/**
+	 * Exits the current lot through the occupancy engine and journals the operation
+	 * @param session The client's session
+	 * @param seq The latest sequence number of the client
+	 * @return The outcome of the request
+	 * @throws ServiceUnavailableException Thrown when the operation could not be journaled
+	 */
+	protected int journaledExitLot(ClientSession session, int seq) throws ServiceUnavailableException
+	{
+		if (seq <= session.seq) {
+			System.out.println("Request already completed (in exit lot)");
+			return DUPLICATE;
+		}
+		int lot = session.lot;
+		if (lot == -1)
+			return NOT_IN_LOT;
+		if (session.level != 1)
+			return NOT_ON_EXIT_LEVEL;
+		if (occupancyEngine.exit(lot) != OccupancyEngine.OK)
+			return NO_SUCH_LEVEL;
+
+		// Put the car back if the operation could not be made durable
+		if (!journal(session, seq, OperationJournal.EXIT_LOT, lot, session.level, 0)) {
+			occupancyEngine.undoExit(lot);
+			throw new ServiceUnavailableException("Could not journal exiting the lot.");
+		}
+		session.update(seq, -1, -1);
+		return APPLIED;
+	}
+
+	/**
+	 * Moves the car up or down one level through the occupancy engine and journals
+	 * the operation
+	 * @param session The client's session
+	 * @param seq The latest sequence number of the client
+	 * @param direction 1 to move up or -1 to move down
+	 * @return The outcome of the request
+	 * @throws ServiceUnavailableException Thrown when the operation could not be journaled
+	 */
+	protected int journaledMoveLevel(ClientSession session, int seq, int direction) throws ServiceUnavailableException
+	{
+		if (seq <= session.seq) {
+			System.out.println("Request already completed (in move " + (direction > 0 ? "up" : "down") + " level)");
+			return DUPLICATE;
+		}
+		int lot = session.lot, level = session.level;
+		if (lot == -1)
+			return NOT_IN_LOT;
+
+		int toLevel = level + direction;
+		if (!occupancyEngine.hasLevel(lot, toLevel))
+			return direction < 0 && level == 1 ? AT_LAST_LEVEL : NO_SUCH_LEVEL;
+		occupancyEngine.move(lot, level, toLevel);
+
+		// Move the car back if the operation could not be made durable
+		if (!journal(session, seq, OperationJournal.MOVE_LEVEL, lot, level, toLevel)) {
+			occupancyEngine.move(lot, toLevel, level);
+			throw new ServiceUnavailableException("Could not journal moving between levels.");
+		}
+		session.update(seq, lot, toLevel);
+		return APPLIED;
+	}
+
+	/**
+	 * Appends an operation of a client to the journal and waits for it to be on disk
+	 * @param session The client's session
+	 * @param seq The client request sequence number
+	 * @param op The operation code
+	 * @param lot The lot that the operation happened in
+	 * @param fromLevel The level that the car left, or 0 if it entered the lot
+	 * @param toLevel The level that the car arrived at, or 0 if it exited the lot
+	 * @return True if the operation is durable or false if it could not be journaled
+	 */
+	protected boolean journal(ClientSession session, int seq, int op, int lot, int fromLevel, int toLevel)
+	{
+		try {
+			journal.append(session.clientID, seq, op, lot, fromLevel, toLevel);
+			return true;
+		} catch (IOException e) {
+			System.err.println("Could not append to the operation journal: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Moves the car from its current level to the given level of its lot and records the
+	 * request in the client's row, either with one conditional update or, when the occupancy
+	 * engine keeps the car counts, by updating the client's row and moving the car in memory
+	 * @param conn The borrowed database connection to update with
+	 * @param session The client's session
+	 * @param seq The client request sequence number
+	 * @param toLevel The level to move the car to
+	 * @return True if the car was moved or false if it was not, either because the level
+	 * does not exist or because the request was already applied
+	 * @throws SQLException Thrown when the update fails
+	 */
+	protected boolean moveLevel(Connection conn, ClientSession session, int seq, int toLevel) throws SQLException
+	{
+		int lot = session.lot;
+		if (occupancyEngine != null)
+		{	// Check the level first so that a failed move leaves the client's row alone
+			if (!occupancyEngine.hasLevel(lot, toLevel) || !updateClient(conn, session, seq, lot, toLevel))
+				return false;
+			return occupancyEngine.move(lot, session.level, toLevel) == OccupancyEngine.OK;
+		}
+		if (optimisticLocking)
+			return versionedMoveLevel(conn, session, seq, toLevel);
+
+		PreparedStatement moveLevel = databaseManager.prepareStatement(conn, MOVE_LEVEL_SQL);
+		moveLevel.setInt(1, seq);
+		moveLevel.setInt(2, toLevel);
+		moveLevel.setInt(3, lot);
+		moveLevel.setInt(4, session.level);
+		moveLevel.setInt(5, toLevel);
+		moveLevel.setInt(6, session.clientID);
+		moveLevel.setInt(7, seq);
+		return moveLevel.executeUpdate() > 0;
+	}
+
+	/**
+	 * Exits a lot with optimistic locking
+	 * @param conn The borrowed database connection to update with
+	 * @param session The client's session
+	 * @param seq The client request sequence number
+	 * @param lot The lot that the car is in
+	 * @return True if the car left the lot or false if the lot or its exit level does
+	 * not exist or the request was already applied
+	 * @throws VersionConflictException Thrown when the lot changed since it was read
+	 * @throws SQLException Thrown when the read or the update fails
+	 */
+	protected boolean versionedExitLot(Connection conn, ClientSession session, int seq, int lot) throws SQLException
+	{
+		PreparedStatement readLot = databaseManager.prepareStatement(conn, READ_LOT_SQL);
+		readLot.setInt(1, lot);
+		ResultSet rs = readLot.executeQuery();
+		boolean exists = rs.next();
+		long lotVersion = exists ? rs.getLong(3) : 0, levelVersion = exists ? rs.getLong(4) : 0;
+		boolean hasExitLevel = exists && !rs.wasNull();
+		rs.close();
+		if (!hasExitLevel)
+			return false;
+
+		PreparedStatement exitLot = databaseManager.prepareStatement(conn, VERSIONED_EXIT_LOT_SQL);
+		exitLot.setInt(1, seq);
+		exitLot.setInt(2, lot);
+		exitLot.setLong(3, lotVersion);
+		exitLot.setLong(4, levelVersion);
+		exitLot.setInt(5, session.clientID);
+		exitLot.setInt(6, seq);
+		if (exitLot.executeUpdate() > 0)
+			return true;
+		if (isDuplicate(conn, session, seq))
+			return false;
+		throw new VersionConflictException(lot);
+	}
+
+	/**
+	 * Moves the car between two levels of its lot with optimistic locking
+	 * @param conn The borrowed database connection to update with
+	 * @param session The client's session
+	 * @param seq The client request sequence number
+	 * @param toLevel The level to move the car to
+	 * @return True if the car was moved or false if either level does not exist or the
+	 * request was already applied
+	 * @throws VersionConflictException Thrown when a level changed since it was read
+	 * @throws SQLException Thrown when the read or the update fails
+	 */
+	protected boolean versionedMoveLevel(Connection conn, ClientSession session, int seq, int toLevel) throws SQLException
+	{
+		int lot = session.lot;
+		PreparedStatement readLevels = databaseManager.prepareStatement(conn, READ_LEVELS_SQL);
+		readLevels.setInt(1, lot);
+		readLevels.setInt(2, session.level);
+		readLevels.setInt(3, toLevel);
+		ResultSet rs = readLevels.executeQuery();
+		long fromVersion = -1, toVersion = -1;
+		while (rs.next()) {
+			if (rs.getInt(1) == session.level)
+				fromVersion = rs.getLong(2);
+			else
+				toVersion = rs.getLong(2);
+		}
+		rs.close();
+		if (fromVersion == -1 || toVersion == -1)
+			return false;
+
+		PreparedStatement moveLevel = databaseManager.prepareStatement(conn, VERSIONED_MOVE_LEVEL_SQL);
+		moveLevel.setInt(1, seq);
+		moveLevel.setInt(2, toLevel);
+		moveLevel.setInt(3, lot);
+		moveLevel.setInt(4, session.level);
+		moveLevel.setLong(5, fromVersion);
+		moveLevel.setInt(6, toLevel);
+		moveLevel.setLong(7, toVersion);
+		moveLevel.setInt(8, session.clientID);
+		moveLevel.setInt(9, seq);
+		if (moveLevel.executeUpdate() > 0)
+			return true;
+		if (isDuplicate(conn, session, seq))
+			return false;
+		throw new VersionConflictException(lot);
+	}
+
+	/**
+	 * Records a request in the client's row if it has not been recorded already
+	 * @param conn The borrowed database connection to update with
+	 * @param session The client's session
+	 * @param seq The client request sequence number
+	 * @param lot The lot that the car is now in or -1 if it is not in a lot
+	 * @param level The level that the car is now on or -1 if it is not in a lot
+	 * @return True if the row was updated or false if the request was already recorded
+	 * @throws SQLException Thrown when the update fails
+	 */
+	protected boolean updateClient(Connection conn, ClientSession session, int seq, int lot, int level) throws SQLException
+	{
+		PreparedStatement updateClient = databaseManager.prepareStatement(conn, UPDATE_CLIENT_SQL);
+		updateClient.setInt(1, seq);
+		if (lot == -1) {
+			updateClient.setNull(2, Types.INTEGER);
+			updateClient.setNull(3, Types.INTEGER);
+		} else {
+			updateClient.setInt(2, lot);
+			updateClient.setInt(3, level);
+		}
+		updateClient.setInt(4, session.clientID);
+		updateClient.setInt(5, seq);
+		return updateClient.executeUpdate() > 0;
+	}
+
+	/**
+	 * Returns the levels of the given lot that have available spaces
+	 * @param conn The borrowed database connection to query with
+	 * @param session The client's session, whose buffer the levels are read into
+	 * @param lot The lot ID
+	 * @return The levels that have available spaces, in ascending order
+	 * @throws SQLException Thrown when the levels cannot be queried
+	 */
+	protected int[] getAvailableLevels(Connection conn, ClientSession session, int lot) throws SQLException
+	{
+		if (occupancyEngine != null) {
+			int[] availLevels = occupancyEngine.getAvailableLevels(lot);
+			return availLevels != null ? availLevels : new int[0];
+		}
+
+		PreparedStatement availableLevels = databaseManager.prepareQuery(conn, AVAILABLE_LEVELS_SQL);
+		availableLevels.setInt(1, lot);
+		ResultSet rs = availableLevels.executeQuery();
+		if (session.intBuffer == null)
+			session.intBuffer = new IntList(16);
+		session.intBuffer.clear();
+		session.intBuffer.addColumn(rs, 1);
+		rs.close();
+		return session.intBuffer.toArray();
+	}
+
+	/**
+	 * Sends an update that adds a car to a lot together with the query of the lot's
+	 * levels that have available spaces, in a single round trip, so that an entry
+	 * takes that round trip and its commit. Several statements in one call cannot
+	 * be server-side prepared, so they are sent as text
+	 * @param conn The borrowed database connection to update with
+	 * @param session The client's session, whose buffer the levels are read into
+	 * @param update The update, with its values in place
+	 * @param lot The lot ID
+	 * @return The levels that have available spaces after the update, in ascending
+	 * order, or null if the update matched no rows
+	 * @throws SQLException Thrown when the update or the query fails
+	 */
+	protected int[] updateWithLevels(Connection conn, ClientSession session, String update, int lot) throws SQLException
+	{
+		Statement statement = conn.createStatement();
+		try {
+			statement.execute(update + "; " + inline(AVAILABLE_LEVELS_SQL, lot));
+			if (statement.getUpdateCount() <= 0 || !statement.getMoreResults())
+				return null;
+			ResultSet rs = statement.getResultSet();
+			if (session.intBuffer == null)
+				session.intBuffer = new IntList(16);
+			session.intBuffer.clear();
+			session.intBuffer.addColumn(rs, 1);
+			rs.close();
+			return session.intBuffer.toArray();
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Puts values in place of the parameter markers of a statement that is sent as
+	 * text. Strings are quoted and escaped; other values are written as they are
+	 * @param sql The statement, with a ? for each value
+	 * @param values The values in the order of their markers
+	 * @return The statement with its values in place
+	 */
+	protected static String inline(String sql, Object... values)
+	{
+		StringBuilder text = new StringBuilder(sql.length() + 16 * values.length);
+		int from = 0;
+		for (Object value : values) {
+			int marker = sql.indexOf('?', from);
+			text.append(sql, from, marker);
+			if (value instanceof String)
+				text.append('\'').append(((String) value).replace("\\", "\\\\").replace("'", "\\'")).append('\'');
+			else
+				text.append(value);
+			from = marker + 1;
+		}
+		return text.append(sql, from, sql.length()).toString();
+	}
+
+	/**
+	 * Checks if the given request has already been applied. This is answered from the
+	 * session's sequence number unless the session was restored after a failover and
+	 * has not applied a request of its own yet, in which case the previous primary
+	 * might have applied it and the database has to be asked
+	 * @param conn The borrowed database connection to check with if need be
+	 * @param session The client's session
+	 * @param seq The client request sequence number
+	 * @return True if the request has already been applied
+	 * @throws SQLException Thrown when the database check fails
+	 */
+	protected boolean isDuplicate(Connection conn, ClientSession session, int seq) throws SQLException
+	{
+		if (seq <= session.seq)
+			return true;
+		if (session.seqVerified)
+			return false;
+		return alreadyCompleted(conn, session, seq);
+	}
+
+	/**
+	 * Checks if the current client request has already been completed.
+	 * @param conn The borrowed database connection to check with
+	 * @param session The client's session
+	 * @param seq
+	 * @return
+	 * @throws SQLException Thrown when the duplicate check fails, which the caller
+	 * handles by rolling back and retrying its transaction
+	 */
+	protected boolean alreadyCompleted(Connection conn, ClientSession session, int seq) throws SQLException
+	{
+		PreparedStatement checkDuplicate = databaseManager.prepareStatement(conn, CHECK_DUPLICATE_SQL);
+		checkDuplicate.setInt(1, session.clientID);
+		checkDuplicate.setInt(2, seq);
+		ResultSet rs = checkDuplicate.executeQuery();
+
+		// Check if new request
+		boolean completed = rs.next();
+		rs.close();
+		return completed;
+	}
+
+	/**
+	 * Print the status of all the lots
+	 * @param conn The borrowed database connection to query with
+	 * @param message The message to display with the status
+	 * @param session The client's session
+	 * @param seq The client request sequence number
+	 */
+	protected void printLotsStatus(Connection conn, String message, ClientSession session, int seq)
+	{
+		if (PRINT_LOTS_STATUS)
+		{	try
+			{	PreparedStatement lotsStatus = databaseManager.prepareStatement(conn, "SELECT ID, CarCount FROM Lot");
+				ResultSet rs = lotsStatus.executeQuery();
+
+				System.out.println("=== Lots Status === (" + message + ") for Client " + session.clientID + " Seq " + seq);
+				while (rs.next())
+					System.out.println("Lot: " + rs.getInt("ID") + "\tCarCount: " + rs.getInt("CarCount"));
+				rs.close();
+				System.out.println();
+			}
+			catch (SQLException e)
+			{	System.err.println("Could not print lot status.");
+			}
+		}
+	}
+
+	/**
+	 * Print the status of all the levels in the given lot
+	 * @param conn The borrowed database connection to query with
+	 * @param message The message to display with the status
+	 * @param session The client's session
+	 * @param lot The lot whose levels to print
+	 * @param seq The client request sequence number
+	 */
+	protected void printLevelsStatus(Connection conn, String message, ClientSession session, int lot, int seq)
+	{
+		if (PRINT_LEVELS_STATUS)
+		{	try
+			{	PreparedStatement levelsStatus = databaseManager.prepareStatement(conn, "SELECT Level, CarCount FROM Level WHERE LotID = ?");
+				levelsStatus.setInt(1, lot);
+				ResultSet rs = levelsStatus.executeQuery();
+
+				System.out.println("=== Levels Status === (" + message + ") for Client " + session.clientID + " Seq " + seq);
+				while (rs.next())
+					System.out.println("Level: " + rs.getInt("Level") + "\tCarCount: " + rs.getInt("CarCount"));
+				rs.close();
+				System.out.println();
+			}
+			catch (SQLException e)
+			{	System.err.println("Could not print levels status.");
+			}
+		}
+	}
+}
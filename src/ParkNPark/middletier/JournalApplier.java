@@ -0,0 +1,191 @@
+package ParkNPark.middletier;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Background thread that applies the operation journal's synced records to the
+ * database in batches, one transaction per batch, and deletes the journal segments
+ * whose records have all been applied. Every statement only matches clients whose
+ * sequence number is older than the record's, so replaying a record that was
+ * already applied does nothing
+ */
+public class JournalApplier extends Thread
+{
+	/** The default greatest number of records to apply in one transaction */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/** Time in milliseconds to wait before retrying a batch that failed */
+	protected static final long RETRY_DELAY = 1000;
+
+	/** Time in milliseconds to wait for records before checkpointing an idle journal */
+	protected static final long IDLE_TIMEOUT = 1000;
+
+	/** Adds a car to a lot and its entry level and records the request in the client's
+	 *  row. Unlike JdbcParkingStore's statement, the lot's capacity is not checked here:
+	 *  the occupancy engine already admitted the car, and the journal's order can differ
+	 *  from the order in which concurrent clients claimed their spaces */
+	protected static final String ENTER_LOT_SQL = "UPDATE Lot L, Level V, Client C "
+		+ "SET L.CarCount = L.CarCount + 1, V.CarCount = V.CarCount + 1, C.Seq = ?, C.LotID = ?, C.Level = 1 "
+		+ "WHERE L.ID = ? AND V.LotID = L.ID AND V.Level = 1 AND C.ClientID = ? AND C.Seq < ?";
+
+	/** The journal to apply */
+	protected OperationJournal journal;
+
+	/** Our database manager instance */
+	protected DatabaseManager databaseManager;
+
+	/** The greatest number of records to apply in one transaction */
+	protected int batchSize;
+
+	/** The number of records applied so far; guarded by this */
+	protected long applied;
+
+	/**
+	 * Creates the journal applier as a daemon thread; call start() to start applying
+	 * @param journal The journal to apply
+	 * @param databaseManager The database manager to apply the journal with
+	 * @param batchSize The greatest number of records to apply in one transaction
+	 */
+	public JournalApplier(OperationJournal journal, DatabaseManager databaseManager, int batchSize)
+	{
+		super("JournalApplier");
+		setDaemon(true);
+		this.journal = journal;
+		this.databaseManager = databaseManager;
+		this.batchSize = batchSize;
+	}
+
+	public void run()
+	{
+		while (true) {
+			List<OperationJournal.Record> batch;
+			try {
+				batch = journal.takeSynced(batchSize, IDLE_TIMEOUT);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			// Every record has been applied, so only the current segment is needed
+			if (batch.isEmpty()) {
+				journal.checkpoint(journal.getSegmentNumber());
+				continue;
+			}
+
+			// Keep trying until the batch makes it into the database
+			boolean reported = false;
+			while (true) {
+				try {
+					apply(batch);
+					break;
+				} catch (SQLException e) {
+					if (!reported) {
+						System.err.println("JournalApplier: could not apply journal records; will retry: " + e.getMessage());
+						reported = true;
+					}
+					try {
+						Thread.sleep(RETRY_DELAY);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+
+			synchronized (this) {
+				applied += batch.size();
+				notifyAll();
+			}
+			journal.checkpoint(batch.get(batch.size() - 1).segment);
+		}
+	}
+
+	/**
+	 * Waits until every record that the journal has synced so far is in the database
+	 * @param timeout The longest time in milliseconds to wait
+	 * @return True if the database caught up or false if the time ran out
+	 */
+	public boolean drain(long timeout)
+	{
+		long target = journal.getAvailableCount();
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			while (applied < target) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of records applied so far
+	 * @return The number of records applied so far
+	 */
+	public synchronized long getAppliedCount() {
+		return applied;
+	}
+
+	/**
+	 * Applies a batch of records in a single transaction
+	 * @param batch The records to apply, in journal order
+	 * @throws SQLException Thrown when the batch could not be applied, in which case
+	 * none of it was
+	 */
+	protected void apply(List<OperationJournal.Record> batch) throws SQLException
+	{
+		Connection conn = null;
+		try {
+			conn = databaseManager.getConnection();
+			for (OperationJournal.Record record : batch) {
+				PreparedStatement ps;
+				switch (record.op) {
+					case OperationJournal.ENTER_LOT:
+						ps = databaseManager.prepareStatement(conn, ENTER_LOT_SQL);
+						ps.setInt(1, record.seq);
+						ps.setInt(2, record.lot);
+						ps.setInt(3, record.lot);
+						ps.setInt(4, record.clientID);
+						ps.setInt(5, record.seq);
+						break;
+					case OperationJournal.EXIT_LOT:
+						ps = databaseManager.prepareStatement(conn, JdbcParkingStore.EXIT_LOT_SQL);
+						ps.setInt(1, record.seq);
+						ps.setInt(2, record.lot);
+						ps.setInt(3, record.clientID);
+						ps.setInt(4, record.seq);
+						break;
+					case OperationJournal.MOVE_LEVEL:
+						ps = databaseManager.prepareStatement(conn, JdbcParkingStore.MOVE_LEVEL_SQL);
+						ps.setInt(1, record.seq);
+						ps.setInt(2, record.toLevel);
+						ps.setInt(3, record.lot);
+						ps.setInt(4, record.fromLevel);
+						ps.setInt(5, record.toLevel);
+						ps.setInt(6, record.clientID);
+						ps.setInt(7, record.seq);
+						break;
+					default:
+						System.err.println("JournalApplier: skipping journal record with unknown operation " + record.op);
+						continue;
+				}
+				ps.executeUpdate();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			databaseManager.discardConnection(conn);
+			conn = null;
+			throw e;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+}
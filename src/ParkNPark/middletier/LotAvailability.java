@@ -0,0 +1,88 @@
+package ParkNPark.middletier;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bitset of the lots that have at least one available space, keyed directly by
+ * lot ID so that checking a lot is a single bit test. Lots that are not known
+ * are never available
+ */
+public class LotAvailability
+{
+	/** One bit per lot ID, set when the lot has an available space */
+	protected AtomicLongArray bits;
+
+	/**
+	 * Creates a bitset in which no lot is available
+	 * @param maxLotID The largest lot ID that the bitset has to hold
+	 */
+	public LotAvailability(int maxLotID) {
+		bits = new AtomicLongArray((Math.max(maxLotID, 0) >> 6) + 1);
+	}
+
+	/**
+	 * Returns true if the given lot has an available space
+	 * @param lot The ID of the lot
+	 * @return True if the given lot has an available space
+	 */
+	public boolean isAvailable(int lot)
+	{
+		int word = lot >> 6;
+		return lot >= 0 && word < bits.length() && (bits.get(word) & (1L << lot)) != 0;
+	}
+
+	/**
+	 * Marks the given lot as available or full
+	 * @param lot The ID of the lot
+	 * @param available True if the lot has an available space
+	 */
+	public void setAvailable(int lot, boolean available)
+	{
+		int word = lot >> 6;
+		if (lot < 0 || word >= bits.length())
+			return;
+		long bit = 1L << lot, value;
+		do {
+			value = bits.get(word);
+			if (((value & bit) != 0) == available)
+				return;
+		} while (!bits.compareAndSet(word, value, value ^ bit));
+	}
+
+	/**
+	 * Brings the given lot's bit in line with its car count after the count has
+	 * changed. The count is checked again after the bit is written, so when two
+	 * threads change the count at once, the one that writes last sees the final
+	 * count and the bit cannot be left stale
+	 * @param lot The ID of the lot
+	 * @param carCounts The car counts that the lot's count is in
+	 * @param index The index of the lot's count
+	 * @param capacity The capacity of the lot
+	 */
+	public void track(int lot, AtomicIntegerArray carCounts, int index, int capacity)
+	{
+		int count;
+		do {
+			count = carCounts.get(index);
+			setAvailable(lot, count < capacity);
+		} while (carCounts.get(index) != count);
+	}
+
+	/**
+	 * Copies the available lots of the given list to the given array in order
+	 * @param lots The lot IDs to check
+	 * @param available The array to copy the available lot IDs to, which must be
+	 * at least as long as the list
+	 * @return The number of lot IDs copied
+	 */
+	public int filter(int[] lots, int[] available)
+	{
+		int numAvailable = 0;
+		for (int lot : lots) {
+			if (isAvailable(lot))
+				available[numAvailable++] = lot;
+		}
+		return numAvailable;
+	}
+}
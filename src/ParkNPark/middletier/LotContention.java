@@ -0,0 +1,101 @@
+package ParkNPark.middletier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts, for every lot, how many database updates of the lot were attempted and how
+ * many of them conflicted with another transaction: version mismatches with optimistic
+ * locking, deadlocks and lock wait timeouts with pessimistic locking. Comparing the
+ * conflict rates of both strategies under the same traffic tells which one wins
+ */
+public class LotContention
+{
+	/** Position of the attempt count in a lot's counters */
+	protected static final int ATTEMPTS = 0;
+
+	/** Position of the conflict count in a lot's counters */
+	protected static final int CONFLICTS = 1;
+
+	/** The counters of every lot that has been updated, by lot ID */
+	protected ConcurrentHashMap<Integer, AtomicLongArray> counters = new ConcurrentHashMap<Integer, AtomicLongArray>();
+
+	/**
+	 * Counts an attempt to update a lot
+	 * @param lot The lot ID
+	 */
+	public void attempted(int lot) {
+		getCounters(lot).incrementAndGet(ATTEMPTS);
+	}
+
+	/**
+	 * Counts a conflict while updating a lot
+	 * @param lot The lot ID
+	 */
+	public void conflicted(int lot) {
+		getCounters(lot).incrementAndGet(CONFLICTS);
+	}
+
+	/**
+	 * Prints the total conflict rate and the lots with the most conflicts
+	 * @param strategy The name of the locking strategy, for the report
+	 * @param maxLots The greatest number of lots to list
+	 */
+	public void print(String strategy, int maxLots)
+	{
+		long attempts = 0, conflicts = 0;
+		List<Map.Entry<Integer, AtomicLongArray>> lots = new ArrayList<Map.Entry<Integer, AtomicLongArray>>(counters.entrySet());
+		for (Map.Entry<Integer, AtomicLongArray> lot : lots) {
+			attempts += lot.getValue().get(ATTEMPTS);
+			conflicts += lot.getValue().get(CONFLICTS);
+		}
+		System.out.println("Lot contention (" + strategy + " locking): " + conflicts + " conflicts in " + attempts
+				+ " updates (" + rate(conflicts, attempts) + ")");
+
+		Collections.sort(lots, new Comparator<Map.Entry<Integer, AtomicLongArray>>() {
+			public int compare(Map.Entry<Integer, AtomicLongArray> a, Map.Entry<Integer, AtomicLongArray> b) {
+				long difference = b.getValue().get(CONFLICTS) - a.getValue().get(CONFLICTS);
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+		for (int i = 0; i < lots.size() && i < maxLots; i++) {
+			AtomicLongArray lot = lots.get(i).getValue();
+			if (lot.get(CONFLICTS) == 0)
+				break;
+			System.out.println("  Lot " + lots.get(i).getKey() + ": " + lot.get(CONFLICTS) + " conflicts in "
+					+ lot.get(ATTEMPTS) + " updates (" + rate(lot.get(CONFLICTS), lot.get(ATTEMPTS)) + ")");
+		}
+	}
+
+	/**
+	 * Returns the counters of a lot, creating them if need be
+	 * @param lot The lot ID
+	 * @return The lot's counters
+	 */
+	protected AtomicLongArray getCounters(int lot)
+	{
+		AtomicLongArray lotCounters = counters.get(lot);
+		if (lotCounters == null) {
+			AtomicLongArray created = new AtomicLongArray(2);
+			lotCounters = counters.putIfAbsent(lot, created);
+			if (lotCounters == null)
+				lotCounters = created;
+		}
+		return lotCounters;
+	}
+
+	/**
+	 * Formats a conflict rate as a percentage
+	 * @param conflicts The number of conflicts
+	 * @param attempts The number of attempts
+	 * @return The conflict rate
+	 */
+	protected static String rate(long conflicts, long attempts) {
+		return String.format("%.2f%%", attempts > 0 ? conflicts * 100.0 / attempts : 0.0);
+	}
+}
@@ -0,0 +1,273 @@
+package ParkNPark.middletier;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The lots, levels, capacities and nearest neighbours that a parking store without a
+ * database serves; the same data as the Lot, Level and LotDistance tables. A layout
+ * is either read from a text file or generated, so the embedded stores can be
+ * benchmarked against the same topology as a database.
+ * <p>
+ * The text file has one line per lot, per level and per neighbour list, in any
+ * order; blank lines and lines starting with # are ignored:
+ * <pre>
+ * lot &lt;lot&gt; &lt;capacity&gt;
+ * level &lt;lot&gt; &lt;level&gt; &lt;capacity&gt;
+ * neighbours &lt;lot&gt; &lt;lot&gt; &lt;lot&gt; ...   (nearest first)
+ * </pre>
+ */
+public class LotLayout
+{
+	/** The greatest number of neighbours that a generated layout gives each lot */
+	public static final int MAX_GENERATED_NEIGHBOURS = 100;
+
+	/** The lot IDs in ascending order; a lot's position in this array is its lot index */
+	protected int[] lotIDs;
+
+	/** Capacity of each lot by lot index */
+	protected int[] lotCapacity;
+
+	/** For each lot index, the position of its first level in the level arrays; the
+	 *  final element is the total number of levels */
+	protected int[] levelStart;
+
+	/** Level numbers, sorted within each lot */
+	protected int[] levelNumbers;
+
+	/** Capacity of each level by level index */
+	protected int[] levelCapacity;
+
+	/** The IDs of each lot's neighbours, nearest first, by lot index */
+	protected int[][] neighbours;
+
+	/**
+	 * Creates a layout from its arrays, which the layout keeps
+	 * @param lotIDs The lot IDs in ascending order
+	 * @param lotCapacity Capacity of each lot by lot index
+	 * @param levelStart For each lot index, the position of its first level, followed
+	 * by the total number of levels
+	 * @param levelNumbers Level numbers, sorted within each lot
+	 * @param levelCapacity Capacity of each level by level index
+	 * @param neighbours The IDs of each lot's neighbours, nearest first, by lot index
+	 */
+	public LotLayout(int[] lotIDs, int[] lotCapacity, int[] levelStart, int[] levelNumbers, int[] levelCapacity,
+			int[][] neighbours)
+	{
+		this.lotIDs = lotIDs;
+		this.lotCapacity = lotCapacity;
+		this.levelStart = levelStart;
+		this.levelNumbers = levelNumbers;
+		this.levelCapacity = levelCapacity;
+		this.neighbours = neighbours;
+	}
+
+	/**
+	 * Returns the layout that a command line names: either a generated layout written
+	 * as &lt;lots&gt;x&lt;levels&gt;x&lt;spaces per level&gt;, such as 10x4x50, or the
+	 * path of a layout file
+	 * @param spec The generated layout or the path of a layout file
+	 * @return The layout
+	 * @throws IOException Thrown when the layout file cannot be read or is malformed
+	 */
+	public static LotLayout parse(String spec) throws IOException
+	{
+		String[] sizes = spec.split("x");
+		if (sizes.length == 3 && !new File(spec).exists()) {
+			try {
+				return generate(Integer.parseInt(sizes[0]), Integer.parseInt(sizes[1]), Integer.parseInt(sizes[2]));
+			} catch (NumberFormatException e) {
+				// Not a generated layout, so it has to be a file
+			}
+		}
+		return read(new File(spec));
+	}
+
+	/**
+	 * Generates a layout whose lots are numbered from 1 and lie on a line, so that
+	 * lots with close IDs are close to each other
+	 * @param numLots The number of lots
+	 * @param levelsPerLot The number of levels in every lot
+	 * @param spacesPerLevel The number of spaces on every level
+	 * @return The layout
+	 */
+	public static LotLayout generate(int numLots, int levelsPerLot, int spacesPerLevel)
+	{
+		int[] lotIDs = new int[numLots], lotCapacity = new int[numLots], levelStart = new int[numLots + 1];
+		int[] levelNumbers = new int[numLots * levelsPerLot], levelCapacity = new int[numLots * levelsPerLot];
+		int[][] neighbours = new int[numLots][];
+		for (int i = 0; i < numLots; i++) {
+			lotIDs[i] = i + 1;
+			lotCapacity[i] = levelsPerLot * spacesPerLevel;
+			levelStart[i] = i * levelsPerLot;
+			for (int v = 0; v < levelsPerLot; v++) {
+				levelNumbers[i * levelsPerLot + v] = v + 1;
+				levelCapacity[i * levelsPerLot + v] = spacesPerLevel;
+			}
+
+			// Alternate between the lots below and above, nearest first
+			neighbours[i] = new int[Math.min(numLots - 1, MAX_GENERATED_NEIGHBOURS)];
+			int below = i - 1, above = i + 1;
+			for (int n = 0; n < neighbours[i].length; n++) {
+				if (below >= 0 && (above >= numLots || i - below <= above - i))
+					neighbours[i][n] = below-- + 1;
+				else
+					neighbours[i][n] = above++ + 1;
+			}
+		}
+		levelStart[numLots] = numLots * levelsPerLot;
+		return new LotLayout(lotIDs, lotCapacity, levelStart, levelNumbers, levelCapacity, neighbours);
+	}
+
+	/**
+	 * Reads a layout file
+	 * @param file The layout file
+	 * @return The layout
+	 * @throws IOException Thrown when the file cannot be read or is malformed
+	 */
+	public static LotLayout read(File file) throws IOException
+	{
+		Map<Integer, Integer> lots = new TreeMap<Integer, Integer>();
+		Map<Integer, Map<Integer, Integer>> levels = new TreeMap<Integer, Map<Integer, Integer>>();
+		Map<Integer, int[]> neighbourLists = new TreeMap<Integer, int[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				try {
+					if (fields[0].equals("lot") && fields.length == 3)
+						lots.put(Integer.valueOf(fields[1]), Integer.valueOf(fields[2]));
+					else if (fields[0].equals("level") && fields.length == 4) {
+						Integer lot = Integer.valueOf(fields[1]);
+						if (!levels.containsKey(lot))
+							levels.put(lot, new TreeMap<Integer, Integer>());
+						levels.get(lot).put(Integer.valueOf(fields[2]), Integer.valueOf(fields[3]));
+					}
+					else if (fields[0].equals("neighbours") && fields.length >= 2) {
+						int[] list = new int[fields.length - 2];
+						for (int n = 0; n < list.length; n++)
+							list[n] = Integer.parseInt(fields[n + 2]);
+						neighbourLists.put(Integer.valueOf(fields[1]), list);
+					}
+					else
+						throw new IOException(file + ":" + lineNumber + ": unknown line \"" + line + "\"");
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		// Lay the lots out in ID order; levels and neighbours of unknown lots are dropped
+		int numLots = lots.size(), lotIndex = 0;
+		int[] lotIDs = new int[numLots], lotCapacity = new int[numLots], levelStart = new int[numLots + 1];
+		int[][] neighbours = new int[numLots][];
+		List<int[]> levelList = new ArrayList<int[]>();
+		for (Map.Entry<Integer, Integer> lot : lots.entrySet()) {
+			lotIDs[lotIndex] = lot.getKey();
+			lotCapacity[lotIndex] = lot.getValue();
+			levelStart[lotIndex] = levelList.size();
+			Map<Integer, Integer> lotLevels = levels.get(lot.getKey());
+			if (lotLevels != null) {
+				for (Map.Entry<Integer, Integer> level : lotLevels.entrySet())
+					levelList.add(new int[] { level.getKey(), level.getValue() });
+			}
+			int[] list = neighbourLists.get(lot.getKey());
+			neighbours[lotIndex++] = list != null ? list : new int[0];
+		}
+		levelStart[numLots] = levelList.size();
+		int[] levelNumbers = new int[levelList.size()], levelCapacity = new int[levelList.size()];
+		for (int i = 0; i < levelNumbers.length; i++) {
+			levelNumbers[i] = levelList.get(i)[0];
+			levelCapacity[i] = levelList.get(i)[1];
+		}
+		return new LotLayout(lotIDs, lotCapacity, levelStart, levelNumbers, levelCapacity, neighbours);
+	}
+
+	/**
+	 * Writes the layout to a file in the format that read() takes
+	 * @param file The file to write
+	 * @throws IOException Thrown when the file cannot be written
+	 */
+	public void write(File file) throws IOException
+	{
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try {
+			writer.println("# ParkNPark lot layout");
+			for (int i = 0; i < lotIDs.length; i++) {
+				writer.println("lot " + lotIDs[i] + " " + lotCapacity[i]);
+				for (int v = levelStart[i]; v < levelStart[i + 1]; v++)
+					writer.println("level " + lotIDs[i] + " " + levelNumbers[v] + " " + levelCapacity[v]);
+				StringBuilder line = new StringBuilder("neighbours ").append(lotIDs[i]);
+				for (int neighbour : neighbours[i])
+					line.append(' ').append(neighbour);
+				writer.println(line);
+			}
+			if (writer.checkError())
+				throw new IOException("Could not write the lot layout to " + file);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Returns the number of lots
+	 * @return The number of lots
+	 */
+	public int getLotCount() {
+		return lotIDs.length;
+	}
+
+	/**
+	 * Returns the total number of levels of every lot
+	 * @return The total number of levels
+	 */
+	public int getLevelCount() {
+		return levelNumbers.length;
+	}
+
+	/**
+	 * Returns the lot IDs
+	 * @return The lot IDs in ascending order, which must not be modified
+	 */
+	public int[] getLots() {
+		return lotIDs;
+	}
+
+	/**
+	 * Returns the level numbers of every lot
+	 * @return The level numbers in ascending order by lot index
+	 */
+	public int[][] getLevels()
+	{
+		int[][] levels = new int[lotIDs.length][];
+		for (int i = 0; i < lotIDs.length; i++)
+			levels[i] = Arrays.copyOfRange(levelNumbers, levelStart[i], levelStart[i + 1]);
+		return levels;
+	}
+
+	/**
+	 * Returns the index of every lot's neighbours
+	 * @return The nearest lot index
+	 */
+	public NearestLotIndex getNearestLots() {
+		return new NearestLotIndex(lotIDs, neighbours);
+	}
+}
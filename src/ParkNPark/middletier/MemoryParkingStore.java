@@ -0,0 +1,360 @@
+package ParkNPark.middletier;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ParkNPark.interfaces.ServiceUnavailableException;
+
+/**
+ * Parking store that keeps everything in memory, for benchmarks and tests that
+ * should not need a database. The car counts live in an occupancy engine, and each
+ * client's row is an immutable record that requests replace with compare-and-set,
+ * so no request ever takes a lock. A request claims its space in the engine first
+ * and gives it back if it loses the race for the client's record.
+ * <p>
+ * Nothing survives a restart; FileParkingStore adds durability
+ */
+public class MemoryParkingStore implements ParkingStore
+{
+	/**
+	 * A client's row: the sequence number of its latest applied request and where
+	 * its car is. Records are never modified, only replaced
+	 */
+	protected static final class ClientRecord
+	{
+		/** The sequence number of the client's latest applied request */
+		protected final int seq;
+
+		/** The lot that the car is in, or -1 if it is not in a lot */
+		protected final int lot;
+
+		/** The level that the car is on, or -1 if it is not in a lot */
+		protected final int level;
+
+		/**
+		 * Creates a record
+		 * @param seq The sequence number of the client's latest applied request
+		 * @param lot The lot that the car is in, or -1 if it is not in a lot
+		 * @param level The level that the car is on, or -1 if it is not in a lot
+		 */
+		protected ClientRecord(int seq, int lot, int level)
+		{
+			this.seq = seq;
+			this.lot = lot;
+			this.level = level;
+		}
+	}
+
+	/** The record of a client that has just been created */
+	protected static final ClientRecord NEW_CLIENT = new ClientRecord(0, -1, -1);
+
+	/** The lots and levels that we serve */
+	protected LotLayout layout;
+
+	/** The level numbers of every lot by lot index */
+	protected int[][] levels;
+
+	/** The car counts of every lot and level */
+	protected OccupancyEngine occupancyEngine;
+
+	/** Every lot's neighbours, nearest first */
+	protected NearestLotIndex nearestLots;
+
+	/** The record of every client by client ID */
+	protected ConcurrentHashMap<Integer, AtomicReference<ClientRecord>> clients =
+		new ConcurrentHashMap<Integer, AtomicReference<ClientRecord>>();
+
+	/** The ID of the newest client */
+	protected AtomicInteger lastClientID = new AtomicInteger();
+
+	/** Number of requests that lost the race for their client's record and were retried */
+	protected AtomicLong conflicts = new AtomicLong();
+
+	/** True once the store has been hosed, after which every operation fails */
+	protected volatile boolean hosed;
+
+	/**
+	 * Creates a store whose lots are all empty and that has no clients
+	 * @param layout The lots and levels to serve
+	 */
+	public MemoryParkingStore(LotLayout layout) {
+		this(layout, new int[layout.getLotCount()], new int[layout.getLevelCount()]);
+	}
+
+	/**
+	 * Creates a store with the given car counts that has no clients
+	 * @param layout The lots and levels to serve
+	 * @param lotCarCount The car count of each lot by lot index
+	 * @param levelCarCount The car count of each level by level index
+	 */
+	protected MemoryParkingStore(LotLayout layout, int[] lotCarCount, int[] levelCarCount)
+	{
+		this.layout = layout;
+		this.levels = layout.getLevels();
+		this.occupancyEngine = new OccupancyEngine(layout, lotCarCount, levelCarCount);
+		this.nearestLots = layout.getNearestLots();
+	}
+
+	public ClientSession createSession() throws ServiceUnavailableException
+	{
+		checkHosed();
+		int clientID = lastClientID.incrementAndGet();
+		if (!log(clientID, 0, OperationJournal.CREATE_CLIENT, 0, 0, 0))
+			throw new ServiceUnavailableException("Could not create new client id.");
+		clients.put(clientID, new AtomicReference<ClientRecord>(NEW_CLIENT));
+
+		ClientSession session = new ClientSession(clientID, 0, -1, -1);
+		session.seqVerified = true;
+		return session;
+	}
+
+	public ClientSession loadSession(int clientID) throws ServiceUnavailableException
+	{
+		checkHosed();
+		AtomicReference<ClientRecord> row = clients.get(clientID);
+		if (row == null)
+			return null;
+		ClientRecord record = row.get();
+		return new ClientSession(clientID, record.seq, record.lot, record.level);
+	}
+
+	public int enterLot(ClientSession session, int seq, int lot) throws ServiceUnavailableException
+	{
+		checkHosed();
+		AtomicReference<ClientRecord> row = getRow(session);
+		while (true)
+		{	ClientRecord current = row.get();
+			if (seq <= current.seq) {
+				int outcome = completed(session, current, seq, "enter lot");
+				session.availableLevels = getAvailableLevels(session.lot);
+				return outcome;
+			}
+			if (current.lot != -1)
+				return ALREADY_IN_LOT;
+
+			// Claim the space, then record the request in the client's row
+			int result = occupancyEngine.enter(lot);
+			if (result != OccupancyEngine.OK)
+				return result == OccupancyEngine.LOT_NOT_FOUND ? LOT_NOT_FOUND
+					: result == OccupancyEngine.LOT_FULL ? LOT_FULL : NO_SUCH_LEVEL;
+			ClientRecord entered = new ClientRecord(seq, lot, 1);
+			if (!row.compareAndSet(current, entered)) {
+				occupancyEngine.undoEnter(lot);
+				conflicts.incrementAndGet();
+				continue;
+			}
+
+			// Give back the space if the operation could not be made durable
+			if (!log(session.clientID, seq, OperationJournal.ENTER_LOT, lot, 0, 1)) {
+				row.compareAndSet(entered, current);
+				occupancyEngine.undoEnter(lot);
+				throw new ServiceUnavailableException("Could not record entering the lot.");
+			}
+			session.seqVerified = true;
+			session.update(seq, lot, 1);
+			session.availableLevels = getAvailableLevels(lot);
+			return APPLIED;
+		}
+	}
+
+	public int exitLot(ClientSession session, int seq) throws ServiceUnavailableException
+	{
+		checkHosed();
+		AtomicReference<ClientRecord> row = getRow(session);
+		while (true)
+		{	ClientRecord current = row.get();
+			if (seq <= current.seq)
+				return completed(session, current, seq, "exit lot");
+			if (current.lot == -1)
+				return NOT_IN_LOT;
+			if (current.level != 1)
+				return NOT_ON_EXIT_LEVEL;
+			if (!occupancyEngine.hasLevel(current.lot, 1))
+				return NO_SUCH_LEVEL;
+
+			// Take the car out of the client's row, then out of the lot
+			ClientRecord exited = new ClientRecord(seq, -1, -1);
+			if (!row.compareAndSet(current, exited)) {
+				conflicts.incrementAndGet();
+				continue;
+			}
+			occupancyEngine.exit(current.lot);
+
+			// Put the car back if the operation could not be made durable
+			if (!log(session.clientID, seq, OperationJournal.EXIT_LOT, current.lot, 1, 0)) {
+				occupancyEngine.undoExit(current.lot);
+				row.compareAndSet(exited, current);
+				throw new ServiceUnavailableException("Could not record exiting the lot.");
+			}
+			session.seqVerified = true;
+			session.update(seq, -1, -1);
+			return APPLIED;
+		}
+	}
+
+	public int moveLevel(ClientSession session, int seq, int direction) throws ServiceUnavailableException
+	{
+		checkHosed();
+		AtomicReference<ClientRecord> row = getRow(session);
+		while (true)
+		{	ClientRecord current = row.get();
+			if (seq <= current.seq)
+				return completed(session, current, seq, "move " + (direction > 0 ? "up" : "down") + " level");
+			if (current.lot == -1)
+				return NOT_IN_LOT;
+			if (direction < 0 && current.level == 1)
+				return AT_LAST_LEVEL;
+			int toLevel = current.level + direction;
+			if (!occupancyEngine.hasLevel(current.lot, toLevel))
+				return NO_SUCH_LEVEL;
+
+			// Move the car in the client's row, then between the levels
+			ClientRecord moved = new ClientRecord(seq, current.lot, toLevel);
+			if (!row.compareAndSet(current, moved)) {
+				conflicts.incrementAndGet();
+				continue;
+			}
+			occupancyEngine.move(current.lot, current.level, toLevel);
+
+			// Move the car back if the operation could not be made durable
+			if (!log(session.clientID, seq, OperationJournal.MOVE_LEVEL, current.lot, current.level, toLevel)) {
+				occupancyEngine.move(current.lot, toLevel, current.level);
+				row.compareAndSet(moved, current);
+				throw new ServiceUnavailableException("Could not record moving between levels.");
+			}
+			session.seqVerified = true;
+			session.update(seq, current.lot, toLevel);
+			return APPLIED;
+		}
+	}
+
+	public <T> T runBatch(ClientSession session, DatabaseStage.Task<T> batch) throws ServiceUnavailableException {
+		// Every request is applied on its own in memory, so there is nothing to share
+		return batch.run();
+	}
+
+	public int[] getLots() throws ServiceUnavailableException
+	{
+		checkHosed();
+		return layout.getLots();
+	}
+
+	public int[] getLevels(int lot) throws ServiceUnavailableException
+	{
+		checkHosed();
+		int lotIndex = Arrays.binarySearch(layout.getLots(), lot);
+		return lotIndex < 0 ? null : levels[lotIndex];
+	}
+
+	public int[] getOtherLotAvailability(int lot) throws ServiceUnavailableException
+	{
+		checkHosed();
+		return nearestLots.getAvailableNeighbours(lot, occupancyEngine.getAvailability());
+	}
+
+	public int[] getFreeSpaces(int[] lots) throws ServiceUnavailableException
+	{
+		checkHosed();
+		int[] freeSpaces = new int[lots.length];
+		for (int i = 0; i < lots.length; i++)
+			freeSpaces[i] = occupancyEngine.getFreeSpaces(lots[i]);
+		return freeSpaces;
+	}
+
+	public void poke() throws ServiceUnavailableException {
+		checkHosed();
+	}
+
+	public void refreshTopology() {
+		System.out.println("The lot layout of an embedded parking store is fixed; there is nothing to reload");
+	}
+
+	public void fence() {
+		// Every change is already in memory, which is all there is
+	}
+
+	public void hose()
+	{
+		hosed = true;
+		System.out.println("Parking store hosed");
+	}
+
+	public void printStatistics() {
+		System.out.println("Parking store: " + clients.size() + " clients in memory; "
+				+ conflicts.get() + " requests retried after losing a race for their client's row; hot lots "
+				+ Arrays.toString(occupancyEngine.getStripedLots()));
+	}
+
+	/**
+	 * Makes an operation durable before its client is told that it was applied. The
+	 * memory store keeps nothing beyond the process, so this does nothing
+	 * @param clientID The client that performed the operation
+	 * @param seq The client's sequence number of the operation
+	 * @param op The operation code, as in OperationJournal
+	 * @param lot The lot that the operation happened in
+	 * @param fromLevel The level that the car left, or 0 if it entered the lot
+	 * @param toLevel The level that the car arrived at, or 0 if it exited the lot
+	 * @return True if the operation is durable or false if it could not be recorded
+	 */
+	protected boolean log(int clientID, int seq, int op, int lot, int fromLevel, int toLevel) {
+		return true;
+	}
+
+	/**
+	 * Handles a request that the client's row already reflects: a retry of a request
+	 * that the session knows about is a duplicate, while one that only the row knows
+	 * about, because another client manager applied it, brings the session up to date
+	 * @param session The client's session
+	 * @param current The client's row
+	 * @param seq The sequence number of the request
+	 * @param action What the request does, for the message
+	 * @return DUPLICATE or ALREADY_COMPLETED
+	 */
+	protected int completed(ClientSession session, ClientRecord current, int seq, String action)
+	{
+		System.out.println("Request already completed (in " + action + ")");
+		if (seq <= session.seq)
+			return DUPLICATE;
+		session.update(current.seq, current.lot, current.level);
+		return ALREADY_COMPLETED;
+	}
+
+	/**
+	 * Returns the row of the client that a session belongs to
+	 * @param session The client's session
+	 * @return The client's row
+	 * @throws ServiceUnavailableException Thrown when the client is not known, which
+	 * only happens if the session came from another store
+	 */
+	protected AtomicReference<ClientRecord> getRow(ClientSession session) throws ServiceUnavailableException
+	{
+		AtomicReference<ClientRecord> row = clients.get(session.clientID);
+		if (row == null)
+			throw new ServiceUnavailableException("Client " + session.clientID + " is not known to the parking store.");
+		return row;
+	}
+
+	/**
+	 * Returns the levels of a lot that have available spaces
+	 * @param lot The ID of the lot, or -1
+	 * @return The level numbers in ascending order, which are empty if the lot is not known
+	 */
+	protected int[] getAvailableLevels(int lot)
+	{
+		int[] availLevels = lot != -1 ? occupancyEngine.getAvailableLevels(lot) : null;
+		return availLevels != null ? availLevels : new int[0];
+	}
+
+	/**
+	 * Fails the operation if the store has been hosed
+	 * @throws ServiceUnavailableException Thrown when the store has been hosed
+	 */
+	protected void checkHosed() throws ServiceUnavailableException
+	{
+		if (hosed)
+			throw new ServiceUnavailableException("The parking store has been hosed.");
+	}
+}
@@ -0,0 +1,58 @@
+package ParkNPark.middletier;
+
+import java.util.Arrays;
+
+/**
+ * Immutable index of every lot's neighbours, nearest first, held in primitive
+ * arrays. Combined with a LotAvailability bitset, the lots near a given lot that
+ * have room are found by one pass over the lot's neighbour list instead of a
+ * join and a sort in the database
+ */
+public class NearestLotIndex
+{
+	/** The lot IDs in ascending order */
+	protected int[] lotIDs;
+
+	/** The IDs of each lot's neighbours, nearest first, indexed like lotIDs */
+	protected int[][] neighbours;
+
+	/**
+	 * Creates the index
+	 * @param lotIDs The lot IDs in ascending order
+	 * @param neighbours The IDs of each lot's neighbours, nearest first, indexed
+	 * like lotIDs; the index keeps the arrays, which must not be modified afterwards
+	 */
+	public NearestLotIndex(int[] lotIDs, int[][] neighbours)
+	{
+		this.lotIDs = lotIDs;
+		this.neighbours = neighbours;
+	}
+
+	/**
+	 * Returns the neighbours of the given lot, nearest first
+	 * @param lot The ID of the lot
+	 * @return The IDs of the lot's neighbours, which must not be modified, or null if
+	 * the lot is not known
+	 */
+	public int[] getNeighbours(int lot)
+	{
+		int i = Arrays.binarySearch(lotIDs, lot);
+		return i < 0 ? null : neighbours[i];
+	}
+
+	/**
+	 * Returns the neighbours of the given lot that have an available space, nearest first
+	 * @param lot The ID of the lot
+	 * @param availability The lots that have an available space
+	 * @return The IDs of the lot's available neighbours or null if the lot is not known
+	 */
+	public int[] getAvailableNeighbours(int lot, LotAvailability availability)
+	{
+		int[] candidates = getNeighbours(lot);
+		if (candidates == null)
+			return null;
+		int[] available = new int[candidates.length];
+		int numAvailable = availability.filter(candidates, available);
+		return numAvailable == available.length ? available : Arrays.copyOf(available, numAvailable);
+	}
+}
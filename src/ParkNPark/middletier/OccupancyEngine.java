@@ -0,0 +1,905 @@
+package ParkNPark.middletier;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory, authoritative car counts for every lot and level. Counts live in
+ * primitive arrays indexed by lot and level position, capacity checks are
+ * compare-and-set loops instead of database row locks, and changed counts are
+ * written behind to the Lot and Level tables by a background thread.
+ * <p>
+ * The engine is passive until it applies its first change: until then, sync()
+ * reloads it from the database so that a backup server that gets promoted
+ * picks up the cars of the previous primary, counted from the clients' rows so
+ * that changes it had not flushed yet are not lost. fence() writes every
+ * pending change and returns only once the database is up to date.
+ * <p>
+ * A lot whose update rate passes a threshold is hot: every request on it would
+ * compete for the same counter, so its count and its entry level's count are split
+ * into striped sub-counters that are summed when read. The lot's capacity is split
+ * between the stripes, so it is still never exceeded
+ */
+public class OccupancyEngine
+{
+	/** Result code: the operation was applied */
+	public static final int OK = 0;
+
+	/** Result code: the lot is not known to the system */
+	public static final int LOT_NOT_FOUND = 1;
+
+	/** Result code: the lot is full */
+	public static final int LOT_FULL = 2;
+
+	/** Result code: a level involved in the operation does not exist */
+	public static final int LEVEL_NOT_FOUND = 3;
+
+	/** The default interval in milliseconds between write-behind flushes */
+	public static final long DEFAULT_FLUSH_INTERVAL = 50;
+
+	/** The default update rate of a lot, in updates per second, above which the lot is striped */
+	public static final int DEFAULT_HOT_LOT_THRESHOLD = 20000;
+
+	/** The car count of a lot or level whose count has moved to striped sub-counters */
+	protected static final int STRIPED = Integer.MIN_VALUE;
+
+	/** Number of updates of a lot between two checks of its update rate; a power of two */
+	protected static final int HOT_SAMPLE_SIZE = 1024;
+
+	/** Greatest number of stripes of a hot lot */
+	protected static final int MAX_STRIPES = 64;
+
+	/** Number of times that the availability of a striped lot is checked for a stable sum */
+	protected static final int MAX_TRACK_ROUNDS = 4;
+
+	/** Our database manager instance */
+	protected DatabaseManager databaseManager;
+
+	/** The interval in milliseconds between write-behind flushes */
+	protected long flushInterval;
+
+	/** Sorted lot IDs; a lot's position in this array is its lot index */
+	protected int[] lotIDs;
+
+	/** Capacity of each lot by lot index */
+	protected int[] lotCapacity;
+
+	/** Car count of each lot by lot index */
+	protected AtomicIntegerArray lotCarCount;
+
+	/** 1 for each lot index whose car count has not been written to the database yet */
+	protected AtomicIntegerArray lotDirty;
+
+	/** The lots that have an available space, kept in step with the lot car counts */
+	protected volatile LotAvailability availability;
+
+	/** For each lot index, the position of its first level in the level arrays; the
+	 *  final element is the total number of levels */
+	protected int[] levelStart;
+
+	/** Level numbers, sorted within each lot */
+	protected int[] levelNumbers;
+
+	/** Capacity of each level by level index */
+	protected int[] levelCapacity;
+
+	/** Car count of each level by level index */
+	protected AtomicIntegerArray levelCarCount;
+
+	/** 1 for each level index whose car count has not been written to the database yet */
+	protected AtomicIntegerArray levelDirty;
+
+	/** The striped sub-counters of each hot lot by lot index, or null for lots whose
+	 *  count is still in lotCarCount */
+	protected AtomicReferenceArray<StripedCounter> lotStripes;
+
+	/** The striped sub-counters of each hot lot's entry level by level index */
+	protected AtomicReferenceArray<StripedCounter> levelStripes;
+
+	/** Number of updates of each lot by lot index, until the lot is striped */
+	protected AtomicIntegerArray lotUpdates;
+
+	/** The time in nanoseconds at which each lot's current update sample began */
+	protected AtomicLongArray lotSampleStart;
+
+	/** The update rate in updates per second above which a lot is striped, or 0 to never stripe lots */
+	protected volatile int hotLotThreshold = DEFAULT_HOT_LOT_THRESHOLD;
+
+	/** Number of stripes that a hot lot is split into */
+	protected int stripeCount = Math.min(MAX_STRIPES, 2 * Runtime.getRuntime().availableProcessors());
+
+	/** True once this engine has applied a change and is thus authoritative */
+	protected volatile boolean active;
+
+	/** Our background write-behind thread */
+	protected WriteBehindThread writeBehindThread;
+
+	/**
+	 * Background thread that periodically writes changed counts to the database
+	 */
+	protected class WriteBehindThread extends Thread
+	{
+		/** Creates the write-behind thread as a daemon */
+		public WriteBehindThread() {
+			super("OccupancyEngine write-behind");
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			while (true) {
+				try {
+					Thread.sleep(flushInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					flush();
+				} catch (SQLException e) {
+					System.err.println("OccupancyEngine: write-behind flush failed; will retry: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the occupancy engine, loads the current counts from the database and
+	 * starts the write-behind thread
+	 * @param databaseManager The database manager to load and persist counts with
+	 * @param flushInterval The interval in milliseconds between write-behind flushes, or
+	 * 0 if the caller writes the counts to the database itself
+	 * @throws SQLException Thrown when the counts cannot be loaded
+	 */
+	public OccupancyEngine(DatabaseManager databaseManager, long flushInterval) throws SQLException
+	{
+		this.databaseManager = databaseManager;
+		this.flushInterval = flushInterval;
+		load();
+
+		// Without a flush interval, someone else writes the counts to the database
+		if (flushInterval > 0) {
+			writeBehindThread = new WriteBehindThread();
+			writeBehindThread.start();
+		}
+	}
+
+	/**
+	 * Creates an occupancy engine over a lot layout for a parking store that keeps
+	 * the counts itself rather than in the database. The engine is authoritative from
+	 * the start and never reloads or writes the counts
+	 * @param layout The lots and levels to count cars in
+	 * @param lotCarCount The initial car count of each lot by lot index
+	 * @param levelCarCount The initial car count of each level by level index
+	 */
+	public OccupancyEngine(LotLayout layout, int[] lotCarCount, int[] levelCarCount)
+	{
+		publish(layout.lotIDs, layout.lotCapacity, lotCarCount, layout.levelStart, layout.levelNumbers,
+				layout.levelCapacity, levelCarCount);
+		active = true;
+	}
+
+	/**
+	 * Reloads the counts from the database if this engine has not applied any
+	 * changes yet. Call this when clients arrive at this server, which is how
+	 * a backup server notices that it has become the primary
+	 * @throws SQLException Thrown when the counts cannot be loaded
+	 */
+	public void sync() throws SQLException
+	{
+		if (!active)
+			load();
+	}
+
+	/**
+	 * Loads every lot's and level's capacity from the database and counts their cars
+	 * from the clients' rows. A request is committed to its client's row at once while
+	 * the counts are written behind, so a primary that failed in between left the Lot
+	 * and Level counts short of its last requests. Counts that differ from the tables'
+	 * are written back once this engine applies its first change
+	 * @throws SQLException Thrown when the counts cannot be loaded
+	 */
+	protected synchronized void load() throws SQLException
+	{
+		// Another thread might have activated us while we waited for the lock
+		if (active)
+			return;
+
+		Connection conn = databaseManager.getConnection();
+		try {
+			// Load the lots
+			PreparedStatement lots = databaseManager.prepareQuery(conn, "SELECT ID, CarCount, Capacity FROM Lot ORDER BY ID");
+			ResultSet rs = lots.executeQuery();
+			int[] ids = new int[16], carCounts = new int[16], capacities = new int[16];
+			int numLots = 0;
+			while (rs.next()) {
+				if (numLots == ids.length) {
+					ids = Arrays.copyOf(ids, numLots * 2);
+					carCounts = Arrays.copyOf(carCounts, numLots * 2);
+					capacities = Arrays.copyOf(capacities, numLots * 2);
+				}
+				ids[numLots] = rs.getInt(1);
+				carCounts[numLots] = rs.getInt(2);
+				capacities[numLots] = rs.getInt(3);
+				numLots++;
+			}
+			rs.close();
+
+			// Load the levels of every lot
+			PreparedStatement levels = databaseManager.prepareQuery(conn, "SELECT LotID, Level, CarCount, Capacity FROM Level ORDER BY LotID, Level");
+			rs = levels.executeQuery();
+			int[] starts = new int[numLots + 1];
+			int[] numbers = new int[16], levelCarCounts = new int[16], levelCapacities = new int[16];
+			int numLevels = 0, lotIndex = 0;
+			while (rs.next()) {
+				int lotID = rs.getInt(1);
+
+				// Skip levels of lots that do not exist
+				while (lotIndex < numLots && ids[lotIndex] < lotID)
+					starts[++lotIndex] = numLevels;
+				if (lotIndex == numLots || ids[lotIndex] != lotID)
+					continue;
+
+				if (numLevels == numbers.length) {
+					numbers = Arrays.copyOf(numbers, numLevels * 2);
+					levelCarCounts = Arrays.copyOf(levelCarCounts, numLevels * 2);
+					levelCapacities = Arrays.copyOf(levelCapacities, numLevels * 2);
+				}
+				numbers[numLevels] = rs.getInt(2);
+				levelCarCounts[numLevels] = rs.getInt(3);
+				levelCapacities[numLevels] = rs.getInt(4);
+				numLevels++;
+			}
+			rs.close();
+			while (lotIndex < numLots)
+				starts[++lotIndex] = numLevels;
+
+			// Count the cars in every lot and level from the clients' rows
+			PreparedStatement parked = databaseManager.prepareQuery(conn,
+					"SELECT LotID, Level, COUNT(*) FROM Client WHERE LotID IS NOT NULL GROUP BY LotID, Level");
+			rs = parked.executeQuery();
+			int[] lotCars = new int[numLots], levelCars = new int[numLevels];
+			while (rs.next()) {
+				lotIndex = Arrays.binarySearch(ids, 0, numLots, rs.getInt(1));
+				if (lotIndex < 0)
+					continue;
+				int cars = rs.getInt(3);
+				lotCars[lotIndex] += cars;
+				int levelIndex = Arrays.binarySearch(numbers, starts[lotIndex], starts[lotIndex + 1], rs.getInt(2));
+				if (levelIndex >= 0)
+					levelCars[levelIndex] += cars;
+			}
+			rs.close();
+			conn.commit();
+
+			publish(Arrays.copyOf(ids, numLots), Arrays.copyOf(capacities, numLots), lotCars,
+					starts, Arrays.copyOf(numbers, numLevels), Arrays.copyOf(levelCapacities, numLevels), levelCars);
+
+			// Have the counts that the tables got wrong written back, without making
+			// this engine authoritative
+			int recounted = 0;
+			for (int i = 0; i < numLots; i++) {
+				if (lotCars[i] != carCounts[i]) {
+					lotDirty.set(i, 1);
+					recounted++;
+				}
+			}
+			for (int i = 0; i < numLevels; i++) {
+				if (levelCars[i] != levelCarCounts[i]) {
+					levelDirty.set(i, 1);
+					recounted++;
+				}
+			}
+			if (recounted > 0)
+				System.out.println("OccupancyEngine: " + recounted + " lot and level car counts in the database did not match the clients' rows");
+		} catch (SQLException e) {
+			databaseManager.discardConnection(conn);
+			conn = null;
+			throw e;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Publishes a complete set of lots, levels and counts, replacing any earlier one
+	 * @param lotIDs The lot IDs in ascending order
+	 * @param lotCapacity Capacity of each lot by lot index
+	 * @param lotCarCount Car count of each lot by lot index
+	 * @param levelStart For each lot index, the position of its first level, followed
+	 * by the total number of levels
+	 * @param levelNumbers Level numbers, sorted within each lot
+	 * @param levelCapacity Capacity of each level by level index
+	 * @param levelCarCount Car count of each level by level index
+	 */
+	protected void publish(int[] lotIDs, int[] lotCapacity, int[] lotCarCount, int[] levelStart,
+			int[] levelNumbers, int[] levelCapacity, int[] levelCarCount)
+	{
+		// Work out which lots have room
+		int numLots = lotIDs.length;
+		LotAvailability availability = new LotAvailability(numLots > 0 ? lotIDs[numLots - 1] : 0);
+		for (int i = 0; i < numLots; i++)
+			availability.setAvailable(lotIDs[i], lotCarCount[i] < lotCapacity[i]);
+
+		this.lotIDs = lotIDs;
+		this.lotCapacity = lotCapacity;
+		this.lotCarCount = new AtomicIntegerArray(lotCarCount);
+		this.availability = availability;
+		this.lotDirty = new AtomicIntegerArray(numLots);
+		this.levelStart = levelStart;
+		this.levelNumbers = levelNumbers;
+		this.levelCapacity = levelCapacity;
+		this.levelCarCount = new AtomicIntegerArray(levelCarCount);
+		this.levelDirty = new AtomicIntegerArray(levelNumbers.length);
+		this.lotStripes = new AtomicReferenceArray<StripedCounter>(numLots);
+		this.levelStripes = new AtomicReferenceArray<StripedCounter>(levelNumbers.length);
+		this.lotUpdates = new AtomicIntegerArray(numLots);
+		this.lotSampleStart = new AtomicLongArray(numLots);
+	}
+
+	/**
+	 * Sets the update rate above which a lot is striped
+	 * @param hotLotThreshold The update rate in updates per second, or 0 to never
+	 * stripe lots
+	 */
+	public void setHotLotThreshold(int hotLotThreshold) {
+		this.hotLotThreshold = hotLotThreshold;
+	}
+
+	/**
+	 * Sets the number of stripes that hot lots are split into from now on
+	 * @param stripeCount The number of stripes
+	 */
+	public void setStripeCount(int stripeCount) {
+		this.stripeCount = Math.max(1, Math.min(MAX_STRIPES, stripeCount));
+	}
+
+	/**
+	 * Adds a car to the given lot and to the lot's entry level
+	 * @param lot The ID of the lot to enter
+	 * @return OK, LOT_NOT_FOUND, LOT_FULL, or LEVEL_NOT_FOUND if the lot has no entry level
+	 */
+	public int enter(int lot)
+	{
+		int lotIndex = lotIndex(lot);
+		if (lotIndex < 0)
+			return LOT_NOT_FOUND;
+		int entryLevel = levelIndex(lotIndex, 1);
+		if (entryLevel < 0)
+			return LEVEL_NOT_FOUND;
+
+		// Claim a space in the lot, failing if it is full
+		int claimed = claim(lotIndex);
+		if (claimed == StripedCounter.FULL)
+			return LOT_FULL;
+		add(levelCarCount, levelStripes, entryLevel);
+		if (claimed == StripedCounter.CLAIMED_LAST)
+			trackAvailability(lotIndex);
+
+		markDirty(lotIndex, entryLevel);
+		countUpdate(lotIndex);
+		return OK;
+	}
+
+	/**
+	 * Removes a car from the given lot and from the lot's exit level
+	 * @param lot The ID of the lot to exit
+	 * @return OK, LOT_NOT_FOUND, or LEVEL_NOT_FOUND if the lot has no exit level
+	 */
+	public int exit(int lot)
+	{
+		int lotIndex = lotIndex(lot);
+		if (lotIndex < 0)
+			return LOT_NOT_FOUND;
+		int exitLevel = levelIndex(lotIndex, 1);
+		if (exitLevel < 0)
+			return LEVEL_NOT_FOUND;
+
+		// Summing a striped lot is only worth it if the lot might have been full
+		boolean striped = remove(lotCarCount, lotStripes, lotIndex);
+		remove(levelCarCount, levelStripes, exitLevel);
+		if (!striped || !availability.isAvailable(lot))
+			trackAvailability(lotIndex);
+
+		markDirty(lotIndex, exitLevel);
+		countUpdate(lotIndex);
+		return OK;
+	}
+
+	/**
+	 * Removes a car that was just added by enter(), which undoes a successful enter()
+	 * @param lot The ID of the lot to remove the car from
+	 */
+	public void undoEnter(int lot) {
+		exit(lot);
+	}
+
+	/**
+	 * Adds a car back to the given lot and its entry level without checking the
+	 * lot's capacity, which undoes a successful exit()
+	 * @param lot The ID of the lot to restore the car to
+	 */
+	public void undoExit(int lot)
+	{
+		int lotIndex = lotIndex(lot);
+		if (lotIndex < 0)
+			return;
+		int entryLevel = levelIndex(lotIndex, 1);
+		if (entryLevel < 0)
+			return;
+
+		add(lotCarCount, lotStripes, lotIndex);
+		add(levelCarCount, levelStripes, entryLevel);
+		trackAvailability(lotIndex);
+		markDirty(lotIndex, entryLevel);
+	}
+
+	/**
+	 * Moves a car between two levels of a lot
+	 * @param lot The ID of the lot that the car is in
+	 * @param fromLevel The level that the car is leaving
+	 * @param toLevel The level that the car is moving to
+	 * @return OK, LOT_NOT_FOUND, or LEVEL_NOT_FOUND if either level does not exist
+	 */
+	public int move(int lot, int fromLevel, int toLevel)
+	{
+		int lotIndex = lotIndex(lot);
+		if (lotIndex < 0)
+			return LOT_NOT_FOUND;
+		int from = levelIndex(lotIndex, fromLevel);
+		int to = levelIndex(lotIndex, toLevel);
+		if (from < 0 || to < 0)
+			return LEVEL_NOT_FOUND;
+
+		remove(levelCarCount, levelStripes, from);
+		add(levelCarCount, levelStripes, to);
+
+		markDirty(-1, from);
+		markDirty(-1, to);
+		return OK;
+	}
+
+	/**
+	 * Returns the levels of the given lot that have available spaces, in ascending order
+	 * @param lot The ID of the lot
+	 * @return The levels that have available spaces or null if the lot does not exist
+	 */
+	public int[] getAvailableLevels(int lot)
+	{
+		int lotIndex = lotIndex(lot);
+		if (lotIndex < 0)
+			return null;
+
+		int start = levelStart[lotIndex], end = levelStart[lotIndex + 1];
+		int[] available = new int[end - start];
+		int numAvailable = 0;
+		for (int i = start; i < end; i++) {
+			if (count(levelCarCount, levelStripes, i) < levelCapacity[i])
+				available[numAvailable++] = levelNumbers[i];
+		}
+		return numAvailable == available.length ? available : Arrays.copyOf(available, numAvailable);
+	}
+
+	/**
+	 * Returns true if the given lot exists and has at least one available space
+	 * @param lot The ID of the lot
+	 * @return True if the given lot has at least one available space
+	 */
+	public boolean hasSpace(int lot)
+	{
+		int lotIndex = lotIndex(lot);
+		return lotIndex >= 0 && count(lotCarCount, lotStripes, lotIndex) < lotCapacity[lotIndex];
+	}
+
+	/**
+	 * Returns the number of free spaces of a lot
+	 * @param lot The ID of the lot
+	 * @return The lot's capacity less its car count, or -1 if the lot does not exist
+	 */
+	public int getFreeSpaces(int lot)
+	{
+		int lotIndex = lotIndex(lot);
+		return lotIndex < 0 ? -1 : Math.max(0, lotCapacity[lotIndex] - count(lotCarCount, lotStripes, lotIndex));
+	}
+
+	/**
+	 * Returns the lots that have an available space. The bitset changes as cars
+	 * enter and exit, so it always reflects the current car counts
+	 * @return The lots that have an available space
+	 */
+	public LotAvailability getAvailability() {
+		return availability;
+	}
+
+	/**
+	 * Returns true if the given level of the given lot exists
+	 * @param lot The ID of the lot
+	 * @param level The level number
+	 * @return True if the given level exists
+	 */
+	public boolean hasLevel(int lot, int level)
+	{
+		int lotIndex = lotIndex(lot);
+		return lotIndex >= 0 && levelIndex(lotIndex, level) >= 0;
+	}
+
+	/**
+	 * Returns true if the given lot exists
+	 * @param lot The ID of the lot
+	 * @return True if the given lot exists
+	 */
+	public boolean hasLot(int lot) {
+		return lotIndex(lot) >= 0;
+	}
+
+	/**
+	 * Returns the number of lots
+	 * @return The number of lots
+	 */
+	public int getLotCount() {
+		return lotIDs.length;
+	}
+
+	/**
+	 * Returns the total number of levels of every lot
+	 * @return The total number of levels
+	 */
+	public int getLevelCount() {
+		return levelNumbers.length;
+	}
+
+	/**
+	 * Returns the car count of a lot
+	 * @param lotIndex The index of the lot
+	 * @return The lot's car count
+	 */
+	public int getLotCarCount(int lotIndex) {
+		return count(lotCarCount, lotStripes, lotIndex);
+	}
+
+	/**
+	 * Returns the car count of a level
+	 * @param levelIndex The index of the level
+	 * @return The level's car count
+	 */
+	public int getLevelCarCount(int levelIndex) {
+		return count(levelCarCount, levelStripes, levelIndex);
+	}
+
+	/**
+	 * Returns the lots whose counts are striped
+	 * @return The IDs of the striped lots in ascending order
+	 */
+	public int[] getStripedLots()
+	{
+		int[] striped = new int[lotIDs.length];
+		int numStriped = 0;
+		for (int i = 0; i < lotIDs.length; i++) {
+			if (lotCarCount.get(i) == STRIPED)
+				striped[numStriped++] = lotIDs[i];
+		}
+		return Arrays.copyOf(striped, numStriped);
+	}
+
+	/**
+	 * Splits the counts of a lot and its entry level into striped sub-counters now,
+	 * rather than when the lot's update rate passes the threshold
+	 * @param lot The ID of the lot
+	 * @return True if the lot was striped or false if it does not exist or already was
+	 */
+	public boolean stripeLot(int lot)
+	{
+		int lotIndex = lotIndex(lot);
+		return lotIndex >= 0 && stripe(lotIndex);
+	}
+
+	/**
+	 * Writes every pending change to the database and returns once it is durable.
+	 * Call this before this server stops serving clients so that the server that
+	 * takes over sees up-to-date counts
+	 * @throws SQLException Thrown when the changes cannot be written
+	 */
+	public void fence() throws SQLException {
+		flush();
+	}
+
+	/**
+	 * Writes the counts of every changed lot and level to the database. Absolute
+	 * counts are written, so a flush that is retried after a failure is harmless
+	 * @throws SQLException Thrown when the changes cannot be written, in which case
+	 * they stay pending for the next flush
+	 */
+	protected synchronized void flush() throws SQLException
+	{
+		if (!active || writeBehindThread == null)
+			return;
+
+		// Collect the changed lots and levels
+		int[] lots = collectDirty(lotDirty);
+		int[] levels = collectDirty(levelDirty);
+		if (lots.length == 0 && levels.length == 0)
+			return;
+
+		Connection conn = null;
+		try {
+			conn = databaseManager.getConnection();
+			if (lots.length > 0) {
+				PreparedStatement updateLot = databaseManager.prepareStatement(conn, "UPDATE Lot SET CarCount = ? WHERE ID = ?");
+				for (int lotIndex : lots) {
+					updateLot.setInt(1, count(lotCarCount, lotStripes, lotIndex));
+					updateLot.setInt(2, lotIDs[lotIndex]);
+					updateLot.addBatch();
+				}
+				updateLot.executeBatch();
+			}
+			if (levels.length > 0) {
+				PreparedStatement updateLevel = databaseManager.prepareStatement(conn, "UPDATE Level SET CarCount = ? WHERE LotID = ? AND Level = ?");
+				for (int levelIndex : levels) {
+					updateLevel.setInt(1, count(levelCarCount, levelStripes, levelIndex));
+					updateLevel.setInt(2, lotIDs[lotIndexOfLevel(levelIndex)]);
+					updateLevel.setInt(3, levelNumbers[levelIndex]);
+					updateLevel.addBatch();
+				}
+				updateLevel.executeBatch();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			// Keep the changes pending for the next flush
+			for (int lotIndex : lots)
+				lotDirty.set(lotIndex, 1);
+			for (int levelIndex : levels)
+				levelDirty.set(levelIndex, 1);
+			databaseManager.discardConnection(conn);
+			conn = null;
+			throw e;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Returns the index of the given lot ID
+	 * @param lot The ID of the lot
+	 * @return The lot's index or a negative number if the lot does not exist
+	 */
+	protected int lotIndex(int lot) {
+		return Arrays.binarySearch(lotIDs, lot);
+	}
+
+	/**
+	 * Returns the index of the given level of the lot at the given index
+	 * @param lotIndex The index of the lot
+	 * @param level The level number
+	 * @return The level's index or a negative number if the level does not exist
+	 */
+	protected int levelIndex(int lotIndex, int level)
+	{
+		int index = Arrays.binarySearch(levelNumbers, levelStart[lotIndex], levelStart[lotIndex + 1], level);
+		return index < 0 ? -1 : index;
+	}
+
+	/**
+	 * Returns the index of the lot that owns the level at the given index
+	 * @param levelIndex The index of the level
+	 * @return The index of the lot that owns the level
+	 */
+	protected int lotIndexOfLevel(int levelIndex)
+	{
+		// Find the last lot whose first level is at or before the level
+		int low = 0, high = lotIDs.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (levelStart[mid] <= levelIndex)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Brings the availability bit of the lot at the given index in line with its car
+	 * count. The sum of a striped lot can change all the time, so it is only checked a
+	 * few times for a stable value, and the next change corrects a stale bit
+	 * @param lotIndex The index of the lot whose car count changed
+	 */
+	protected void trackAvailability(int lotIndex)
+	{
+		int lot = lotIDs[lotIndex], capacity = lotCapacity[lotIndex];
+		if (lotCarCount.get(lotIndex) != STRIPED) {
+			availability.track(lot, lotCarCount, lotIndex, capacity);
+			if (lotCarCount.get(lotIndex) != STRIPED)
+				return;
+		}
+
+		StripedCounter stripes = getStripes(lotStripes, lotIndex);
+		int count = stripes.sum();
+		for (int n = 0; n < MAX_TRACK_ROUNDS; n++) {
+			availability.setAvailable(lot, count < capacity);
+			int again = stripes.sum();
+			if (again == count)
+				return;
+			count = again;
+		}
+	}
+
+	/**
+	 * Marks a lot and a level as changed and makes this engine authoritative. Flags
+	 * that are already set are only read, so that the threads updating a hot lot do
+	 * not all write the same cache lines
+	 * @param lotIndex The index of the changed lot or -1 if no lot changed
+	 * @param levelIndex The index of the changed level
+	 */
+	protected void markDirty(int lotIndex, int levelIndex)
+	{
+		if (lotIndex >= 0 && lotDirty.get(lotIndex) == 0)
+			lotDirty.set(lotIndex, 1);
+		if (levelDirty.get(levelIndex) == 0)
+			levelDirty.set(levelIndex, 1);
+		if (!active)
+			active = true;
+	}
+
+	/**
+	 * Adds a car to a lot unless it is full
+	 * @param lotIndex The index of the lot
+	 * @return StripedCounter.CLAIMED, CLAIMED_LAST if the lot might now be full, or FULL
+	 */
+	protected int claim(int lotIndex)
+	{
+		int capacity = lotCapacity[lotIndex], count;
+		do {
+			count = lotCarCount.get(lotIndex);
+			if (count == STRIPED)
+				return getStripes(lotStripes, lotIndex).tryIncrement();
+			if (count >= capacity)
+				return StripedCounter.FULL;
+		} while (!lotCarCount.compareAndSet(lotIndex, count, count + 1));
+		return count + 1 >= capacity ? StripedCounter.CLAIMED_LAST : StripedCounter.CLAIMED;
+	}
+
+	/**
+	 * Counts an update of a lot and stripes the lot if its update rate has passed
+	 * the threshold
+	 * @param lotIndex The index of the updated lot
+	 */
+	protected void countUpdate(int lotIndex)
+	{
+		int threshold = hotLotThreshold;
+		if (threshold <= 0 || lotCarCount.get(lotIndex) == STRIPED
+				|| (lotUpdates.incrementAndGet(lotIndex) & (HOT_SAMPLE_SIZE - 1)) != 0)
+			return;
+
+		// Every HOT_SAMPLE_SIZE updates, work out the rate since the last sample
+		long now = System.nanoTime(), start = lotSampleStart.getAndSet(lotIndex, now);
+		if (start != 0 && HOT_SAMPLE_SIZE * 1000000000L / Math.max(1, now - start) >= threshold)
+			stripe(lotIndex);
+	}
+
+	/**
+	 * Splits the counts of a lot and its entry level into striped sub-counters
+	 * @param lotIndex The index of the lot
+	 * @return True if the lot was striped or false if it already was
+	 */
+	protected boolean stripe(int lotIndex)
+	{
+		if (!freeze(lotCarCount, lotStripes, lotIndex, lotCapacity[lotIndex]))
+			return false;
+		int entryLevel = levelIndex(lotIndex, 1);
+		if (entryLevel >= 0)
+			freeze(levelCarCount, levelStripes, entryLevel, Integer.MAX_VALUE);
+		System.out.println("OccupancyEngine: lot " + lotIDs[lotIndex] + " is hot; its car counts are now split into "
+				+ stripeCount + " stripes");
+		return true;
+	}
+
+	/**
+	 * Moves a count into striped sub-counters. The count is marked as STRIPED first,
+	 * so updates that arrive meanwhile wait for the sub-counters instead of being lost
+	 * @param counts The counts
+	 * @param striped The sub-counters of the counts
+	 * @param index The index of the count to move
+	 * @param capacity The greatest count, or Integer.MAX_VALUE if there is none
+	 * @return True if the count was moved or false if it already had been
+	 */
+	protected boolean freeze(AtomicIntegerArray counts, AtomicReferenceArray<StripedCounter> striped, int index, int capacity)
+	{
+		int count;
+		do {
+			count = counts.get(index);
+			if (count == STRIPED)
+				return false;
+		} while (!counts.compareAndSet(index, count, STRIPED));
+		striped.set(index, new StripedCounter(stripeCount, count, capacity));
+		return true;
+	}
+
+	/**
+	 * Clears every dirty flag in the given array and returns the indexes that were set
+	 * @param dirty The dirty flags
+	 * @return The indexes whose flags were set
+	 */
+	protected static int[] collectDirty(AtomicIntegerArray dirty)
+	{
+		int[] indexes = new int[dirty.length()];
+		int numIndexes = 0;
+		for (int i = 0; i < indexes.length; i++) {
+			if (dirty.get(i) != 0 && dirty.getAndSet(i, 0) != 0)
+				indexes[numIndexes++] = i;
+		}
+		return Arrays.copyOf(indexes, numIndexes);
+	}
+
+	/**
+	 * Adds one to a count without checking any capacity
+	 * @param counts The counts
+	 * @param striped The sub-counters of the counts
+	 * @param index The index of the count
+	 */
+	protected static void add(AtomicIntegerArray counts, AtomicReferenceArray<StripedCounter> striped, int index)
+	{
+		int count;
+		do {
+			count = counts.get(index);
+			if (count == STRIPED) {
+				getStripes(striped, index).increment();
+				return;
+			}
+		} while (!counts.compareAndSet(index, count, count + 1));
+	}
+
+	/**
+	 * Subtracts one from a count unless it is already zero
+	 * @param counts The counts
+	 * @param striped The sub-counters of the counts
+	 * @param index The index of the count
+	 * @return True if the count is striped
+	 */
+	protected static boolean remove(AtomicIntegerArray counts, AtomicReferenceArray<StripedCounter> striped, int index)
+	{
+		int count;
+		do {
+			count = counts.get(index);
+			if (count == STRIPED) {
+				getStripes(striped, index).decrementToZero();
+				return true;
+			}
+			if (count <= 0)
+				return false;
+		} while (!counts.compareAndSet(index, count, count - 1));
+		return false;
+	}
+
+	/**
+	 * Returns a count, summing its sub-counters if it is striped
+	 * @param counts The counts
+	 * @param striped The sub-counters of the counts
+	 * @param index The index of the count
+	 * @return The count
+	 */
+	protected static int count(AtomicIntegerArray counts, AtomicReferenceArray<StripedCounter> striped, int index)
+	{
+		int count = counts.get(index);
+		return count == STRIPED ? getStripes(striped, index).sum() : count;
+	}
+
+	/**
+	 * Returns the sub-counters of a striped count, waiting for the thread that is
+	 * striping it to publish them
+	 * @param striped The sub-counters of the counts
+	 * @param index The index of the count
+	 * @return The sub-counters
+	 */
+	protected static StripedCounter getStripes(AtomicReferenceArray<StripedCounter> striped, int index)
+	{
+		StripedCounter stripes;
+		while ((stripes = striped.get(index)) == null)
+			Thread.yield();
+		return stripes;
+	}
+}
@@ -0,0 +1,597 @@
+package ParkNPark.middletier;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the client managers' mutating operations, kept in
+ * memory-mapped segment files. An append returns once its record is on disk;
+ * appends that arrive together share a single sync (group commit), which
+ * happens every groupCommitInterval microseconds or as soon as groupCommitSize
+ * records are waiting, whichever comes first.
+ * <p>
+ * Synced records are handed to a consumer (the JournalApplier) that applies
+ * them to the database, after which their segments are deleted. Records left
+ * over from a previous run are recovered when the journal is opened and handed
+ * to the consumer before any new records. Every record carries a CRC32 so that
+ * a record torn by a crash ends recovery of its segment.
+ * <p>
+ * The journals of the servers that may take over from each other sit side by side
+ * in a shared folder. A server that takes over reads the other journals with
+ * readOther() and replays what their servers had not applied yet
+ */
+public class OperationJournal
+{
+	/** Operation code of enterLot() */
+	public static final int ENTER_LOT = 1;
+
+	/** Operation code of exitLot() */
+	public static final int EXIT_LOT = 2;
+
+	/** Operation code of moveUpLevel() and moveDownLevel() */
+	public static final int MOVE_LEVEL = 3;
+
+	/** Operation code of a new client, which only the file-backed parking store journals */
+	public static final int CREATE_CLIENT = 4;
+
+	/** Size of a journal record in bytes */
+	public static final int RECORD_SIZE = 32;
+
+	/** The default number of records in a segment file (1 MB segments) */
+	public static final int DEFAULT_SEGMENT_RECORDS = 32768;
+
+	/** The default longest time in microseconds that an append waits for others to join its sync */
+	public static final long DEFAULT_GROUP_COMMIT_INTERVAL = 200;
+
+	/** The default number of waiting records that triggers a sync right away */
+	public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+
+	/** Marks the start of every valid record */
+	protected static final int RECORD_MAGIC = 0x504e504a;
+
+	/** Prefix of the segment file names */
+	protected static final String SEGMENT_PREFIX = "journal-";
+
+	/** Suffix of the segment file names */
+	protected static final String SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * A single journaled operation
+	 */
+	public static class Record
+	{
+		/** The number of the segment that holds this record */
+		public final long segment;
+
+		/** The client that performed the operation */
+		public final int clientID;
+
+		/** The client's sequence number of the operation */
+		public final int seq;
+
+		/** The operation code */
+		public final int op;
+
+		/** The lot that the operation happened in */
+		public final int lot;
+
+		/** The level that the car left, or 0 if it entered the lot */
+		public final int fromLevel;
+
+		/** The level that the car arrived at, or 0 if it exited the lot */
+		public final int toLevel;
+
+		/**
+		 * Creates a new journal record
+		 * @param segment The number of the segment that holds this record
+		 * @param clientID The client that performed the operation
+		 * @param seq The client's sequence number of the operation
+		 * @param op The operation code
+		 * @param lot The lot that the operation happened in
+		 * @param fromLevel The level that the car left, or 0 if it entered the lot
+		 * @param toLevel The level that the car arrived at, or 0 if it exited the lot
+		 */
+		public Record(long segment, int clientID, int seq, int op, int lot, int fromLevel, int toLevel)
+		{
+			this.segment = segment;
+			this.clientID = clientID;
+			this.seq = seq;
+			this.op = op;
+			this.lot = lot;
+			this.fromLevel = fromLevel;
+			this.toLevel = toLevel;
+		}
+	}
+
+	/** The folder that holds the segment files */
+	protected File directory;
+
+	/** The number of records in a segment file */
+	protected int segmentRecords;
+
+	/** The longest time in nanoseconds that an append waits for others to join its sync */
+	protected long groupCommitInterval;
+
+	/** The number of waiting records that triggers a sync right away */
+	protected int groupCommitSize;
+
+	/** The number of the segment that is being appended to */
+	protected long segmentNumber;
+
+	/** The file of the segment that is being appended to */
+	protected RandomAccessFile segmentFile;
+
+	/** The mapping of the segment that is being appended to */
+	protected MappedByteBuffer segment;
+
+	/** Checksum calculator for appended records */
+	protected CRC32 crc = new CRC32();
+
+	/** The number of records appended so far */
+	protected long appended;
+
+	/** The number of appended records that are known to be on disk */
+	protected long synced;
+
+	/** Records that were appended but are not known to be on disk yet */
+	protected List<Record> pending = new ArrayList<Record>();
+
+	/** The group of records that is being synced, or null */
+	protected List<Record> syncing;
+
+	/** Records that are on disk and are waiting for the consumer */
+	protected LinkedList<Record> syncedRecords = new LinkedList<Record>();
+
+	/** The number of records that were ever handed to the consumer */
+	protected long available;
+
+	/** True once the journal has been closed */
+	protected boolean closed;
+
+	/** Our background group commit thread */
+	protected SyncThread syncThread;
+
+	/**
+	 * Background thread that syncs groups of appended records to disk
+	 */
+	protected class SyncThread extends Thread
+	{
+		/** Creates the sync thread as a daemon */
+		public SyncThread() {
+			super("OperationJournal sync");
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			while (true) {
+				// Wait for something to sync
+				synchronized (OperationJournal.this) {
+					while (pending.isEmpty() && !closed) {
+						try {
+							OperationJournal.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (pending.isEmpty())
+						return;
+				}
+
+				// Give other appenders a moment to join this group
+				if (groupCommitInterval > 0 && getPendingCount() < groupCommitSize)
+					LockSupport.parkNanos(groupCommitInterval);
+
+				// Take the group and sync it
+				long target;
+				MappedByteBuffer toForce;
+				List<Record> group;
+				synchronized (OperationJournal.this) {
+					target = appended;
+					toForce = segment;
+					group = pending;
+					syncing = group;
+					pending = new ArrayList<Record>();
+				}
+				toForce.force();
+
+				// Hand the group to the consumer and release the appenders
+				synchronized (OperationJournal.this) {
+					synchronized (syncedRecords) {
+						syncedRecords.addAll(group);
+						available += group.size();
+						syncedRecords.notifyAll();
+					}
+					syncing = null;
+					synced = target;
+					OperationJournal.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the journal in the given folder, recovers the records left over from a
+	 * previous run and starts the group commit thread
+	 * @param directory The folder that holds the segment files; it is created if needed
+	 * @param segmentRecords The number of records in a segment file
+	 * @param groupCommitInterval The longest time in microseconds that an append waits
+	 * for others to join its sync
+	 * @param groupCommitSize The number of waiting records that triggers a sync right away
+	 * @throws IOException Thrown when the journal cannot be opened
+	 */
+	public OperationJournal(File directory, int segmentRecords, long groupCommitInterval, int groupCommitSize) throws IOException
+	{
+		this.directory = directory;
+		this.segmentRecords = segmentRecords;
+		this.groupCommitInterval = groupCommitInterval * 1000;
+		this.groupCommitSize = groupCommitSize;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create the journal folder " + directory);
+
+		// Recover the records of the previous run and then start a fresh segment
+		long[] segments = listSegments();
+		for (long number : segments)
+			recover(number);
+		segmentNumber = segments.length > 0 ? segments[segments.length - 1] : 0;
+		openSegment(segmentNumber + 1);
+
+		syncThread = new SyncThread();
+		syncThread.start();
+	}
+
+	/**
+	 * Appends an operation to the journal and returns once it is on disk
+	 * @param clientID The client that performed the operation
+	 * @param seq The client's sequence number of the operation
+	 * @param op The operation code
+	 * @param lot The lot that the operation happened in
+	 * @param fromLevel The level that the car left, or 0 if it entered the lot
+	 * @param toLevel The level that the car arrived at, or 0 if it exited the lot
+	 * @throws IOException Thrown when the record could not be made durable
+	 */
+	public synchronized void append(int clientID, int seq, int op, int lot, int fromLevel, int toLevel) throws IOException
+	{
+		if (closed)
+			throw new IOException("The operation journal is closed");
+
+		// Move to a new segment when this one is full
+		if (!segment.hasRemaining())
+			openSegment(segmentNumber + 1);
+
+		Record record = new Record(segmentNumber, clientID, seq, op, lot, fromLevel, toLevel);
+		write(record);
+		pending.add(record);
+		long ticket = ++appended;
+
+		// Sync right away if the group is big enough; otherwise make sure that the
+		// sync thread is awake to start the group commit interval
+		if (pending.size() == 1)
+			notifyAll();
+		if (pending.size() >= groupCommitSize)
+			LockSupport.unpark(syncThread);
+
+		// Wait for the group commit
+		while (synced < ticket) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the journal to sync");
+			}
+		}
+	}
+
+	/**
+	 * Removes up to the given number of synced records for the consumer, waiting for
+	 * records to arrive if there are none
+	 * @param max The greatest number of records to return
+	 * @param timeout The longest time in milliseconds to wait for records to arrive
+	 * @return The synced records in journal order, or an empty list if none arrived in time
+	 * @throws InterruptedException Thrown when the caller is interrupted while waiting
+	 */
+	public List<Record> takeSynced(int max, long timeout) throws InterruptedException
+	{
+		synchronized (syncedRecords) {
+			if (syncedRecords.isEmpty())
+				syncedRecords.wait(timeout);
+
+			List<Record> records = new ArrayList<Record>(Math.min(max, syncedRecords.size()));
+			while (records.size() < max && !syncedRecords.isEmpty())
+				records.add(syncedRecords.removeFirst());
+			return records;
+		}
+	}
+
+	/**
+	 * Returns the number of records that were ever handed to the consumer,
+	 * including the records recovered from a previous run
+	 * @return The number of records that were ever handed to the consumer
+	 */
+	public long getAvailableCount()
+	{
+		synchronized (syncedRecords) {
+			return available;
+		}
+	}
+
+	/**
+	 * Deletes the segment files that precede the given segment. Call this once every
+	 * record of those segments has been applied. Segments that still hold records
+	 * which have not reached the consumer are kept regardless
+	 * @param segment The oldest segment that must be kept
+	 */
+	public void checkpoint(long segment)
+	{
+		// Never delete a segment whose records the consumer has not seen yet
+		long keep = segment;
+		synchronized (this) {
+			keep = Math.min(keep, segmentNumber);
+			if (!pending.isEmpty())
+				keep = Math.min(keep, pending.get(0).segment);
+			if (syncing != null && !syncing.isEmpty())
+				keep = Math.min(keep, syncing.get(0).segment);
+			synchronized (syncedRecords) {
+				if (!syncedRecords.isEmpty())
+					keep = Math.min(keep, syncedRecords.getFirst().segment);
+			}
+		}
+
+		for (long number : listSegments()) {
+			if (number < keep && !segmentFile(number).delete())
+				System.err.println("OperationJournal: could not delete applied segment " + segmentFile(number));
+		}
+	}
+
+	/**
+	 * Returns the number of the segment that is being appended to
+	 * @return The number of the segment that is being appended to
+	 */
+	public synchronized long getSegmentNumber() {
+		return segmentNumber;
+	}
+
+	/**
+	 * Syncs the remaining records and closes the journal
+	 */
+	public void close()
+	{
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			syncThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			closeSegment();
+		}
+	}
+
+	/**
+	 * Returns the number of records that are waiting to be synced
+	 * @return The number of records that are waiting to be synced
+	 */
+	protected synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Writes a record at the current position of the current segment
+	 * @param record The record to write
+	 */
+	protected void write(Record record)
+	{
+		int start = segment.position();
+		segment.putInt(RECORD_MAGIC);
+		segment.putInt(record.clientID);
+		segment.putInt(record.seq);
+		segment.putInt(record.op);
+		segment.putInt(record.lot);
+		segment.putInt(record.fromLevel);
+		segment.putInt(record.toLevel);
+		segment.putInt(checksum(crc, segment, start));
+	}
+
+	/**
+	 * Calculates the checksum of the record at the given position
+	 * @param crc The checksum calculator to use
+	 * @param buffer The buffer that holds the record
+	 * @param start The position of the record
+	 * @return The checksum of the record's fields
+	 */
+	protected static int checksum(CRC32 crc, ByteBuffer buffer, int start)
+	{
+		ByteBuffer fields = buffer.duplicate();
+		fields.limit(start + RECORD_SIZE - 4);
+		fields.position(start + 4);
+		crc.reset();
+		crc.update(fields);
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Reads the valid records of the given segment into the consumer's queue
+	 * @param number The number of the segment to recover
+	 * @throws IOException Thrown when the segment cannot be read
+	 */
+	protected void recover(long number) throws IOException
+	{
+		int numRecovered = read(segmentFile(directory, number), number, 0, syncedRecords);
+		available += numRecovered;
+		System.out.println("Recovered " + numRecovered + " journal records from segment " + number);
+	}
+
+	/**
+	 * Reads the records of another server's journal that follow the ones already
+	 * read, without opening it; its server may still be appending to it. Segments
+	 * that its server has deleted were applied already and are skipped
+	 * @param directory The folder of the other journal
+	 * @param read The number of records already read from each segment, by segment
+	 * number; segments that are not listed have not been read
+	 * @return The records that follow the ones already read, in journal order
+	 * @throws IOException Thrown when a segment cannot be read
+	 */
+	public static List<Record> readOther(File directory, Map<Long, Integer> read) throws IOException
+	{
+		List<Record> records = new ArrayList<Record>();
+		for (long number : listSegments(directory)) {
+			Integer skip = read.get(number);
+			try {
+				read(segmentFile(directory, number), number, skip == null ? 0 : skip, records);
+			} catch (FileNotFoundException e) {
+				// Its server applied and deleted the segment while we were listing them
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Reads the valid records of a segment file up to the first torn, corrupt or
+	 * unwritten one
+	 * @param segmentFile The segment file
+	 * @param number The number of the segment
+	 * @param skip The number of records at the start of the segment to leave out
+	 * @param records The list to add the records to
+	 * @return The number of records added
+	 * @throws IOException Thrown when the segment cannot be read
+	 */
+	protected static int read(File segmentFile, long number, int skip, List<Record> records) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+		try {
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			CRC32 readCrc = new CRC32();
+			int numRead = 0;
+			for (int index = 0; buffer.remaining() >= RECORD_SIZE; index++) {
+				int start = buffer.position();
+				if (buffer.getInt(start) != RECORD_MAGIC
+						|| buffer.getInt(start + RECORD_SIZE - 4) != checksum(readCrc, buffer, start))
+					break;
+				if (index >= skip) {
+					records.add(new Record(number, buffer.getInt(start + 4), buffer.getInt(start + 8),
+							buffer.getInt(start + 12), buffer.getInt(start + 16), buffer.getInt(start + 20),
+							buffer.getInt(start + 24)));
+					numRead++;
+				}
+				buffer.position(start + RECORD_SIZE);
+			}
+			return numRead;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Makes sure the current segment is on disk and starts appending to a new one
+	 * @param number The number of the new segment
+	 * @throws IOException Thrown when the new segment cannot be created
+	 */
+	protected void openSegment(long number) throws IOException
+	{
+		closeSegment();
+
+		// New segment files are zero-filled, so recovery stops at the first unwritten record
+		RandomAccessFile file = new RandomAccessFile(segmentFile(number), "rw");
+		try {
+			file.setLength((long)segmentRecords * RECORD_SIZE);
+			segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		segmentFile = file;
+		segmentNumber = number;
+	}
+
+	/**
+	 * Syncs and closes the current segment, if there is one
+	 */
+	protected void closeSegment()
+	{
+		if (segmentFile == null)
+			return;
+		segment.force();
+		try {
+			segmentFile.close();
+		} catch (IOException e) {
+			System.err.println("OperationJournal: could not close segment " + segmentNumber + ": " + e.getMessage());
+		}
+		segmentFile = null;
+	}
+
+	/**
+	 * Returns the numbers of the segment files in the journal folder in ascending order
+	 * @return The numbers of the segment files in the journal folder
+	 */
+	protected long[] listSegments() {
+		return listSegments(directory);
+	}
+
+	/**
+	 * Returns the numbers of the segment files in a journal folder in ascending order
+	 * @param directory The journal folder
+	 * @return The numbers of the segment files in the journal folder
+	 */
+	protected static long[] listSegments(File directory)
+	{
+		String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (names == null)
+			return new long[0];
+
+		long[] numbers = new long[names.length];
+		int numSegments = 0;
+		for (String name : names) {
+			try {
+				numbers[numSegments] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+						name.length() - SEGMENT_SUFFIX.length()));
+				numSegments++;
+			} catch (NumberFormatException e) {
+				// Not one of ours
+			}
+		}
+		numbers = Arrays.copyOf(numbers, numSegments);
+		Arrays.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Returns the file of the given segment
+	 * @param number The number of the segment
+	 * @return The file of the given segment
+	 */
+	protected File segmentFile(long number) {
+		return segmentFile(directory, number);
+	}
+
+	/**
+	 * Returns the file of a segment in a journal folder
+	 * @param directory The journal folder
+	 * @param number The number of the segment
+	 * @return The file of the segment
+	 */
+	protected static File segmentFile(File directory, long number) {
+		return new File(directory, SEGMENT_PREFIX + String.format("%016d", number) + SEGMENT_SUFFIX);
+	}
+}
@@ -0,0 +1,171 @@
+package ParkNPark.middletier;
+
+import ParkNPark.interfaces.ServiceUnavailableException;
+
+/**
+ * Where a server keeps its clients, car counts and lot topology. Client managers
+ * apply every request through the server's store and turn its outcome codes into
+ * the client's exceptions, so each backend only has to get the data right.
+ * <p>
+ * A mutating operation applies a request at most once: a request whose sequence
+ * number is not newer than the client's latest is reported as DUPLICATE or
+ * ALREADY_COMPLETED rather than applied again. On APPLIED and ALREADY_COMPLETED
+ * the store has brought the client's session up to date; on every other outcome
+ * it has left the session and the store alone
+ */
+public interface ParkingStore
+{
+	/** Outcome: the request was applied */
+	public static final int APPLIED = 0;
+
+	/** Outcome: the request had already been applied, perhaps by another server, and
+	 *  the session has been brought up to date */
+	public static final int ALREADY_COMPLETED = 1;
+
+	/** Outcome: the request is a retry of one that the session already reflects */
+	public static final int DUPLICATE = 2;
+
+	/** Outcome: the car is already in a lot */
+	public static final int ALREADY_IN_LOT = 3;
+
+	/** Outcome: the lot is not known to the system */
+	public static final int LOT_NOT_FOUND = 4;
+
+	/** Outcome: the lot is full */
+	public static final int LOT_FULL = 5;
+
+	/** Outcome: the car is not in a lot */
+	public static final int NOT_IN_LOT = 6;
+
+	/** Outcome: the car is not on its lot's exit level */
+	public static final int NOT_ON_EXIT_LEVEL = 7;
+
+	/** Outcome: the car is on the bottom level and cannot move down */
+	public static final int AT_LAST_LEVEL = 8;
+
+	/** Outcome: a level that the request needs does not exist */
+	public static final int NO_SUCH_LEVEL = 9;
+
+	/** Outcome: the request could not be recorded against the client */
+	public static final int NOT_RECORDED = 10;
+
+	/**
+	 * Creates a new client whose car is not in a lot
+	 * @return The new client's session
+	 * @throws ServiceUnavailableException Thrown when the client cannot be created
+	 */
+	public ClientSession createSession() throws ServiceUnavailableException;
+
+	/**
+	 * Loads an existing client, which is how a client picks up where it left off
+	 * on another server
+	 * @param clientID The ID of the client
+	 * @return The client's session or null if the client is not known
+	 * @throws ServiceUnavailableException Thrown when the client cannot be loaded
+	 */
+	public ClientSession loadSession(int clientID) throws ServiceUnavailableException;
+
+	/**
+	 * Moves the client's car into a lot and its entry level. On APPLIED, ALREADY_COMPLETED
+	 * and DUPLICATE, the session's available levels are those of the car's lot
+	 * @param session The client's session
+	 * @param seq The sequence number of the request
+	 * @param lot The lot to enter
+	 * @return APPLIED, ALREADY_COMPLETED, DUPLICATE, ALREADY_IN_LOT, LOT_NOT_FOUND, LOT_FULL,
+	 * NO_SUCH_LEVEL if the lot has no entry level, or NOT_RECORDED
+	 * @throws ServiceUnavailableException Thrown when the store cannot apply the request
+	 */
+	public int enterLot(ClientSession session, int seq, int lot) throws ServiceUnavailableException;
+
+	/**
+	 * Removes the client's car from its lot, which it must leave from the entry level
+	 * @param session The client's session
+	 * @param seq The sequence number of the request
+	 * @return APPLIED, ALREADY_COMPLETED, DUPLICATE, NOT_IN_LOT, NOT_ON_EXIT_LEVEL,
+	 * NO_SUCH_LEVEL if the lot has no exit level, or NOT_RECORDED
+	 * @throws ServiceUnavailableException Thrown when the store cannot apply the request
+	 */
+	public int exitLot(ClientSession session, int seq) throws ServiceUnavailableException;
+
+	/**
+	 * Moves the client's car one level up or down within its lot
+	 * @param session The client's session
+	 * @param seq The sequence number of the request
+	 * @param direction 1 to move up or -1 to move down
+	 * @return APPLIED, ALREADY_COMPLETED, DUPLICATE, NOT_IN_LOT, AT_LAST_LEVEL, or
+	 * NO_SUCH_LEVEL if there is no level in that direction
+	 * @throws ServiceUnavailableException Thrown when the store cannot apply the request
+	 */
+	public int moveLevel(ClientSession session, int seq, int direction) throws ServiceUnavailableException;
+
+	/**
+	 * Applies several requests of one client as a unit where the store can: their
+	 * database work shares a single transaction and commit, and if that transaction
+	 * fails, the requests are rolled back and applied again one at a time, as if they
+	 * had been made alone. Stores without transactions just run the requests
+	 * @param session The client's session, which the requests must use
+	 * @param batch The requests, made through this store
+	 * @return The batch's result
+	 * @throws ServiceUnavailableException Thrown when the requests cannot be applied
+	 */
+	public <T> T runBatch(ClientSession session, DatabaseStage.Task<T> batch) throws ServiceUnavailableException;
+
+	/**
+	 * Returns every lot in the system
+	 * @return The lot IDs in ascending order, which must not be modified
+	 * @throws ServiceUnavailableException Thrown when the lots cannot be read
+	 */
+	public int[] getLots() throws ServiceUnavailableException;
+
+	/**
+	 * Returns the levels of a lot
+	 * @param lot The ID of the lot
+	 * @return The level numbers in ascending order, which must not be modified, or null
+	 * if the lot is not known
+	 * @throws ServiceUnavailableException Thrown when the levels cannot be read
+	 */
+	public int[] getLevels(int lot) throws ServiceUnavailableException;
+
+	/**
+	 * Returns the other lots that have an available space, nearest first
+	 * @param lot The ID of the lot to measure from
+	 * @return The IDs of the available lots or null if the lot is not known
+	 * @throws ServiceUnavailableException Thrown when the availability cannot be read
+	 */
+	public int[] getOtherLotAvailability(int lot) throws ServiceUnavailableException;
+
+	/**
+	 * Returns the number of free spaces of some lots, all read at once
+	 * @param lots The IDs of the lots
+	 * @return The number of free spaces of each lot in the order of the IDs, or -1 for
+	 * a lot that is not known
+	 * @throws ServiceUnavailableException Thrown when the lots cannot be read
+	 */
+	public int[] getFreeSpaces(int[] lots) throws ServiceUnavailableException;
+
+	/**
+	 * Checks that the store can still serve requests
+	 * @throws ServiceUnavailableException Thrown when the store cannot serve requests
+	 */
+	public void poke() throws ServiceUnavailableException;
+
+	/**
+	 * Reloads the lot topology from wherever the store keeps it, if it can change
+	 */
+	public void refreshTopology();
+
+	/**
+	 * Makes every applied request durable before this server stops serving clients
+	 */
+	public void fence();
+
+	/**
+	 * Makes the store fail from now on, for fault injection
+	 */
+	public void hose();
+
+	/**
+	 * Prints the store's statistics to standard output
+	 */
+	public void printStatistics();
+}
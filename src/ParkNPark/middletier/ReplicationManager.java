@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.sql.SQLException;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -71,6 +72,10 @@ public class ReplicationManager extends ReplicationManagerPOA {
 	/** The JDBC password */
 	private String jdbcPassword;
 
+	/** Database connections for revoking the capacity leases of failed servers,
+	 *  created on first use */
+	protected DatabaseManager leaseDatabase;
+
 	/**
 	 * Entry point of replication manager
 	 * 
@@ -260,6 +265,10 @@ public class ReplicationManager extends ReplicationManagerPOA {
 				// (it tried to unregister it twice)
 				unbindServer(s);
 
+				// Give the failed server's leased spaces back to the lots before
+				// clients fail over to another server
+				revokeLeases(s);
+
 				// Restart the failed server
 				if (e instanceof ServiceUnavailableException)
 					startServer(s, true);
@@ -370,6 +379,29 @@ public class ReplicationManager extends ReplicationManagerPOA {
 		}
 	}
 
+	/**
+	 * Revokes the capacity leases of a failed server. Once revoked, the server can no
+	 * longer admit cars against them even if it is still running
+	 * 
+	 * @param s
+	 */
+	public void revokeLeases(Server s) {
+		// Sharded databases are not leased from
+		if (jdbcURL == null || ShardMap.isShardMap(jdbcURL))
+			return;
+		if (leaseDatabase == null)
+			leaseDatabase = new DatabaseManager(jdbcURL, jdbcUsername, jdbcPassword);
+		try {
+			int revoked = CapacityLeaseManager.revoke(leaseDatabase, s.serviceName);
+			if (revoked > 0)
+				System.out.println("Revoked " + revoked + " capacity leases of server at "
+						+ s.ipAddress + " [" + s.serviceName + "].");
+		} catch (SQLException e) {
+			err.println("Could not revoke the capacity leases of server at " + s.ipAddress
+					+ " [" + s.serviceName + "]; they are revoked once they expire: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Start a new server or restart a corrupted server
 	 * 
@@ -0,0 +1,125 @@
+package ParkNPark.middletier;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ParkNPark.interfaces.PaddedInteger;
+import ParkNPark.interfaces.PaddedIntegerSeq;
+import ParkNPark.interfaces.PaddedVoid;
+
+/**
+ * Builds the padded replies of one reply size without allocating per reply. The
+ * padding is all zeroes and is only ever read by the ORB when it marshals a reply, so
+ * every client manager of the server shares one zeroed buffer per padding length
+ * instead of keeping its own. The reply objects themselves are held per thread and
+ * refilled for every reply: the servant skeleton marshals a servant's result on the
+ * dispatching thread as soon as the servant returns it, so by the time that thread
+ * builds its next reply the last one has been written out.
+ * <p>
+ * The replies returned here must therefore not be kept past the return from the
+ * servant method, and their padding must never be written to
+ */
+public class ReplyPadding
+{
+	/** Size of an integer in a reply */
+	protected static final int INTEGER_SIZE = 4;
+
+	/** The size of the replies */
+	protected int replySize;
+
+	/** The padding of an integer reply */
+	protected byte[] integerPadding;
+
+	/** The padded void reply, which holds nothing that changes */
+	protected PaddedVoid paddedVoid;
+
+	/** The padding of integer array replies by array length, made when first needed */
+	protected AtomicReferenceArray<byte[]> arrayPaddings;
+
+	/** The padding of integer arrays too long to be padded */
+	protected static final byte[] NO_PADDING = new byte[0];
+
+	/** Each thread's integer reply */
+	protected ThreadLocal<PaddedInteger> integers = new ThreadLocal<PaddedInteger>() {
+		protected PaddedInteger initialValue() {
+			return new PaddedInteger(0, integerPadding);
+		}
+	};
+
+	/** Each thread's integer array reply */
+	protected ThreadLocal<PaddedIntegerSeq> integerSeqs = new ThreadLocal<PaddedIntegerSeq>() {
+		protected PaddedIntegerSeq initialValue() {
+			return new PaddedIntegerSeq();
+		}
+	};
+
+	/**
+	 * Creates the padding of a reply size
+	 * @param replySize The size of the replies in bytes
+	 */
+	public ReplyPadding(int replySize)
+	{
+		this.replySize = replySize;
+		this.integerPadding = replySize > INTEGER_SIZE ? new byte[replySize - INTEGER_SIZE] : NO_PADDING;
+		this.paddedVoid = new PaddedVoid(new byte[Math.max(0, replySize)]);
+		this.arrayPaddings = new AtomicReferenceArray<byte[]>(Math.max(0, replySize) / INTEGER_SIZE + 1);
+	}
+
+	/**
+	 * Returns the reply size
+	 * @return The size of the replies in bytes
+	 */
+	public int getReplySize() {
+		return replySize;
+	}
+
+	/**
+	 * Pads an integer to the reply size
+	 * @param value The integer
+	 * @return This thread's integer reply, holding the integer
+	 */
+	public PaddedInteger padInteger(int value)
+	{
+		PaddedInteger reply = integers.get();
+		reply.value = value;
+		return reply;
+	}
+
+	/**
+	 * Pads an integer array to the reply size
+	 * @param value The integer array, which the reply refers to rather than copies
+	 * @return This thread's integer array reply, holding the array
+	 */
+	public PaddedIntegerSeq padIntegerArray(int[] value)
+	{
+		PaddedIntegerSeq reply = integerSeqs.get();
+		reply.value = value;
+		reply.padding = getArrayPadding(value.length);
+		return reply;
+	}
+
+	/**
+	 * Returns the padded void reply
+	 * @return The shared padded void reply
+	 */
+	public PaddedVoid padVoid() {
+		return paddedVoid;
+	}
+
+	/**
+	 * Returns the padding of an integer array
+	 * @param length The length of the array
+	 * @return The shared padding that brings the array up to the reply size
+	 */
+	protected byte[] getArrayPadding(int length)
+	{
+		if (length >= arrayPaddings.length())
+			return NO_PADDING;
+		byte[] padding = arrayPaddings.get(length);
+		if (padding == null) {
+			// Two threads might both make it; either buffer will do
+			padding = new byte[replySize - length * INTEGER_SIZE];
+			arrayPaddings.compareAndSet(length, null, padding);
+		}
+		return padding;
+	}
+}
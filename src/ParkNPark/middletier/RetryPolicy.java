@@ -0,0 +1,244 @@
+package ParkNPark.middletier;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides whether a failed database operation is worth another attempt and how long
+ * to wait before it. Failures are classified by their SQLState:
+ * <ul>
+ * <li>CONFLICT: a deadlock, lock wait timeout, serialization failure or version
+ * conflict. The transaction collided with another one and will most likely go
+ * through if it is tried again shortly</li>
+ * <li>CONNECTION_LOSS: the connection or the database went away, or the failure is
+ * not recognised. The connection is discarded and the operation is tried again on a
+ * fresh one after a longer wait, so that retries do not pile onto a database that is
+ * already struggling</li>
+ * <li>FATAL: a constraint violation, syntax error, bad data or failed authorization,
+ * which would fail the same way again, so it is not retried</li>
+ * </ul>
+ * Each class has its own retry budget and backoff. The backoff doubles with every
+ * failure of the class up to a cap, and the actual wait is drawn at random below it
+ * so that the operations that failed together do not retry together. Usage:
+ * <pre>
+ * RetryPolicy.Retry retry = retryPolicy.start();
+ * do {
+ *     try { ...; return; }
+ *     catch (SQLException e) { retry.failed(e); ... }
+ * } while (retry.backOff());
+ * </pre>
+ */
+public class RetryPolicy
+{
+	/** Failure class: the transaction collided with another one */
+	public static final int CONFLICT = 0;
+
+	/** Failure class: the connection was lost or the failure is not recognised */
+	public static final int CONNECTION_LOSS = 1;
+
+	/** Failure class: the operation would fail again */
+	public static final int FATAL = 2;
+
+	/** Names of the failure classes, for messages */
+	protected static final String[] CLASS_NAMES = { "conflict", "connection loss", "fatal" };
+
+	/** Default number of retries of each failure class */
+	public static final int[] DEFAULT_RETRIES = { 8, 2, 0 };
+
+	/** Default backoff cap in milliseconds after the first failure of each class */
+	public static final long[] DEFAULT_BASE_BACKOFF = { 1, 50, 0 };
+
+	/** Default longest backoff in milliseconds of each class */
+	public static final long[] DEFAULT_MAX_BACKOFF = { 32, 1000, 0 };
+
+	/** Greatest number of attempts of an operation, whatever its failures were */
+	public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+	/** MySQL error codes of a lock wait timeout and a deadlock, whose SQLStates do not
+	 *  always say so */
+	protected static final int MYSQL_LOCK_WAIT_TIMEOUT = 1205;
+	protected static final int MYSQL_DEADLOCK = 1213;
+
+	/** Number of retries of each failure class */
+	protected int[] retries;
+
+	/** Backoff cap in milliseconds after the first failure of each class */
+	protected long[] baseBackoff;
+
+	/** Longest backoff in milliseconds of each class */
+	protected long[] maxBackoff;
+
+	/** Greatest number of attempts of an operation */
+	protected int maxAttempts;
+
+	/** Statistics by failure class: failures, retries and operations given up on */
+	protected AtomicLongArray failures = new AtomicLongArray(CLASS_NAMES.length),
+		retried = new AtomicLongArray(CLASS_NAMES.length), gaveUp = new AtomicLongArray(CLASS_NAMES.length);
+
+	/** Statistics: time in milliseconds spent backing off */
+	protected AtomicLong backoffTime = new AtomicLong();
+
+	/**
+	 * The attempts of one operation
+	 */
+	public class Retry
+	{
+		/** Number of failures of each class so far */
+		protected int[] classFailures = new int[CLASS_NAMES.length];
+
+		/** Number of attempts so far */
+		protected int attempts = 1;
+
+		/** The class of the last failure, or -1 if there was none */
+		protected int lastClass = -1;
+
+		/** The last failure, or null if there was none or it had no exception */
+		protected SQLException lastFailure;
+
+		/**
+		 * Records a failed attempt
+		 * @param e Why the attempt failed
+		 * @return The class of the failure
+		 */
+		public int failed(SQLException e)
+		{
+			lastFailure = e;
+			return failed(classify(e));
+		}
+
+		/**
+		 * Records a failed attempt that has no exception
+		 * @param failureClass The class of the failure
+		 * @return The class of the failure
+		 */
+		public int failed(int failureClass)
+		{
+			lastClass = failureClass;
+			classFailures[failureClass]++;
+			failures.incrementAndGet(failureClass);
+			return failureClass;
+		}
+
+		/**
+		 * Decides whether the operation gets another attempt after the last failure
+		 * and, if it does, waits for the backoff
+		 * @return True if the operation should be attempted again
+		 */
+		public boolean backOff()
+		{
+			if (lastClass == -1)
+				return false;
+			int n = classFailures[lastClass];
+			if (n > retries[lastClass] || attempts >= maxAttempts) {
+				gaveUp.incrementAndGet(lastClass);
+				return false;
+			}
+
+			long limit = Math.min(maxBackoff[lastClass], baseBackoff[lastClass] << Math.min(n - 1, 30));
+			if (limit > 0) {
+				long wait = 1 + ThreadLocalRandom.current().nextLong(limit);
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					gaveUp.incrementAndGet(lastClass);
+					return false;
+				}
+				backoffTime.addAndGet(wait);
+			}
+			retried.incrementAndGet(lastClass);
+			attempts++;
+			lastClass = -1;
+			return true;
+		}
+
+		/**
+		 * Describes the attempts for failure messages
+		 * @return The number of attempts and the last failure
+		 */
+		public String toString()
+		{
+			return attempts + (attempts == 1 ? " attempt" : " attempts")
+				+ (lastClass == -1 ? "" : "; last failure: " + CLASS_NAMES[lastClass]
+					+ (lastFailure != null ? " (" + lastFailure.getSQLState() + ") " + lastFailure.getMessage() : ""));
+		}
+	}
+
+	/**
+	 * Creates a retry policy with the default budgets and backoffs
+	 */
+	public RetryPolicy() {
+		this(DEFAULT_RETRIES, DEFAULT_BASE_BACKOFF, DEFAULT_MAX_BACKOFF, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * Creates a retry policy
+	 * @param retries The number of retries of each failure class
+	 * @param baseBackoff The backoff cap in milliseconds after the first failure of
+	 * each class, which doubles with every further failure
+	 * @param maxBackoff The longest backoff in milliseconds of each class
+	 * @param maxAttempts The greatest number of attempts of an operation
+	 */
+	public RetryPolicy(int[] retries, long[] baseBackoff, long[] maxBackoff, int maxAttempts)
+	{
+		this.retries = retries;
+		this.baseBackoff = baseBackoff;
+		this.maxBackoff = maxBackoff;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Starts the attempts of an operation
+	 * @return The operation's attempts
+	 */
+	public Retry start() {
+		return new Retry();
+	}
+
+	/**
+	 * Classifies a failure by its SQLState
+	 * @param e The failure
+	 * @return CONFLICT, CONNECTION_LOSS or FATAL
+	 */
+	public static int classify(SQLException e)
+	{
+		String state = e.getSQLState();
+		if (e instanceof VersionConflictException || e.getErrorCode() == MYSQL_DEADLOCK
+				|| e.getErrorCode() == MYSQL_LOCK_WAIT_TIMEOUT || (state != null && state.startsWith("40")))
+			return CONFLICT;
+		if (state == null || state.length() < 2)
+			return CONNECTION_LOSS;
+
+		// Integrity constraints, syntax and access rules, data, cardinality, unsupported
+		// features and authorization fail the same way every time
+		String stateClass = state.substring(0, 2);
+		if (stateClass.equals("23") || stateClass.equals("42") || stateClass.equals("22") || stateClass.equals("21")
+				|| stateClass.equals("0A") || stateClass.equals("28"))
+			return FATAL;
+		return CONNECTION_LOSS;
+	}
+
+	/**
+	 * Returns the name of a failure class
+	 * @param failureClass The failure class
+	 * @return The name
+	 */
+	public static String getClassName(int failureClass) {
+		return CLASS_NAMES[failureClass];
+	}
+
+	/**
+	 * Prints the retry statistics to standard output
+	 */
+	public void printStatistics()
+	{
+		StringBuilder line = new StringBuilder("Retries:");
+		for (int i = 0; i < CLASS_NAMES.length; i++)
+			line.append(i == 0 ? " " : "; ").append(CLASS_NAMES[i]).append(" ").append(failures.get(i))
+				.append(" failures, ").append(retried.get(i)).append(" retried, ").append(gaveUp.get(i)).append(" gave up");
+		line.append("; ").append(backoffTime.get()).append("ms spent backing off");
+		System.out.println(line);
+	}
+}
@@ -1,6 +1,7 @@
 package ParkNPark.middletier;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
@@ -8,6 +9,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.sql.SQLException;
 import java.util.HashSet;
+import java.util.Properties;
 import java.util.Set;
 
 import org.omg.CORBA.ORB;
@@ -59,6 +61,19 @@ public class Server
 		acceptedParameters.add(CommandLineParser.AcceptedParameters.jdbcURL);
 		acceptedParameters.add(CommandLineParser.AcceptedParameters.jdbcUsername);
 		acceptedParameters.add(CommandLineParser.AcceptedParameters.jdbcPassword);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.occupancyEngine);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.journalDirectory);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.groupCommit);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.topologyRefresh);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.store);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.storeLayout);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.storeDirectory);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.locking);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.capacityLease);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.dbWorkers);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.dbQueue);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.servants);
+		acceptedParameters.add(CommandLineParser.AcceptedParameters.idleTimeout);
         if (!clp.parseCommandLine(Server.class.getName(), args, acceptedParameters)) {
         	System.exit(1);
         	return;
@@ -67,7 +82,16 @@ public class Server
         // Initialize the ORB
         System.out.println("Starting the CORBA ORB");
         try {
-            orb = ORB.init(args, null);
+        	// Located client managers get persistent references, which the ORB can only
+        	// make when it serves on a fixed port. The server ID is fixed too, so that a
+        	// restarted server recognizes the references of its predecessor
+        	Properties properties = null;
+        	if (clp.isLocatedServantsEnabled() && clp.getServerPort() > 0) {
+        		properties = new Properties();
+        		properties.put("com.sun.CORBA.POA.ORBPersistentServerPort", Integer.toString(clp.getServerPort()));
+        		properties.put("com.sun.CORBA.POA.ORBServerId", "1");
+        	}
+            orb = ORB.init(args, properties);
         } catch (Exception e) {
         	System.out.println("Exception while activating the root POA; perhaps your JVM is malfunctioning");
         	System.exit(1);
@@ -124,15 +148,75 @@ public class Server
 
         // Create our client manager factory servant object
         System.out.println("Creating the client manager factory");
-        ClientManagerFactoryImpl clientManagerFactory;
+        ParkingStore store;
         try {
-            clientManagerFactory = new ClientManagerFactoryImpl(logger, clp.getReplySize(),
-            		clp.getJDBCURL(), clp.getJDBCUsername(), clp.getJDBCPassword());
+        	if (clp.getStore().equals("memory")) {
+        		System.out.println("Using an in-memory parking store");
+        		store = new MemoryParkingStore(LotLayout.parse(clp.getStoreLayout()));
+        	} else if (clp.getStore().equals("file")) {
+        		System.out.println("Using the file-backed parking store in " + clp.getStoreDirectory());
+        		File storeDirectory = new File(clp.getStoreDirectory());
+        		boolean exists = new File(storeDirectory, FileParkingStore.LAYOUT_FILE).exists();
+        		store = FileParkingStore.open(storeDirectory, exists ? null : LotLayout.parse(clp.getStoreLayout()));
+        	} else if (ShardMap.isShardMap(clp.getJDBCURL())) {
+        		if (clp.isOccupancyEngineEnabled() || clp.getJournalDirectory() != null || clp.isGroupCommitEnabled()
+        				|| clp.isOptimisticLockingEnabled() || clp.getCapacityLease() > 0)
+        			System.err.println("The occupancy engine, journal, group commit, optimistic locking and capacity leases work on a single database; ignoring them for the sharded store");
+        		store = new ShardedParkingStore(ShardMap.parse(clp.getJDBCURL()), clp.getJDBCUsername(), clp.getJDBCPassword());
+        	} else {
+        		// Each server journals into a folder of its own in the shared journal folder,
+        		// where the others can replay it when they take over
+        		String journalDirectory = clp.getJournalDirectory() == null ? null
+        				: new File(clp.getJournalDirectory(), registrationName.replace(':', '-')).getPath();
+        		JdbcParkingStore jdbcStore = new JdbcParkingStore(clp.getJDBCURL(), clp.getJDBCUsername(), clp.getJDBCPassword(),
+        				clp.isOccupancyEngineEnabled(), journalDirectory,
+        				clp.isGroupCommitEnabled(), clp.getTopologyRefreshInterval());
+        		jdbcStore.setOptimisticLocking(clp.isOptimisticLockingEnabled());
+        		if (clp.getCapacityLease() > 0)
+        			jdbcStore.setCapacityLeases(registrationName, clp.getCapacityLease());
+        		store = jdbcStore;
+        	}
         } catch (SQLException e) {
         	System.err.println("Problem connecting to the database while creating client manager factory: " + e.toString() + "; exiting");
         	System.err.flush();
         	System.exit(1);
         	return;
+        } catch (IOException e) {
+        	System.err.println("Problem opening the parking store while creating client manager factory: " + e.toString() + "; exiting");
+        	System.err.flush();
+        	System.exit(1);
+        	return;
+        } catch (IllegalArgumentException e) {
+        	System.err.println("Problem reading the shard map while creating client manager factory: " + e.getMessage() + "; exiting");
+        	System.err.flush();
+        	System.exit(1);
+        	return;
+        }
+        ClientManagerFactoryImpl clientManagerFactory = new ClientManagerFactoryImpl(logger, clp.getReplySize(), store);
+        if (clp.getDBWorkers() > 0)
+        	clientManagerFactory.setDatabaseStage(new DatabaseStage(clp.getDBWorkers(), clp.getDBQueue()));
+        if (clp.isLocatedServantsEnabled()) {
+        	if (clp.getServerPort() <= 0)
+        		System.err.println("Without -ORBServerPort, client manager references do not outlive the server");
+        	try {
+        		clientManagerFactory.locateServants(rootPOA, clp.getServerPort() > 0);
+        	} catch (Exception e) {
+        		System.err.println("Problem creating the client managers' POA: " + e.toString() + "; exiting");
+        		System.err.flush();
+        		System.exit(1);
+        		return;
+        	}
+        	if (clp.getIdleTimeout() > 0)
+        		System.err.println("Located client managers have no servant per client to evict; ignoring --idle-timeout");
+        } else if (clp.getIdleTimeout() > 0) {
+        	try {
+        		clientManagerFactory.evictIdleServants(rootPOA, clp.getIdleTimeout() * 1000L);
+        	} catch (Exception e) {
+        		System.err.println("Problem creating the client managers' POA: " + e.toString() + "; exiting");
+        		System.err.flush();
+        		System.exit(1);
+        		return;
+        	}
         }
 
         err = System.err;
@@ -215,6 +299,7 @@ public class Server
         	System.out.println("f Flush the logs to disk");
         	System.out.println("h Hose the database server connection");
         	System.out.println("k Kill server (but flush the logs first)");
+        	System.out.println("t Reload the lot topology from the database");
         	System.out.println("x Exit");
         	
         	// Get the input from the user or, if the input is shut down,
@@ -244,6 +329,10 @@ public class Server
         	if (command.equalsIgnoreCase("f"))
         		clientManagerFactory.flushLogs();
         	
+        	// Reload the lot topology
+        	if (command.equalsIgnoreCase("t"))
+        		clientManagerFactory.refreshTopology();
+        	
         	// Kill the server
         	if (command.equalsIgnoreCase("k"))
         		clientManagerFactory.killServer();
@@ -0,0 +1,377 @@
+package ParkNPark.middletier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The sessions of the clients that a server's located client managers serve, by
+ * client ID. A session is packed into one long, kept off the heap in an open-addressed
+ * table of direct buffers: the client ID in an int slot and its long beside it, twelve
+ * bytes per slot. Servants read a session into their own scratch ClientSession for
+ * each request and write it back once the store has applied the request, so the
+ * table, not a heap object per client, holds every client's state.
+ * <p>
+ * A long holds, from the top bit down: whether the sequence number is verified, the
+ * sequence number in 31 bits, and the lot and the level plus one in 16 bits each, so
+ * that -1 (not in a lot) packs as 0. The rare session that does not fit, such as one
+ * with a lot number over 65534, is kept in a small map on the heap instead.
+ * <p>
+ * Client IDs are spread over stripes of StampedLocks. Writers of a stripe take its
+ * write lock; readers read optimistically and only take the read lock when a writer
+ * of their stripe got in the way. Adding a client also takes the insert lock, which
+ * serializes the claiming of empty slots and the growing of the table; growing takes
+ * every stripe's write lock, so that no reader validates against a moving table. A
+ * session that is not in the table is loaded from the parking store when its client's
+ * next request arrives, so the table only caches what the store already knows
+ */
+public class SessionTable
+{
+	/** Default number of slots */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/** Number of lock stripes */
+	protected static final int STRIPES = 64;
+
+	/** Key of an empty slot */
+	protected static final int EMPTY = 0;
+
+	/** Key of a slot whose client was removed; it is not reused until the table grows */
+	protected static final int REMOVED = Integer.MIN_VALUE;
+
+	/** Largest lot or level number that packs into a long */
+	protected static final int MAX_PACKED_POSITION = 0xfffe;
+
+	/**
+	 * The slots of the table
+	 */
+	protected static class Segment
+	{
+		/** The client ID of every slot */
+		protected IntBuffer keys;
+
+		/** The packed session of every slot */
+		protected LongBuffer values;
+
+		/** The number of slots less one; the number of slots is a power of two */
+		protected int mask;
+
+		/**
+		 * Creates a segment of empty slots
+		 * @param capacity The number of slots, a power of two
+		 */
+		protected Segment(int capacity)
+		{
+			this.keys = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+			this.values = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+			this.mask = capacity - 1;
+		}
+
+		/**
+		 * Finds a client's slot
+		 * @param clientID The client's ID
+		 * @return The slot, or -1 if the client is not in the segment
+		 */
+		protected int find(int clientID)
+		{
+			for (int slot = hash(clientID) & mask; ; slot = (slot + 1) & mask) {
+				int key = keys.get(slot);
+				if (key == clientID)
+					return slot;
+				if (key == EMPTY)
+					return -1;
+			}
+		}
+
+		/**
+		 * Finds the slot that a client would be added to
+		 * @param clientID The client's ID, which is not in the segment
+		 * @return The first empty slot of the client's probe sequence
+		 */
+		protected int findEmpty(int clientID)
+		{
+			int slot = hash(clientID) & mask;
+			while (keys.get(slot) != EMPTY)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+	}
+
+	/** The slots; replaced when the table grows */
+	protected volatile Segment segment;
+
+	/** The lock stripes */
+	protected StampedLock[] stripes = new StampedLock[STRIPES];
+
+	/** Serializes adding clients and growing the table */
+	protected ReentrantLock insertLock = new ReentrantLock();
+
+	/** The number of slots that are not empty, including removed ones; guarded by insertLock */
+	protected int used;
+
+	/** The number of sessions in the slots */
+	protected AtomicInteger size = new AtomicInteger();
+
+	/** The sessions that do not pack into a long */
+	protected ConcurrentHashMap<Integer, ClientSession> unpacked = new ConcurrentHashMap<Integer, ClientSession>();
+
+	/**
+	 * Creates a session table with the default number of slots
+	 */
+	public SessionTable() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a session table
+	 * @param capacity The number of slots to start with, which is rounded up to a
+	 * power of two. The table grows when three quarters of its slots are used
+	 */
+	public SessionTable(int capacity)
+	{
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new StampedLock();
+		this.segment = new Segment(Math.max(16, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1));
+	}
+
+	/**
+	 * Reads a client's session
+	 * @param clientID The client's ID
+	 * @param into The session to read the client's state into
+	 * @return True if the client was found, false if into was left alone
+	 */
+	public boolean load(int clientID, ClientSession into)
+	{
+		if (!isPackable(clientID))
+			return unpackedLoad(clientID, into);
+
+		StampedLock stripe = stripes[stripe(clientID)];
+		long stamp = stripe.tryOptimisticRead();
+		int slot = -1;
+		long value = 0;
+		if (stamp != 0) {
+			Segment current = segment;
+			slot = current.find(clientID);
+			value = slot >= 0 ? current.values.get(slot) : 0;
+		}
+		if (stamp == 0 || !stripe.validate(stamp)) {
+			// A writer of the stripe got in the way, so wait for it
+			stamp = stripe.readLock();
+			try {
+				Segment current = segment;
+				slot = current.find(clientID);
+				value = slot >= 0 ? current.values.get(slot) : 0;
+			} finally {
+				stripe.unlockRead(stamp);
+			}
+		}
+		if (slot < 0)
+			return unpackedLoad(clientID, into);
+		into.reset(clientID, (int) ((value >>> 32) & 0x7fffffff), value < 0,
+				(int) ((value >>> 16) & 0xffff) - 1, (int) (value & 0xffff) - 1);
+		return true;
+	}
+
+	/**
+	 * Writes a client's session into the table, adding the client if it is not there
+	 * @param session The session
+	 */
+	public void put(ClientSession session)
+	{
+		int clientID = session.clientID;
+		if (!isPackable(clientID) || !isPackable(session)) {
+			remove(clientID);
+			ClientSession copy = new ClientSession(clientID, 0, -1, -1);
+			copy.reset(clientID, session.seq, session.seqVerified, session.lot, session.level);
+			unpacked.put(clientID, copy);
+			return;
+		}
+		long value = pack(session);
+		if (!unpacked.isEmpty())
+			unpacked.remove(clientID);
+
+		// Most writes update a client that is already there
+		StampedLock stripe = stripes[stripe(clientID)];
+		long stamp = stripe.writeLock();
+		try {
+			Segment current = segment;
+			int slot = current.find(clientID);
+			if (slot >= 0) {
+				current.values.put(slot, value);
+				return;
+			}
+		} finally {
+			stripe.unlockWrite(stamp);
+		}
+
+		insertLock.lock();
+		try {
+			if ((used + 1) * 4L > (segment.mask + 1) * 3L)
+				grow();
+			stamp = stripe.writeLock();
+			try {
+				// Another writer might have added the client since we looked
+				Segment current = segment;
+				int slot = current.find(clientID);
+				if (slot < 0) {
+					slot = current.findEmpty(clientID);
+					used++;
+					size.incrementAndGet();
+				}
+				current.values.put(slot, value);
+				current.keys.put(slot, clientID);
+			} finally {
+				stripe.unlockWrite(stamp);
+			}
+		} finally {
+			insertLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a client's session from the table
+	 * @param clientID The client's ID
+	 */
+	public void remove(int clientID)
+	{
+		if (!unpacked.isEmpty())
+			unpacked.remove(clientID);
+		if (!isPackable(clientID))
+			return;
+		StampedLock stripe = stripes[stripe(clientID)];
+		long stamp = stripe.writeLock();
+		try {
+			Segment current = segment;
+			int slot = current.find(clientID);
+			if (slot >= 0) {
+				current.keys.put(slot, REMOVED);
+				size.decrementAndGet();
+			}
+		} finally {
+			stripe.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Returns the number of sessions in the table
+	 * @return The number of sessions
+	 */
+	public int size() {
+		return size.get() + unpacked.size();
+	}
+
+	/**
+	 * Returns the number of slots
+	 * @return The number of slots, used or not
+	 */
+	public int getCapacity() {
+		return segment.mask + 1;
+	}
+
+	/**
+	 * Returns the memory that the slots take off the heap
+	 * @return The size of the direct buffers in bytes
+	 */
+	public long getOffHeapBytes() {
+		return (segment.mask + 1) * 12L;
+	}
+
+	/**
+	 * Doubles the number of slots, dropping removed clients. The caller must hold
+	 * insertLock
+	 */
+	protected void grow()
+	{
+		long[] stamps = new long[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stamps[i] = stripes[i].writeLock();
+		try {
+			Segment old = segment, bigger = new Segment((old.mask + 1) * 2);
+			used = 0;
+			for (int slot = 0; slot <= old.mask; slot++) {
+				int key = old.keys.get(slot);
+				if (key != EMPTY && key != REMOVED) {
+					int target = bigger.findEmpty(key);
+					bigger.values.put(target, old.values.get(slot));
+					bigger.keys.put(target, key);
+					used++;
+				}
+			}
+			segment = bigger;
+		} finally {
+			for (int i = STRIPES - 1; i >= 0; i--)
+				stripes[i].unlockWrite(stamps[i]);
+		}
+	}
+
+	/**
+	 * Reads a client whose session did not pack from the heap map
+	 * @param clientID The client's ID
+	 * @param into The session to read the client's state into
+	 * @return True if the client was found
+	 */
+	protected boolean unpackedLoad(int clientID, ClientSession into)
+	{
+		if (unpacked.isEmpty())
+			return false;
+		ClientSession session = unpacked.get(clientID);
+		if (session == null)
+			return false;
+		into.reset(clientID, session.seq, session.seqVerified, session.lot, session.level);
+		return true;
+	}
+
+	/**
+	 * Packs a session into a long
+	 * @param session The session, which must be packable
+	 * @return The packed session
+	 */
+	protected static long pack(ClientSession session)
+	{
+		return (session.seqVerified ? 1L << 63 : 0) | ((long) session.seq << 32)
+				| ((long) (session.lot + 1) << 16) | (session.level + 1);
+	}
+
+	/**
+	 * Returns true if a client ID can be a key of the slots
+	 * @param clientID The client's ID
+	 * @return True unless the ID is one of the special keys
+	 */
+	protected static boolean isPackable(int clientID) {
+		return clientID != EMPTY && clientID != REMOVED;
+	}
+
+	/**
+	 * Returns true if a session packs into a long
+	 * @param session The session
+	 * @return True if its sequence number, lot and level are in range
+	 */
+	protected static boolean isPackable(ClientSession session)
+	{
+		return session.seq >= 0 && session.lot >= -1 && session.lot <= MAX_PACKED_POSITION
+				&& session.level >= -1 && session.level <= MAX_PACKED_POSITION;
+	}
+
+	/**
+	 * Scrambles a client ID, so that consecutive IDs land in different slots and stripes
+	 * @param clientID The client's ID
+	 * @return The hash
+	 */
+	protected static int hash(int clientID) {
+		return clientID * 0x9E3779B9;
+	}
+
+	/**
+	 * Returns the lock stripe of a client
+	 * @param clientID The client's ID
+	 * @return The index of the stripe
+	 */
+	protected static int stripe(int clientID) {
+		return hash(clientID) >>> 26;
+	}
+}
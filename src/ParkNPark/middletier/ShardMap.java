@@ -0,0 +1,142 @@
+package ParkNPark.middletier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Which database shard owns each lot and each client. A shard map is given in place
+ * of a single JDBC URL as a list of shards separated by |, each of which is either a
+ * plain JDBC URL or a lot range and a JDBC URL:
+ * <pre>
+ * jdbc:mysql://db1/parknpark|jdbc:mysql://db2/parknpark
+ * 1-50=jdbc:mysql://db1/parknpark|51-100=jdbc:mysql://db2/parknpark
+ * </pre>
+ * A lot belongs to the shard whose range holds it, and lots outside every range are
+ * hashed over all shards by lot ID. A shard holds the Lot, Level and LotDistance rows
+ * of its own lots. A client's row lives on its home shard, which is encoded in its
+ * client ID: shard i (counting from 0) only hands out the IDs i + 1, i + 1 + n,
+ * i + 1 + 2n and so on for n shards
+ */
+public class ShardMap
+{
+	/** Separates the shards of a shard map */
+	public static final String SHARD_SEPARATOR = "|";
+
+	/** A shard with a lot range: first lot, last lot and JDBC URL */
+	protected static final Pattern RANGE_SHARD = Pattern.compile("^(\\d+)-(\\d+)=(.+)$");
+
+	/** The JDBC URL of each shard */
+	protected String[] urls;
+
+	/** The first lot of each shard's range, or -1 if the shard has no range */
+	protected int[] firstLot;
+
+	/** The last lot of each shard's range, or -1 if the shard has no range */
+	protected int[] lastLot;
+
+	/**
+	 * Creates a shard map
+	 * @param urls The JDBC URL of each shard
+	 * @param firstLot The first lot of each shard's range, or -1 if the shard has no range
+	 * @param lastLot The last lot of each shard's range, or -1 if the shard has no range
+	 */
+	public ShardMap(String[] urls, int[] firstLot, int[] lastLot)
+	{
+		this.urls = urls;
+		this.firstLot = firstLot;
+		this.lastLot = lastLot;
+	}
+
+	/**
+	 * Returns true if the given JDBC URL is a shard map of more than one shard
+	 * @param jdbcURL The JDBC URL or shard map
+	 * @return True if the URL names more than one shard
+	 */
+	public static boolean isShardMap(String jdbcURL) {
+		return jdbcURL.indexOf(SHARD_SEPARATOR) >= 0;
+	}
+
+	/**
+	 * Parses a shard map
+	 * @param spec The shard map
+	 * @return The shard map
+	 * @throws IllegalArgumentException Thrown when a shard is empty or a lot range
+	 * is backwards
+	 */
+	public static ShardMap parse(String spec)
+	{
+		List<String> urls = new ArrayList<String>();
+		List<int[]> ranges = new ArrayList<int[]>();
+		int start = 0;
+		while (start <= spec.length()) {
+			int end = spec.indexOf(SHARD_SEPARATOR, start);
+			if (end < 0)
+				end = spec.length();
+			String shard = spec.substring(start, end).trim();
+			start = end + SHARD_SEPARATOR.length();
+			if (shard.length() == 0)
+				throw new IllegalArgumentException("Shard " + (urls.size() + 1) + " of the shard map is empty");
+
+			Matcher range = RANGE_SHARD.matcher(shard);
+			if (range.matches()) {
+				int first = Integer.parseInt(range.group(1)), last = Integer.parseInt(range.group(2));
+				if (first > last)
+					throw new IllegalArgumentException("Lot range " + first + "-" + last + " of the shard map is backwards");
+				ranges.add(new int[] { first, last });
+				urls.add(range.group(3));
+			} else {
+				ranges.add(new int[] { -1, -1 });
+				urls.add(shard);
+			}
+		}
+
+		int[] firstLot = new int[urls.size()], lastLot = new int[urls.size()];
+		for (int i = 0; i < firstLot.length; i++) {
+			firstLot[i] = ranges.get(i)[0];
+			lastLot[i] = ranges.get(i)[1];
+		}
+		return new ShardMap(urls.toArray(new String[urls.size()]), firstLot, lastLot);
+	}
+
+	/**
+	 * Returns the number of shards
+	 * @return The number of shards
+	 */
+	public int getShardCount() {
+		return urls.length;
+	}
+
+	/**
+	 * Returns the JDBC URL of a shard
+	 * @param shard The shard's index
+	 * @return The shard's JDBC URL
+	 */
+	public String getURL(int shard) {
+		return urls[shard];
+	}
+
+	/**
+	 * Returns the shard that owns a lot
+	 * @param lot The lot ID
+	 * @return The index of the lot's shard
+	 */
+	public int getLotShard(int lot)
+	{
+		for (int i = 0; i < urls.length; i++) {
+			if (firstLot[i] <= lot && lot <= lastLot[i] && firstLot[i] != -1)
+				return i;
+		}
+		return Math.floorMod(lot, urls.length);
+	}
+
+	/**
+	 * Returns the home shard of a client, which holds the client's row
+	 * @param clientID The client ID
+	 * @return The index of the client's home shard
+	 */
+	public int getHomeShard(int clientID) {
+		return Math.floorMod(clientID - 1, urls.length);
+	}
+}
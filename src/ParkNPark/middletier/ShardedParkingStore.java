@@ -0,0 +1,625 @@
+package ParkNPark.middletier;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ParkNPark.interfaces.ServiceUnavailableException;
+
+/**
+ * Parking store that spreads the lots and clients over several MySQL databases, as
+ * a ShardMap lays out, with one JdbcParkingStore per shard. A request whose lot lives
+ * on the client's home shard is handed to that shard whole. Otherwise there is no
+ * transaction that spans both databases, so the request is done in two steps:
+ * <ol>
+ * <li>The lot's shard moves the car and records the request in a shadow row of the
+ * client, with the same conditional update as a single database, so that it is only
+ * ever applied once there</li>
+ * <li>The home shard records the request in the client's row</li>
+ * </ol>
+ * If the server fails between the steps, the client's retry finds the request in the
+ * shadow row, skips the first step and finishes the second. Lot lookups go to the
+ * lot's shard, and the lot availability query is scattered over the shards in parallel
+ */
+public class ShardedParkingStore implements ParkingStore
+{
+	/** Reads a client's shadow row on a lot's shard */
+	protected static final String SHADOW_CLIENT_SQL = "SELECT Seq FROM Client WHERE ClientID = ?";
+
+	/** Creates a client's shadow row on a lot's shard */
+	protected static final String CREATE_SHADOW_CLIENT_SQL = "INSERT INTO Client (ClientID, Seq, LotID, Level) VALUES (?, 0, NULL, NULL)";
+
+	/** Which shard owns each lot and each client */
+	protected ShardMap shardMap;
+
+	/** The store of each shard */
+	protected JdbcParkingStore[] shards;
+
+	/** Runs the parts of scattered queries */
+	protected ExecutorService scatterPool;
+
+	/** The shard that the next client is created on */
+	protected AtomicInteger nextHomeShard = new AtomicInteger();
+
+	/** The lots of every shard, merged */
+	protected volatile MergedLots mergedLots;
+
+	/** Number of requests whose lot was not on the client's home shard */
+	protected AtomicLong crossShardRequests = new AtomicLong();
+
+	/** Number of cross-shard requests whose second step was finished by a retry */
+	protected AtomicLong rolledForward = new AtomicLong();
+
+	/**
+	 * The lots of every shard in ascending order and the topology versions of the
+	 * shards that they were merged from
+	 */
+	protected static final class MergedLots
+	{
+		/** The topology version of each shard */
+		protected final long[] versions;
+
+		/** The lots of every shard in ascending order */
+		protected final int[] lots;
+
+		/**
+		 * Creates a merged lot list
+		 * @param versions The topology version of each shard
+		 * @param lots The lots of every shard in ascending order
+		 */
+		protected MergedLots(long[] versions, int[] lots)
+		{
+			this.versions = versions;
+			this.lots = lots;
+		}
+	}
+
+	/**
+	 * Work that is done on each shard of a scattered query
+	 */
+	protected interface ShardTask
+	{
+		/**
+		 * Does the work on one shard
+		 * @param shard The shard's store
+		 * @throws ServiceUnavailableException Thrown when the shard cannot do the work
+		 */
+		public void run(JdbcParkingStore shard) throws ServiceUnavailableException;
+	}
+
+	/**
+	 * The first step of a cross-shard request, which moves the car on the lot's shard
+	 * and records the request in the client's shadow row there
+	 */
+	protected static class LotStep implements CommitCoordinator.Mutation
+	{
+		/** The store of the lot's shard */
+		protected JdbcParkingStore shard;
+
+		/** The client's session */
+		protected ClientSession session;
+
+		/** The latest sequence number of the client */
+		protected int seq;
+
+		/** The operation code, as in OperationJournal */
+		protected int op;
+
+		/** The lot that the operation happens in */
+		protected int lot;
+
+		/** The level that the car leaves when it moves */
+		protected int fromLevel;
+
+		/** The level that the car arrives at when it moves */
+		protected int toLevel;
+
+		/** The outcome of the last apply() */
+		protected int outcome;
+
+		/** The levels of the lot that have available spaces after entering it */
+		protected int[] availLevels;
+
+		/**
+		 * Creates the first step of a cross-shard request
+		 * @param shard The store of the lot's shard
+		 * @param session The client's session
+		 * @param seq The latest sequence number of the client
+		 * @param op The operation code, as in OperationJournal
+		 * @param lot The lot that the operation happens in
+		 * @param fromLevel The level that the car leaves when it moves
+		 * @param toLevel The level that the car arrives at when it moves
+		 */
+		protected LotStep(JdbcParkingStore shard, ClientSession session, int seq, int op, int lot, int fromLevel, int toLevel)
+		{
+			this.shard = shard;
+			this.session = session;
+			this.seq = seq;
+			this.op = op;
+			this.lot = lot;
+			this.fromLevel = fromLevel;
+			this.toLevel = toLevel;
+		}
+
+		public void apply(Connection conn) throws SQLException
+		{
+			outcome = APPLIED;
+			if (update(conn)) {
+				if (op == OperationJournal.ENTER_LOT)
+					availLevels = shard.getAvailableLevels(conn, session, lot);
+				return;
+			}
+
+			// Nothing matched, so the client may not have a shadow row here yet, or the
+			// shadow row may already have the request
+			PreparedStatement shadow = shard.databaseManager.prepareStatement(conn, SHADOW_CLIENT_SQL);
+			shadow.setInt(1, session.clientID);
+			ResultSet rs = shadow.executeQuery();
+			boolean exists = rs.next();
+			int shadowSeq = exists ? rs.getInt(1) : 0;
+			rs.close();
+			if (!exists)
+			{	PreparedStatement createShadow = shard.databaseManager.prepareStatement(conn, CREATE_SHADOW_CLIENT_SQL);
+				createShadow.setInt(1, session.clientID);
+				createShadow.executeUpdate();
+				if (update(conn)) {
+					if (op == OperationJournal.ENTER_LOT)
+						availLevels = shard.getAvailableLevels(conn, session, lot);
+					return;
+				}
+			}
+			else if (shadowSeq >= seq)
+			{	System.out.println("Request already completed (on the lot's shard)");
+				outcome = ALREADY_COMPLETED;
+				if (op == OperationJournal.ENTER_LOT)
+					availLevels = shard.getAvailableLevels(conn, session, lot);
+				return;
+			}
+
+			// The request is new, so the lot itself is the problem
+			if (op != OperationJournal.ENTER_LOT) {
+				outcome = NO_SUCH_LEVEL;
+				return;
+			}
+			PreparedStatement lotInfo = shard.databaseManager.prepareStatement(conn, "SELECT CarCount, Capacity FROM Lot WHERE ID = ?");
+			lotInfo.setInt(1, lot);
+			rs = lotInfo.executeQuery();
+			if (!rs.next())
+				outcome = LOT_NOT_FOUND;
+			else
+				outcome = rs.getInt("CarCount") >= rs.getInt("Capacity") ? LOT_FULL : NO_SUCH_LEVEL;
+			rs.close();
+		}
+
+		public void rolledBack() {
+			// Nothing outside of the database to undo
+		}
+
+		/**
+		 * Runs the operation's conditional update against the client's shadow row
+		 * @param conn The borrowed database connection to update with
+		 * @return True if the update matched
+		 * @throws SQLException Thrown when the update fails
+		 */
+		protected boolean update(Connection conn) throws SQLException
+		{
+			PreparedStatement ps;
+			switch (op)
+			{	case OperationJournal.ENTER_LOT:
+					ps = shard.databaseManager.prepareStatement(conn, JdbcParkingStore.ENTER_LOT_SQL);
+					ps.setInt(1, seq);
+					ps.setInt(2, lot);
+					ps.setInt(3, lot);
+					ps.setInt(4, session.clientID);
+					ps.setInt(5, seq);
+					break;
+				case OperationJournal.EXIT_LOT:
+					ps = shard.databaseManager.prepareStatement(conn, JdbcParkingStore.EXIT_LOT_SQL);
+					ps.setInt(1, seq);
+					ps.setInt(2, lot);
+					ps.setInt(3, session.clientID);
+					ps.setInt(4, seq);
+					break;
+				default:
+					ps = shard.databaseManager.prepareStatement(conn, JdbcParkingStore.MOVE_LEVEL_SQL);
+					ps.setInt(1, seq);
+					ps.setInt(2, toLevel);
+					ps.setInt(3, lot);
+					ps.setInt(4, fromLevel);
+					ps.setInt(5, toLevel);
+					ps.setInt(6, session.clientID);
+					ps.setInt(7, seq);
+			}
+			return ps.executeUpdate() > 0;
+		}
+	}
+
+	/**
+	 * The second step of a cross-shard request, which records the request in the
+	 * client's row on its home shard
+	 */
+	protected static class HomeStep implements CommitCoordinator.Mutation
+	{
+		/** The store of the client's home shard */
+		protected JdbcParkingStore shard;
+
+		/** The client's session */
+		protected ClientSession session;
+
+		/** The latest sequence number of the client */
+		protected int seq;
+
+		/** The lot that the car is now in, or -1 */
+		protected int lot;
+
+		/** The level that the car is now on, or -1 */
+		protected int level;
+
+		/** True if the last apply() updated the client's row */
+		protected boolean updated;
+
+		/**
+		 * Creates the second step of a cross-shard request
+		 * @param shard The store of the client's home shard
+		 * @param session The client's session
+		 * @param seq The latest sequence number of the client
+		 * @param lot The lot that the car is now in, or -1
+		 * @param level The level that the car is now on, or -1
+		 */
+		protected HomeStep(JdbcParkingStore shard, ClientSession session, int seq, int lot, int level)
+		{
+			this.shard = shard;
+			this.session = session;
+			this.seq = seq;
+			this.lot = lot;
+			this.level = level;
+		}
+
+		public void apply(Connection conn) throws SQLException {
+			updated = shard.updateClient(conn, session, seq, lot, level);
+		}
+
+		public void rolledBack() {
+			updated = false;
+		}
+	}
+
+	/**
+	 * Connects to every shard of a shard map
+	 * @param shardMap Which shard owns each lot and each client
+	 * @param jdbcUsername The username to use in the database connections
+	 * @param jdbcPassword The password to use in the database connections
+	 * @throws SQLException Thrown when a problem prevents a connection to a shard
+	 */
+	public ShardedParkingStore(ShardMap shardMap, String jdbcUsername, String jdbcPassword) throws SQLException
+	{
+		this.shardMap = shardMap;
+		this.shards = new JdbcParkingStore[shardMap.getShardCount()];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new JdbcParkingStore(shardMap.getURL(i), jdbcUsername, jdbcPassword);
+			shards[i].setClientIDSeries(shards.length, i + 1);
+		}
+
+		// No shard borrows more connections than its pool holds, so neither do we
+		this.scatterPool = Executors.newFixedThreadPool(shards.length * DatabaseManager.DEFAULT_MAX_POOL_SIZE, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ShardedParkingStore scatter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// A lot that is stored on the wrong shard can never be reached
+		for (int i = 0; i < shards.length; i++) {
+			for (int lot : shards[i].getLots()) {
+				if (shardMap.getLotShard(lot) != i)
+					System.err.println("Lot " + lot + " is stored on shard " + i + " but the shard map puts it on shard "
+							+ shardMap.getLotShard(lot) + "; it cannot be reached");
+			}
+		}
+		System.out.println("Parking store sharded over " + shards.length + " databases");
+	}
+
+	public ClientSession createSession() throws ServiceUnavailableException
+	{
+		// Spread the clients over the shards, skipping shards that are down
+		int first = Math.floorMod(nextHomeShard.getAndIncrement(), shards.length);
+		ServiceUnavailableException failure = null;
+		for (int i = 0; i < shards.length; i++) {
+			int shard = (first + i) % shards.length;
+			try {
+				return shards[shard].createSession();
+			} catch (ServiceUnavailableException e) {
+				System.err.println("Could not create a client on shard " + shard + "; trying the next shard");
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	public ClientSession loadSession(int clientID) throws ServiceUnavailableException {
+		return shards[shardMap.getHomeShard(clientID)].loadSession(clientID);
+	}
+
+	public int enterLot(ClientSession session, int seq, int lot) throws ServiceUnavailableException
+	{
+		int home = shardMap.getHomeShard(session.clientID), lotShard = shardMap.getLotShard(lot);
+		if (lotShard == home)
+			return shards[home].enterLot(session, seq, lot);
+
+		// The session's cached levels are the reply that the retried request got
+		crossShardRequests.incrementAndGet();
+		if (seq <= session.seq) {
+			System.out.println("Request already completed (in enter lot)");
+			return DUPLICATE;
+		}
+		if (session.lot != -1)
+			return ALREADY_IN_LOT;
+
+		LotStep step = new LotStep(shards[lotShard], session, seq, OperationJournal.ENTER_LOT, lot, 0, 1);
+		step.shard.perform(step, "entering lot", "enter lot");
+		if (step.outcome != APPLIED && step.outcome != ALREADY_COMPLETED)
+			return step.outcome;
+		int outcome = recordAtHome(session, seq, lot, 1, step.outcome, "enter lot");
+		session.availableLevels = step.availLevels;
+		return outcome;
+	}
+
+	public int exitLot(ClientSession session, int seq) throws ServiceUnavailableException
+	{
+		int home = shardMap.getHomeShard(session.clientID), lot = session.lot;
+		if (lot == -1 || shardMap.getLotShard(lot) == home)
+			return shards[home].exitLot(session, seq);
+
+		crossShardRequests.incrementAndGet();
+		if (seq <= session.seq) {
+			System.out.println("Request already completed (in exit lot)");
+			return DUPLICATE;
+		}
+		if (session.level != 1)
+			return NOT_ON_EXIT_LEVEL;
+
+		LotStep step = new LotStep(shards[shardMap.getLotShard(lot)], session, seq, OperationJournal.EXIT_LOT, lot, 1, 0);
+		step.shard.perform(step, "exiting lot", "exit lot");
+		if (step.outcome != APPLIED && step.outcome != ALREADY_COMPLETED)
+			return step.outcome;
+		return recordAtHome(session, seq, -1, -1, step.outcome, "exit lot");
+	}
+
+	public int moveLevel(ClientSession session, int seq, int direction) throws ServiceUnavailableException
+	{
+		int home = shardMap.getHomeShard(session.clientID), lot = session.lot;
+		if (lot == -1 || shardMap.getLotShard(lot) == home)
+			return shards[home].moveLevel(session, seq, direction);
+
+		crossShardRequests.incrementAndGet();
+		String name = direction > 0 ? "up" : "down";
+		if (seq <= session.seq) {
+			System.out.println("Request already completed (in move " + name + " level)");
+			return DUPLICATE;
+		}
+		if (direction < 0 && session.level == 1)
+			return AT_LAST_LEVEL;
+
+		int toLevel = session.level + direction;
+		LotStep step = new LotStep(shards[shardMap.getLotShard(lot)], session, seq, OperationJournal.MOVE_LEVEL,
+				lot, session.level, toLevel);
+		step.shard.perform(step, "moving " + name + " level", "move " + name + " level");
+		if (step.outcome != APPLIED && step.outcome != ALREADY_COMPLETED)
+			return step.outcome;
+		return recordAtHome(session, seq, lot, toLevel, step.outcome, "move " + name + " level");
+	}
+
+	public <T> T runBatch(ClientSession session, DatabaseStage.Task<T> batch) throws ServiceUnavailableException {
+		// A request can span two shards, so the requests cannot share one transaction
+		return batch.run();
+	}
+
+	public int[] getLots()
+	{
+		// Merge the shards' cached lots again only after one of them has been reloaded
+		MergedLots merged = mergedLots;
+		long[] versions = new long[shards.length];
+		boolean current = merged != null;
+		for (int i = 0; i < shards.length; i++) {
+			versions[i] = shards[i].topologyCache.getVersion();
+			current &= merged != null && merged.versions[i] == versions[i];
+		}
+		if (current)
+			return merged.lots;
+
+		IntList lots = new IntList(64);
+		for (JdbcParkingStore shard : shards) {
+			for (int lot : shard.getLots())
+				lots.add(lot);
+		}
+		int[] sorted = lots.toArray();
+		Arrays.sort(sorted);
+		mergedLots = new MergedLots(versions, sorted);
+		return sorted;
+	}
+
+	public int[] getLevels(int lot) throws ServiceUnavailableException {
+		return shards[shardMap.getLotShard(lot)].getLevels(lot);
+	}
+
+	public int[] getOtherLotAvailability(int lot) throws ServiceUnavailableException
+	{
+		// The neighbours come from the cached topology of the lot's shard, nearest first
+		NearestLotIndex nearestLots;
+		try
+		{	nearestLots = shards[shardMap.getLotShard(lot)].topologyCache.getNearestLots(lot);
+		}
+		catch (SQLException e)
+		{	System.err.println("Could not reload the lot topology: " + e.getMessage());
+			throw new ServiceUnavailableException("Could not get other lot availability.");
+		}
+		if (nearestLots == null)
+			return null;
+		int[] candidates = nearestLots.getNeighbours(lot);
+		if (candidates.length == 0)
+			return candidates;
+
+		// Ask every shard that owns one of the neighbours which of its lots have room, all at once
+		int maxLot = 0;
+		boolean[] involved = new boolean[shards.length];
+		for (int candidate : candidates) {
+			maxLot = Math.max(maxLot, candidate);
+			involved[shardMap.getLotShard(candidate)] = true;
+		}
+		final LotAvailability availability = new LotAvailability(maxLot);
+		scatter(involved, new ShardTask() {
+			public void run(JdbcParkingStore shard) throws ServiceUnavailableException {
+				shard.findAvailableLots(availability);
+			}
+		});
+		return nearestLots.getAvailableNeighbours(lot, availability);
+	}
+
+	public int[] getFreeSpaces(final int[] lots) throws ServiceUnavailableException
+	{
+		final int[] freeSpaces = new int[lots.length];
+		Arrays.fill(freeSpaces, -1);
+
+		// Ask every shard that owns one of the lots for its counts, all at once
+		boolean[] involved = new boolean[shards.length];
+		for (int lot : lots)
+			involved[shardMap.getLotShard(lot)] = true;
+		scatter(involved, new ShardTask() {
+			public void run(JdbcParkingStore shard) throws ServiceUnavailableException {
+				shard.readFreeSpaces(lots, freeSpaces);
+			}
+		});
+		return freeSpaces;
+	}
+
+	public void poke() throws ServiceUnavailableException
+	{
+		scatter(null, new ShardTask() {
+			public void run(JdbcParkingStore shard) throws ServiceUnavailableException {
+				shard.poke();
+			}
+		});
+	}
+
+	public void refreshTopology()
+	{
+		for (int i = 0; i < shards.length; i++) {
+			System.out.print("Shard " + i + ": ");
+			shards[i].refreshTopology();
+		}
+	}
+
+	public void fence()
+	{
+		for (JdbcParkingStore shard : shards)
+			shard.fence();
+	}
+
+	public void hose()
+	{
+		for (JdbcParkingStore shard : shards)
+			shard.hose();
+	}
+
+	public void printStatistics()
+	{
+		for (int i = 0; i < shards.length; i++) {
+			System.out.println("Shard " + i + " (" + shardMap.getURL(i) + "):");
+			shards[i].printStatistics();
+		}
+		System.out.println("Cross-shard requests: " + crossShardRequests.get() + ", of which "
+				+ rolledForward.get() + " were finished by a retry");
+	}
+
+	/**
+	 * Finishes a cross-shard request by recording it in the client's row on its home
+	 * shard and updates the session to match
+	 * @param session The client's session
+	 * @param seq The latest sequence number of the client
+	 * @param lot The lot that the car is now in, or -1
+	 * @param level The level that the car is now on, or -1
+	 * @param lotOutcome The outcome of the first step, APPLIED or ALREADY_COMPLETED
+	 * @param action What the request does, for the failure message
+	 * @return APPLIED if both steps applied the request or ALREADY_COMPLETED if an
+	 * earlier attempt had applied it
+	 * @throws ServiceUnavailableException Thrown when the home shard could not record the
+	 * request, which the client's retry finishes
+	 */
+	protected int recordAtHome(ClientSession session, int seq, int lot, int level, int lotOutcome, String action)
+		throws ServiceUnavailableException
+	{
+		JdbcParkingStore home = shards[shardMap.getHomeShard(session.clientID)];
+		HomeStep step = new HomeStep(home, session, seq, lot, level);
+		home.perform(step, "recording the request in the client's row", action);
+		if (lotOutcome == ALREADY_COMPLETED && step.updated)
+			rolledForward.incrementAndGet();
+
+		// With both steps committed, update the cached values
+		if (step.updated)
+			session.seqVerified = true;
+		session.update(seq, lot, level);
+		return lotOutcome == APPLIED ? APPLIED : ALREADY_COMPLETED;
+	}
+
+	/**
+	 * Runs a task on several shards in parallel and waits for all of them
+	 * @param involved Which shards to run the task on by shard index, or null for all
+	 * @param task The task to run
+	 * @throws ServiceUnavailableException Thrown when the task failed on any shard
+	 */
+	protected void scatter(boolean[] involved, final ShardTask task) throws ServiceUnavailableException
+	{
+		List<JdbcParkingStore> targets = new ArrayList<JdbcParkingStore>(shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			if (involved == null || involved[i])
+				targets.add(shards[i]);
+		}
+
+		// Run the last part on this thread rather than wait idle for it
+		List<Future<Object>> results = new ArrayList<Future<Object>>(targets.size());
+		for (int i = 0; i < targets.size() - 1; i++) {
+			final JdbcParkingStore shard = targets.get(i);
+			results.add(scatterPool.submit(new Callable<Object>() {
+				public Object call() throws ServiceUnavailableException {
+					task.run(shard);
+					return null;
+				}
+			}));
+		}
+		ServiceUnavailableException failure = null;
+		if (!targets.isEmpty()) {
+			try {
+				task.run(targets.get(targets.size() - 1));
+			} catch (ServiceUnavailableException e) {
+				failure = e;
+			}
+		}
+
+		for (Future<Object> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				failure = e.getCause() instanceof ServiceUnavailableException ? (ServiceUnavailableException) e.getCause()
+						: new ServiceUnavailableException("A shard failed: " + e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = new ServiceUnavailableException("Interrupted while waiting for the shards.");
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
@@ -0,0 +1,104 @@
+package ParkNPark.middletier;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of prepared statements for a single pooled database
+ * connection, keyed by SQL text. A cache is only ever used by the connection's
+ * current borrower, so it is not synchronized; the hit and miss counters are
+ * kept by the owning DatabaseManager
+ */
+public class StatementCache
+{
+	/** The connection whose statements are cached */
+	protected Connection connection;
+
+	/** The maximum number of statements to keep prepared */
+	protected int maxSize;
+
+	/** Cached statements in least-recently-used order */
+	protected LinkedHashMap<String,PreparedStatement> statements;
+
+	/**
+	 * Creates a new statement cache for the given connection
+	 * @param connection The connection whose statements are cached
+	 * @param maxSize The maximum number of statements to keep prepared
+	 */
+	public StatementCache(Connection connection, int maxSize)
+	{
+		this.connection = connection;
+		this.maxSize = maxSize;
+		this.statements = new LinkedHashMap<String,PreparedStatement>(maxSize * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest)
+			{
+				// Close the least recently used statement when the cache is full
+				if (size() > StatementCache.this.maxSize) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached prepared statement for the given SQL, or null if the
+	 * statement has not been prepared on this connection yet
+	 * @param sql The SQL text of the statement
+	 * @return The cached prepared statement or null
+	 */
+	public PreparedStatement get(String sql) {
+		return statements.get(sql);
+	}
+
+	/**
+	 * Prepares the given SQL on this cache's connection and caches the result
+	 * @param sql The SQL text of the statement
+	 * @return The newly-prepared statement
+	 * @throws SQLException Thrown when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(sql);
+		statements.put(sql, statement);
+		return statement;
+	}
+
+	/**
+	 * Returns the number of statements currently held in the cache
+	 * @return The number of statements currently held in the cache
+	 */
+	public int size() {
+		return statements.size();
+	}
+
+	/**
+	 * Closes every cached statement and empties the cache
+	 */
+	public void clear()
+	{
+		for (PreparedStatement statement : statements.values())
+			closeQuietly(statement);
+		statements.clear();
+	}
+
+	/**
+	 * Closes the given statement, ignoring any problems while doing so
+	 * @param statement The statement to close
+	 */
+	protected static void closeQuietly(PreparedStatement statement)
+	{
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			// The connection is probably closed or hosed already, which
+			// closes its statements too
+		}
+	}
+}
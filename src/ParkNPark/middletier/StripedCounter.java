@@ -0,0 +1,173 @@
+package ParkNPark.middletier;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A car count split into stripes so that threads updating the same hot lot mostly
+ * update different cache lines. Each stripe gets a share of the capacity as its
+ * quota and never holds more cars than that, so the sum of the stripes never
+ * exceeds the capacity. A thread starts at its own stripe and only moves on to the
+ * others when that one is full or empty. The count is the sum of the stripes.
+ * <p>
+ * A thread that finds every stripe full has looked at them one after another, so
+ * an exit might have freed a space in a stripe after the thread had passed it. To
+ * keep the capacity exact, exits that take a stripe below its quota count
+ * themselves as started and finished, and the counter is only reported full when
+ * no such exit was under way or started during the pass; otherwise it looks again
+ */
+public class StripedCounter
+{
+	/** Result of tryIncrement(): every stripe is full */
+	public static final int FULL = -1;
+
+	/** Result of tryIncrement(): a car was added */
+	public static final int CLAIMED = 0;
+
+	/** Result of tryIncrement(): a car was added and filled its stripe, so the
+	 *  count might now have reached the capacity */
+	public static final int CLAIMED_LAST = 1;
+
+	/** Number of ints from one stripe to the next, so that every stripe has a
+	 *  cache line of its own */
+	protected static final int PADDING = 16;
+
+	/** The stripes, PADDING ints apart, followed by the started and the finished
+	 *  counts of the exits that took a stripe below its quota */
+	protected AtomicIntegerArray cells;
+
+	/** Index in cells of the number of exits that began taking a stripe below its quota */
+	protected int startedCell;
+
+	/** Index in cells of the number of exits that finished taking a stripe below its quota */
+	protected int finishedCell;
+
+	/** The greatest number of cars in each stripe */
+	protected int[] quota;
+
+	/** The number of stripes */
+	protected int stripes;
+
+	/**
+	 * Creates a striped counter
+	 * @param stripes The number of stripes
+	 * @param count The current count, which is spread over the stripes
+	 * @param capacity The greatest count, or Integer.MAX_VALUE for a counter that
+	 * is never checked against a capacity
+	 */
+	public StripedCounter(int stripes, int count, int capacity)
+	{
+		this.stripes = stripes;
+		this.cells = new AtomicIntegerArray((stripes + 2) * PADDING);
+		this.startedCell = stripes * PADDING;
+		this.finishedCell = (stripes + 1) * PADDING;
+		this.quota = new int[stripes];
+
+		// Split the capacity as evenly as possible and fill the stripes in order; a
+		// count over the capacity stays in the first stripe
+		int remaining = count;
+		for (int i = 0; i < stripes; i++) {
+			quota[i] = capacity / stripes + (i < capacity % stripes ? 1 : 0);
+			int share = Math.min(quota[i], remaining);
+			cells.set(i * PADDING, share);
+			remaining -= share;
+		}
+		cells.addAndGet(0, remaining);
+	}
+
+	/**
+	 * Adds one to the count unless that would exceed the capacity
+	 * @return CLAIMED, CLAIMED_LAST or FULL
+	 */
+	public int tryIncrement()
+	{
+		int home = home();
+		while (true)
+		{	// Exits that were under way before the pass might free a passed stripe
+			int finished = cells.get(finishedCell), started = cells.get(startedCell);
+			for (int n = 0; n < stripes; n++) {
+				int claimed = claim((home + n) % stripes);
+				if (claimed != FULL)
+					return claimed;
+			}
+
+			// Every stripe was full when we looked at it; if no exit could have freed
+			// one since, they were all full at once
+			if (started == finished && cells.get(startedCell) == started)
+				return FULL;
+		}
+	}
+
+	/**
+	 * Adds one to a stripe unless it is full
+	 * @param stripe The index of the stripe
+	 * @return CLAIMED, CLAIMED_LAST or FULL
+	 */
+	protected int claim(int stripe)
+	{
+		int cell = stripe * PADDING, count;
+		while ((count = cells.get(cell)) < quota[stripe]) {
+			if (cells.compareAndSet(cell, count, count + 1))
+				return count + 1 == quota[stripe] ? CLAIMED_LAST : CLAIMED;
+		}
+		return FULL;
+	}
+
+	/**
+	 * Adds one to the count without checking the capacity
+	 */
+	public void increment() {
+		cells.incrementAndGet(home() * PADDING);
+	}
+
+	/**
+	 * Subtracts one from the count unless it is already zero
+	 */
+	public void decrementToZero()
+	{
+		int home = home();
+		for (int n = 0; n < stripes; n++) {
+			int stripe = (home + n) % stripes, cell = stripe * PADDING, count;
+			while ((count = cells.get(cell)) > 0) {
+				// Only an exit that frees a full stripe can hide a space from a thread
+				// that already passed it, so only those are counted
+				boolean freesFull = count == quota[stripe];
+				if (freesFull)
+					cells.incrementAndGet(startedCell);
+				boolean done = cells.compareAndSet(cell, count, count - 1);
+				if (freesFull)
+					cells.incrementAndGet(finishedCell);
+				if (done)
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the count
+	 * @return The sum of the stripes
+	 */
+	public int sum()
+	{
+		int sum = 0;
+		for (int i = 0; i < stripes; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	/**
+	 * Returns the number of stripes
+	 * @return The number of stripes
+	 */
+	public int getStripeCount() {
+		return stripes;
+	}
+
+	/**
+	 * Returns the stripe that the current thread starts at, which spreads threads
+	 * over the stripes by scrambling their IDs
+	 * @return The index of the stripe
+	 */
+	protected int home() {
+		return (int) (((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 33) % stripes);
+	}
+}
@@ -0,0 +1,298 @@
+package ParkNPark.middletier;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Read-through cache of the lot topology: which lots exist, which levels each of
+ * them has and which lots are nearest to each of them. The topology is loaded into an immutable, versioned snapshot at startup
+ * and replaced as a whole when it is refreshed, so readers never see a half-built
+ * topology and never take a lock. A refresh happens when refresh() is called, on a
+ * fixed interval if one is given, and when a lookup misses a lot that the snapshot
+ * does not know about
+ */
+public class TopologyCache
+{
+	/** The default time in milliseconds between background refreshes */
+	public static final long DEFAULT_REFRESH_INTERVAL = 60000;
+
+	/**
+	 * An immutable snapshot of the lot topology. The arrays it hands out are shared
+	 * by every reader and must not be modified
+	 */
+	public static final class Topology
+	{
+		/** The version of this snapshot, which increases with every refresh */
+		protected final long version;
+
+		/** The time in milliseconds at which this snapshot was loaded */
+		protected final long loadedAt;
+
+		/** The lot IDs in ascending order */
+		protected final int[] lotIDs;
+
+		/** The level numbers of each lot in ascending order, indexed like lotIDs */
+		protected final int[][] levels;
+
+		/** Each lot's neighbours, nearest first */
+		protected final NearestLotIndex nearestLots;
+
+		/**
+		 * Creates a new snapshot
+		 * @param version The version of the snapshot
+		 * @param lotIDs The lot IDs in ascending order
+		 * @param levels The level numbers of each lot in ascending order
+		 * @param nearestLots Each lot's neighbours, nearest first
+		 */
+		protected Topology(long version, int[] lotIDs, int[][] levels, NearestLotIndex nearestLots)
+		{
+			this.version = version;
+			this.loadedAt = System.currentTimeMillis();
+			this.lotIDs = lotIDs;
+			this.levels = levels;
+			this.nearestLots = nearestLots;
+		}
+
+		/**
+		 * Returns the version of this snapshot
+		 * @return The version of this snapshot
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Returns the time in milliseconds at which this snapshot was loaded
+		 * @return The time at which this snapshot was loaded
+		 */
+		public long getLoadedAt() {
+			return loadedAt;
+		}
+
+		/**
+		 * Returns the lot IDs in ascending order
+		 * @return The lot IDs in ascending order
+		 */
+		public int[] getLots() {
+			return lotIDs;
+		}
+
+		/**
+		 * Returns the level numbers of the given lot in ascending order
+		 * @param lot The lot ID
+		 * @return The level numbers of the lot, or null if the lot is not known
+		 */
+		public int[] getLevels(int lot)
+		{
+			int i = Arrays.binarySearch(lotIDs, lot);
+			return i < 0 ? null : levels[i];
+		}
+
+		/**
+		 * Returns the index of each lot's neighbours, nearest first
+		 * @return The index of each lot's neighbours
+		 */
+		public NearestLotIndex getNearestLots() {
+			return nearestLots;
+		}
+	}
+
+	/** Our database manager instance */
+	protected DatabaseManager databaseManager;
+
+	/** The current snapshot */
+	protected volatile Topology topology;
+
+	/** Our background refresh thread, or null if refreshes are only explicit */
+	protected RefreshThread refreshThread;
+
+	/**
+	 * Background thread that refreshes the topology on a fixed interval
+	 */
+	protected class RefreshThread extends Thread
+	{
+		/** The time in milliseconds between refreshes */
+		protected long interval;
+
+		/**
+		 * Creates the refresh thread as a daemon
+		 * @param interval The time in milliseconds between refreshes
+		 */
+		public RefreshThread(long interval)
+		{
+			super("TopologyCache");
+			setDaemon(true);
+			this.interval = interval;
+		}
+
+		public void run()
+		{
+			while (true) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					refresh();
+				} catch (SQLException e) {
+					System.err.println("TopologyCache: could not refresh the lot topology; keeping version "
+							+ topology.version + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads the topology and starts refreshing it in the background if an interval is given
+	 * @param databaseManager The database manager to load the topology with
+	 * @param refreshInterval The time in milliseconds between background refreshes, or 0
+	 * to only refresh when asked to or when a lookup misses
+	 * @throws SQLException Thrown when the topology cannot be loaded
+	 */
+	public TopologyCache(DatabaseManager databaseManager, long refreshInterval) throws SQLException
+	{
+		this.databaseManager = databaseManager;
+		refresh();
+
+		if (refreshInterval > 0) {
+			refreshThread = new RefreshThread(refreshInterval);
+			refreshThread.start();
+		}
+	}
+
+	/**
+	 * Returns the current snapshot
+	 * @return The current snapshot
+	 */
+	public Topology getTopology() {
+		return topology;
+	}
+
+	/**
+	 * Returns the level numbers of the given lot in ascending order, reloading the
+	 * topology once if the current snapshot does not know the lot
+	 * @param lot The lot ID
+	 * @return The level numbers of the lot, or null if the lot does not exist
+	 * @throws SQLException Thrown when the topology had to be reloaded and could not be
+	 */
+	public int[] getLevels(int lot) throws SQLException
+	{
+		int[] levels = topology.getLevels(lot);
+		if (levels == null)
+			levels = refresh().getLevels(lot);
+		return levels;
+	}
+
+	/**
+	 * Returns the index of each lot's neighbours, reloading the topology once if the
+	 * current snapshot does not know the given lot
+	 * @param lot The ID of the lot whose neighbours are wanted
+	 * @return The index of each lot's neighbours, or null if the lot does not exist
+	 * @throws SQLException Thrown when the topology had to be reloaded and could not be
+	 */
+	public NearestLotIndex getNearestLots(int lot) throws SQLException
+	{
+		Topology topology = this.topology;
+		if (topology.getLevels(lot) == null) {
+			topology = refresh();
+			if (topology.getLevels(lot) == null)
+				return null;
+		}
+		return topology.nearestLots;
+	}
+
+	/**
+	 * Returns the version of the current snapshot
+	 * @return The version of the current snapshot
+	 */
+	public long getVersion() {
+		return topology.version;
+	}
+
+	/**
+	 * Returns how long ago the current snapshot was loaded
+	 * @return The age of the current snapshot in milliseconds
+	 */
+	public long getAge() {
+		return System.currentTimeMillis() - topology.loadedAt;
+	}
+
+	/**
+	 * Loads the topology from the database and makes it the current snapshot
+	 * @return The new snapshot
+	 * @throws SQLException Thrown when the topology cannot be loaded, in which case
+	 * the current snapshot is kept
+	 */
+	public synchronized Topology refresh() throws SQLException
+	{
+		Connection conn = null;
+		try {
+			conn = databaseManager.getConnection();
+
+			// Get the lots
+			IntList buffer = new IntList(64);
+			ResultSet rs = databaseManager.prepareQuery(conn, "SELECT ID FROM Lot ORDER BY ID").executeQuery();
+			buffer.addColumn(rs, 1);
+			rs.close();
+			int[] lotIDs = buffer.toArray();
+
+			// Get their levels and their neighbours
+			rs = databaseManager.prepareQuery(conn, "SELECT LotID, Level FROM Level ORDER BY LotID, Level").executeQuery();
+			int[][] levels = groupByLot(rs, lotIDs, buffer);
+			rs.close();
+			rs = databaseManager.prepareQuery(conn, "SELECT FromLotID, ToLotID FROM LotDistance ORDER BY FromLotID, Distance").executeQuery();
+			NearestLotIndex nearestLots = new NearestLotIndex(lotIDs, groupByLot(rs, lotIDs, buffer));
+			rs.close();
+			conn.commit();
+
+			topology = new Topology(topology == null ? 1 : topology.version + 1, lotIDs, levels, nearestLots);
+			return topology;
+		} catch (SQLException e) {
+			databaseManager.discardConnection(conn);
+			conn = null;
+			throw e;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Reads a result set of (lot ID, value) rows that is ordered by lot ID in a single
+	 * forward pass and groups the values by lot. Rows of unknown lots are skipped
+	 * @param rs The result set to read to its end
+	 * @param lotIDs The lot IDs in ascending order
+	 * @param buffer Scratch space for the values of one lot
+	 * @return The values of each lot in the order that they were read, indexed like lotIDs
+	 * @throws SQLException Thrown when the result set cannot be read
+	 */
+	protected static int[][] groupByLot(ResultSet rs, int[] lotIDs, IntList buffer) throws SQLException
+	{
+		int[][] groups = new int[lotIDs.length][];
+		int current = -1;
+		buffer.clear();
+		while (rs.next()) {
+			int lot = Arrays.binarySearch(lotIDs, rs.getInt(1));
+			if (lot < 0)
+				continue;
+			if (lot != current) {
+				if (current >= 0)
+					groups[current] = buffer.toArray();
+				current = lot;
+				buffer.clear();
+			}
+			buffer.add(rs.getInt(2));
+		}
+		if (current >= 0)
+			groups[current] = buffer.toArray();
+
+		// Lots without any rows get empty groups
+		for (int i = 0; i < groups.length; i++) {
+			if (groups[i] == null)
+				groups[i] = new int[0];
+		}
+		return groups;
+	}
+}
@@ -0,0 +1,38 @@
+package ParkNPark.middletier;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when an optimistic update of a lot or its levels finds that another
+ * transaction changed them since they were read. The transaction is rolled back
+ * and retried after a backoff
+ */
+public class VersionConflictException extends SQLException
+{
+	/** Serialization version */
+	private static final long serialVersionUID = 1L;
+
+	/** The SQLState of a serialization failure, which is what a version conflict is */
+	public static final String SERIALIZATION_FAILURE = "40001";
+
+	/** The lot whose rows changed */
+	protected int lot;
+
+	/**
+	 * Creates the exception
+	 * @param lot The lot whose rows changed
+	 */
+	public VersionConflictException(int lot)
+	{
+		super("Lot " + lot + " changed since it was read", SERIALIZATION_FAILURE);
+		this.lot = lot;
+	}
+
+	/**
+	 * Returns the lot whose rows changed
+	 * @return The lot ID
+	 */
+	public int getLot() {
+		return lot;
+	}
+}
@@ -0,0 +1,189 @@
+package ParkNPark.tests;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.omg.CORBA.ORB;
+import org.omg.CORBA.portable.InputStream;
+import org.omg.CORBA.portable.OutputStream;
+
+import ParkNPark.client.AvailabilityDecoder;
+import ParkNPark.interfaces.ByteSeqHelper;
+import ParkNPark.interfaces.PaddedIntegerSeq;
+import ParkNPark.interfaces.PaddedIntegerSeqHelper;
+import ParkNPark.middletier.AvailabilityEncoder;
+
+/**
+ * Compares the availability replies of the compact operations with the padded
+ * integer sequences of the original ones: the bytes that each takes once marshalled
+ * by the ORB, and the time to marshal and to unmarshal it, the compact ones
+ * including their encoding and decoding. Three lists are measured at each number of
+ * lots: every lot in ascending order, as getLots() returns them; half of the lots,
+ * nearest to a lot in the middle first, as getOtherLotAvailability() returns them;
+ * and a tenth of the lots in ascending order. Every compact reply is decoded and
+ * checked against its list.
+ * <p>
+ * Usage: CompactEncodingBenchmark [IDs per measurement] [lot counts...]
+ * <p>
+ * The test exits with 0 if every reply decoded correctly and no compact reply was
+ * larger than its padded integer sequence
+ */
+public class CompactEncodingBenchmark
+{
+	/** Number of IDs marshalled per measurement when none is given */
+	protected static final int DEFAULT_IDS_PER_MEASUREMENT = 20000000;
+
+	/** Lot counts when none are given */
+	protected static final int[] DEFAULT_LOT_COUNTS = { 100, 10000, 1000000 };
+
+	/** The padding of the padded replies; replies longer than the reply size have none */
+	protected static final byte[] NO_PADDING = new byte[0];
+
+	/** Keeps the results reachable so that they are not optimized away */
+	protected static Object sink;
+
+	/**
+	 * Runs the benchmark
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int idsPerMeasurement = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_IDS_PER_MEASUREMENT;
+		int[] lotCounts = DEFAULT_LOT_COUNTS;
+		if (args.length > 1) {
+			lotCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				lotCounts[i - 1] = Integer.parseInt(args[i]);
+		}
+
+		ORB orb = ORB.init(new String[0], null);
+		boolean passed = true;
+		Random random = new Random(42);
+		System.out.println(String.format("%-22s %8s %12s %12s %7s %10s %10s %10s %10s", "list", "IDs",
+				"padded B", "compact B", "ratio", "marshal", "compact", "unmarshal", "compact"));
+		for (int lotCount : lotCounts) {
+			int[] all = new int[lotCount];
+			for (int i = 0; i < lotCount; i++)
+				all[i] = i + 1;
+			int[][] lists = { all, nearestHalf(all, random), sortedTenth(all, random) };
+			String[] names = { "every lot", "nearest half", "sorted tenth" };
+			for (int l = 0; l < lists.length; l++) {
+				int[] ids = lists[l];
+				int rounds = Math.max(1, idsPerMeasurement / Math.max(1, ids.length));
+
+				// Check the round trip and compare the sizes
+				byte[] encoding = AvailabilityEncoder.encode(ids);
+				if (!Arrays.equals(ids, AvailabilityDecoder.decode(encoding))) {
+					System.out.println("FAIL: " + names[l] + " of " + lotCount + " lots did not decode to itself");
+					passed = false;
+				}
+				int paddedSize = marshalledSize(orb, ids, null);
+				int compactSize = marshalledSize(orb, null, encoding);
+				if (compactSize > paddedSize) {
+					System.out.println("FAIL: " + names[l] + " of " + lotCount + " lots is larger compact");
+					passed = false;
+				}
+
+				// Warm up, then time both ways
+				time(orb, ids, false, rounds);
+				time(orb, ids, true, rounds);
+				long[] padded = time(orb, ids, false, rounds);
+				long[] compact = time(orb, ids, true, rounds);
+				System.out.println(String.format("%-22s %8d %12d %12d %6.1f%% %8.1fns %8.1fns %8.1fns %8.1fns",
+						names[l] + " of " + lotCount, ids.length, paddedSize, compactSize, 100.0 * compactSize / paddedSize,
+						(double) padded[0] / rounds, (double) compact[0] / rounds,
+						(double) padded[1] / rounds, (double) compact[1] / rounds));
+			}
+		}
+		System.out.println("(times are per reply; the compact ones include encoding and decoding)");
+
+		System.out.println(passed ? "All checks passed" : "Some checks failed");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Returns half of the lots, chosen at random, nearest to the middle lot first
+	 * @param all Every lot, in ascending order
+	 * @param random The source of the choices
+	 * @return The chosen lots
+	 */
+	protected static int[] nearestHalf(int[] all, Random random)
+	{
+		int middle = all[all.length / 2];
+		int[] chosen = new int[all.length];
+		int count = 0;
+		for (int distance = 0; count < chosen.length && distance <= all.length; distance++) {
+			for (int id : distance == 0 ? new int[] { middle } : new int[] { middle - distance, middle + distance }) {
+				if (id >= all[0] && id <= all[all.length - 1] && random.nextBoolean())
+					chosen[count++] = id;
+			}
+		}
+		return Arrays.copyOf(chosen, count);
+	}
+
+	/**
+	 * Returns a tenth of the lots, chosen at random, in ascending order
+	 * @param all Every lot, in ascending order
+	 * @param random The source of the choices
+	 * @return The chosen lots
+	 */
+	protected static int[] sortedTenth(int[] all, Random random)
+	{
+		int[] chosen = new int[all.length];
+		int count = 0;
+		for (int id : all) {
+			if (random.nextInt(10) == 0)
+				chosen[count++] = id;
+		}
+		return Arrays.copyOf(chosen, count);
+	}
+
+	/**
+	 * Marshals a list both ways and back, timing each
+	 * @param orb The ORB whose streams to marshal with
+	 * @param ids The list
+	 * @param compact True to encode it compactly, false for a padded integer sequence
+	 * @param rounds The number of times to marshal and unmarshal it
+	 * @return The nanoseconds spent marshalling and unmarshalling
+	 */
+	protected static long[] time(ORB orb, int[] ids, boolean compact, int rounds)
+	{
+		long[] elapsed = new long[2];
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			OutputStream out = orb.create_output_stream();
+			if (compact)
+				ByteSeqHelper.write(out, AvailabilityEncoder.encode(ids));
+			else
+				PaddedIntegerSeqHelper.write(out, new PaddedIntegerSeq(ids, NO_PADDING));
+			long marshalled = System.nanoTime();
+			InputStream in = out.create_input_stream();
+			sink = compact ? AvailabilityDecoder.decode(ByteSeqHelper.read(in)) : PaddedIntegerSeqHelper.read(in).value;
+			long unmarshalled = System.nanoTime();
+			elapsed[0] += marshalled - start;
+			elapsed[1] += unmarshalled - marshalled;
+		}
+		return elapsed;
+	}
+
+	/**
+	 * Returns the bytes that a reply takes once marshalled
+	 * @param orb The ORB whose streams to marshal with
+	 * @param ids The list as a padded integer sequence, or null
+	 * @param encoding The list as a compact reply, or null
+	 * @return The size of the marshalled reply in bytes
+	 */
+	protected static int marshalledSize(ORB orb, int[] ids, byte[] encoding) throws Exception
+	{
+		OutputStream out = orb.create_output_stream();
+		if (ids != null)
+			PaddedIntegerSeqHelper.write(out, new PaddedIntegerSeq(ids, NO_PADDING));
+		else
+			ByteSeqHelper.write(out, encoding);
+
+		// The ORB's own streams can hand over what they hold
+		Method toByteArray = out.getClass().getMethod("toByteArray");
+		return ((byte[]) toByteArray.invoke(out)).length;
+	}
+}
@@ -0,0 +1,203 @@
+package ParkNPark.tests;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import ParkNPark.common.Logger;
+import ParkNPark.interfaces.NotInLotException;
+import ParkNPark.middletier.ClientManagerFactoryImpl;
+import ParkNPark.middletier.ClientManagerImpl;
+import ParkNPark.middletier.DatabaseManager;
+
+/**
+ * Checks that retried requests are applied exactly once, both on the server that
+ * applied them and after the client fails over to another server. Two client
+ * manager factories on the same database play the old and the new primary. The
+ * last cases have the old primary commit a move and an exit after the new primary
+ * has restored the client, which only a database check can catch.
+ * <p>
+ * Usage: DuplicateRequestTest jdbc-url jdbc-username jdbc-password lot
+ * <p>
+ * The lot needs two free spaces, and a free space on its second level if it has
+ * one. The test exits with 0 if every check passed
+ */
+public class DuplicateRequestTest
+{
+	/** Our database manager for checking the results */
+	protected static DatabaseManager databaseManager;
+
+	/** The lot to park in */
+	protected static int lot;
+
+	/** Number of failed checks */
+	protected static int failures;
+
+	/**
+	 * Runs the test
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 4) {
+			System.out.println("Usage: DuplicateRequestTest jdbc-url jdbc-username jdbc-password lot");
+			System.exit(1);
+		}
+		lot = Integer.parseInt(args[3]);
+		databaseManager = new DatabaseManager(args[0], args[1], args[2]);
+		Logger logger = new Logger(1, 2, 100, 0, 4, "srv", "DuplicateRequestTest", true, false, false);
+		ClientManagerFactoryImpl oldPrimary = new ClientManagerFactoryImpl(logger, 4, args[0], args[1], args[2]);
+		ClientManagerFactoryImpl newPrimary = new ClientManagerFactoryImpl(logger, 4, args[0], args[1], args[2]);
+
+		// A retry on the server that applied the request
+		int carCount = getCarCount();
+		ClientManagerImpl client = new ClientManagerImpl(oldPrimary, "DuplicateRequestTest");
+		int clientID = client.getClientID().value;
+		client.enterLot(1, lot);
+		check("entering the lot adds a car", getCarCount() == carCount + 1);
+		client.enterLot(1, lot);
+		check("retrying the entry on the same server adds nothing", getCarCount() == carCount + 1);
+		int maxLevel = client.getMaxLevel().value;
+		int seq = 1;
+		if (maxLevel > 1) {
+			client.moveUpLevel(++seq);
+			check("retrying a move on the same server moves nothing", client.moveUpLevel(seq).value == 2);
+			client.moveDownLevel(++seq);
+		}
+
+		// A retry after the client fails over to the new primary
+		ClientManagerImpl restored = new ClientManagerImpl(newPrimary, clientID, "DuplicateRequestTest");
+		restored.enterLot(1, lot);
+		check("retrying the entry after failover adds nothing", getCarCount() == carCount + 1);
+		check("retrying the entry after failover keeps the car on its level", restored.getCurrentLevel().value == 1);
+
+		// The old primary commits a move after the new primary has read the client's row
+		if (maxLevel > 1) {
+			restored = new ClientManagerImpl(newPrimary, clientID, "DuplicateRequestTest");
+			int levelOne = getLevelCarCount(1), levelTwo = getLevelCarCount(2);
+			client.moveUpLevel(++seq);
+			check("moving up adds a car to level 2", getLevelCarCount(2) == levelTwo + 1);
+			check("retrying a move that the old primary committed late returns the new level",
+					restored.moveUpLevel(seq).value == 2);
+			check("retrying a move that the old primary committed late moves nothing",
+					getLevelCarCount(1) == levelOne - 1 && getLevelCarCount(2) == levelTwo + 1);
+			restored.moveDownLevel(++seq);
+			check("the next move leaves from the level that the late move reached",
+					getLevelCarCount(1) == levelOne && getLevelCarCount(2) == levelTwo);
+
+			// The old primary picks the client up again from its row
+			client = new ClientManagerImpl(oldPrimary, clientID, "DuplicateRequestTest");
+		}
+
+		// The old primary commits the exit after the new primary has read the client's row
+		restored = new ClientManagerImpl(newPrimary, clientID, "DuplicateRequestTest");
+		client.exitLot(++seq);
+		check("exiting the lot removes a car", getCarCount() == carCount);
+		restored.exitLot(seq);
+		check("retrying an exit that the old primary committed late removes nothing", getCarCount() == carCount);
+		try {
+			restored.getCurrentLevel();
+			check("the new primary learns that the car exited", false);
+		} catch (NotInLotException e) {
+			check("the new primary learns that the car exited", true);
+		}
+
+		// Once the new primary has applied a request, retries are caught in memory
+		restored.enterLot(++seq, lot);
+		restored.enterLot(seq, lot);
+		check("retrying an entry on the new primary adds nothing", getCarCount() == carCount + 1);
+		check("the client's row holds the latest request", getClientSeq(clientID) == seq);
+		restored.exitLot(++seq);
+		restored.exitLot(seq);
+		check("retrying an exit on the new primary removes nothing", getCarCount() == carCount);
+
+		deleteClient(clientID);
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Prints the result of a check
+	 * @param name What was checked
+	 * @param passed True if the check passed
+	 */
+	protected static void check(String name, boolean passed)
+	{
+		System.out.println((passed ? "PASS: " : "FAIL: ") + name);
+		if (!passed)
+			failures++;
+	}
+
+	/**
+	 * Returns the lot's car count in the database
+	 * @return The lot's car count
+	 * @throws SQLException Thrown when the count cannot be read
+	 */
+	protected static int getCarCount() throws SQLException {
+		return queryInt("SELECT CarCount FROM Lot WHERE ID = ?", lot);
+	}
+
+	/**
+	 * Returns the car count of a level of the lot in the database
+	 * @param level The level
+	 * @return The level's car count
+	 * @throws SQLException Thrown when the count cannot be read
+	 */
+	protected static int getLevelCarCount(int level) throws SQLException {
+		return queryInt("SELECT CarCount FROM Level WHERE LotID = ? AND Level = ?", lot, level);
+	}
+
+	/**
+	 * Returns the sequence number in the given client's row
+	 * @param clientID The ID of the client
+	 * @return The client's sequence number
+	 * @throws SQLException Thrown when the sequence number cannot be read
+	 */
+	protected static int getClientSeq(int clientID) throws SQLException {
+		return queryInt("SELECT Seq FROM Client WHERE ClientID = ?", clientID);
+	}
+
+	/**
+	 * Runs a query that returns one integer
+	 * @param sql The query, which takes integer parameters
+	 * @param parameters The parameters
+	 * @return The integer
+	 * @throws SQLException Thrown when the query fails
+	 */
+	protected static int queryInt(String sql, int... parameters) throws SQLException
+	{
+		Connection conn = databaseManager.getConnection();
+		try {
+			PreparedStatement ps = databaseManager.prepareStatement(conn, sql);
+			for (int i = 0; i < parameters.length; i++)
+				ps.setInt(i + 1, parameters[i]);
+			ResultSet rs = ps.executeQuery();
+			rs.next();
+			int value = rs.getInt(1);
+			rs.close();
+			conn.commit();
+			return value;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Deletes the test's client row
+	 * @param clientID The ID of the client to delete
+	 * @throws SQLException Thrown when the client cannot be deleted
+	 */
+	protected static void deleteClient(int clientID) throws SQLException
+	{
+		Connection conn = databaseManager.getConnection();
+		try {
+			PreparedStatement ps = databaseManager.prepareStatement(conn, "DELETE FROM Client WHERE ClientID = ?");
+			ps.setInt(1, clientID);
+			ps.executeUpdate();
+			conn.commit();
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package ParkNPark.tests;
+
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ParkNPark.middletier.LotLayout;
+import ParkNPark.middletier.OccupancyEngine;
+
+/**
+ * Hammers a single lot of an occupancy engine from many threads, once with the
+ * lot's plain counter, once with the lot striped from the start and once with hot
+ * lot detection left to stripe it. Each run fills the lot from every thread at once
+ * and checks that exactly its capacity got in, churns enter/exit pairs for the
+ * throughput figure, churns them again with only one space per thread left, where
+ * no enter may find the lot full, and then drains the lot and checks that it is
+ * empty again.
+ * <p>
+ * Usage: HotLotBenchmark [threads] [capacity] [pairs]
+ * <p>
+ * The test exits with 0 if every check passed
+ */
+public class HotLotBenchmark
+{
+	/** Number of threads when none is given */
+	protected static final int DEFAULT_THREADS = 64;
+
+	/** Capacity of the hot lot when none is given */
+	protected static final int DEFAULT_CAPACITY = 5000;
+
+	/** Number of enter/exit pairs per thread when none is given */
+	protected static final int DEFAULT_PAIRS = 100000;
+
+	/** Number of failed checks */
+	protected static AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * Runs the benchmark
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+		int capacity = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CAPACITY;
+		int pairs = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PAIRS;
+
+		run("plain counter", threads, capacity, pairs, 0, false);
+		run("striped counter", threads, capacity, pairs, 0, true);
+		run("hot lot detection", threads, capacity, pairs, OccupancyEngine.DEFAULT_HOT_LOT_THRESHOLD, false);
+
+		System.out.println(failures.get() == 0 ? "All checks passed" : failures.get() + " checks failed");
+		System.exit(failures.get() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Runs the three phases against a fresh engine
+	 * @param name The name of the run
+	 * @param threads The number of threads
+	 * @param capacity The capacity of the hot lot
+	 * @param pairs The number of enter/exit pairs per thread
+	 * @param threshold The engine's hot lot threshold
+	 * @param striped True to stripe the lot before the first phase
+	 */
+	protected static void run(String name, int threads, int capacity, final int pairs, int threshold, boolean striped)
+		throws Exception
+	{
+		// The hot lot has a single level so that every car lands on the same counters
+		LotLayout layout = LotLayout.generate(2, 1, capacity);
+		final OccupancyEngine engine = new OccupancyEngine(layout, new int[layout.getLotCount()], new int[layout.getLevelCount()]);
+		final int lot = layout.getLots()[0];
+		System.out.println(name + ":");
+		engine.setHotLotThreshold(threshold);
+		if (striped)
+			engine.stripeLot(lot);
+
+		// Fill: every thread enters until the lot is full
+		final AtomicInteger entered = new AtomicInteger();
+		runThreads(threads, new Runnable() {
+			public void run() {
+				while (engine.enter(lot) == OccupancyEngine.OK)
+					entered.incrementAndGet();
+			}
+		});
+		check("exactly " + capacity + " cars got into the full lot (" + entered.get() + ")", entered.get() == capacity);
+		check("the full lot has no space", !engine.hasSpace(lot) && engine.getLotCarCount(0) == capacity);
+		check("the full lot is not marked available", !engine.getAvailability().isAvailable(lot));
+
+		// Drain half of the lot, so that the churn never finds it full
+		for (int i = 0; i < capacity - capacity / 2; i++)
+			engine.exit(lot);
+
+		// Churn: enter/exit pairs from every thread at once
+		final AtomicLong full = new AtomicLong();
+		long elapsed = runThreads(threads, new Runnable() {
+			public void run() {
+				for (int i = 0; i < pairs; i++) {
+					if (engine.enter(lot) != OccupancyEngine.OK)
+						full.incrementAndGet();
+					else
+						engine.exit(lot);
+				}
+			}
+		});
+		long operations = 2L * threads * pairs;
+		System.out.println("  " + operations + " operations in " + (elapsed / 1000000) + "ms, "
+				+ (elapsed > 0 ? operations * 1000000000L / elapsed : 0) + " operations per second; striped lots "
+				+ Arrays.toString(engine.getStripedLots()));
+		if (threads <= capacity / 2)
+			check("no enter found the half-empty lot full", full.get() == 0);
+
+		// Brim: fill the lot up to one space per thread and churn again, so that every
+		// enter must find a space even while exits free spaces behind it
+		if (threads < capacity) {
+			while (engine.enter(lot) == OccupancyEngine.OK)
+				;
+			for (int i = 0; i < threads; i++)
+				engine.exit(lot);
+			final AtomicLong falselyFull = new AtomicLong();
+			runThreads(threads, new Runnable() {
+				public void run() {
+					for (int i = 0; i < pairs; i++) {
+						if (engine.enter(lot) != OccupancyEngine.OK)
+							falselyFull.incrementAndGet();
+						else
+							engine.exit(lot);
+					}
+				}
+			});
+			check("no enter found the lot full while it had a space for every thread (" + falselyFull.get() + ")",
+					falselyFull.get() == 0);
+			check("the lot holds one space per thread again", engine.getLotCarCount(0) == capacity - threads);
+		}
+
+		// Drain: every thread exits until the lot is empty
+		runThreads(threads, new Runnable() {
+			public void run() {
+				while (engine.getLotCarCount(0) > 0)
+					engine.exit(lot);
+			}
+		});
+		check("the drained lot is empty", engine.getLotCarCount(0) == 0 && engine.getLevelCarCount(0) == 0);
+		check("the drained lot is marked available", engine.getAvailability().isAvailable(lot));
+	}
+
+	/**
+	 * Runs a task on several threads, which all start at once
+	 * @param threads The number of threads
+	 * @param task The task
+	 * @return The time in nanoseconds until the last thread finished
+	 */
+	protected static long runThreads(int threads, final Runnable task) throws Exception
+	{
+		final CyclicBarrier start = new CyclicBarrier(threads + 1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (Exception e) {
+						return;
+					}
+					task.run();
+				}
+			};
+			workers[t].start();
+		}
+		start.await();
+		long begin = System.nanoTime();
+		for (Thread worker : workers)
+			worker.join();
+		return System.nanoTime() - begin;
+	}
+
+	/**
+	 * Prints the result of a check
+	 * @param name What was checked
+	 * @param passed True if the check passed
+	 */
+	protected static void check(String name, boolean passed)
+	{
+		System.out.println((passed ? "PASS: " : "FAIL: ") + name);
+		if (!passed)
+			failures.incrementAndGet();
+	}
+}
@@ -0,0 +1,219 @@
+package ParkNPark.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ParkNPark.middletier.DatabaseManager;
+import ParkNPark.middletier.OperationJournal;
+
+/**
+ * Compares the per-operation commit latency of the operation journal's group
+ * commit against committing every operation to the database. The journal is
+ * read as another server would replay it and then reopened afterwards to check
+ * that every record comes back.
+ * <p>
+ * Usage: JournalBenchmark journal-folder [operations] [threads]
+ * [jdbc-url jdbc-username jdbc-password]
+ */
+public class JournalBenchmark
+{
+	/** Number of operations to run when none is given */
+	protected static final int DEFAULT_OPERATIONS = 20000;
+
+	/** Number of concurrent clients to simulate when none is given */
+	protected static final int DEFAULT_THREADS = 8;
+
+	/**
+	 * Something that commits one operation on behalf of a simulated client
+	 */
+	protected interface Operation
+	{
+		/**
+		 * Commits one operation
+		 * @param client The number of the simulated client
+		 * @param seq The client's sequence number of the operation
+		 * @throws Exception Thrown when the operation fails
+		 */
+		public void run(int client, int seq) throws Exception;
+	}
+
+	/**
+	 * Runs the benchmark
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1) {
+			System.out.println("Usage: JournalBenchmark journal-folder [operations] [threads] "
+					+ "[jdbc-url jdbc-username jdbc-password]");
+			System.exit(1);
+		}
+		File folder = new File(args[0]);
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_OPERATIONS;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THREADS;
+
+		// Benchmark the journal's group commit
+		deleteSegments(folder);
+		final OperationJournal journal = new OperationJournal(folder, OperationJournal.DEFAULT_SEGMENT_RECORDS,
+				OperationJournal.DEFAULT_GROUP_COMMIT_INTERVAL, OperationJournal.DEFAULT_GROUP_COMMIT_SIZE);
+		run("Journal group commit", operations, threads, new Operation() {
+			public void run(int client, int seq) throws IOException {
+				journal.append(client, seq, OperationJournal.MOVE_LEVEL, 1, 1, 2);
+			}
+		});
+		journal.close();
+
+		// Make sure that everything comes back, both to a server that takes over and,
+		// once only, to one that keeps replaying the journal
+		Map<Long, Integer> read = new HashMap<Long, Integer>();
+		List<OperationJournal.Record> replayed = OperationJournal.readOther(folder, read);
+		System.out.println("Replayed " + replayed.size() + " of " + operations + " journal records");
+		for (OperationJournal.Record record : replayed) {
+			Integer count = read.get(record.segment);
+			read.put(record.segment, count == null ? 1 : count + 1);
+		}
+		System.out.println("Replayed " + OperationJournal.readOther(folder, read).size() + " journal records again");
+		OperationJournal recovered = new OperationJournal(folder, OperationJournal.DEFAULT_SEGMENT_RECORDS,
+				OperationJournal.DEFAULT_GROUP_COMMIT_INTERVAL, OperationJournal.DEFAULT_GROUP_COMMIT_SIZE);
+		System.out.println("Recovered " + recovered.getAvailableCount() + " of " + operations + " journal records");
+		recovered.close();
+		deleteSegments(folder);
+
+		// Benchmark a database commit per operation
+		if (args.length >= 6) {
+			final DatabaseManager databaseManager = new DatabaseManager(args[3], args[4], args[5]);
+			final int clientID = createScratchClient(databaseManager);
+			try {
+				run("Database commit", operations, threads, new Operation() {
+					public void run(int client, int seq) throws SQLException {
+						Connection conn = databaseManager.getConnection();
+						try {
+							PreparedStatement ps = databaseManager.prepareStatement(conn,
+									"UPDATE Client SET Seq = ? WHERE ClientID = ?");
+							ps.setInt(1, seq);
+							ps.setInt(2, clientID);
+							ps.executeUpdate();
+							conn.commit();
+						} finally {
+							databaseManager.releaseConnection(conn);
+						}
+					}
+				});
+			} finally {
+				deleteScratchClient(databaseManager, clientID);
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the given operation from several threads and prints latency statistics
+	 * @param name The name of the benchmark
+	 * @param operations The total number of operations to run
+	 * @param threads The number of threads to run them from
+	 * @param operation The operation to run
+	 * @throws InterruptedException Thrown when interrupted while waiting for the threads
+	 */
+	protected static void run(String name, final int operations, final int threads, final Operation operation)
+		throws InterruptedException
+	{
+		final long[] latencies = new long[operations];
+		Thread[] workers = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int client = t;
+			workers[t] = new Thread() {
+				public void run() {
+					for (int i = client, seq = 1; i < operations; i += threads, seq++) {
+						long begin = System.nanoTime();
+						try {
+							operation.run(client, seq);
+						} catch (Exception e) {
+							System.err.println("Operation failed: " + e);
+							return;
+						}
+						latencies[i] = System.nanoTime() - begin;
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		long elapsed = System.nanoTime() - start;
+
+		Arrays.sort(latencies);
+		long total = 0;
+		for (long latency : latencies)
+			total += latency;
+		System.out.println(name + ": " + operations + " operations from " + threads + " threads in "
+				+ (elapsed / 1000000) + "ms (" + (operations * 1000000000L / Math.max(elapsed, 1)) + " ops/s)");
+		System.out.println("  mean " + (total / operations / 1000) + "us, p50 " + (latencies[operations / 2] / 1000)
+				+ "us, p99 " + (latencies[operations * 99 / 100] / 1000) + "us, max "
+				+ (latencies[operations - 1] / 1000) + "us");
+	}
+
+	/**
+	 * Creates a client row for the database benchmark to update
+	 * @param databaseManager The database manager to use
+	 * @return The ID of the new client
+	 * @throws SQLException Thrown when the client cannot be created
+	 */
+	protected static int createScratchClient(DatabaseManager databaseManager) throws SQLException
+	{
+		Connection conn = databaseManager.getConnection();
+		try {
+			databaseManager.prepareStatement(conn, "INSERT INTO Client (Seq, LotID, Level) VALUES(0, null, null)").executeUpdate();
+			ResultSet rs = databaseManager.prepareStatement(conn, "SELECT last_insert_id() ClientID").executeQuery();
+			rs.next();
+			int clientID = rs.getInt("ClientID");
+			rs.close();
+			conn.commit();
+			return clientID;
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Deletes the database benchmark's client row
+	 * @param databaseManager The database manager to use
+	 * @param clientID The ID of the client to delete
+	 * @throws SQLException Thrown when the client cannot be deleted
+	 */
+	protected static void deleteScratchClient(DatabaseManager databaseManager, int clientID) throws SQLException
+	{
+		Connection conn = databaseManager.getConnection();
+		try {
+			PreparedStatement ps = databaseManager.prepareStatement(conn, "DELETE FROM Client WHERE ClientID = ?");
+			ps.setInt(1, clientID);
+			ps.executeUpdate();
+			conn.commit();
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Deletes the journal segment files in the given folder
+	 * @param folder The journal folder
+	 */
+	protected static void deleteSegments(File folder)
+	{
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.getName().startsWith("journal-") && file.getName().endsWith(".seg"))
+				file.delete();
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package ParkNPark.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import ParkNPark.middletier.LotAvailability;
+import ParkNPark.middletier.NearestLotIndex;
+
+/**
+ * Measures how the nearest-available-lot index scales with the number of lots.
+ * For each size, lots are scattered on a plane, the index is built, and lookups
+ * are timed while other threads keep filling and emptying lots. The lookups are
+ * compared against computing the answer the way the LotDistance query does, by
+ * filtering every lot and sorting by distance. Afterwards, every lot's
+ * availability bit is checked against its car count.
+ * <p>
+ * Usage: NearestLotBenchmark [lots] [neighbours-per-lot] [lookups] [churn-threads]
+ */
+public class NearestLotBenchmark
+{
+	/** Largest number of lots to benchmark when none is given */
+	protected static final int DEFAULT_LOTS = 10000;
+
+	/** Number of neighbours to index per lot when none is given; 0 indexes every other
+	 *  lot, which takes about 400MB of heap at 10000 lots */
+	protected static final int DEFAULT_NEIGHBOURS = 1000;
+
+	/** Number of lookups to time per size when none is given */
+	protected static final int DEFAULT_LOOKUPS = 20000;
+
+	/** Number of threads filling and emptying lots when none is given */
+	protected static final int DEFAULT_CHURN_THREADS = 4;
+
+	/** Number of lookups computed by filtering and sorting, which is much slower */
+	protected static final int BASELINE_LOOKUPS = 200;
+
+	/** Side of the square that lots are scattered on */
+	protected static final int AREA = 10000;
+
+	/**
+	 * Runs the benchmark
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int maxLots = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_LOTS;
+		int maxNeighbours = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NEIGHBOURS;
+		int lookups = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_LOOKUPS;
+		int churnThreads = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CHURN_THREADS;
+
+		boolean consistent = true;
+		for (int lots = Math.max(maxLots / 100, 10); lots < maxLots; lots *= 10)
+			consistent &= run(lots, maxNeighbours, lookups, churnThreads);
+		consistent &= run(maxLots, maxNeighbours, lookups, churnThreads);
+		System.exit(consistent ? 0 : 1);
+	}
+
+	/**
+	 * Benchmarks one number of lots
+	 * @param numLots The number of lots
+	 * @param maxNeighbours The number of neighbours to index per lot, or 0 for every other lot
+	 * @param lookups The number of lookups to time
+	 * @param churnThreads The number of threads filling and emptying lots
+	 * @return True if every availability bit matched its car count afterwards
+	 * @throws InterruptedException Thrown when interrupted while waiting for the threads
+	 */
+	protected static boolean run(final int numLots, int maxNeighbours, int lookups, int churnThreads)
+		throws InterruptedException
+	{
+		Random random = new Random(numLots);
+		int numNeighbours = maxNeighbours > 0 ? Math.min(maxNeighbours, numLots - 1) : numLots - 1;
+
+		// Scatter the lots, give them capacities and fill them part way; lot IDs start at 1
+		final int[] lotIDs = new int[numLots];
+		final int[] x = new int[numLots], y = new int[numLots];
+		final int[] capacity = new int[numLots];
+		final AtomicIntegerArray carCount = new AtomicIntegerArray(numLots);
+		for (int i = 0; i < numLots; i++) {
+			lotIDs[i] = i + 1;
+			x[i] = random.nextInt(AREA);
+			y[i] = random.nextInt(AREA);
+			capacity[i] = 5 + random.nextInt(20);
+			carCount.set(i, random.nextInt(capacity[i] + 1));
+		}
+
+		// Build the index
+		long start = System.nanoTime();
+		int[][] neighbours = new int[numLots][];
+		long[] keys = new long[numLots - 1];
+		for (int i = 0; i < numLots; i++) {
+			int numKeys = 0;
+			for (int j = 0; j < numLots; j++) {
+				if (j != i)
+					keys[numKeys++] = distanceKey(x, y, i, j);
+			}
+			Arrays.sort(keys);
+			neighbours[i] = new int[numNeighbours];
+			for (int n = 0; n < numNeighbours; n++)
+				neighbours[i][n] = lotIDs[(int)(keys[n] & 0xffffff)];
+		}
+		NearestLotIndex index = new NearestLotIndex(lotIDs, neighbours);
+		final LotAvailability availability = new LotAvailability(numLots);
+		for (int i = 0; i < numLots; i++)
+			availability.setAvailable(lotIDs[i], carCount.get(i) < capacity[i]);
+		long buildTime = System.nanoTime() - start;
+
+		// Keep filling and emptying lots while the lookups run
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread[] churners = new Thread[churnThreads];
+		for (int t = 0; t < churnThreads; t++) {
+			final Random churnRandom = new Random(t);
+			churners[t] = new Thread() {
+				public void run() {
+					while (!stop.get()) {
+						int i = churnRandom.nextInt(numLots);
+						int count;
+						if (churnRandom.nextBoolean()) {
+							do {
+								count = carCount.get(i);
+								if (count >= capacity[i])
+									break;
+							} while (!carCount.compareAndSet(i, count, count + 1));
+						} else {
+							do {
+								count = carCount.get(i);
+								if (count <= 0)
+									break;
+							} while (!carCount.compareAndSet(i, count, count - 1));
+						}
+						availability.track(lotIDs[i], carCount, i, capacity[i]);
+					}
+				}
+			};
+			churners[t].start();
+		}
+
+		// Time the index
+		long[] latencies = new long[lookups];
+		long found = 0;
+		for (int i = 0; i < lookups; i++) {
+			int lot = lotIDs[random.nextInt(numLots)];
+			long begin = System.nanoTime();
+			found += index.getAvailableNeighbours(lot, availability).length;
+			latencies[i] = System.nanoTime() - begin;
+		}
+
+		// Time filtering every lot and sorting by distance
+		int baselineLookups = Math.min(lookups, BASELINE_LOOKUPS);
+		long[] baselineLatencies = new long[baselineLookups];
+		for (int i = 0; i < baselineLookups; i++) {
+			int lot = random.nextInt(numLots);
+			long begin = System.nanoTime();
+			found += filterAndSort(lot, x, y, capacity, carCount).length;
+			baselineLatencies[i] = System.nanoTime() - begin;
+		}
+
+		stop.set(true);
+		for (Thread churner : churners)
+			churner.join();
+
+		// Every bit has to agree with its lot's final car count
+		int mismatches = 0;
+		for (int i = 0; i < numLots; i++) {
+			if (availability.isAvailable(lotIDs[i]) != (carCount.get(i) < capacity[i]))
+				mismatches++;
+		}
+
+		System.out.println(numLots + " lots, " + numNeighbours + " neighbours each: index built in "
+				+ (buildTime / 1000000) + "ms (" + found + " lots returned)");
+		print("  index lookup      ", latencies);
+		print("  filter and sort   ", baselineLatencies);
+		System.out.println("  availability bits that disagree with the car counts: " + mismatches);
+		return mismatches == 0;
+	}
+
+	/**
+	 * Returns the lots that have room ordered by their distance from the given lot,
+	 * computed from scratch like the LotDistance query
+	 * @param lot The index of the lot
+	 * @param x The lots' x coordinates
+	 * @param y The lots' y coordinates
+	 * @param capacity The lots' capacities
+	 * @param carCount The lots' car counts
+	 * @return The indexes of the lots that have room, nearest first
+	 */
+	protected static int[] filterAndSort(int lot, int[] x, int[] y, int[] capacity, AtomicIntegerArray carCount)
+	{
+		long[] keys = new long[x.length];
+		int numKeys = 0;
+		for (int j = 0; j < x.length; j++) {
+			if (j != lot && carCount.get(j) < capacity[j])
+				keys[numKeys++] = distanceKey(x, y, lot, j);
+		}
+		Arrays.sort(keys, 0, numKeys);
+		int[] lots = new int[numKeys];
+		for (int n = 0; n < numKeys; n++)
+			lots[n] = (int)(keys[n] & 0xffffff);
+		return lots;
+	}
+
+	/**
+	 * Returns a sort key that orders lots by their distance from a lot and holds the
+	 * index of the other lot in its low 24 bits
+	 * @param x The lots' x coordinates
+	 * @param y The lots' y coordinates
+	 * @param from The index of the lot to measure from
+	 * @param to The index of the other lot
+	 * @return The sort key
+	 */
+	protected static long distanceKey(int[] x, int[] y, int from, int to)
+	{
+		long dx = x[from] - x[to], dy = y[from] - y[to];
+		return ((dx * dx + dy * dy) << 24) | to;
+	}
+
+	/**
+	 * Prints latency statistics
+	 * @param name The name of the measurement
+	 * @param latencies The latencies in nanoseconds
+	 */
+	protected static void print(String name, long[] latencies)
+	{
+		Arrays.sort(latencies);
+		long total = 0;
+		for (long latency : latencies)
+			total += latency;
+		int n = latencies.length;
+		System.out.println(name + " mean " + (total / n / 1000) + "us, p50 " + (latencies[n / 2] / 1000)
+				+ "us, p99 " + (latencies[n * 99 / 100] / 1000) + "us, max " + (latencies[n - 1] / 1000) + "us");
+	}
+}
@@ -0,0 +1,220 @@
+package ParkNPark.tests;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ParkNPark.middletier.ClientSession;
+import ParkNPark.middletier.FileParkingStore;
+import ParkNPark.middletier.JdbcParkingStore;
+import ParkNPark.middletier.LotLayout;
+import ParkNPark.middletier.MemoryParkingStore;
+import ParkNPark.middletier.ParkingStore;
+import ParkNPark.middletier.ShardMap;
+import ParkNPark.middletier.ShardedParkingStore;
+
+/**
+ * Drives a parking store the way client managers do, without CORBA, so that the
+ * backends can be compared on the same workload. Every thread is one client that
+ * enters a random lot, moves up and back down, retries its exit once and leaves,
+ * over and over. Afterwards every lot must be empty again, and a file store is
+ * reopened to check that every client's row survived.
+ * <p>
+ * Usage: ParkingStoreBenchmark memory [threads] [cycles] [layout]<br>
+ *        ParkingStoreBenchmark file [threads] [cycles] [layout] [folder]<br>
+ *        ParkingStoreBenchmark jdbc [threads] [cycles] jdbc-url jdbc-username jdbc-password
+ * <p>
+ * The layout is a layout file or a generated layout such as 10x4x50. The JDBC URL
+ * may be a shard map; running the benchmark once for each number of shards shows
+ * how throughput scales with them. The test exits with 0 if every check passed
+ */
+public class ParkingStoreBenchmark
+{
+	/** Number of client threads when none is given */
+	protected static final int DEFAULT_THREADS = 8;
+
+	/** Number of cycles per client when none is given */
+	protected static final int DEFAULT_CYCLES = 5000;
+
+	/** Lot layout of the embedded stores when none is given */
+	protected static final String DEFAULT_LAYOUT = "10x4x50";
+
+	/** Number of failed checks */
+	protected static AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * Runs the benchmark
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1) {
+			System.out.println("Usage: ParkingStoreBenchmark memory|file|jdbc [threads] [cycles] [layout|jdbc-url] ...");
+			System.exit(1);
+		}
+		String backend = args[0];
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREADS;
+		final int cycles = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CYCLES;
+		String layout = args.length > 3 ? args[3] : DEFAULT_LAYOUT;
+		File directory = null;
+
+		final ParkingStore store;
+		if (backend.equals("memory"))
+			store = new MemoryParkingStore(LotLayout.parse(layout));
+		else if (backend.equals("file")) {
+			directory = new File(args.length > 4 ? args[4] : "ParkingStoreBenchmark-store");
+			store = FileParkingStore.open(directory, LotLayout.parse(layout));
+		}
+		else if (backend.equals("jdbc") && args.length > 5)
+			store = ShardMap.isShardMap(args[3]) ? new ShardedParkingStore(ShardMap.parse(args[3]), args[4], args[5])
+					: new JdbcParkingStore(args[3], args[4], args[5]);
+		else {
+			System.out.println("Unknown backend or missing JDBC parameters");
+			System.exit(1);
+			return;
+		}
+
+		// Every client keeps its own latencies, in nanoseconds
+		final int[] lots = store.getLots();
+		final long[][] latencies = new long[threads][];
+		final ClientSession[] sessions = new ClientSession[threads];
+		Thread[] clients = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int client = t;
+			clients[t] = new Thread() {
+				public void run() {
+					try {
+						latencies[client] = runClient(store, lots, sessions, client, cycles);
+					} catch (Exception e) {
+						System.out.println("FAIL: client " + client + " stopped: " + e);
+						failures.incrementAndGet();
+						latencies[client] = new long[0];
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread client : clients)
+			client.start();
+		for (Thread client : clients)
+			client.join();
+		long elapsed = System.nanoTime() - start;
+
+		// Every car has left, so every lot must have room again
+		int[] others = store.getOtherLotAvailability(lots[0]);
+		int[] neighbours = LotLayout.parse(layout).getNearestLots().getNeighbours(lots[0]);
+		check("every lot has room once every car has left", backend.equals("jdbc")
+				|| (others != null && Arrays.equals(others, neighbours)));
+
+		// A reopened file store must know every client and where it left off
+		if (directory != null) {
+			FileParkingStore reopened = FileParkingStore.open(directory, null);
+			boolean restored = true;
+			for (ClientSession session : sessions) {
+				if (session == null)
+					continue;
+				ClientSession loaded = reopened.loadSession(session.getClientID());
+				restored &= loaded != null && loaded.getSeq() == session.getSeq() && loaded.getLot() == -1;
+			}
+			check("the reopened file store restored every client's row", restored);
+		}
+
+		int operations = 0;
+		for (long[] clientLatencies : latencies)
+			operations += clientLatencies.length;
+		long[] all = new long[operations];
+		int n = 0;
+		for (long[] clientLatencies : latencies) {
+			System.arraycopy(clientLatencies, 0, all, n, clientLatencies.length);
+			n += clientLatencies.length;
+		}
+		System.out.println(backend + " store, " + threads + " clients, " + cycles + " cycles each: "
+				+ operations + " operations in " + (elapsed / 1000000) + "ms, "
+				+ (elapsed > 0 ? operations * 1000000000L / elapsed : 0) + " operations per second");
+		if (all.length > 0)
+			NearestLotBenchmark.print("  operation latency ", all);
+		System.out.println(failures.get() == 0 ? "All checks passed" : failures.get() + " checks failed");
+		System.exit(failures.get() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Runs one client's cycles
+	 * @param store The store to drive
+	 * @param lots The lots to park in
+	 * @param sessions Where to leave the client's session for the final checks
+	 * @param client The number of the client
+	 * @param cycles The number of cycles to run
+	 * @return The latency of every operation in nanoseconds
+	 * @throws Exception Thrown when the store fails
+	 */
+	protected static long[] runClient(ParkingStore store, int[] lots, ClientSession[] sessions, int client, int cycles)
+		throws Exception
+	{
+		Random random = new Random(client);
+		ClientSession session = store.createSession();
+		sessions[client] = session;
+		long[] latencies = new long[cycles * 5];
+		int numLatencies = 0, seq = 0;
+		for (int i = 0; i < cycles; i++) {
+			int lot = lots[random.nextInt(lots.length)];
+			long begin = System.nanoTime();
+			int outcome = store.enterLot(session, ++seq, lot);
+			latencies[numLatencies++] = System.nanoTime() - begin;
+			if (outcome == ParkingStore.LOT_FULL)
+				continue;
+			if (outcome != ParkingStore.APPLIED)
+				return fail("client " + client + " could not enter lot " + lot + ": outcome " + outcome, latencies, numLatencies);
+
+			// Moving up fails on single-level lots, which is fine
+			begin = System.nanoTime();
+			outcome = store.moveLevel(session, ++seq, 1);
+			latencies[numLatencies++] = System.nanoTime() - begin;
+			if (outcome == ParkingStore.APPLIED) {
+				begin = System.nanoTime();
+				outcome = store.moveLevel(session, ++seq, -1);
+				latencies[numLatencies++] = System.nanoTime() - begin;
+				if (outcome != ParkingStore.APPLIED)
+					return fail("client " + client + " could not move back down: outcome " + outcome, latencies, numLatencies);
+			}
+
+			// Exit, then retry the exit as a client does after a lost reply
+			begin = System.nanoTime();
+			outcome = store.exitLot(session, ++seq);
+			latencies[numLatencies++] = System.nanoTime() - begin;
+			if (outcome != ParkingStore.APPLIED)
+				return fail("client " + client + " could not exit: outcome " + outcome, latencies, numLatencies);
+			begin = System.nanoTime();
+			outcome = store.exitLot(session, seq);
+			latencies[numLatencies++] = System.nanoTime() - begin;
+			if (outcome != ParkingStore.DUPLICATE)
+				return fail("client " + client + " retried exit was not a duplicate: outcome " + outcome, latencies, numLatencies);
+		}
+		return Arrays.copyOf(latencies, numLatencies);
+	}
+
+	/**
+	 * Records a failed check and ends the client
+	 * @param message What went wrong
+	 * @param latencies The client's latencies so far
+	 * @param numLatencies The number of latencies so far
+	 * @return The client's latencies so far
+	 */
+	protected static long[] fail(String message, long[] latencies, int numLatencies)
+	{
+		check(message, false);
+		return Arrays.copyOf(latencies, numLatencies);
+	}
+
+	/**
+	 * Prints the result of a check
+	 * @param name What was checked
+	 * @param passed True if the check passed
+	 */
+	protected static void check(String name, boolean passed)
+	{
+		System.out.println((passed ? "PASS: " : "FAIL: ") + name);
+		if (!passed)
+			failures.incrementAndGet();
+	}
+}
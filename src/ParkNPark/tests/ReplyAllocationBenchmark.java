@@ -0,0 +1,145 @@
+package ParkNPark.tests;
+
+import java.lang.management.ManagementFactory;
+
+import ParkNPark.interfaces.PaddedInteger;
+import ParkNPark.interfaces.PaddedIntegerSeq;
+import ParkNPark.interfaces.PaddedVoid;
+import ParkNPark.middletier.ReplyPadding;
+
+/**
+ * Measures the bytes allocated per padded reply, built the way client managers used
+ * to build them (a padding buffer per array reply and a reply object per reply) and
+ * with the shared ReplyPadding, at several reply sizes. It also shows the padding
+ * that each client manager used to keep for itself, which ReplyPadding shares
+ * between all of them. Allocation is read from the JVM's per-thread allocation
+ * counter, so the benchmark needs a HotSpot JVM.
+ * <p>
+ * Usage: ReplyAllocationBenchmark [replies] [reply sizes...]
+ * <p>
+ * The test exits with 0 if the shared replies allocated less than a byte per reply
+ * once warmed up
+ */
+public class ReplyAllocationBenchmark
+{
+	/** Number of replies per measurement when none is given */
+	protected static final int DEFAULT_REPLIES = 1000000;
+
+	/** Reply sizes when none are given */
+	protected static final int[] DEFAULT_REPLY_SIZES = { 4, 1024, 8192 };
+
+	/** The level numbers returned in the array replies */
+	protected static final int[] LEVELS = { 1, 2, 3, 4 };
+
+	/** Keeps the replies reachable so that they are not optimized away */
+	protected static Object sink;
+
+	/**
+	 * Runs the benchmark
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args)
+	{
+		int replies = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REPLIES;
+		int[] replySizes = DEFAULT_REPLY_SIZES;
+		if (args.length > 1) {
+			replySizes = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				replySizes[i - 1] = Integer.parseInt(args[i]);
+		}
+
+		boolean passed = true;
+		for (int replySize : replySizes) {
+			System.out.println("Reply size " + replySize + " bytes; each client manager used to keep "
+					+ (Math.max(0, replySize - 4) + replySize) + " bytes of padding of its own");
+			final PerReply perReply = new PerReply(replySize);
+			final ReplyPadding shared = new ReplyPadding(replySize);
+
+			// Warm up both, so that the counts leave out class loading and compilation
+			measure(perReply, shared, replies);
+			long[] before = measure(perReply, null, replies);
+			long[] after = measure(null, shared, replies);
+			String[] kinds = { "integer", "integer array", "void" };
+			for (int k = 0; k < kinds.length; k++) {
+				System.out.println(String.format("  %-14s %8.1f bytes per reply before, %8.1f after",
+						kinds[k] + ":", (double) before[k] / replies, (double) after[k] / replies));
+				// The allocation counter itself allocates a few bytes per reading
+				if (after[k] >= replies)
+					passed = false;
+			}
+		}
+
+		System.out.println(passed ? "The shared replies allocated nothing" : "The shared replies allocated memory");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Builds replies of each kind and measures the bytes that they allocated
+	 * @param perReply The old way of building replies, or null
+	 * @param shared The shared padding, or null
+	 * @param replies The number of replies of each kind
+	 * @return The bytes allocated for the integer, integer array and void replies
+	 */
+	protected static long[] measure(PerReply perReply, ReplyPadding shared, int replies)
+	{
+		long[] allocated = new long[3];
+		long start = allocatedBytes();
+		for (int i = 0; i < replies; i++)
+			sink = perReply != null ? perReply.padInteger(i) : shared.padInteger(i);
+		allocated[0] = allocatedBytes() - start;
+
+		start = allocatedBytes();
+		for (int i = 0; i < replies; i++)
+			sink = perReply != null ? perReply.padIntegerArray(LEVELS) : shared.padIntegerArray(LEVELS);
+		allocated[1] = allocatedBytes() - start;
+
+		start = allocatedBytes();
+		for (int i = 0; i < replies; i++)
+			sink = perReply != null ? perReply.padVoid() : shared.padVoid();
+		allocated[2] = allocatedBytes() - start;
+		return allocated;
+	}
+
+	/**
+	 * Returns the bytes that the current thread has allocated so far
+	 * @return The allocated bytes
+	 */
+	protected static long allocatedBytes()
+	{
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Builds replies the way client managers used to
+	 */
+	protected static class PerReply
+	{
+		protected int replySize;
+		protected byte[] integerPadding;
+		protected PaddedVoid paddedVoid;
+
+		protected PerReply(int replySize)
+		{
+			this.replySize = replySize;
+			this.integerPadding = new byte[Math.max(0, replySize - 4)];
+			this.paddedVoid = new PaddedVoid(new byte[replySize]);
+		}
+
+		protected PaddedIntegerSeq padIntegerArray(int[] value)
+		{
+			if (replySize > value.length * 4)
+				return new PaddedIntegerSeq(value, new byte[replySize - (value.length * 4)]);
+			else
+				return new PaddedIntegerSeq(value, new byte[0]);
+		}
+
+		protected PaddedInteger padInteger(int value) {
+			return new PaddedInteger(value, integerPadding);
+		}
+
+		protected PaddedVoid padVoid() {
+			return paddedVoid;
+		}
+	}
+}
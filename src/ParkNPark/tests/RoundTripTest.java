@@ -0,0 +1,231 @@
+package ParkNPark.tests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import ParkNPark.middletier.ClientSession;
+import ParkNPark.middletier.DatabaseManager;
+import ParkNPark.middletier.JdbcParkingStore;
+import ParkNPark.middletier.ParkingStore;
+
+/**
+ * Counts the database round trips of enterLot(), exitLot() and moveLevel() on a
+ * JdbcParkingStore that updates the car counts with conditional updates. The store's
+ * connections come from a driver that wraps the real one and counts every statement
+ * that is prepared or executed and every commit and rollback that the test's own
+ * thread sends; the background threads of the store are not counted. Each operation
+ * may take at most two round trips in all: its update, which an entry sends together
+ * with the read of the levels that it returns, and its commit.
+ * <p>
+ * Usage: RoundTripTest jdbc-url jdbc-username jdbc-password lot
+ * <p>
+ * The lot needs a free space and two levels. The test exits with 0 if every check passed
+ */
+public class RoundTripTest
+{
+	/** The most round trips that an operation may take */
+	protected static final int MAX_ROUND_TRIPS = 2;
+
+	/** The prefix that routes a JDBC URL through the counting driver */
+	protected static final String COUNTING_PREFIX = "jdbc:counting:";
+
+	/** The thread whose round trips are counted */
+	protected static Thread countedThread;
+
+	/** Round trips of the counted thread since the last reset */
+	protected static int roundTrips;
+
+	/** Number of failed checks */
+	protected static int failures;
+
+	/**
+	 * Runs the test
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 4) {
+			System.out.println("Usage: RoundTripTest jdbc-url jdbc-username jdbc-password lot");
+			System.exit(1);
+		}
+		int lot = Integer.parseInt(args[3]);
+		Class.forName("com.mysql.jdbc.Driver");
+		DriverManager.registerDriver(new CountingDriver());
+		countedThread = Thread.currentThread();
+		ParkingStore store = new JdbcParkingStore(COUNTING_PREFIX + args[0], args[1], args[2]);
+		ClientSession session = store.createSession();
+
+		// Fill the statement caches first so that only the operations' own round trips
+		// are counted
+		int seq = 0;
+		store.enterLot(session, ++seq, lot);
+		store.moveLevel(session, ++seq, 1);
+		store.moveLevel(session, ++seq, -1);
+		store.exitLot(session, ++seq);
+
+		reset();
+		check("entering the lot", store.enterLot(session, ++seq, lot) == ParkingStore.APPLIED);
+		reset();
+		check("moving up a level", store.moveLevel(session, ++seq, 1) == ParkingStore.APPLIED);
+		reset();
+		check("moving down a level", store.moveLevel(session, ++seq, -1) == ParkingStore.APPLIED);
+		reset();
+		check("exiting the lot", store.exitLot(session, ++seq) == ParkingStore.APPLIED);
+
+		deleteClient(args, session.getClientID());
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Starts counting an operation's round trips
+	 */
+	protected static void reset()
+	{
+		roundTrips = 0;
+	}
+
+	/**
+	 * Checks that an operation was applied within the allowed round trips and prints
+	 * its round trips
+	 * @param name The operation
+	 * @param applied True if the operation was applied
+	 */
+	protected static void check(String name, boolean applied)
+	{
+		boolean passed = applied && roundTrips <= MAX_ROUND_TRIPS;
+		System.out.println((passed ? "PASS: " : "FAIL: ") + name + " took " + roundTrips + " round trips"
+				+ (applied ? "" : "; it was not applied"));
+		if (!passed)
+			failures++;
+	}
+
+	/**
+	 * Counts a round trip of the current thread
+	 */
+	protected static void counted()
+	{
+		if (Thread.currentThread() == countedThread)
+			roundTrips++;
+	}
+
+	/**
+	 * Deletes the test's client row
+	 * @param args The command line arguments
+	 * @param clientID The ID of the client to delete
+	 * @throws SQLException Thrown when the client cannot be deleted
+	 */
+	protected static void deleteClient(String[] args, int clientID) throws SQLException
+	{
+		DatabaseManager databaseManager = new DatabaseManager(args[0], args[1], args[2]);
+		Connection conn = databaseManager.getConnection();
+		try {
+			PreparedStatement ps = databaseManager.prepareStatement(conn, "DELETE FROM Client WHERE ClientID = ?");
+			ps.setInt(1, clientID);
+			ps.executeUpdate();
+			conn.commit();
+		} finally {
+			databaseManager.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Driver that hands out the connections of the driver of the URL without the
+	 * counting prefix, wrapped so that their round trips are counted
+	 */
+	protected static class CountingDriver implements Driver
+	{
+		public Connection connect(String url, Properties info) throws SQLException
+		{
+			if (!acceptsURL(url))
+				return null;
+			final Connection connection = DriverManager.getConnection(url.substring(COUNTING_PREFIX.length()), info);
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+				{
+					String name = method.getName();
+					// Server-side prepared statements are prepared in a round trip of their own
+					if (name.equals("commit") || name.equals("rollback") || name.equals("prepareStatement"))
+						counted();
+					Object result = forward(connection, method, args);
+					if (result instanceof Statement)
+						return count((Statement) result);
+					return result;
+				}
+			});
+		}
+
+		/**
+		 * Wraps a statement so that its executions are counted
+		 * @param statement The statement
+		 * @return The wrapped statement
+		 */
+		protected static Statement count(final Statement statement)
+		{
+			Class<?> type = statement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+			return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+					new Class<?>[] { type }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+				{
+					String name = method.getName();
+					if (name.startsWith("execute"))
+						counted();
+					return forward(statement, method, args);
+				}
+			});
+		}
+
+		/**
+		 * Calls a method on the wrapped object, throwing what it throws
+		 * @param target The wrapped object
+		 * @param method The method
+		 * @param args The arguments
+		 * @return The result
+		 */
+		protected static Object forward(Object target, Method method, Object[] args) throws Throwable
+		{
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		public boolean acceptsURL(String url) {
+			return url.startsWith(COUNTING_PREFIX);
+		}
+
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+
+		public int getMajorVersion() {
+			return 1;
+		}
+
+		public int getMinorVersion() {
+			return 0;
+		}
+
+		public boolean jdbcCompliant() {
+			return false;
+		}
+
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package ParkNPark.tests;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ParkNPark.middletier.ClientSession;
+import ParkNPark.middletier.SessionTable;
+
+/**
+ * Fills a session table with millions of sessions and measures the memory that they
+ * take, on and off the heap, then reads and updates random sessions from many
+ * threads at once and checks that every session reads back as it was last written.
+ * A session's lot and level are derived from its client ID and the sequence number
+ * that was last written, so a reader can tell a torn or lost update from a good one.
+ * <p>
+ * Usage: SessionTableBenchmark [sessions] [threads] [seconds]
+ * <p>
+ * The test exits with 0 if every check passed
+ */
+public class SessionTableBenchmark
+{
+	/** Number of sessions when none is given */
+	protected static final int DEFAULT_SESSIONS = 10000000;
+
+	/** Number of threads when none is given */
+	protected static final int DEFAULT_THREADS = 8;
+
+	/** Length of the concurrent phase in seconds when none is given */
+	protected static final int DEFAULT_SECONDS = 5;
+
+	/** Number of failed checks */
+	protected static AtomicInteger failures = new AtomicInteger();
+
+	/** Keeps the measured sessions reachable until they have been measured */
+	protected static Object sink;
+
+	/**
+	 * Runs the benchmark
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SESSIONS;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREADS;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+
+		// Fill the table, growing it from its default size
+		Runtime runtime = Runtime.getRuntime();
+		long heapBefore = usedHeap(runtime);
+		final SessionTable table = new SessionTable();
+		ClientSession session = new ClientSession(0, 0, -1, -1);
+		long begin = System.nanoTime();
+		for (int clientID = 1; clientID <= sessions; clientID++)
+			table.put(expected(clientID, 0));
+		long elapsed = System.nanoTime() - begin;
+		long heapAfter = usedHeap(runtime);
+		System.out.println(sessions + " sessions added in " + elapsed / 1000000 + "ms");
+		System.out.println(String.format("Off the heap: %dMB in %d slots, %.1f bytes per session; heap grew by %.1f bytes per session",
+				table.getOffHeapBytes() / (1024 * 1024), table.getCapacity(), (double) table.getOffHeapBytes() / sessions,
+				(double) Math.max(0, heapAfter - heapBefore) / sessions));
+		System.out.println(String.format("A ClientSession object per client would take about %d bytes each on the heap, plus the map entry",
+				ClientSessionFootprint.estimate()));
+		check("the table holds every session", table.size() == sessions);
+
+		// Read and update random sessions from every thread at once; each thread owns
+		// the clients whose IDs are congruent to its index, so that it knows what it
+		// last wrote to them
+		final int threadCount = threads;
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong reads = new AtomicLong(), writes = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			workers[t] = new Thread() {
+				public void run() {
+					ClientSession scratch = new ClientSession(0, 0, -1, -1);
+					int[] seqs = new int[sessions / threadCount + 1];
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					long myReads = 0, myWrites = 0;
+					while (System.nanoTime() < deadline) {
+						for (int i = 0; i < 1000; i++) {
+							int n = random.nextInt(seqs.length);
+							int clientID = n * threadCount + index + 1;
+							if (clientID > sessions)
+								continue;
+
+							// Read any client, owned or not, then update an owned one
+							int other = random.nextInt(sessions) + 1;
+							if (!table.load(other, scratch) || !consistent(scratch)) {
+								failures.incrementAndGet();
+								System.out.println("FAIL: client " + other + " read back torn or missing");
+							}
+							myReads++;
+							if ((i & 3) == 0) {
+								table.put(expected(clientID, ++seqs[n]));
+								myWrites++;
+								if (!table.load(clientID, scratch) || scratch.getSeq() != seqs[n]) {
+									failures.incrementAndGet();
+									System.out.println("FAIL: client " + clientID + " lost its update");
+								}
+							}
+						}
+					}
+					reads.addAndGet(myReads);
+					writes.addAndGet(myWrites);
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		System.out.println(String.format("%d threads: %d reads/s and %d writes/s", threads,
+				reads.get() / seconds, writes.get() / seconds));
+		check("every read found a consistent session", failures.get() == 0);
+
+		// A removed client is gone and can come back
+		table.remove(1);
+		check("a removed client is gone", !table.load(1, session));
+		table.put(expected(1, 7));
+		check("a removed client can come back", table.load(1, session) && session.getSeq() == 7);
+
+		// Sessions outside the packed range still work
+		ClientSession far = new ClientSession(sessions + 1, 3, 70000, 2);
+		table.put(far);
+		check("a session that does not pack reads back", table.load(sessions + 1, session)
+				&& session.getLot() == 70000 && session.getLevel() == 2 && session.getSeq() == 3);
+
+		System.out.println(failures.get() == 0 ? "All checks passed" : failures.get() + " checks failed");
+		System.exit(failures.get() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Makes the session that a client has after a sequence number: out of the lots on
+	 * even sequence numbers, and in a lot and on a level derived from both on odd ones
+	 * @param clientID The client's ID
+	 * @param seq The sequence number
+	 * @return The session
+	 */
+	protected static ClientSession expected(int clientID, int seq)
+	{
+		if ((seq & 1) == 0)
+			return new ClientSession(clientID, seq, -1, -1);
+		return new ClientSession(clientID, seq, (clientID + seq) % 1000 + 1, (clientID ^ seq) % 8 + 1);
+	}
+
+	/**
+	 * Returns true if a session holds the state that expected() gives for its
+	 * sequence number
+	 * @param session The session
+	 * @return True if the session is consistent
+	 */
+	protected static boolean consistent(ClientSession session)
+	{
+		int clientID = session.getClientID(), seq = session.getSeq();
+		if ((seq & 1) == 0)
+			return session.getLot() == -1 && session.getLevel() == -1;
+		return session.getLot() == (clientID + seq) % 1000 + 1 && session.getLevel() == (clientID ^ seq) % 8 + 1;
+	}
+
+	/**
+	 * Returns the heap in use after a garbage collection
+	 * @param runtime The runtime
+	 * @return The bytes of heap in use
+	 */
+	protected static long usedHeap(Runtime runtime)
+	{
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Prints the result of a check
+	 * @param name What was checked
+	 * @param passed True if the check passed
+	 */
+	protected static void check(String name, boolean passed)
+	{
+		System.out.println((passed ? "PASS: " : "FAIL: ") + name);
+		if (!passed)
+			failures.incrementAndGet();
+	}
+
+	/**
+	 * Estimates the heap taken by a ClientSession object, for comparison
+	 */
+	protected static class ClientSessionFootprint
+	{
+		/** Number of sessions to measure over */
+		protected static final int SAMPLE = 100000;
+
+		/**
+		 * Measures the average heap taken by a session object and its boxed key
+		 * @return The bytes per session
+		 */
+		protected static long estimate()
+		{
+			Runtime runtime = Runtime.getRuntime();
+			long before = usedHeap(runtime);
+			Object[] sessions = new Object[SAMPLE * 2];
+			for (int i = 0; i < SAMPLE; i++) {
+				sessions[2 * i] = new ClientSession(i + 1000, i, i % 10, i % 4);
+				sessions[2 * i + 1] = Integer.valueOf(i + 1000);
+			}
+			long after = usedHeap(runtime);
+			sink = sessions;
+			return (after - before) / SAMPLE;
+		}
+	}
+}
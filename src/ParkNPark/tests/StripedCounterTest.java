@@ -0,0 +1,135 @@
+package ParkNPark.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ParkNPark.middletier.StripedCounter;
+
+/**
+ * Checks that a striped counter only reports itself full when every stripe was full
+ * at once. The interleavings are forced with latches instead of being left to the
+ * scheduler: an entering thread finds the first stripe full and is held there while
+ * a car exits from that stripe, then goes on to find the second stripe full. The
+ * entry must still get the space that the exit freed. The counters have two stripes
+ * of one space each, and every thread starts at the first stripe.
+ * <p>
+ * Usage: StripedCounterTest
+ * <p>
+ * The test exits with 0 if every check passed
+ */
+public class StripedCounterTest
+{
+	/** Seconds to wait for a latch before the test gives up */
+	protected static final int TIMEOUT = 10;
+
+	/** Number of failed checks */
+	protected static int failures;
+
+	/**
+	 * Runs the test
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		// A full counter is reported full
+		HeldCounter counter = new HeldCounter(2);
+		check("a full counter is full", counter.tryIncrement() == StripedCounter.FULL);
+
+		// An exit that finished before the entry looked is seen
+		counter.decrementToZero();
+		check("a space freed before the entry is claimed", counter.tryIncrement() == StripedCounter.CLAIMED_LAST);
+
+		// An exit from a stripe that the entry has already passed
+		counter = new HeldCounter(2);
+		EntryThread entry = new EntryThread(counter);
+		entry.start();
+		boolean held = counter.passed.await(TIMEOUT, TimeUnit.SECONDS);
+		check("the entry passed the first stripe", held);
+		counter.decrementToZero();
+		counter.exited.countDown();
+		entry.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+		check("the entry finished", !entry.isAlive());
+		check("a space freed behind the entry is claimed", entry.result != StripedCounter.FULL);
+		check("the counter is full again", counter.sum() == 2);
+
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Prints a check's result and counts it if it failed
+	 * @param name The check
+	 * @param passed True if the check passed
+	 */
+	protected static void check(String name, boolean passed)
+	{
+		System.out.println((passed ? "PASS: " : "FAIL: ") + name);
+		if (!passed)
+			failures++;
+	}
+
+	/**
+	 * A full counter of two stripes of one space each. The first time that the
+	 * entry thread finds the first stripe full, it waits there until a car has
+	 * exited
+	 */
+	protected static class HeldCounter extends StripedCounter
+	{
+		/** Counted down when the entry thread has found the first stripe full */
+		protected CountDownLatch passed = new CountDownLatch(1);
+
+		/** Counted down when a car has exited */
+		protected CountDownLatch exited = new CountDownLatch(1);
+
+		/**
+		 * Creates a full counter
+		 * @param capacity The capacity, which is also the count
+		 */
+		protected HeldCounter(int capacity) {
+			super(2, capacity, capacity);
+		}
+
+		protected int claim(int stripe)
+		{
+			int claimed = super.claim(stripe);
+			if (claimed == FULL && stripe == 0 && Thread.currentThread() instanceof EntryThread && passed.getCount() > 0) {
+				passed.countDown();
+				try {
+					exited.await(TIMEOUT, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return claimed;
+		}
+
+		protected int home() {
+			return 0;
+		}
+	}
+
+	/**
+	 * Tries to add a car to a counter
+	 */
+	protected static class EntryThread extends Thread
+	{
+		/** The counter */
+		protected StripedCounter counter;
+
+		/** The result of tryIncrement() */
+		protected volatile int result;
+
+		/**
+		 * Creates an entry
+		 * @param counter The counter
+		 */
+		protected EntryThread(StripedCounter counter) {
+			this.counter = counter;
+			setDaemon(true);
+		}
+
+		public void run() {
+			result = counter.tryIncrement();
+		}
+	}
+}
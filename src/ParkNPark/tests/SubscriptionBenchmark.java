@@ -0,0 +1,365 @@
+package ParkNPark.tests;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ParkNPark.interfaces.AvailabilityListenerOperations;
+import ParkNPark.interfaces.LotStatus;
+import ParkNPark.interfaces.ServiceUnavailableException;
+import ParkNPark.middletier.AvailabilityPublisher;
+import ParkNPark.middletier.ClientSession;
+import ParkNPark.middletier.LotLayout;
+import ParkNPark.middletier.MemoryParkingStore;
+import ParkNPark.middletier.ParkingStore;
+
+/**
+ * Compares the store reads of many clients watching lot availability by polling
+ * getOtherLotAvailability() with those of the same clients subscribed to an
+ * availability publisher, while cars churn in and out of the lots at a fixed rate.
+ * Every availability read counts, since with the database store each is a query.
+ * Cars enter and exit the way client managers make them, telling the publisher of
+ * each lot that they change, and the latency of every enter and exit is measured in
+ * both phases, while a few of the subscribers take a long time over every push.
+ * Once the churn stops, every subscriber must have been pushed each of its lots'
+ * final counts.
+ * <p>
+ * Usage: SubscriptionBenchmark [subscribers] [lots] [seconds] [poll interval ms]
+ * <p>
+ * The test exits with 0 if every check passed
+ */
+public class SubscriptionBenchmark
+{
+	/** Number of subscribers when none is given */
+	protected static final int DEFAULT_SUBSCRIBERS = 10000;
+
+	/** Number of lots when none is given */
+	protected static final int DEFAULT_LOTS = 100;
+
+	/** Length of each phase in seconds when none is given */
+	protected static final int DEFAULT_SECONDS = 5;
+
+	/** Time in milliseconds between two polls of a subscriber when none is given */
+	protected static final int DEFAULT_POLL_INTERVAL = 1000;
+
+	/** Spaces per lot; small, so that lots fill up and empty again */
+	protected static final int SPACES_PER_LOT = 20;
+
+	/** Cars per space of the lots; about half of the cars are parked at any time, so
+	 *  some lots keep filling up */
+	protected static final double CARS_PER_SPACE = 1.8;
+
+	/** Number of lots that each subscriber watches */
+	protected static final int LOTS_PER_SUBSCRIBER = 5;
+
+	/** Shortest time in milliseconds between two pushes to a subscriber */
+	protected static final int MIN_PUSH_INTERVAL = 250;
+
+	/** Every this many subscribers, one takes SLOW_PUSH_TIME over every push */
+	protected static final int SLOW_SUBSCRIBER_EVERY = 2000;
+
+	/** Time in milliseconds that a slow subscriber takes over a push */
+	protected static final int SLOW_PUSH_TIME = 100;
+
+	/** Cars entering or exiting per second during both phases */
+	protected static final int CHANGES_PER_SECOND = 20000;
+
+	/** Number of threads that churn cars */
+	protected static final int CHURN_THREADS = 4;
+
+	/** Number of threads that poll in the polling phase */
+	protected static final int POLL_THREADS = 4;
+
+	/** Number of failed checks */
+	protected static AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * A memory store that counts the reads of lot availability
+	 */
+	protected static class CountingStore extends MemoryParkingStore
+	{
+		/** Number of availability reads */
+		protected AtomicLong reads = new AtomicLong();
+
+		protected CountingStore(LotLayout layout) {
+			super(layout);
+		}
+
+		public int[] getOtherLotAvailability(int lot) throws ServiceUnavailableException
+		{
+			reads.incrementAndGet();
+			return super.getOtherLotAvailability(lot);
+		}
+
+		public int[] getFreeSpaces(int[] lots) throws ServiceUnavailableException
+		{
+			reads.incrementAndGet();
+			return super.getFreeSpaces(lots);
+		}
+	}
+
+	/**
+	 * A subscriber that remembers the latest free spaces pushed for each lot
+	 */
+	protected static class RecordingListener implements AvailabilityListenerOperations
+	{
+		/** The latest free spaces of each lot */
+		protected Map<Integer, Integer> freeSpaces = new ConcurrentHashMap<Integer, Integer>();
+
+		/** True if the listener takes SLOW_PUSH_TIME over every push */
+		protected boolean slow;
+
+		/** Number of pushes */
+		protected AtomicInteger pushes = new AtomicInteger();
+
+		protected RecordingListener(boolean slow) {
+			this.slow = slow;
+		}
+
+		public void availabilityChanged(LotStatus[] changes)
+		{
+			for (LotStatus status : changes) {
+				freeSpaces.put(status.lot, status.freeSpaces);
+				if (status.full != (status.freeSpaces == 0)) {
+					failures.incrementAndGet();
+					System.out.println("FAIL: lot " + status.lot + " pushed as full with " + status.freeSpaces + " free spaces");
+				}
+			}
+			pushes.incrementAndGet();
+			if (slow) {
+				try {
+					Thread.sleep(SLOW_PUSH_TIME);
+				} catch (InterruptedException e) {
+					// Done sleeping
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves cars in and out of random lots at a fixed rate and measures each move
+	 */
+	protected static class ChurnThread extends Thread
+	{
+		protected ParkingStore store;
+		protected AvailabilityPublisher publisher;
+		protected ClientSession[] cars;
+		protected int[] lots;
+		protected volatile boolean stopped;
+		protected long changes, totalLatency, maxLatency;
+
+		protected ChurnThread(ParkingStore store, AvailabilityPublisher publisher, ClientSession[] cars, int[] lots)
+		{
+			this.store = store;
+			this.publisher = publisher;
+			this.cars = cars;
+			this.lots = lots;
+		}
+
+		public void run()
+		{
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int perMillisecond = Math.max(1, CHANGES_PER_SECOND / CHURN_THREADS / 1000);
+			try {
+				while (!stopped) {
+					for (int i = 0; i < perMillisecond; i++) {
+						ClientSession car = cars[random.nextInt(cars.length)];
+						long start = System.nanoTime();
+						// As ClientManagerImpl does: apply, then tell the publisher
+						if (car.getLot() == -1) {
+							int lot = lots[random.nextInt(lots.length)];
+							if (store.enterLot(car, car.getSeq() + 1, lot) == ParkingStore.APPLIED && publisher != null)
+								publisher.changed(lot);
+						}
+						else {
+							int lot = car.getLot();
+							if (store.exitLot(car, car.getSeq() + 1) == ParkingStore.APPLIED && publisher != null)
+								publisher.changed(lot);
+						}
+						long latency = System.nanoTime() - start;
+						totalLatency += latency;
+						maxLatency = Math.max(maxLatency, latency);
+						changes++;
+					}
+					Thread.sleep(1);
+				}
+			} catch (Exception e) {
+				failures.incrementAndGet();
+				System.out.println("FAIL: churn stopped by " + e);
+			}
+		}
+	}
+
+	/**
+	 * Runs the benchmark
+	 * @param args The command line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		final int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SUBSCRIBERS;
+		int lotCount = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_LOTS;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+		final int pollInterval = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_POLL_INTERVAL;
+
+		// Polling: every subscriber asks for the available lots once per poll interval
+		CountingStore store = newStore(lotCount);
+		final int[] lots = store.getLots();
+		ChurnThread[] churn = startChurn(store, null, lotCount);
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountingStore pollStore = store;
+		Thread[] pollers = new Thread[POLL_THREADS];
+		for (int t = 0; t < POLL_THREADS; t++) {
+			final int index = t;
+			pollers[t] = new Thread() {
+				public void run() {
+					try {
+						int mine = subscribers / POLL_THREADS + (index < subscribers % POLL_THREADS ? 1 : 0);
+						while (System.nanoTime() < deadline) {
+							long round = System.nanoTime();
+							for (int i = 0; i < mine; i++)
+								pollStore.getOtherLotAvailability(lots[(i * POLL_THREADS + index) % lots.length]);
+							long rest = pollInterval - (System.nanoTime() - round) / 1000000;
+							if (rest > 0)
+								Thread.sleep(rest);
+						}
+					} catch (Exception e) {
+						failures.incrementAndGet();
+						System.out.println("FAIL: polling stopped by " + e);
+					}
+				}
+			};
+			pollers[t].start();
+		}
+		for (Thread poller : pollers)
+			poller.join();
+		long pollReads = store.reads.get();
+		report("Polling", subscribers, seconds, pollReads, stopChurn(churn));
+
+		// Pushing: every subscriber subscribes to a few lots once
+		store = newStore(lotCount);
+		AvailabilityPublisher publisher = new AvailabilityPublisher(store);
+		RecordingListener[] listeners = new RecordingListener[subscribers];
+		int[][] watched = new int[subscribers][];
+		for (int i = 0; i < subscribers; i++) {
+			listeners[i] = new RecordingListener(i % SLOW_SUBSCRIBER_EVERY == SLOW_SUBSCRIBER_EVERY - 1);
+			watched[i] = new int[Math.min(LOTS_PER_SUBSCRIBER, lots.length)];
+			for (int j = 0; j < watched[i].length; j++)
+				watched[i][j] = lots[(i + j * 7) % lots.length];
+			publisher.subscribe(listeners[i], watched[i], MIN_PUSH_INTERVAL);
+		}
+		churn = startChurn(store, publisher, lotCount);
+		Thread.sleep(seconds * 1000L);
+		long pushReads = store.reads.get();
+		report("Pushing", subscribers, seconds, pushReads, stopChurn(churn));
+		long pushes = 0;
+		for (RecordingListener listener : listeners)
+			pushes += listener.pushes.get();
+		System.out.println(String.format("  %d pushes, %.1f per subscriber per second", pushes, (double) pushes / subscribers / seconds));
+		publisher.printStatistics();
+		System.out.println(String.format("Store reads cut from %d to %d (%.1f%% eliminated)", pollReads, pushReads,
+				pollReads > 0 ? 100.0 * (pollReads - pushReads) / pollReads : 0));
+		check("pushing read the store at most once per tick", pushReads <= seconds * 1000L / AvailabilityPublisher.DEFAULT_TICK_INTERVAL + 1);
+		check("pushing read the store less than polling", pushReads < pollReads);
+
+		// Once the churn has stopped, every subscriber must catch up with the final counts
+		Thread.sleep(MIN_PUSH_INTERVAL + 4 * SLOW_PUSH_TIME + 2 * AvailabilityPublisher.DEFAULT_REFRESH_INTERVAL);
+		int[] finalFree = store.getFreeSpaces(lots);
+		Map<Integer, Integer> expected = new ConcurrentHashMap<Integer, Integer>();
+		for (int i = 0; i < lots.length; i++)
+			expected.put(lots[i], finalFree[i]);
+		int stale = 0;
+		for (int i = 0; i < subscribers; i++) {
+			for (int lot : watched[i]) {
+				if (!expected.get(lot).equals(listeners[i].freeSpaces.get(lot)))
+					stale++;
+			}
+		}
+		check("every subscriber was pushed its lots' final counts (" + stale + " stale)", stale == 0);
+
+		int full = 0;
+		for (int free : finalFree)
+			if (free == 0)
+				full++;
+		System.out.println(full + " of " + lots.length + " lots were full at the end");
+		System.out.println(failures.get() == 0 ? "All checks passed" : failures.get() + " checks failed");
+		System.exit(failures.get() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Makes a store of small single level lots
+	 * @param lotCount The number of lots
+	 * @return The store
+	 */
+	protected static CountingStore newStore(int lotCount) {
+		return new CountingStore(LotLayout.generate(lotCount, 1, SPACES_PER_LOT));
+	}
+
+	/**
+	 * Creates the cars and starts the churn threads
+	 * @param store The store
+	 * @param publisher The publisher to tell of changes, or null
+	 * @param lotCount The number of lots
+	 * @return The churn threads
+	 */
+	protected static ChurnThread[] startChurn(ParkingStore store, AvailabilityPublisher publisher, int lotCount)
+		throws ServiceUnavailableException
+	{
+		int perThread = (int) (lotCount * SPACES_PER_LOT * CARS_PER_SPACE) / CHURN_THREADS;
+		ChurnThread[] churn = new ChurnThread[CHURN_THREADS];
+		for (int t = 0; t < CHURN_THREADS; t++) {
+			ClientSession[] cars = new ClientSession[perThread];
+			for (int i = 0; i < perThread; i++)
+				cars[i] = store.createSession();
+			churn[t] = new ChurnThread(store, publisher, cars, store.getLots());
+			churn[t].start();
+		}
+		return churn;
+	}
+
+	/**
+	 * Stops the churn threads and sums up their measurements
+	 * @param churn The churn threads
+	 * @return The number of changes, their total latency and the longest latency in nanoseconds
+	 */
+	protected static long[] stopChurn(ChurnThread[] churn) throws InterruptedException
+	{
+		long[] totals = new long[3];
+		for (ChurnThread thread : churn) {
+			thread.stopped = true;
+			thread.join();
+			totals[0] += thread.changes;
+			totals[1] += thread.totalLatency;
+			totals[2] = Math.max(totals[2], thread.maxLatency);
+		}
+		return totals;
+	}
+
+	/**
+	 * Prints the results of a phase
+	 * @param name The name of the phase
+	 * @param subscribers The number of subscribers
+	 * @param seconds The length of the phase in seconds
+	 * @param reads The number of availability reads
+	 * @param churn The churn totals from stopChurn()
+	 */
+	protected static void report(String name, int subscribers, int seconds, long reads, long[] churn)
+	{
+		System.out.println(String.format("%s, %d subscribers: %d store reads (%d per second); %d cars moved, "
+				+ "%.1fus average and %dus longest per move", name, subscribers, reads, reads / seconds, churn[0],
+				churn[0] > 0 ? churn[1] / 1000.0 / churn[0] : 0, churn[2] / 1000));
+	}
+
+	/**
+	 * Prints the result of a check
+	 * @param name What was checked
+	 * @param passed True if the check passed
+	 */
+	protected static void check(String name, boolean passed)
+	{
+		System.out.println((passed ? "PASS: " : "FAIL: ") + name);
+		if (!passed)
+			failures.incrementAndGet();
+	}
+}